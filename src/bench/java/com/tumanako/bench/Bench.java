@@ -0,0 +1,126 @@
+package com.tumanako.bench;
+
+/**
+Tumanako - Electric Vehicle and Motor control software <p>
+
+Copyright (C) 2014 Jeremy Cole-Baker <jeremy@rhtech.co.nz> <p>
+
+This file is part of Tumanako Dashboard. <p>
+
+Tumanako is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published
+by the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version. <p>
+
+Tumanako is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details. <p>
+
+You should have received a copy of the GNU Lesser General Public License
+along with Tumanako.  If not, see <http://www.gnu.org/licenses/>. <p>
+
+@author Jeremy Cole-Baker / Riverhead Technology
+
+*/
+
+
+import java.lang.management.ManagementFactory;
+
+
+
+/**
+ Benchmark Runner <p>
+
+ A small timing and allocation harness for the plain Java parts of the
+ dashboard (the bus, decoders, buffers and formatters), which can run on a
+ desktop JVM. Nothing here is part of the app. <p>
+
+ Each benchmark is a main class in the same package as the class it measures,
+ under src/bench/java. To build and run one (from the project directory): <p>
+
+ <pre>
+   javac -d /tmp/bench -sourcepath src/main/java:src/bench/java src/bench/java/com/tumanako/dash/DashBusBench.java
+   java -cp /tmp/bench com.tumanako.dash.DashBusBench
+ </pre>
+
+ Only the classes the benchmark uses are compiled (-sourcepath), so it
+ doesn't need the Android libraries. <p>
+
+ Each task is run a few times to warm up the JIT, then timed over several
+ rounds; the fastest round is reported, along with the bytes allocated per
+ operation by the benchmark thread (HotSpot's per-thread allocation counter,
+ so there is no need to read GC logs). The task returns a checksum of its
+ results, so the JIT can't optimise the work away. <p>
+
+ @author Jeremy Cole-Baker / Riverhead Technology
+
+*/
+public final class Bench
+  {
+
+  /** A benchmark task: do 'count' operations. */
+  public interface Task
+    {
+    public abstract long run(int count);
+      // Returns anything calculated from the results (added to a checksum).
+    }
+
+
+  private static final int WARMUP_ROUNDS = 5;
+  private static final int TIMED_ROUNDS  = 7;
+
+  private static volatile long checksum = 0;      // Results of every task end up here.
+
+  private static final com.sun.management.ThreadMXBean threadBean =
+      (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+
+
+
+  private Bench()
+    {  }
+
+
+
+  /**
+   Run a task and print the results
+   @param name   Name to print
+   @param task   Task to run
+   @param count  Number of operations in each round
+   @return       Fastest time per operation (nS)
+   */
+  public static double run(String name, Task task, int count)
+    {
+    long threadID = Thread.currentThread().getId();
+    for (int n=0; n<WARMUP_ROUNDS; n++) checksum += task.run(count);
+
+    long bestTime = Long.MAX_VALUE;
+    long leastBytes = Long.MAX_VALUE;
+    for (int n=0; n<TIMED_ROUNDS; n++)
+      {
+      long startBytes = threadBean.getThreadAllocatedBytes(threadID);
+      long startTime = System.nanoTime();
+      checksum += task.run(count);
+      long time = System.nanoTime() - startTime;
+      long bytes = threadBean.getThreadAllocatedBytes(threadID) - startBytes;
+      if (time < bestTime) bestTime = time;
+      if (bytes < leastBytes) leastBytes = bytes;
+      }
+
+    double nsPerOp = (double)bestTime / count;
+    System.out.println( String.format("  %-36s %10.1f ns/op %12.0f ops/s %10.1f B/op",
+        name, nsPerOp, 1e9 / nsPerOp, (double)leastBytes / count) );
+    return nsPerOp;
+    }
+
+
+
+  /** Print a heading. */
+  public static void heading(String text)
+    {
+    System.out.println();
+    System.out.println(text);
+    }
+
+
+  }  // [class Bench]
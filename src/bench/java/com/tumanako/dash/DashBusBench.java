@@ -0,0 +1,295 @@
+package com.tumanako.dash;
+
+/**
+Tumanako - Electric Vehicle and Motor control software <p>
+
+Copyright (C) 2014 Jeremy Cole-Baker <jeremy@rhtech.co.nz> <p>
+
+This file is part of Tumanako Dashboard. <p>
+
+Tumanako is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published
+by the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version. <p>
+
+Tumanako is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details. <p>
+
+You should have received a copy of the GNU Lesser General Public License
+along with Tumanako.  If not, see <http://www.gnu.org/licenses/>. <p>
+
+@author Jeremy Cole-Baker / Riverhead Technology
+
+*/
+
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import com.tumanako.bench.Bench;
+
+
+
+/**
+ DashBus Benchmark <p>
+
+ Compares publishing values on the DashBus with the old path, where every
+ value was sent with DashMessages.sendData() as an Intent through the
+ LocalBroadcastManager. <p>
+
+ The old path needs Android, so it is modelled here in plain Java (see
+ ModelBroadcastManager): for each value, an Intent with a HashMap of extras
+ and a boxed Float; a lookup of the receivers registered for the action
+ string and a match against each one's filter; a broadcast record on the
+ pending list; then, on delivery, the extras are read back and the value is
+ boxed again for IDashMessages.messageReceived. The real one also posts a
+ Handler message for each batch of broadcasts, which isn't modelled, so the
+ model flatters the old path slightly. <p>
+
+ Run as described in Bench. <p>
+
+ @author Jeremy Cole-Baker / Riverhead Technology
+
+*/
+public class DashBusBench
+  {
+
+  private static final int OPS = 2000000;
+
+
+
+  // ****** Subscribers: ******
+  private static class BusListener implements IDashBusListener
+    {
+    float total = 0f;
+    public void floatReceived(int channel, float value)
+      {  total += value;  }
+    public void intReceived(int channel, int value)
+      {  total += value;  }
+    }
+
+  private static class MessageListener implements IModelMessages
+    {
+    float total = 0f;
+    public void messageReceived(String action, Integer intData, Float floatData, String stringData, Object bundleData)
+      {  if (floatData != null) total += floatData.floatValue();  }
+    }
+
+
+
+  public static void main(String[] args)
+    {
+    final DashBus dashBus = DashBus.getInstance();
+    final int channel = DashBus.DATA_MOTOR_RPM;
+    final BusListener busListener = new BusListener();
+    dashBus.subscribe(channel, busListener);
+
+    final ModelBroadcastManager broadcaster = new ModelBroadcastManager();
+    final MessageListener messageListener = new MessageListener();
+    final ModelDashMessages dashMessages = new ModelDashMessages(broadcaster, messageListener, new String[] { "DATA_MOTOR_RPM" });
+    // Other receivers, as registered by the rest of the widgets (each with its own action): 
+    for (int n=0; n<54; n++) new ModelDashMessages(broadcaster, new MessageListener(), new String[] { "DATA_OTHER_" + n });
+
+    Bench.heading("One value to one subscriber:");
+    double busTime = Bench.run("DashBus.publishFloat", new Bench.Task()
+      {
+      public long run(int count)
+        {
+        for (int n=0; n<count; n++) dashBus.publishFloat(channel, n);
+        return (long)busListener.total;
+        }
+      }, OPS);
+    double oldTime = Bench.run("DashMessages.sendData (model)", new Bench.Task()
+      {
+      public long run(int count)
+        {
+        for (int n=0; n<count; n++) dashMessages.sendData("DATA_MOTOR_RPM", null, Float.valueOf(n), null, null);
+        return (long)messageListener.total;
+        }
+      }, OPS);
+    System.out.println( String.format("  DashBus is %.1f times faster", oldTime / busTime) );
+
+    // A whole vehicle frame, with five fields being displayed (as on the main page): 
+    final VehicleFrame frame = new VehicleFrame();
+    final int[] shown = { DashBus.DATA_MOTOR_RPM, DashBus.DATA_MAIN_BATTERY_KWH, DashBus.DATA_MAIN_BATTERY_TEMP,
+                          DashBus.DATA_MOTOR_TEMP, DashBus.DATA_CONTROLLER_TEMP };
+    for (int n=1; n<shown.length; n++) dashBus.subscribe(shown[n], busListener);
+    for (int n=0; n<VehicleFrame.FIELD_COUNT; n++) frame.set(n, n * 1.5f);
+    final String[] actions = new String[VehicleFrame.FIELD_COUNT];
+    for (int n=0; n<actions.length; n++) actions[n] = dashBus.getChannelName(n);
+    final ModelDashMessages frameMessages = new ModelDashMessages(broadcaster, messageListener, actions);
+
+    Bench.heading("Vehicle frame (" + VehicleFrame.FIELD_COUNT + " values, " + shown.length + " displayed):");
+    busTime = Bench.run("DashBus.publishFrame", new Bench.Task()
+      {
+      public long run(int count)
+        {
+        for (int n=0; n<count; n++)
+          {
+          frame.setSequence(n);
+          dashBus.publishFrame(frame);
+          }
+        return (long)busListener.total;
+        }
+      }, OPS / 10);
+    oldTime = Bench.run("DashMessages.sendData x " + VehicleFrame.FIELD_COUNT + " (model)", new Bench.Task()
+      {
+      public long run(int count)
+        {
+        for (int n=0; n<count; n++)
+          for (int field=0; field<actions.length; field++) frameMessages.sendData(actions[field], null, Float.valueOf(frame.get(field)), null, null);
+        return (long)messageListener.total;
+        }
+      }, OPS / 10);
+    System.out.println( String.format("  DashBus is %.1f times faster", oldTime / busTime) );
+    }
+
+
+
+
+  /********** Model of the old Intent path: ******************************************
+   * These follow the old DashMessages and the support library's LocalBroadcastManager. 
+   ***********************************************************************************/
+  private interface IModelMessages
+    {
+    public abstract void messageReceived(String action, Integer intData, Float floatData, String stringData, Object bundleData);
+    }
+
+
+  // Intent: an action string, and extras in a HashMap (as in a Bundle). 
+  private static class ModelIntent
+    {
+    final String action;
+    HashMap<String, Object> extras = null;
+    ModelIntent(String thisAction)
+      {  action = thisAction;  }
+    void putExtra(String name, Object value)
+      {
+      if (extras == null) extras = new HashMap<String, Object>();
+      extras.put(name, value);
+      }
+    boolean hasExtra(String name)
+      {  return (extras != null) && extras.containsKey(name);  }
+    Object getExtra(String name)
+      {  return (extras == null) ? null : extras.get(name);  }
+    }
+
+
+  private static class ReceiverRecord
+    {
+    final String filterAction;
+    final ModelDashMessages receiver;
+    boolean broadcasting = false;
+    ReceiverRecord(String thisAction, ModelDashMessages thisReceiver)
+      {
+      filterAction = thisAction;
+      receiver = thisReceiver;
+      }
+    }
+
+  private static class BroadcastRecord
+    {
+    final ModelIntent intent;
+    final ArrayList<ReceiverRecord> receivers;
+    BroadcastRecord(ModelIntent thisIntent, ArrayList<ReceiverRecord> theseReceivers)
+      {
+      intent = thisIntent;
+      receivers = theseReceivers;
+      }
+    }
+
+
+  private static class ModelBroadcastManager
+    {
+    private final HashMap<String, ArrayList<ReceiverRecord>> actions = new HashMap<String, ArrayList<ReceiverRecord>>();
+    private final ArrayList<BroadcastRecord> pending = new ArrayList<BroadcastRecord>();
+
+    synchronized void registerReceiver(ModelDashMessages receiver, String action)
+      {
+      ArrayList<ReceiverRecord> entries = actions.get(action);
+      if (entries == null)
+        {
+        entries = new ArrayList<ReceiverRecord>(1);
+        actions.put(action, entries);
+        }
+      entries.add(new ReceiverRecord(action, receiver));
+      }
+
+    void sendBroadcast(ModelIntent intent)
+      {
+      synchronized (this)
+        {
+        ArrayList<ReceiverRecord> entries = actions.get(intent.action);
+        if (entries == null) return;
+        ArrayList<ReceiverRecord> receivers = null;
+        for (int n=0; n<entries.size(); n++)
+          {
+          ReceiverRecord receiver = entries.get(n);
+          if (receiver.broadcasting) continue;
+          if (!receiver.filterAction.equals(intent.action)) continue;
+          if (receivers == null) receivers = new ArrayList<ReceiverRecord>();
+          receivers.add(receiver);
+          receiver.broadcasting = true;
+          }
+        if (receivers == null) return;
+        for (int n=0; n<receivers.size(); n++) receivers.get(n).broadcasting = false;
+        pending.add(new BroadcastRecord(intent, receivers));
+        }
+      executePendingBroadcasts();     // (Done by a Handler on the main looper in the real one.)
+      }
+
+    private void executePendingBroadcasts()
+      {
+      BroadcastRecord[] broadcasts;
+      synchronized (this)
+        {
+        broadcasts = pending.toArray(new BroadcastRecord[pending.size()]);
+        pending.clear();
+        }
+      for (int n=0; n<broadcasts.length; n++)
+        for (int r=0; r<broadcasts[n].receivers.size(); r++)
+          broadcasts[n].receivers.get(r).receiver.onReceive(broadcasts[n].intent);
+      }
+    }
+
+
+  private static class ModelDashMessages
+    {
+    private final ModelBroadcastManager broadcaster;
+    private final IModelMessages parent;
+
+    ModelDashMessages(ModelBroadcastManager thisBroadcaster, IModelMessages thisParent, String[] filters)
+      {
+      broadcaster = thisBroadcaster;
+      parent = thisParent;
+      for (int n=0; n<filters.length; n++) broadcaster.registerReceiver(this, filters[n]);
+      }
+
+    void onReceive(ModelIntent intent)
+      {
+      Integer intData   = null;
+      Float   floatData = null;
+      String  stringData = null;
+      Object  bundleData = null;
+      if (intent.hasExtra("i")) intData    = Integer.valueOf( ((Integer)intent.getExtra("i")).intValue() );
+      if (intent.hasExtra("f")) floatData  = Float.valueOf( ((Float)intent.getExtra("f")).floatValue() );
+      if (intent.hasExtra("s")) stringData = (String)intent.getExtra("s");
+      if (intent.hasExtra("d")) bundleData = intent.getExtra("d");
+      parent.messageReceived(intent.action, intData, floatData, stringData, bundleData);
+      }
+
+    void sendData(String action, Integer intData, Float floatData, String stringData, Object bundleData)
+      {
+      ModelIntent intent = new ModelIntent(action);
+      if (intData    != null) intent.putExtra("i", intData);
+      if (floatData  != null) intent.putExtra("f", floatData);
+      if (stringData != null) intent.putExtra("s", stringData);
+      if (bundleData != null) intent.putExtra("d", bundleData);
+      broadcaster.sendBroadcast(intent);
+      }
+    }
+
+
+  }  // [class DashBusBench]
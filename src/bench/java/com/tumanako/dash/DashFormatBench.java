@@ -0,0 +1,272 @@
+package com.tumanako.dash;
+
+/**
+Tumanako - Electric Vehicle and Motor control software <p>
+
+Copyright (C) 2014 Jeremy Cole-Baker <jeremy@rhtech.co.nz> <p>
+
+This file is part of Tumanako Dashboard. <p>
+
+Tumanako is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published
+by the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version. <p>
+
+Tumanako is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details. <p>
+
+You should have received a copy of the GNU Lesser General Public License
+along with Tumanako.  If not, see <http://www.gnu.org/licenses/>. <p>
+
+@author Jeremy Cole-Baker / Riverhead Technology
+
+*/
+
+
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.Random;
+
+import com.tumanako.bench.Bench;
+
+
+
+/**
+ DashFormat Benchmark <p>
+
+ Checks that DashFormat gives the same text as String.format, then compares
+ their cost for the patterns the dashboard uses most: <p>
+ <ul>
+  <li>Equivalence: 17 patterns (%f, %d and lap times) against random values:
+      uniform values, values on and next to a rounding boundary, small whole
+      numbers, random float bit patterns (which include NaN, infinities,
+      -0.0 and huge values), and a few special values. %d formats are given
+      random ints (format(int)). Lap times are checked against the rounded
+      time split into minutes and seconds with BigDecimal.
+  <li>Cost per call for %.1f, %06.0f, %d and mm:ss.s. For mm:ss.s the old
+      way is LapData's String.format("%02.0f:%04.1f", minutes, seconds).
+ </ul>
+
+ Run as described in Bench. Optional argument: values per pattern for the
+ equivalence check (default 2000000; 17 patterns give 34M values). <p>
+
+ @author Jeremy Cole-Baker / Riverhead Technology
+
+*/
+public class DashFormatBench
+  {
+
+  private static final String[] PATTERNS =
+    {
+    "%.1f", "%.2f", "%.0f", "%06.0f", "%+1.2f", "%4.2f kWh", "%5.1f", "%08.3f", "%.8f", "%+06.1f",
+    "%d", "%02d", "%+d", "%5d rpm",
+    "mm:ss", "mm:ss.s", "mm:ss.ss"
+    };
+  private static final float[] SPECIAL =
+    { Float.NaN, Float.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY, 0f, -0f, Float.MAX_VALUE, -Float.MAX_VALUE, Float.MIN_VALUE, 0.05f, 0.15f, 59.95f, 59.97f, 599.95f };
+
+  private static final int OPS = 1000000;
+  private static final int VALUES = 4096;          // Values cycled through by the timed tasks.
+
+  private static final Random random = new Random(20140601);
+
+
+
+  public static void main(String[] args)
+    {
+    int perPattern = (args.length > 0) ? Integer.parseInt(args[0]) : 2000000;
+    checkEquivalence(perPattern);
+
+    final float[] values = new float[VALUES];       // Typical dashboard values: speeds, volts, temperatures...
+    final int[] whole = new int[VALUES];             // ...RPM...
+    final float[] times = new float[VALUES];         // ...and lap times (s).
+    for (int n = 0; n < VALUES; n++)
+      {
+      values[n] = random.nextFloat() * 500f;
+      whole[n] = random.nextInt(8000);
+      times[n] = 30f + (random.nextFloat() * 150f);
+      }
+    final char[] out = new char[64];
+
+    compare("%.1f", values);
+    compare("%06.0f", values);
+
+    final DashFormat intFormat = DashFormat.compile("%d");
+    Bench.heading("%d:");
+    double oldTime = Bench.run("String.format", new Bench.Task()
+      {
+      public long run(int count)
+        {
+        long total = 0;
+        for (int n = 0; n < count; n++) total += String.format("%d", whole[n & (VALUES - 1)]).length();
+        return total;
+        }
+      }, OPS);
+    double newTime = Bench.run("DashFormat", new Bench.Task()
+      {
+      public long run(int count)
+        {
+        long total = 0;
+        for (int n = 0; n < count; n++) total += intFormat.format(whole[n & (VALUES - 1)], out, 0) + out[0];
+        return total;
+        }
+      }, OPS);
+    System.out.println( String.format("  DashFormat is %.1f times faster", oldTime / newTime) );
+
+    final DashFormat timeFormat = DashFormat.compile("mm:ss.s");
+    Bench.heading("mm:ss.s:");
+    oldTime = Bench.run("String.format(\"%02.0f:%04.1f\")", new Bench.Task()
+      {
+      public long run(int count)
+        {
+        long total = 0;
+        for (int n = 0; n < count; n++)
+          {
+          float seconds = times[n & (VALUES - 1)];
+          float minutes = (float)Math.floor(seconds / 60f);
+          total += String.format("%02.0f:%04.1f", minutes, seconds - (minutes * 60f)).length();
+          }
+        return total;
+        }
+      }, OPS);
+    newTime = Bench.run("DashFormat", new Bench.Task()
+      {
+      public long run(int count)
+        {
+        long total = 0;
+        for (int n = 0; n < count; n++) total += timeFormat.format(times[n & (VALUES - 1)], out, 0) + out[0];
+        return total;
+        }
+      }, OPS);
+    System.out.println( String.format("  DashFormat is %.1f times faster", oldTime / newTime) );
+    }
+
+
+
+  // Time a %f pattern both ways:
+  private static void compare(final String pattern, final float[] values)
+    {
+    final DashFormat format = DashFormat.compile(pattern);
+    final char[] out = new char[format.getMaxLength()];
+    Bench.heading(pattern + ":");
+    double oldTime = Bench.run("String.format", new Bench.Task()
+      {
+      public long run(int count)
+        {
+        long total = 0;
+        for (int n = 0; n < count; n++) total += String.format(pattern, values[n & (VALUES - 1)]).length();
+        return total;
+        }
+      }, OPS);
+    double newTime = Bench.run("DashFormat", new Bench.Task()
+      {
+      public long run(int count)
+        {
+        long total = 0;
+        for (int n = 0; n < count; n++) total += format.format(values[n & (VALUES - 1)], out, 0) + out[0];
+        return total;
+        }
+      }, OPS);
+    System.out.println( String.format("  DashFormat is %.1f times faster", oldTime / newTime) );
+    }
+
+
+
+
+  /************* Equivalence: ************************************************/
+
+  private static void checkEquivalence(int perPattern)
+    {
+    Bench.heading("Equivalence with String.format (" + PATTERNS.length + " patterns, " + perPattern + " values each):");
+    long checked = 0;
+    long mismatches = 0;
+    for (int p = 0; p < PATTERNS.length; p++)
+      {
+      String pattern = PATTERNS[p];
+      DashFormat format = DashFormat.compile(pattern);
+      char[] out = new char[format.getMaxLength() + 8];
+      int patternMismatches = 0;
+      for (int n = 0; n < perPattern; n++)
+        {
+        String expected;
+        String actual;
+        if (format.isInteger())
+          {
+          int value = (n < 4) ? new int[] { 0, -1, Integer.MAX_VALUE, Integer.MIN_VALUE }[n] : randomInt();
+          expected = String.format(pattern, value);
+          actual = new String(out, 0, format.format(value, out, 0));
+          }
+        else
+          {
+          float value = (n < SPECIAL.length) ? SPECIAL[n] : randomFloat(format);
+          if (pattern.startsWith("mm:ss"))
+            {
+            if (Float.isNaN(value) || Float.isInfinite(value) || (Math.abs(value) > 1e7f)) value = value % 10000f;
+            if (Float.isNaN(value)) continue;
+            expected = lapTime(value, pattern.length() - Math.min(pattern.length(), 6));
+            }
+          else expected = String.format(pattern, value);
+          actual = new String(out, 0, format.format(value, out, 0));
+          }
+        if (!expected.equals(actual))
+          {
+          if (patternMismatches < 3) System.out.println( "  " + pattern + ": \"" + expected + "\" / \"" + actual + "\"" );
+          patternMismatches++;
+          }
+        checked++;
+        }
+      mismatches += patternMismatches;
+      }
+    System.out.println( "  " + checked + " values checked, " + mismatches + " different" );
+    }
+
+
+  // Random float: a mix of ordinary values, rounding boundaries and random bit patterns:
+  private static float randomFloat(DashFormat format)
+    {
+    switch (random.nextInt(4))
+      {
+      case 0:
+        return (random.nextFloat() - 0.5f) * 2000f;
+      case 1:
+        // On (or next to) a half way point of the last decimal place shown:
+        int decimals = random.nextInt(4);
+        float boundary = (float)((random.nextInt(200000) - 100000 + 0.5) / Math.pow(10, decimals));
+        int step = random.nextInt(3) - 1;
+        return (step == 0) ? boundary : ((step > 0) ? Math.nextUp(boundary) : -Math.nextUp(-boundary));
+      case 2:
+        return random.nextInt(2000) - 1000;
+      default:
+        return Float.intBitsToFloat(random.nextInt());
+      }
+    }
+
+
+  private static int randomInt()
+    {
+    switch (random.nextInt(3))
+      {
+      case 0:  return random.nextInt(20000) - 10000;
+      case 1:  return random.nextInt(200) - 100;
+      default: return random.nextInt();
+      }
+    }
+
+
+  // Lap time, rounded to 'decimals' places, then split into minutes and seconds:
+  private static String lapTime(float seconds, int decimals)
+    {
+    BigDecimal rounded = new BigDecimal(Math.abs((double)seconds)).setScale(decimals, RoundingMode.HALF_UP);
+    BigDecimal[] parts = rounded.divideAndRemainder(BigDecimal.valueOf(60));
+    String secondsText = parts[1].setScale(decimals).toPlainString();
+    if (parts[1].compareTo(BigDecimal.TEN) < 0) secondsText = "0" + secondsText;
+    String minutesText = parts[0].setScale(0).toPlainString();
+    if (minutesText.length() < 2) minutesText = "0" + minutesText;
+    return ((seconds < 0f) ? "-" : "") + minutesText + ":" + secondsText;
+    }
+
+
+  }  // [class DashFormatBench]
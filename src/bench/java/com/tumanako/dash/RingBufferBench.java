@@ -0,0 +1,206 @@
+package com.tumanako.dash;
+
+/**
+Tumanako - Electric Vehicle and Motor control software <p>
+
+Copyright (C) 2014 Jeremy Cole-Baker <jeremy@rhtech.co.nz> <p>
+
+This file is part of Tumanako Dashboard. <p>
+
+Tumanako is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published
+by the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version. <p>
+
+Tumanako is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details. <p>
+
+You should have received a copy of the GNU Lesser General Public License
+along with Tumanako.  If not, see <http://www.gnu.org/licenses/>. <p>
+
+@author Jeremy Cole-Baker / Riverhead Technology
+
+*/
+
+
+import com.tumanako.bench.Bench;
+
+
+
+/**
+ RingBuffer Benchmark <p>
+
+ Compares the column-major RingBuffer with the old one (one cloned array
+ per point; reproduced below as OldRingBuffer), for what ScrollChart does
+ with it: <p>
+ <ul>
+  <li>Adding a point to a one-field chart buffer. The old chart wrapped each
+      value in a new array, then AddPoint cloned it.
+  <li>Reading the 60 points of a chart to draw it. The old chart called
+      GetPoint 60 times, each returning a clone.
+  <li>Adding a four-field point with a rolling average (e.g. a sensor
+      history).
+ </ul>
+
+ Run as described in Bench. <p>
+
+ @author Jeremy Cole-Baker / Riverhead Technology
+
+*/
+public class RingBufferBench
+  {
+
+  private static final int CHART_POINTS = 60;      // As ScrollChart.NUMBER_POINTS
+  private static final int OPS = 5000000;
+
+
+
+  public static void main(String[] args)
+    {
+    final RingBuffer chartBuffer = new RingBuffer(CHART_POINTS, 1, false);
+    final OldRingBuffer oldChartBuffer = new OldRingBuffer(CHART_POINTS, 1, false);
+    final RingBuffer sensorBuffer = new RingBuffer(100, 4, true);
+    final OldRingBuffer oldSensorBuffer = new OldRingBuffer(100, 4, true);
+    final float[] yCoord = new float[CHART_POINTS];
+    final float[] point = new float[4];
+    for (int n = 0; n < CHART_POINTS; n++)
+      {
+      chartBuffer.AddPoint(n * 0.01f);
+      oldChartBuffer.AddPoint(new float[] { n * 0.01f });
+      }
+
+    Bench.heading("Add a chart point (1 field):");
+    double oldTime = Bench.run("old AddPoint(new float[] {v})", new Bench.Task()
+      {
+      public long run(int count)
+        {
+        for (int n = 0; n < count; n++) oldChartBuffer.AddPoint(new float[] { n * 1e-6f });
+        return oldChartBuffer.GetLength();
+        }
+      }, OPS);
+    double newTime = Bench.run("AddPoint(v)", new Bench.Task()
+      {
+      public long run(int count)
+        {
+        for (int n = 0; n < count; n++) chartBuffer.AddPoint(n * 1e-6f);
+        return chartBuffer.GetLength();
+        }
+      }, OPS);
+    System.out.println( String.format("  %.1f times faster", oldTime / newTime) );
+
+    Bench.heading("Read " + CHART_POINTS + " chart points (one frame):");
+    oldTime = Bench.run("old GetPoint x " + CHART_POINTS, new Bench.Task()
+      {
+      public long run(int count)
+        {
+        float total = 0f;
+        for (int n = 0; n < count; n++)
+          {
+          for (int i = 0; i < CHART_POINTS; i++) yCoord[i] = oldChartBuffer.GetPoint(CHART_POINTS - 1 - i)[0];
+          total += yCoord[n % CHART_POINTS];
+          }
+        return (long)total;
+        }
+      }, OPS / 50);
+    newTime = Bench.run("GetRange", new Bench.Task()
+      {
+      public long run(int count)
+        {
+        float total = 0f;
+        for (int n = 0; n < count; n++)
+          {
+          chartBuffer.GetRange(0, yCoord, 0, CHART_POINTS);
+          total += yCoord[n % CHART_POINTS];
+          }
+        return (long)total;
+        }
+      }, OPS / 50);
+    System.out.println( String.format("  %.1f times faster", oldTime / newTime) );
+
+    Bench.heading("Add a 4 field point with average:");
+    oldTime = Bench.run("old AddPoint(float[])", new Bench.Task()
+      {
+      public long run(int count)
+        {
+        for (int n = 0; n < count; n++)
+          {
+          point[n & 3] = n;
+          oldSensorBuffer.AddPoint(point);
+          }
+        return (long)oldSensorBuffer.GetAverage()[0];
+        }
+      }, OPS);
+    newTime = Bench.run("AddPoint(float[])", new Bench.Task()
+      {
+      public long run(int count)
+        {
+        for (int n = 0; n < count; n++)
+          {
+          point[n & 3] = n;
+          sensorBuffer.AddPoint(point);
+          }
+        return (long)sensorBuffer.GetAverage(0);
+        }
+      }, OPS);
+    System.out.println( String.format("  %.1f times faster", oldTime / newTime) );
+    }
+
+
+
+
+  /******** The old RingBuffer (one array per point): ********/
+  private static class OldRingBuffer
+    {
+    private final int bufferSize;
+    private final int bufferFieldCount;
+    private final boolean useAverage;
+    private float[][] dataBuffer;
+    private float[] dataAverage;
+    private int dataPointer = 0;
+    private int dataLength  = 0;
+
+    OldRingBuffer(int thisBufferSize, int thisFieldCount, boolean thisUseAverage)
+      {
+      bufferSize       = thisBufferSize;
+      bufferFieldCount = thisFieldCount;
+      useAverage       = thisUseAverage;
+      dataBuffer  = new float[bufferSize][bufferFieldCount];
+      dataAverage = new float[bufferFieldCount];
+      }
+
+    int GetLength()
+      {  return dataLength;  }
+
+    void AddPoint(float[] theseValues)
+      {
+      if (useAverage)
+        {
+        for (int n = 0; n < bufferFieldCount; n++)
+          {
+          if (dataLength == bufferSize)
+            dataAverage[n] = dataAverage[n] - (dataBuffer[dataPointer][n] / dataLength) + (theseValues[n] / dataLength);
+          else
+            dataAverage[n] = dataAverage[n] + ( (theseValues[n] - dataAverage[n]) / (dataLength + 1) );
+          }
+        }
+      dataBuffer[dataPointer] = theseValues.clone();
+      dataPointer = dataPointer + 1;
+      if (dataPointer >= bufferSize) dataPointer = 0;
+      if (dataLength < bufferSize) dataLength = dataLength + 1;
+      }
+
+    float[] GetPoint(int pointIndex)
+      {
+      int thisPointer = dataPointer - (pointIndex + 1);
+      if (thisPointer < 0) thisPointer = thisPointer + bufferSize;
+      return dataBuffer[thisPointer].clone();
+      }
+
+    float[] GetAverage()
+      {  return dataAverage.clone();  }
+    }
+
+
+  }  // [class RingBufferBench]
@@ -0,0 +1,281 @@
+package com.tumanako.sensors;
+
+/************************************************************************************
+Tumanako - Electric Vehicle and Motor control software
+
+Copyright (C) 2014 Jeremy Cole-Baker <jeremy@rhtech.co.nz>
+
+This file is part of Tumanako Dashboard.
+
+Tumanako is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published
+by the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Tumanako is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with Tumanako.  If not, see <http://www.gnu.org/licenses/>.
+
+*************************************************************************************/
+
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+
+import com.tumanako.bench.Bench;
+
+
+
+/****************************************************************
+ *  NMEA Parser Benchmark:
+ *  -------------------------------
+ *
+ *  Decodes a two hour NMEA log two ways, taking the same fields as
+ *  NmeaProcessor (time, position, quality, satellites and altitude
+ *  from GGA; speed and track from RMC and VTG):
+ *
+ *   - The old way: substring / split, Float.valueOf / Integer.valueOf,
+ *     and nmeaDegreeFix (two substrings and two Doubles per
+ *     coordinate), as NmeaProcessor.nmeaDecode used to. No checksum.
+ *
+ *   - NmeaParser, in place, with the checksum checked.
+ *
+ *  The log is the GPS part of the demo session recording (GGA and RMC
+ *  at 1 Hz), played end to end with the UTC times moved on each pass
+ *  (as in loop replay) until it covers two hours. One sentence in 200
+ *  has a digit changed without fixing the checksum, as a noisy serial
+ *  link would: the old decoder takes these as good positions,
+ *  NmeaParser rejects them.
+ *
+ *  Run as described in Bench. Optional argument: recording file.
+ *
+ * @author Jeremy Cole-Baker / Riverhead Technology
+ *
+ ***************************************************************/
+public class NmeaParserBench
+  {
+
+  private static final int LOG_SECONDS = 2 * 3600;
+  private static final int CORRUPT_EVERY = 200;
+
+  private static String[] log;
+
+
+
+  public static void main(String[] args) throws IOException
+    {
+    makeLog( (args.length > 0) ? args[0] : "assets/demo_session.tdr" );
+    final int sentences = log.length;
+    System.out.println( "NMEA log: " + sentences + " sentences (" + (LOG_SECONDS / 3600) + " hours)" );
+
+    final OldDecoder oldDecoder = new OldDecoder();
+    final NewDecoder newDecoder = new NewDecoder();
+
+    // Check that both decoders get the same fixes from the good GGA sentences (to within 1 cm): 
+    int differences = 0;
+    for (int n = 0; n < sentences; n++)
+      {
+      oldDecoder.decode(log[n]);
+      newDecoder.decode(log[n]);
+      if ( ((n % CORRUPT_EVERY) != 0) && log[n].startsWith("GGA", 3)
+        && ((Math.abs(oldDecoder.lat - newDecoder.lat) > 1e-7) || (Math.abs(oldDecoder.lon - newDecoder.lon) > 1e-7)) ) differences++;
+      }
+    System.out.println( "Positions differing (good sentences): " + differences 
+        + "; Rejected by NmeaParser: " + newDecoder.parser.getSentencesRejected() + " (checksum errors: " + newDecoder.parser.getChecksumErrors() + ")" );
+
+    Bench.heading("Per sentence:");
+    double oldTime = Bench.run("split + valueOf + nmeaDegreeFix", new Bench.Task()
+      {
+      public long run(int count)
+        {
+        for (int n = 0; n < count; n++) oldDecoder.decode(log[n % sentences]);
+        return (long)(oldDecoder.lat + oldDecoder.speed);
+        }
+      }, sentences * 20);
+    double newTime = Bench.run("NmeaParser", new Bench.Task()
+      {
+      public long run(int count)
+        {
+        for (int n = 0; n < count; n++) newDecoder.decode(log[n % sentences]);
+        return (long)(newDecoder.lat + newDecoder.speed);
+        }
+      }, sentences * 20);
+    System.out.println( String.format("  NmeaParser is %.1f times faster", oldTime / newTime) );
+    }
+
+
+
+  // Build the log from the recording's NMEA sentences: 
+  private static void makeLog(String fileName) throws IOException
+    {
+    ArrayList<String> recorded = new ArrayList<String>();
+    long lastTime = 0;
+    BufferedReader in = new BufferedReader(new FileReader(fileName));
+    try
+      {
+      String record;
+      while ((record = in.readLine()) != null)
+        {
+        int space = record.indexOf(' ');
+        if (record.startsWith("#") || (space < 0)) continue;
+        lastTime = Long.parseLong(record.substring(0, space));
+        if (record.startsWith("$", space + 1)) recorded.add(record.substring(space + 1));
+        }
+      }
+    finally
+      {  in.close();  }
+
+    int passSeconds = (int)((lastTime + 999) / 1000);
+    ArrayList<String> sentences = new ArrayList<String>();
+    for (int offset = 0; offset < LOG_SECONDS; offset += passSeconds)
+      for (int n = 0; n < recorded.size(); n++)
+        {
+        String sentence = shiftTime(recorded.get(n), offset);
+        if ((sentences.size() % CORRUPT_EVERY) == 0) sentence = corrupt(sentence);
+        sentences.add(sentence);
+        }
+    log = sentences.toArray(new String[sentences.size()]);
+    }
+
+
+  // Move the UTC time (field 1, hhmmss.ss) on by 'offset' seconds, and fix the checksum: 
+  private static String shiftTime(String sentence, int offset)
+    {
+    String[] fields = sentence.substring(0, sentence.indexOf('*')).split(",", -1);
+    int hhmmss = Integer.parseInt(fields[1].substring(0, 6));
+    int seconds = ((hhmmss / 10000) * 3600) + (((hhmmss / 100) % 100) * 60) + (hhmmss % 100) + offset;
+    seconds = seconds % 86400;
+    fields[1] = String.format("%02d%02d%02d", seconds / 3600, (seconds / 60) % 60, seconds % 60) + fields[1].substring(6);
+    StringBuilder body = new StringBuilder(fields[0]);
+    for (int n = 1; n < fields.length; n++) body.append(',').append(fields[n]);
+    return withChecksum(body.toString());
+    }
+
+  private static String withChecksum(String body)
+    {
+    int checksum = 0;
+    for (int n = 1; n < body.length(); n++) checksum ^= body.charAt(n);
+    return body + String.format("*%02X", checksum);
+    }
+
+  // Change the first digit of the latitude, leaving the checksum as it was: 
+  private static String corrupt(String sentence)
+    {
+    int pos = sentence.indexOf(',', sentence.indexOf(',') + 1) + 1;
+    if (sentence.startsWith("RMC", 3)) pos = sentence.indexOf(',', pos) + 1;
+    char digit = sentence.charAt(pos);
+    char newDigit = (digit == '9') ? '0' : (char)(digit + 1);
+    return sentence.substring(0, pos) + newDigit + sentence.substring(pos + 1);
+    }
+
+
+
+
+  /******** The new decoder (as NmeaProcessor.nmeaDecode): ********/
+  private static class NewDecoder
+    {
+    final NmeaParser parser = new NmeaParser();
+    float time, alt, speed, track;
+    double lat, lon;
+    int qual, sats;
+
+    void decode(String sentence)
+      {
+      int id = parser.parse(sentence);
+      if ((id == NmeaParser.SENTENCE_GGA) && (parser.getFieldCount() >= 12))
+        {
+        time = parser.getFloat(1);
+        lat  = parser.getDegrees(2);
+        lon  = parser.getDegrees(4);
+        qual = parser.getInt(6, -1);
+        sats = parser.getInt(7, -1);
+        alt  = parser.getFloat(9);
+        }
+      else if ((id == NmeaParser.SENTENCE_VTG) && (parser.getFieldCount() >= 8))
+        {
+        speed = parser.getFloat(7);
+        track = parser.getFloat(1);
+        }
+      else if ((id == NmeaParser.SENTENCE_RMC) && (parser.getFieldCount() >= 10))
+        {
+        speed = parser.getFloat(7) * 1.852f;
+        track = parser.getFloat(8);
+        }
+      }
+    }
+
+
+
+  /******** The old decoder (from NmeaProcessor): ********/
+  private static class OldDecoder
+    {
+    float time, alt, speed, track;
+    double lat, lon;
+    int qual, sats;
+
+    void decode(String thisNMEA)
+      {
+      if (thisNMEA.length() < 6) return;
+      String nmeaSentenceID = thisNMEA.substring(3,6);
+      String[] nmeaParts = thisNMEA.split(",");
+      if (nmeaSentenceID.equals("GGA") && (nmeaParts.length >= 12))
+        {
+        try
+          {
+          time = Float.valueOf(nmeaParts[1]);
+          lat  = nmeaDegreeFix(nmeaParts[2]);
+          lon  = nmeaDegreeFix(nmeaParts[4]);
+          qual = Integer.valueOf(nmeaParts[6]);
+          sats = Integer.valueOf(nmeaParts[7]);
+          alt  = Float.valueOf(nmeaParts[9]);
+          if (nmeaParts[3].equals("S")) lat = lat * -1;
+          if (nmeaParts[5].equals("W")) lon = lon * -1;
+          }
+        catch (NumberFormatException e)
+          {  }
+        }
+      else if (nmeaSentenceID.equals("VTG") && (nmeaParts.length >= 8))
+        {
+        try
+          {
+          speed = Float.valueOf(nmeaParts[7]);
+          track = Float.valueOf(nmeaParts[1]);
+          }
+        catch (NumberFormatException e)
+          {  }
+        }
+      else if (nmeaSentenceID.equals("RMC") && (nmeaParts.length >= 12))
+        {
+        try
+          {
+          speed = Float.valueOf(nmeaParts[7]) * 1.852f;
+          track = Float.valueOf(nmeaParts[8]);
+          }
+        catch (NumberFormatException e)
+          {  }
+        }
+      }
+
+    private double nmeaDegreeFix(String thisLatLon)
+      {
+      if (thisLatLon.length() < 7) return 0.0;
+      try
+        {
+        int dotAt = thisLatLon.indexOf(".");
+        Double degrees = Double.valueOf(thisLatLon.substring(0,dotAt-2));
+        Double minutes = Double.valueOf(thisLatLon.substring(dotAt-2));
+        return degrees + (minutes /60.0);
+        }
+      catch (Exception e)
+        {  return 0.0;  }
+      }
+    }
+
+
+  }  // [class NmeaParserBench]
@@ -0,0 +1,195 @@
+package com.tumanako.sensors;
+
+/************************************************************************************
+Tumanako - Electric Vehicle and Motor control software
+
+Copyright (C) 2014 Jeremy Cole-Baker <jeremy@rhtech.co.nz>
+
+This file is part of Tumanako Dashboard.
+
+Tumanako is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published
+by the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Tumanako is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with Tumanako.  If not, see <http://www.gnu.org/licenses/>.
+
+*************************************************************************************/
+
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+
+import com.tumanako.bench.Bench;
+
+
+
+/****************************************************************
+ *  TDV1 Decoder Benchmark:
+ *  -------------------------------
+ *
+ *  Decodes the vehicle data from a session recording (by default the
+ *  demo session in assets), split into 100 byte reads as they come
+ *  from the bluetooth stream, two ways:
+ *
+ *   - The old way: each byte appended to a StringBuffer (a new one for
+ *     each line), then startsWith / substring / split and
+ *     Float.parseFloat for each field, as VehicleData.decodeAndSend
+ *     used to (without building the Bundle, which needs Android).
+ *
+ *   - The current way: the reads go into a LineQueue, and each line is
+ *     decoded in place by TDV1Decoder.decodeLine (on one thread here).
+ *
+ *  Run as described in Bench. Optional argument: recording file.
+ *
+ * @author Jeremy Cole-Baker / Riverhead Technology
+ *
+ ***************************************************************/
+public class TDV1DecoderBench
+  {
+
+  private static final int READ_SIZE = 100;       // Bytes per read (as VehicleData used to read).
+  private static final int LINES = 500000;        // Lines per round.
+
+  private static byte[] stream;                   // Recorded TDV1 lines, with CR LF.
+  private static int lineCount;
+
+
+
+  public static void main(String[] args) throws IOException
+    {
+    loadLines( (args.length > 0) ? args[0] : "assets/demo_session.tdr" );
+    System.out.println( "Corpus: " + lineCount + " lines, " + stream.length + " bytes" );
+
+    final OldDecoder oldDecoder = new OldDecoder();
+    final LineQueue lineQueue = new LineQueue(64, 64);
+    final TDV1Decoder decoder = new TDV1Decoder();
+
+    Bench.heading("Per line (read, split into lines, decode):");
+    double oldTime = Bench.run("StringBuffer + split + parseFloat", new Bench.Task()
+      {
+      public long run(int count)
+        {
+        int lines = 0;
+        while (lines < count)
+          for (int from = 0; from < stream.length; from += READ_SIZE)
+            lines += oldDecoder.read(stream, from, Math.min(from + READ_SIZE, stream.length));
+        return (long)oldDecoder.total;
+        }
+      }, LINES);
+    double newTime = Bench.run("LineQueue + TDV1Decoder", new Bench.Task()
+      {
+      public long run(int count)
+        {
+        int lines = 0;
+        float total = 0f;
+        while (lines < count)
+          for (int from = 0; from < stream.length; from += READ_SIZE)
+            {
+            lineQueue.write(stream, from, Math.min(from + READ_SIZE, stream.length), 0L);
+            int slot;
+            while ((slot = lineQueue.nextLine()) >= 0)
+              {
+              if (decoder.decodeLine(lineQueue.getLine(slot), 0, lineQueue.getLineLength(slot)))
+                for (int field = 0; field < TDV1Decoder.FIELD_COUNT; field++) total += decoder.getField(field);
+              lineQueue.release();
+              lines++;
+              }
+            }
+        return (long)total;
+        }
+      }, LINES);
+    System.out.println( String.format("  TDV1Decoder is %.1f times faster", oldTime / newTime) );
+    }
+
+
+
+  // Read the TDV1 lines from a recording (see ReplayEngine for the format): 
+  private static void loadLines(String fileName) throws IOException
+    {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    BufferedReader in = new BufferedReader(new FileReader(fileName));
+    try
+      {
+      String record;
+      while ((record = in.readLine()) != null)
+        {
+        int start = record.indexOf(' ') + 1;
+        if (record.startsWith("#") || !record.startsWith("TDV1:", start)) continue;
+        for (int n = start; n < record.length(); n++) bytes.write(record.charAt(n));
+        bytes.write(0x0D);
+        bytes.write(0x0A);
+        lineCount++;
+        }
+      }
+    finally
+      {  in.close();  }
+    stream = bytes.toByteArray();
+    }
+
+
+
+
+  /******** The old decoder (from VehicleData): ********/
+  private static class OldDecoder
+    {
+    private StringBuffer btRawData = new StringBuffer();
+    float total = 0f;
+
+    // Returns the number of lines ended. 
+    int read(byte[] byteBuffer, int from, int to)
+      {
+      int lines = 0;
+      for (int n = from; n < to; n++)
+        {
+        if (byteBuffer[n] == 0x0D)
+          {
+          decodeAndSend(btRawData.toString());
+          btRawData = new StringBuffer();
+          lines++;
+          }
+        else
+          {
+          if (byteBuffer[n] != 0x0A) btRawData.append((char)byteBuffer[n]);
+          }
+        }
+      return lines;
+      }
+
+    private void decodeAndSend(String thisData)
+      {
+      if ((!thisData.startsWith("TDV1:")) || (thisData.length() < 20)) return;
+      String dataPart = thisData.substring(5);
+      String[] splitData = dataPart.split(",");
+      float motorRPM = 0f, tMotor = 0f, tController = 0f, tPack = 0f, voltPack = 0f;
+      float voltAcc = 0f, kWh = 0f, contactorOn = 0f, faultOn = 0f;
+      try
+        {
+        motorRPM    = Float.parseFloat(splitData[0]);
+        tMotor      = Float.parseFloat(splitData[1]);
+        tController = Float.parseFloat(splitData[2]);
+        tPack       = Float.parseFloat(splitData[3]);
+        voltPack    = Float.parseFloat(splitData[4]);
+        voltAcc     = Float.parseFloat(splitData[5]) / 10;
+        kWh         = Float.parseFloat(splitData[6]) / 10;
+        contactorOn = Float.parseFloat(splitData[7]);
+        faultOn     = Float.parseFloat(splitData[8]);
+        }
+      catch (Exception e)
+        { }
+      float motorReverse = (motorRPM < 0) ? 1f : 0f;
+      motorRPM = Math.abs(motorRPM);
+      total += motorRPM + tMotor + tController + tPack + voltPack + voltAcc + kWh + contactorOn + faultOn + motorReverse;
+      }
+    }
+
+
+  }  // [class TDV1DecoderBench]
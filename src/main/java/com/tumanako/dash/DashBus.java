@@ -0,0 +1,418 @@
+package com.tumanako.dash;
+
+/**
+Tumanako - Electric Vehicle and Motor control software <p>
+
+Copyright (C) 2014 Jeremy Cole-Baker <jeremy@rhtech.co.nz> <p>
+
+This file is part of Tumanako Dashboard. <p>
+
+Tumanako is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published
+by the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version. <p>
+
+Tumanako is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details. <p>
+
+You should have received a copy of the GNU Lesser General Public License
+along with Tumanako.  If not, see <http://www.gnu.org/licenses/>. <p>
+
+@author Jeremy Cole-Baker / Riverhead Technology
+
+*/
+
+
+import java.util.HashMap;
+
+
+
+/**
+ Tumanako Dash Bus <p>
+
+ An in-process publish / subscribe bus for numeric sensor values. <p>
+
+ DashMessages sends every value as an Intent through the LocalBroadcastManager,
+ which means allocating an Intent, boxing the value and matching action strings
+ for every update. The DashBus does the same job for plain numbers without any
+ of that: each value is published on a channel identified by an integer ID, and
+ is handed straight to the subscribers of that channel as a primitive. <p>
+
+ Channel IDs are obtained once (e.g. when a widget is created) with
+ channel(String), using the same names as the old intent actions (e.g.
+ "DATA_MOTOR_RPM"), so the update_action attribute in the layout files can be
+ used to find a channel. The main vehicle channels are pre-registered, and
+ have fixed IDs defined below. <p>
+
+ NOTE: Values are delivered synchronously, on the thread which calls
+ publishFloat / publishInt. Anything which publishes values for UI widgets
+ must do so from the UI thread. <p>
+
+ The last value published on each channel is kept, and can be read back
+ with getFloat / getInt. <p>
+
+ A complete set of vehicle data is published in one go as a VehicleFrame
+ (see publishFrame). <p>
+
+ Recent vehicle data are also kept in a SampleRing (see getSampleRing), which
+ the vehicle data thread writes to directly. Charts and other views which
+ want a history of a vehicle channel can read it from any thread, without
+ going through the UI thread at all. <p>
+
+ Classes which still implement IDashMessages can receive bus values by using
+ a DashBusAdapter. <p>
+
+ @author Jeremy Cole-Baker / Riverhead Technology
+
+*/
+public class DashBus
+  {
+
+  /**** Pre-Registered Channel IDs: *****************************************
+   * These are registered (in this order) when the bus is created, so their
+   * IDs are constant. The vehicle data channels come first.
+   **************************************************************************/
+  public static final int DATA_CONTACTOR_ON      =  0;
+  public static final int DATA_FAULT             =  1;
+  public static final int DATA_MAIN_BATTERY_KWH  =  2;
+  public static final int DATA_MOTOR_RPM         =  3;
+  public static final int DATA_MOTOR_REVERSE     =  4;
+  public static final int DATA_MAIN_BATTERY_TEMP =  5;
+  public static final int DATA_MOTOR_TEMP        =  6;
+  public static final int DATA_CONTROLLER_TEMP   =  7;
+  public static final int DATA_PRECHARGE         =  8;
+  public static final int DATA_MAIN_BATTERY_VLT  =  9;
+  public static final int DATA_MAIN_BATTERY_AH   = 10;
+  public static final int DATA_AIR_TEMP          = 11;
+  public static final int DATA_DATA_OK           = 12;
+  public static final int DATA_DRIVE_TIME        = 13;
+  public static final int DATA_DRIVE_RANGE       = 14;
+  public static final int DATA_ACC_BATTERY_VLT   = 15;
+  public static final int DATA_FUSED_SPEED       = 16;    // Speed (kph) from GPS and wheel speed (see SensorFusion).
+  public static final int DATA_ENERGY_USED       = 17;    // kWh used since the app started (see EnergyMeter).
+  public static final int DATA_GPS_HAS_LOCK      = 18;
+  public static final int DATA_VEHICLE_FRAME     = 19;    // Int: sequence number of each VehicleFrame published (see publishFrame).
+
+  public static final int VEHICLE_CHANNELS       = 18;    // Number of vehicle data channels (IDs 0 - 17).
+
+  public static final int NO_CHANNEL             = -1;    // Returned by channel() for a null name or UI_NOTHING.
+
+  private static final String[] PRESET_CHANNELS =
+    {
+    "DATA_CONTACTOR_ON",
+    "DATA_FAULT",
+    "DATA_MAIN_BATTERY_KWH",
+    "DATA_MOTOR_RPM",
+    "DATA_MOTOR_REVERSE",
+    "DATA_MAIN_BATTERY_TEMP",
+    "DATA_MOTOR_TEMP",
+    "DATA_CONTROLLER_TEMP",
+    "DATA_PRECHARGE",
+    "DATA_MAIN_BATTERY_VLT",
+    "DATA_MAIN_BATTERY_AH",
+    "DATA_AIR_TEMP",
+    "DATA_DATA_OK",
+    "DATA_DRIVE_TIME",
+    "DATA_DRIVE_RANGE",
+    "DATA_ACC_BATTERY_VLT",
+    "DATA_FUSED_SPEED",
+    "DATA_ENERGY_USED",
+    "DATA_GPS_HAS_LOCK",
+    "DATA_VEHICLE_FRAME"
+    };
+
+  private static final String UI_NOTHING = "UI_NOTHING";   // Same as UIActivity.UI_NOTHING (never a real channel).
+
+  private static final int INITIAL_CHANNELS = 64;          // Initial size of channel arrays. They grow if more channels are registered.
+  private static final int SAMPLE_RING_SIZE = 1024;        // Vehicle samples kept in the sample ring (about 50 s at 20 lines/s).
+  private static final IDashBusListener[] NO_LISTENERS = new IDashBusListener[0];
+
+
+  private static DashBus instance = null;
+
+  // Channel registry. Only changed inside synchronized methods:
+  private final HashMap<String, Integer> channelIDs = new HashMap<String, Integer>();
+  private String[] channelNames = new String[INITIAL_CHANNELS];
+  private int channelCount = 0;
+
+  // Per-channel data. The subscriber lists are replaced (not modified) when
+  // someone subscribes or unsubscribes, so publish() never needs a lock:
+  private volatile IDashBusListener[][] subscribers = new IDashBusListener[INITIAL_CHANNELS][];
+  private volatile float[] floatValues = new float[INITIAL_CHANNELS];
+  private volatile int[]   intValues   = new int[INITIAL_CHANNELS];
+
+  private volatile long publishCount = 0;                  // Total number of values published (for performance monitoring).
+
+  // Recent vehicle data (fields are the vehicle channel IDs):
+  private final SampleRing sampleRing = new SampleRing(VEHICLE_CHANNELS, SAMPLE_RING_SIZE);
+
+
+
+
+  /**
+   Get the DashBus <p>
+
+   There is one bus for the whole app (like the LocalBroadcastManager used by DashMessages).
+
+   @return The DashBus instance
+   */
+  public static synchronized DashBus getInstance()
+    {
+    if (instance == null) instance = new DashBus();
+    return instance;
+    }
+
+
+
+  private DashBus()
+    {
+    for (int n=0; n<PRESET_CHANNELS.length; n++) channel(PRESET_CHANNELS[n]);
+    }
+
+
+
+
+
+  /**
+   Get a Channel ID <p>
+
+   Returns the ID of the named channel, registering a new channel if the name
+   hasn't been seen before. This involves a map lookup, so it should be done once
+   (e.g. in a constructor) and the ID kept for publishing / subscribing.
+
+   @param name  Channel name (same as the old intent action, e.g. "DATA_MOTOR_RPM")
+   @return      Channel ID, or NO_CHANNEL if name is null or UI_NOTHING.
+   */
+  public synchronized int channel(String name)
+    {
+    if ((name == null) || (name.equals(UI_NOTHING))) return NO_CHANNEL;
+    Integer id = channelIDs.get(name);
+    if (id != null) return id.intValue();
+
+    // New channel. Grow the arrays if necessary:
+    if (channelCount == channelNames.length)
+      {
+      int newSize = channelNames.length * 2;
+      String[]             newNames       = new String[newSize];
+      IDashBusListener[][] newSubscribers = new IDashBusListener[newSize][];
+      float[]              newFloats      = new float[newSize];
+      int[]                newInts        = new int[newSize];
+      System.arraycopy( channelNames, 0, newNames,       0, channelCount );
+      System.arraycopy( subscribers,  0, newSubscribers, 0, channelCount );
+      System.arraycopy( floatValues,  0, newFloats,      0, channelCount );
+      System.arraycopy( intValues,    0, newInts,        0, channelCount );
+      channelNames = newNames;
+      floatValues  = newFloats;
+      intValues    = newInts;
+      subscribers  = newSubscribers;
+      }
+
+    int newID = channelCount;
+    channelNames[newID] = name;
+    subscribers[newID] = NO_LISTENERS;
+    channelIDs.put(name, Integer.valueOf(newID));
+    channelCount++;
+    return newID;
+    }
+
+
+
+  /**
+   Get the name of a channel
+   @param channel  Channel ID
+   @return         Channel name, or null if the ID isn't valid.
+   */
+  public synchronized String getChannelName(int channel)
+    {
+    if ((channel < 0) || (channel >= channelCount)) return null;
+    return channelNames[channel];
+    }
+
+
+
+  /** @return Number of channels registered. */
+  public synchronized int getChannelCount()
+    {  return channelCount;  }
+
+
+
+  /** @return Total number of values published since the bus was created. */
+  public long getPublishCount()
+    {  return publishCount;  }
+
+
+
+
+
+  /**
+   Subscribe to a channel <p>
+   Subscribing more than once to the same channel has no extra effect.
+   @param channel   Channel ID (see channel())
+   @param listener  Object to receive values published on the channel
+   */
+  public synchronized void subscribe(int channel, IDashBusListener listener)
+    {
+    if ((channel < 0) || (channel >= channelCount) || (listener == null)) return;
+    IDashBusListener[] oldList = subscribers[channel];
+    for (int n=0; n<oldList.length; n++)  if (oldList[n] == listener) return;
+    IDashBusListener[] newList = new IDashBusListener[oldList.length + 1];
+    System.arraycopy(oldList, 0, newList, 0, oldList.length);
+    newList[oldList.length] = listener;
+    subscribers[channel] = newList;
+    }
+
+
+
+  /**
+   Unsubscribe from a channel
+   @param channel   Channel ID
+   @param listener  Object which should no longer receive values
+   */
+  public synchronized void unsubscribe(int channel, IDashBusListener listener)
+    {
+    if ((channel < 0) || (channel >= channelCount)) return;
+    IDashBusListener[] oldList = subscribers[channel];
+    int index = -1;
+    for (int n=0; n<oldList.length; n++)  if (oldList[n] == listener) index = n;
+    if (index < 0) return;    // Not subscribed.
+    IDashBusListener[] newList = (oldList.length == 1) ? NO_LISTENERS : new IDashBusListener[oldList.length - 1];
+    System.arraycopy(oldList, 0,         newList, 0,     index);
+    System.arraycopy(oldList, index + 1, newList, index, oldList.length - index - 1);
+    subscribers[channel] = newList;
+    }
+
+
+
+  /**
+   Check whether anyone is listening to a channel <p>
+   Publishers can use this to skip work for values nobody is displaying.
+   @param channel  Channel ID
+   @return         true if the channel has at least one subscriber
+   */
+  public boolean hasSubscribers(int channel)
+    {
+    IDashBusListener[][] theseSubscribers = subscribers;
+    if ((channel < 0) || (channel >= theseSubscribers.length) || (theseSubscribers[channel] == null)) return false;
+    return (theseSubscribers[channel].length > 0);
+    }
+
+
+
+
+
+  /**
+   Publish a float value <p>
+   The value is stored as the latest value for the channel, and delivered
+   to each subscriber (on the calling thread).
+   @param channel  Channel ID
+   @param value    Value to publish
+   */
+  public void publishFloat(int channel, float value)
+    {
+    IDashBusListener[][] theseSubscribers = subscribers;
+    if ((channel < 0) || (channel >= theseSubscribers.length) || (theseSubscribers[channel] == null)) return;
+    floatValues[channel] = value;
+    publishCount++;
+    IDashBusListener[] listeners = theseSubscribers[channel];
+    for (int n=0; n<listeners.length; n++)  listeners[n].floatReceived(channel, value);
+    }
+
+
+
+  /**
+   Publish an integer value <p>
+   The value is stored as the latest value for the channel, and delivered
+   to each subscriber (on the calling thread).
+   @param channel  Channel ID
+   @param value    Value to publish
+   */
+  public void publishInt(int channel, int value)
+    {
+    IDashBusListener[][] theseSubscribers = subscribers;
+    if ((channel < 0) || (channel >= theseSubscribers.length) || (theseSubscribers[channel] == null)) return;
+    intValues[channel] = value;
+    publishCount++;
+    IDashBusListener[] listeners = theseSubscribers[channel];
+    for (int n=0; n<listeners.length; n++)  listeners[n].intReceived(channel, value);
+    }
+
+
+
+
+
+  /**
+   Publish a Vehicle Frame <p>
+
+   Publishes a complete set of vehicle data from one decode cycle: <p>
+   <ul>
+    <li>The latest value of every vehicle channel is updated (so getFloat returns the frame values). 
+    <li>Each field which has subscribers is delivered to them, as if by publishFloat.
+        Fields which nobody is listening to cost nothing more than the array copy. 
+    <li>The frame sequence number is then published on DATA_VEHICLE_FRAME, for
+        subscribers which want the whole frame (they can pull fields with getFloat).
+   </ul>
+   Like the other publish methods, this delivers on the calling thread.
+   @param frame  Frame to publish
+   */
+  public void publishFrame(VehicleFrame frame)
+    {
+    IDashBusListener[][] theseSubscribers = subscribers;
+    float[] values = floatValues;
+    for (int field=0; field<VehicleFrame.FIELD_COUNT; field++)
+      {
+      float value = frame.get(field);
+      values[field] = value;
+      IDashBusListener[] listeners = theseSubscribers[field];
+      for (int n=0; n<listeners.length; n++)  listeners[n].floatReceived(field, value);
+      }
+    publishInt(DATA_VEHICLE_FRAME, (int)frame.getSequence());
+    }
+
+
+
+
+
+  /**
+   Get the Vehicle Sample Ring <p>
+
+   Holds the most recent vehicle data samples. Each field is a vehicle channel
+   (e.g. DATA_MOTOR_RPM), with the same value as in the published frames. There
+   is only one producer (the vehicle data decoder thread); it can be read from
+   any thread (see SampleRing).
+   @return The sample ring
+   */
+  public SampleRing getSampleRing()
+    {  return sampleRing;  }
+
+
+
+  /**
+   Get the last float value published on a channel
+   @param channel  Channel ID
+   @return         Last value published with publishFloat (0 if none)
+   */
+  public float getFloat(int channel)
+    {
+    float[] values = floatValues;
+    if ((channel < 0) || (channel >= values.length)) return 0f;
+    return values[channel];
+    }
+
+
+
+  /**
+   Get the last integer value published on a channel
+   @param channel  Channel ID
+   @return         Last value published with publishInt (0 if none)
+   */
+  public int getInt(int channel)
+    {
+    int[] values = intValues;
+    if ((channel < 0) || (channel >= values.length)) return 0;
+    return values[channel];
+    }
+
+
+  }  // Class
@@ -0,0 +1,105 @@
+package com.tumanako.dash;
+
+/**
+Tumanako - Electric Vehicle and Motor control software <p>
+
+Copyright (C) 2014 Jeremy Cole-Baker <jeremy@rhtech.co.nz> <p>
+
+This file is part of Tumanako Dashboard. <p>
+
+Tumanako is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published
+by the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version. <p>
+
+Tumanako is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details. <p>
+
+You should have received a copy of the GNU Lesser General Public License
+along with Tumanako.  If not, see <http://www.gnu.org/licenses/>. <p>
+
+@author Jeremy Cole-Baker / Riverhead Technology
+
+*/
+
+
+
+/**
+ Dash Bus Adapter <p>
+
+ Lets a class which implements IDashMessages receive values from the DashBus,
+ so it can be moved off intents without rewriting its messageReceived method. <p>
+
+ Works like a DashMessages object: give it the parent and a list of channel
+ names (the old action strings), and each value published on one of those
+ channels is passed to parent.messageReceived() with the channel name as the
+ action, and the value in intData or floatData. <p>
+
+ NOTE: The value is boxed on the way through, so this is only a stepping stone.
+ Busy widgets should implement IDashBusListener directly. <p>
+
+ @author Jeremy Cole-Baker / Riverhead Technology
+
+*/
+public class DashBusAdapter implements IDashBusListener
+  {
+
+  private final IDashMessages parent;
+  private final DashBus dashBus;
+  private final int[] channels;
+  private final String[] channelNames;
+
+
+
+  /**
+   DashBusAdapter Constructor <p>
+   Subscribes to the listed channels straight away (see resume()).
+
+    @param callbackParent  Object which will receive values through its messageReceived method.
+    @param channelFilters  Names of the channels to subscribe to.
+   */
+  public DashBusAdapter(IDashMessages callbackParent, String channelFilters[])
+    {
+    parent = callbackParent;
+    dashBus = DashBus.getInstance();
+    channelNames = channelFilters.clone();
+    channels = new int[channelNames.length];
+    for (int n=0; n<channelNames.length; n++) channels[n] = dashBus.channel(channelNames[n]);
+    resume();
+    }
+
+
+
+  public void floatReceived(int channel, float value)
+    {  parent.messageReceived( nameOf(channel), null, Float.valueOf(value), null, null );  }
+
+
+  public void intReceived(int channel, int value)
+    {  parent.messageReceived( nameOf(channel), Integer.valueOf(value), null, null, null );  }
+
+
+
+  // Find the name to use as the 'action' for a channel (same string we were given in the constructor):
+  private String nameOf(int channel)
+    {
+    for (int n=0; n<channels.length; n++)  if (channels[n] == channel) return channelNames[n];
+    return null;
+    }
+
+
+
+  public void suspend()
+    {
+    for (int n=0; n<channels.length; n++) dashBus.unsubscribe(channels[n], this);
+    }
+
+
+  public void resume()
+    {
+    for (int n=0; n<channels.length; n++) dashBus.subscribe(channels[n], this);
+    }
+
+
+  }  // Class
@@ -0,0 +1,394 @@
+package com.tumanako.dash;
+
+/**
+Tumanako - Electric Vehicle and Motor control software <p>
+
+Copyright (C) 2014 Jeremy Cole-Baker <jeremy@rhtech.co.nz> <p>
+
+This file is part of Tumanako Dashboard. <p>
+
+Tumanako is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published
+by the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version. <p>
+
+Tumanako is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details. <p>
+
+You should have received a copy of the GNU Lesser General Public License
+along with Tumanako.  If not, see <http://www.gnu.org/licenses/>. <p>
+
+@author Jeremy Cole-Baker / Riverhead Technology
+
+*/
+
+
+import java.text.DecimalFormatSymbols;
+
+
+
+/**
+ Dash Format <p>
+
+ A precompiled number format for the subset of printf patterns used by the
+ dashboard text widgets, which writes into a char[] instead of building a
+ String. String.format parses the pattern and allocates a Formatter, a
+ StringBuilder, boxed arguments and the result for every call; this does
+ the parsing once (compile) and allocates nothing after that. <p>
+
+ Supported patterns: literal text with at most one conversion: <p>
+
+ <ul>
+ <li> %f with optional flags '+' and '0', width and precision (0 - 8), e.g.
+      "%.1f", "%06.0f", "%+1.2f", "%4.2f kWh".
+ <li> %d with optional flags '+' and '0' and width, e.g. "%d", "%02d".
+ <li> %% for a literal '%'.
+ </ul>
+
+ ...or a lap / split time in minutes and seconds (the value is in seconds):
+ "mm:ss", "mm:ss.s", "mm:ss.ss" or "mm:ss.sss". The time is rounded before
+ it's split, so 59.97 s is "01:00.0" (not "00:60.0"). <p>
+
+ Output is the same as String.format for the default locale (the decimal
+ separator is taken from the locale when the format is compiled), except
+ that the digits are always ASCII. compile() returns null for anything
+ else, so callers can fall back to String.format. <p>
+
+ A compiled format has no state, so one format can be shared by any number
+ of threads; each caller supplies its own char[] (getMaxLength() chars). <p>
+
+ @author Jeremy Cole-Baker / Riverhead Technology
+
+*/
+public class DashFormat
+  {
+
+  private static final int MAX_PRECISION = 8;
+  private static final int MAX_NUMBER_LENGTH = 24;      // Widest %d or %f conversion allowed.
+  private static final int MAX_FLOAT_LENGTH = 41;       // Sign, whole part of the largest float (39 digits) and separator.
+  private static final long[] POWERS_OF_TEN = { 1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L, 10000000L, 100000000L };
+  private static final double MAX_SCALED = 1e17;        // Larger values (after scaling) are passed to String.format.
+  private static final char[] NAN      = { 'N', 'a', 'N' };
+  private static final char[] INFINITY = { 'I', 'n', 'f', 'i', 'n', 'i', 't', 'y' };
+
+  private static final int TYPE_NONE  = 0;              // Literal text only.
+  private static final int TYPE_FLOAT = 1;
+  private static final int TYPE_INT   = 2;
+  private static final int TYPE_TIME  = 3;
+
+  private final String pattern;
+  private final char[] prefix;                          // Literal text before the conversion...
+  private final char[] suffix;                          // ...and after it.
+  private final int type;
+  private final int width;                              // Minimum width of the number (0: none)
+  private final int precision;                          // Decimal places
+  private final boolean isZeroPadded;
+  private final boolean isPlusShown;
+  private final char decimalSeparator;
+
+
+
+
+  private DashFormat(String thisPattern, char[] thisPrefix, char[] thisSuffix, int thisType,
+                     int thisWidth, int thisPrecision, boolean thisZeroPadded, boolean thisPlusShown)
+    {
+    pattern = thisPattern;
+    prefix = thisPrefix;
+    suffix = thisSuffix;
+    type = thisType;
+    width = thisWidth;
+    precision = thisPrecision;
+    isZeroPadded = thisZeroPadded;
+    isPlusShown = thisPlusShown;
+    decimalSeparator = new DecimalFormatSymbols().getDecimalSeparator();
+    }
+
+
+
+  /**
+   Compile a format pattern
+   @param pattern  Pattern (see class notes)
+   @return Compiled format, or null if the pattern isn't supported (or is null).
+   */
+  public static DashFormat compile(String pattern)
+    {
+    if (pattern == null) return null;
+
+    // Time pattern?
+    if (pattern.startsWith("mm:ss"))
+      {
+      int decimals = 0;
+      if (pattern.length() > 5)
+        {
+        if (pattern.charAt(5) != '.') return null;
+        decimals = pattern.length() - 6;
+        if ( (decimals < 1) || (decimals > 3) ) return null;
+        for (int n = 6; n < pattern.length(); n++) if (pattern.charAt(n) != 's') return null;
+        }
+      return new DashFormat(pattern, new char[0], new char[0], TYPE_TIME, 0, decimals, true, false);
+      }
+
+    // printf style: find the conversion (if any), and the literal text around it:
+    StringBuilder before = new StringBuilder();
+    StringBuilder after = new StringBuilder();
+    StringBuilder literal = before;
+    int thisType = TYPE_NONE;
+    int thisWidth = 0;
+    int thisPrecision = 6;              // Default for %f, as String.format
+    boolean thisZeroPadded = false;
+    boolean thisPlusShown = false;
+    int n = 0;
+    while (n < pattern.length())
+      {
+      char c = pattern.charAt(n++);
+      if (c != '%')
+        {
+        literal.append(c);
+        continue;
+        }
+      if (n >= pattern.length()) return null;
+      if (pattern.charAt(n) == '%')
+        {
+        literal.append('%');
+        n++;
+        continue;
+        }
+      if (thisType != TYPE_NONE) return null;          // Only one conversion.
+      // Flags:
+      while ( (n < pattern.length()) && ((pattern.charAt(n) == '+') || (pattern.charAt(n) == '0')) )
+        {
+        if (pattern.charAt(n) == '+') thisPlusShown = true;
+        else                          thisZeroPadded = true;
+        n++;
+        }
+      // Width and precision:
+      while ( (n < pattern.length()) && Character.isDigit(pattern.charAt(n)) )
+        thisWidth = (thisWidth * 10) + (pattern.charAt(n++) - '0');
+      boolean hasPrecision = false;
+      if ( (n < pattern.length()) && (pattern.charAt(n) == '.') )
+        {
+        n++;
+        hasPrecision = true;
+        thisPrecision = 0;
+        int digits = 0;
+        while ( (n < pattern.length()) && Character.isDigit(pattern.charAt(n)) )
+          {
+          thisPrecision = (thisPrecision * 10) + (pattern.charAt(n++) - '0');
+          digits++;
+          }
+        if (digits == 0) return null;
+        }
+      if (n >= pattern.length()) return null;
+      char conversion = pattern.charAt(n++);
+      if (conversion == 'f')
+        {
+        if (thisPrecision > MAX_PRECISION) return null;
+        thisType = TYPE_FLOAT;
+        }
+      else if ( (conversion == 'd') && !hasPrecision ) thisType = TYPE_INT;
+      else return null;
+      if ( thisZeroPadded && (thisWidth == 0) ) return null;     // (String.format throws an exception for this)
+      if (thisWidth > MAX_NUMBER_LENGTH) return null;
+      literal = after;
+      }
+    return new DashFormat(pattern, toChars(before), toChars(after), thisType, thisWidth,
+                          (thisType == TYPE_FLOAT) ? thisPrecision : 0, thisZeroPadded, thisPlusShown);
+    }
+
+
+  private static char[] toChars(StringBuilder text)
+    {
+    char[] chars = new char[text.length()];
+    text.getChars(0, text.length(), chars, 0);
+    return chars;
+    }
+
+
+
+  /** @return The pattern this format was compiled from. */
+  public String getPattern()
+    {  return pattern;  }
+
+  /** @return The longest output of format() (chars). */
+  public int getMaxLength()
+    {  return prefix.length + Math.max(width, MAX_FLOAT_LENGTH + precision) + suffix.length;  }
+
+  /** @return true if this format is for whole numbers (%d). */
+  public boolean isInteger()
+    {  return (type == TYPE_INT);  }
+
+
+
+
+  /**
+   Format a number
+   @param value   Value (rounded to the nearest whole number for %d)
+   @param out     Output buffer: at least getMaxLength() chars from 'offset'
+   @param offset  Where to start writing
+   @return Index after the last char written.
+   */
+  public int format(float value, char[] out, int offset)
+    {
+    int pos = copy(prefix, out, offset);
+    switch (type)
+      {
+      case TYPE_FLOAT:
+        pos = formatFloat(value, out, pos);
+        break;
+      case TYPE_INT:
+        pos = formatLong( (long)Math.floor(value + 0.5f), out, pos );
+        break;
+      case TYPE_TIME:
+        pos = formatTime(value, out, pos);
+        break;
+      default:
+        break;
+      }
+    return copy(suffix, out, pos);
+    }
+
+
+  /**
+   Format a whole number (see format(float, char[], int); %f formats show it with decimals).
+   */
+  public int format(int value, char[] out, int offset)
+    {
+    if (type != TYPE_INT) return format((float)value, out, offset);
+    int pos = copy(prefix, out, offset);
+    pos = formatLong(value, out, pos);
+    return copy(suffix, out, pos);
+    }
+
+
+
+
+  private static int copy(char[] text, char[] out, int offset)
+    {
+    System.arraycopy(text, 0, out, offset, text.length);
+    return offset + text.length;
+    }
+
+
+  private int formatLong(long value, char[] out, int pos)
+    {
+    boolean isNegative = (value < 0);
+    long magnitude = isNegative ? -value : value;     // (Long.MIN_VALUE can't come from an int or a rounded float in range.)
+    return writeNumber(isNegative, magnitude, 0, out, pos);
+    }
+
+
+  private int formatFloat(float value, char[] out, int pos)
+    {
+    boolean isNegative = (Float.floatToRawIntBits(value) < 0);      // (Includes -0.0, as String.format.)
+    if (Float.isNaN(value))      return writePadded(false, NAN, out, pos);
+    if (Float.isInfinite(value)) return writePadded(isNegative, INFINITY, out, pos);
+    // Scale up to a whole number of the last decimal place, and round half up. For a float
+    // and up to MAX_PRECISION places, the product is exact in a double, so this rounds the 
+    // same way as String.format: 
+    double scaled = Math.abs((double)value) * POWERS_OF_TEN[precision];
+    if (scaled >= MAX_SCALED)
+      {
+      String text = String.format("%" + (isPlusShown ? "+" : "") + (isZeroPadded ? "0" : "") + ((width > 0) ? String.valueOf(width) : "") + "." + precision + "f", value);
+      text.getChars(0, text.length(), out, pos);
+      return pos + text.length();
+      }
+    return writeNumber(isNegative, (long)Math.floor(scaled + 0.5), precision, out, pos);
+    }
+
+
+  private int formatTime(float seconds, char[] out, int pos)
+    {
+    if (Float.isNaN(seconds) || Float.isInfinite(seconds)) return writePadded(false, NAN, out, pos);
+    long scale = POWERS_OF_TEN[precision];
+    double scaled = Math.abs((double)seconds) * scale;
+    if (scaled >= MAX_SCALED) scaled = MAX_SCALED;
+    long units = (long)Math.floor(scaled + 0.5);
+    long minutes = units / (60L * scale);
+    long rest    = units - (minutes * 60L * scale);       // Seconds, in units of the last decimal place.
+    if (seconds < 0f) out[pos++] = '-';
+    pos = writeDigits(minutes, 2, out, pos);
+    out[pos++] = ':';
+    pos = writeDigits(rest / scale, 2, out, pos);
+    if (precision > 0)
+      {
+      out[pos++] = decimalSeparator;
+      pos = writeDigits(rest % scale, precision, out, pos);
+      }
+    return pos;
+    }
+
+
+  /**
+   Write a number, given as a whole number of the last decimal place (e.g. 1.25 
+   is 125 with 2 decimals), with the sign, padding and separator.   
+   */
+  private int writeNumber(boolean isNegative, long magnitude, int decimals, char[] out, int pos)
+    {
+    // Length of the number without padding: sign, whole part digits, separator and decimals:
+    long whole = magnitude / POWERS_OF_TEN[decimals];
+    int wholeDigits = countDigits(whole);
+    int length = wholeDigits + ((decimals > 0) ? (decimals + 1) : 0);
+    char sign = isNegative ? '-' : (isPlusShown ? '+' : 0);
+    if (sign != 0) length++;
+    int padding = Math.max(0, width - length);
+
+    if (!isZeroPadded) pos = writeChars(' ', padding, out, pos);
+    if (sign != 0) out[pos++] = sign;
+    if (isZeroPadded)  pos = writeChars('0', padding, out, pos);
+    pos = writeDigits(whole, wholeDigits, out, pos);
+    if (decimals > 0)
+      {
+      out[pos++] = decimalSeparator;
+      pos = writeDigits(magnitude % POWERS_OF_TEN[decimals], decimals, out, pos);
+      }
+    return pos;
+    }
+
+
+  /** Write NaN or Infinity, padded with spaces (String.format doesn't zero pad these). */
+  private int writePadded(boolean isNegative, char[] text, char[] out, int pos)
+    {
+    char sign = isNegative ? '-' : ((isPlusShown && (text != NAN)) ? '+' : 0);
+    int length = text.length + ((sign != 0) ? 1 : 0);
+    pos = writeChars(' ', Math.max(0, width - length), out, pos);
+    if (sign != 0) out[pos++] = sign;
+    return copy(text, out, pos);
+    }
+
+
+  private static int writeChars(char c, int count, char[] out, int pos)
+    {
+    for (int n = 0; n < count; n++) out[pos++] = c;
+    return pos;
+    }
+
+
+  /** Write a non-negative number as exactly 'digits' digits (or more, if it needs them). */
+  private static int writeDigits(long value, int digits, char[] out, int pos)
+    {
+    digits = Math.max(digits, countDigits(value));
+    int end = pos + digits;
+    for (int n = end - 1; n >= pos; n--)
+      {
+      out[n] = (char)('0' + (value % 10));
+      value = value / 10;
+      }
+    return end;
+    }
+
+
+  private static int countDigits(long value)
+    {
+    int digits = 1;
+    while (value >= 10)
+      {
+      value = value / 10;
+      digits++;
+      }
+    return digits;
+    }
+
+
+  }  // [class DashFormat]
@@ -49,6 +49,9 @@ import android.support.v4.content.LocalBroadcastManager;
  defined below). The VALUE of this integer tells us the source of the 
  received message. <p>   
  
+ Plain numeric sensor values (gauges, lamps) should be sent on the 
+ DashBus instead, which avoids building an Intent for every value. <p>
+ 
  @author Jeremy Cole-Baker / Riverhead Technology
 
 */
@@ -0,0 +1,285 @@
+package com.tumanako.dash;
+
+/**
+Tumanako - Electric Vehicle and Motor control software <p>
+
+Copyright (C) 2014 Jeremy Cole-Baker <jeremy@rhtech.co.nz> <p>
+
+This file is part of Tumanako Dashboard. <p>
+
+Tumanako is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published
+by the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version. <p>
+
+Tumanako is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details. <p>
+
+You should have received a copy of the GNU Lesser General Public License
+along with Tumanako.  If not, see <http://www.gnu.org/licenses/>. <p>
+
+@author Jeremy Cole-Baker / Riverhead Technology
+
+*/
+
+
+
+/**
+ Multi-Resolution History Store <p>
+
+ Keeps the history of one value at several resolutions, so a chart can show
+ anything from the last minute to a whole race or charging session for the
+ same cost per frame. <p>
+
+ There are several 'tiers' (by default 1 second, 10 seconds, 1 minute and
+ 10 minutes). Each tier is a RingBuffer of buckets, and each bucket holds the
+ minimum, maximum and mean of the samples in that time period. Samples are
+ added to the finest tier; when one of its buckets is complete, the bucket
+ is stored and its aggregates are passed up to the next tier, and so on. So
+ adding a sample is cheap, and nothing is ever recalculated. <p>
+
+ To draw a chart, ask for N points covering a time span (getHistory). The
+ coarsest tier which still has at least one bucket per point is used, so the
+ number of buckets read is less than N x (the ratio between tiers) whatever
+ the span. <p>
+
+ If there are no samples for a while, the gap is filled with the last bucket's
+ values (the chart holds its last value). The bucket currently being filled is
+ not included in the history until it is complete. <p>
+
+ Not thread safe: add and read on the same thread (normally the UI thread). <p>
+
+ @author Jeremy Cole-Baker / Riverhead Technology
+
+*/
+public class HistoryStore
+  {
+
+  public static final long[] DEFAULT_RESOLUTIONS = { 1000L, 10000L, 60000L, 600000L };   // mS per bucket for each tier
+  public static final int DEFAULT_CAPACITY = 600;                                        // Buckets per tier (10 minutes of 1 second buckets, etc.)
+
+  private static final int FIELD_MIN   = 0;
+  private static final int FIELD_MAX   = 1;
+  private static final int FIELD_MEAN  = 2;
+  private static final int FIELD_COUNT = 3;
+
+  private final Tier[] tiers;
+  private final int capacity;
+
+  // Scratch arrays for getHistory (so it doesn't allocate):
+  private final float[] scratchMin;
+  private final float[] scratchMax;
+  private final float[] scratchMean;
+
+
+
+  /** Create a history store with the default tiers (1 s, 10 s, 1 min, 10 min; 600 buckets each). */
+  public HistoryStore()
+    {  this(DEFAULT_RESOLUTIONS, DEFAULT_CAPACITY);  }
+
+
+  /**
+   Create a history store
+   @param resolutions   mS per bucket for each tier, finest first. Each should be a multiple of the one before.
+   @param thisCapacity  Number of buckets kept in each tier.
+   */
+  public HistoryStore(long[] resolutions, int thisCapacity)
+    {
+    capacity = thisCapacity;
+    tiers = new Tier[resolutions.length];
+    for (int n = resolutions.length - 1; n >= 0; n--)
+      tiers[n] = new Tier(resolutions[n], (n < resolutions.length - 1) ? tiers[n + 1] : null);
+    scratchMin  = new float[capacity];
+    scratchMax  = new float[capacity];
+    scratchMean = new float[capacity];
+    }
+
+
+
+  /**
+   Add a sample
+   @param value       Sample value
+   @param timeMillis  Time of the sample (mS; e.g. SystemClock.elapsedRealtime()). Should not go backwards.
+   */
+  public void addSample(float value, long timeMillis)
+    {  tiers[0].add(value, value, value, 1, timeMillis);  }
+
+
+
+  /** Throw away all history. */
+  public void clear()
+    {
+    for (int n = 0; n < tiers.length; n++) tiers[n].clear();
+    }
+
+
+
+  public int getTierCount()
+    {  return tiers.length;  }
+
+  /** @return mS per bucket in the given tier. */
+  public long getResolution(int tier)
+    {  return tiers[tier].resolution;  }
+
+  /** @return Number of complete buckets held in the given tier. */
+  public int getBucketCount(int tier)
+    {  return tiers[tier].buckets.GetLength();  }
+
+
+
+  /**
+   Get the history for a chart <p>
+
+   Fills the output arrays with 'points' values covering the last spanMillis
+   mS, oldest first. Each point is the min / max / mean of the data in its
+   slice of the span. Points for which there are no data yet (at the old
+   end) are set to Float.NaN.
+
+   @param points      Number of points wanted (e.g. chart width in pixels)
+   @param spanMillis  Time span to cover (mS)
+   @param minOut      Array for the minimum of each point, or null if not needed.
+   @param maxOut      Array for the maximum of each point, or null if not needed.
+   @param meanOut     Array for the mean of each point, or null if not needed.
+   @return Number of points which have data (these are at the newest end).
+   */
+  public int getHistory(int points, long spanMillis, float[] minOut, float[] maxOut, float[] meanOut)
+    {
+    if (points <= 0) return 0;
+    Tier tier = chooseTier(points, spanMillis);
+
+    // Read the buckets covering the span (newest 'wanted' buckets, oldest first):
+    int wanted = (int)Math.min( (long)capacity, Math.max(1L, (spanMillis + tier.resolution - 1) / tier.resolution) );
+    int got = tier.buckets.GetRange(FIELD_MIN, scratchMin, 0, wanted);
+    tier.buckets.GetRange(FIELD_MAX,  scratchMax,  0, wanted);
+    tier.buckets.GetRange(FIELD_MEAN, scratchMean, 0, wanted);
+    int missing = wanted - got;           // Buckets at the old end of the span with no data.
+
+    int pointsWithData = 0;
+    for (int point = 0; point < points; point++)
+      {
+      // This point covers buckets [start, end) of the span:
+      int start = (int)(((long)point * wanted) / points);
+      int end   = (int)(((long)(point + 1) * wanted) / points);
+      if (end <= start) end = start + 1;
+      if (start < missing) start = missing;
+      if (start >= end)
+        {
+        // No data for this point:
+        if (minOut != null)  minOut[point]  = Float.NaN;
+        if (maxOut != null)  maxOut[point]  = Float.NaN;
+        if (meanOut != null) meanOut[point] = Float.NaN;
+        continue;
+        }
+      float thisMin = Float.MAX_VALUE;
+      float thisMax = -Float.MAX_VALUE;
+      float thisSum = 0f;
+      for (int bucket = start; bucket < end; bucket++)
+        {
+        int index = bucket - missing;
+        if (scratchMin[index] < thisMin) thisMin = scratchMin[index];
+        if (scratchMax[index] > thisMax) thisMax = scratchMax[index];
+        thisSum += scratchMean[index];
+        }
+      if (minOut != null)  minOut[point]  = thisMin;
+      if (maxOut != null)  maxOut[point]  = thisMax;
+      if (meanOut != null) meanOut[point] = thisSum / (end - start);
+      pointsWithData++;
+      }
+    return pointsWithData;
+    }
+
+
+
+  // Pick the coarsest tier with at least one bucket per point, which also covers the span:
+  private Tier chooseTier(int points, long spanMillis)
+    {
+    long pointTime = spanMillis / points;         // mS per point
+    int chosen = 0;
+    for (int n = 0; n < tiers.length; n++)  if (tiers[n].resolution <= pointTime) chosen = n;
+    while ((chosen < tiers.length - 1) && ((tiers[chosen].resolution * capacity) < spanMillis)) chosen++;
+    return tiers[chosen];
+    }
+
+
+
+
+  /************ One tier of buckets: ***************************************/
+  private class Tier
+    {
+    final long resolution;
+    final RingBuffer buckets;
+    final Tier nextTier;
+    private final float[] point = new float[FIELD_COUNT];
+
+    // Bucket being filled:
+    private long bucketStart = -1;
+    private float bucketMin;
+    private float bucketMax;
+    private double bucketSum;
+    private long bucketCount = 0;
+
+
+    Tier(long thisResolution, Tier thisNextTier)
+      {
+      resolution = thisResolution;
+      nextTier = thisNextTier;
+      buckets = new RingBuffer(capacity, FIELD_COUNT, false);
+      }
+
+
+    void clear()
+      {
+      buckets.Clear();
+      bucketStart = -1;
+      bucketCount = 0;
+      }
+
+
+    // Add an aggregate (from a sample, or a finished bucket of the tier below):
+    void add(float thisMin, float thisMax, float thisMean, long thisCount, long timeMillis)
+      {
+      long thisBucket = timeMillis - (timeMillis % resolution);
+      if (bucketStart < 0) bucketStart = thisBucket;
+      if (thisBucket > bucketStart)
+        {
+        // Moved on to a new bucket. Store the finished one, and fill any gap:
+        flush();
+        long skipped = Math.min( (thisBucket - bucketStart) / resolution - 1, (long)capacity );
+        for (long n = 0; n < skipped; n++) buckets.AddPoint(point);    // Repeat the last bucket.
+        bucketStart = thisBucket;
+        }
+      if (bucketCount == 0)
+        {
+        bucketMin = thisMin;
+        bucketMax = thisMax;
+        bucketSum = 0.0;
+        }
+      else
+        {
+        if (thisMin < bucketMin) bucketMin = thisMin;
+        if (thisMax > bucketMax) bucketMax = thisMax;
+        }
+      bucketSum += (double)thisMean * thisCount;
+      bucketCount += thisCount;
+      }
+
+
+    // Store the current bucket, and pass it up to the next tier:
+    private void flush()
+      {
+      if (bucketCount == 0) return;
+      float mean = (float)(bucketSum / bucketCount);
+      point[FIELD_MIN]  = bucketMin;
+      point[FIELD_MAX]  = bucketMax;
+      point[FIELD_MEAN] = mean;
+      buckets.AddPoint(point);
+      if (nextTier != null) nextTier.add(bucketMin, bucketMax, mean, bucketCount, bucketStart);
+      bucketCount = 0;
+      }
+
+    }  // [class Tier]
+
+
+  }  // Class
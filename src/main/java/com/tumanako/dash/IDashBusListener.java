@@ -0,0 +1,48 @@
+package com.tumanako.dash;
+
+/**
+Tumanako - Electric Vehicle and Motor control software <p>
+
+Copyright (C) 2014 Jeremy Cole-Baker <jeremy@rhtech.co.nz> <p>
+
+This file is part of Tumanako Dashboard. <p>
+
+Tumanako is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published
+by the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version. <p>
+
+Tumanako is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details. <p>
+
+You should have received a copy of the GNU Lesser General Public License
+along with Tumanako.  If not, see <http://www.gnu.org/licenses/>. <p>
+
+@author Jeremy Cole-Baker / Riverhead Technology
+
+*/
+
+
+
+/**
+ Dash Bus Listener <p>
+
+ Classes which want to receive values from the DashBus implement this
+ interface, then subscribe to one or more channel IDs (see DashBus). <p>
+
+ Values are delivered as primitives, on the thread which published them.
+
+ @author Jeremy Cole-Baker / Riverhead Technology
+*/
+public interface IDashBusListener
+  {
+
+  public abstract void floatReceived(int channel, float value);
+    // Called when a float value is published on a channel we have subscribed to.
+
+  public abstract void intReceived(int channel, int value);
+    // Called when an integer value is published on a channel we have subscribed to.
+
+  }
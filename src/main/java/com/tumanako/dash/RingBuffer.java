@@ -34,11 +34,21 @@ along with Tumanako.  If not, see <http://www.gnu.org/licenses/>.
  * a new value is added.
  * 
  * The class also includes capability to maintain a rolling average 
- * of values in the buffer.
+ * of values in the buffer. The average is updated as each point is 
+ * added, and recalculated exactly once every bufferSize points so 
+ * that float rounding errors don't build up. (For more statistics 
+ * over a window, see RollingStats.)
  * 
  * Note that each data point in the buffer contains an array of values.
  * The buffer size and number of fields is set by the constructor. 
  * 
+ * The values are stored by column: one float array per field. Adding 
+ * and reading points copies values in and out of the columns, so the 
+ * buffer doesn't allocate anything after it has been created. To read 
+ * without allocating, use GetValue, GetPoint(index, dst) or GetRange 
+ * (which copies a run of values from one field into the caller's array, 
+ * e.g. for drawing a chart). 
+ * 
  * @author Jeremy Cole-Baker / Riverhead Technology
  *
  ************************************************************/
@@ -50,11 +60,12 @@ public class RingBuffer
   private final int bufferFieldCount;        // Number of values to store.
   private final boolean useAverage;          // Should we keep an average as data points are added?
   
-  private float[][] dataBuffer;        // Data buffer
-  private float[] dataAverage;         // Average of the records in the data buffer
+  private final float[][] dataColumns;       // Data buffer: dataColumns[field][point]
+  private final float[] dataAverage;         // Average of the records in the data buffer
 
   private int dataPointer = 0;         // Index of current write point in buffer (increments AFTER data write).
   private int dataLength  = 0;         // The number of records in the buffer.
+  private int sinceResync = 0;         // Points added since the average was last recalculated exactly.
   
   /**************************************************************************************
 
@@ -86,7 +97,7 @@ public class RingBuffer
     bufferSize       = thisBufferSize;
     bufferFieldCount = thisFieldCount;
     useAverage       = thisUseAverage;
-    dataBuffer  = new float[bufferSize][bufferFieldCount];   // Creata a new data buffer.
+    dataColumns = new float[bufferFieldCount][bufferSize];   // Creata a new data buffer (one column per field).
     dataAverage = new float[bufferFieldCount];               // Create an array to track the average of field values. 
     Clear();
     }
@@ -122,6 +133,7 @@ public class RingBuffer
     // Resets data buffer pointers back to start of buffer.  
     dataPointer = 0;
     dataLength  = 0;
+    sinceResync = 0;
     // Reset averages array:    
     int n;
     for (n=0; n<bufferFieldCount; n++) dataAverage[n] = 0f;
@@ -132,18 +144,24 @@ public class RingBuffer
   /******** Pre Fill the buffer: **************************
    * Pre-fill the buffer with the specified array of values, as if  
    * AddPoint had been called repetedly with those values until 
-   * the buffer was full.
+   * the buffer was full. The values are copied (the array isn't kept).
    *
    * @param theseValues - Values to use when filling the buffer.
    *  
    */
   public void PreFill( float[] theseValues )
     {
-    int n;
-    for (n=0; n<bufferSize; n++) dataBuffer[n] = theseValues;
-    dataAverage = theseValues;
+    int field;
+    for (field=0; field<bufferFieldCount; field++)
+      {
+      float[] column = dataColumns[field];
+      float value = theseValues[field];
+      for (int n=0; n<bufferSize; n++) column[n] = value;
+      dataAverage[field] = value;
+      }
     dataPointer = 0;
     dataLength  = bufferSize;    
+    sinceResync = 0;
     }
   
   
@@ -154,12 +172,35 @@ public class RingBuffer
    *   * Buffer pointer is advanced
    *   * Rolling average is updated (if used). 
    *    
-   * @param theseValues - The array of fields (float values) to be added
+   * @param theseValues - The array of fields (float values) to be added. 
+   *                      The values are copied (the array isn't kept). 
    * 
    ***********************************************************/
   public void AddPoint( float[] theseValues )
     {
     // Add a point to the buffer: 
+    int n;
+    for (n=0; n<bufferFieldCount; n++) putValue(n, theseValues[n]);
+    advance();
+    }  // method
+
+  
+  /******* Add a datum to a single-field buffer: **************
+   * Same as AddPoint(float[]) with a one-element array, but 
+   * without the array. 
+   * @param thisValue - Value to add (to field 0). 
+   ***********************************************************/
+  public void AddPoint( float thisValue )
+    {
+    putValue(0, thisValue);
+    advance();
+    }
+  
+  
+  // Write one field of the new point (at dataPointer), and update its average:
+  private void putValue(int field, float thisValue)
+    {
+    float[] column = dataColumns[field];
     if (useAverage) 
       {
       // We are maintaining an average, so we'd better update it: 
@@ -168,67 +209,157 @@ public class RingBuffer
       // See: http://en.wikipedia.org/wiki/Rolling_average
       // Note that there is a special case if we haven't filled the buffer yet.
       // In this case, it's a cumulative average of all values received so far. 
-      int n;
-      for (n=0; n<bufferFieldCount; n++)
+      if (dataLength == bufferSize)
         {
-        if (dataLength == bufferSize)
-          {
-          // The buffer is full, so update the rolling average:
-          // Note that dataPointer is currently pointintg to the OLDEST value
-          // in the buffer, i.e. the one we are about to overwrite. 
-          dataAverage[n] = dataAverage[n] 
-                           - (dataBuffer[dataPointer][n] / dataLength)
-                           + (theseValues[n] / dataLength);
-          }
-        else
-          {
-          // Special case: Buffer not yet full. Use cumulative average instead: 
-          dataAverage[n] = dataAverage[n] + ( (theseValues[n]-dataAverage[n]) / (dataLength+1) );
-          }
+        // The buffer is full, so update the rolling average:
+        // Note that dataPointer is currently pointintg to the OLDEST value
+        // in the buffer, i.e. the one we are about to overwrite. 
+        dataAverage[field] = dataAverage[field] 
+                             - (column[dataPointer] / dataLength)
+                             + (thisValue / dataLength);
+        }
+      else
+        {
+        // Special case: Buffer not yet full. Use cumulative average instead: 
+        dataAverage[field] = dataAverage[field] + ( (thisValue-dataAverage[field]) / (dataLength+1) );
         }
       }  // [if (useAverage)]
-    // Insert an array of values at the buffer data pointer:
-    dataBuffer[dataPointer] = theseValues.clone();
+    column[dataPointer] = thisValue;
+    }
+  
+  
+  // Move on to the next point, once all fields have been written:
+  private void advance()
+    {
     dataPointer = dataPointer + 1;
     if (dataPointer >= bufferSize) dataPointer = 0;            // Max number of points reached; Wrap.
     if (dataLength < bufferSize) dataLength = dataLength + 1;  // Increment the number of records.     
-    }  // method
+    if (useAverage)
+      {
+      sinceResync = sinceResync + 1;
+      if (sinceResync >= bufferSize) resyncAverage();
+      }
+    }
+
+
+  // Recalculate the averages exactly from the buffer contents. The rolling update 
+  // drifts slowly as float rounding errors build up, so this is done every 
+  // bufferSize points (which keeps the cost per point constant): 
+  private void resyncAverage()
+    {
+    sinceResync = 0;
+    for (int field=0; field<bufferFieldCount; field++)
+      {
+      float[] column = dataColumns[field];
+      double total = 0.0;
+      for (int n=0; n<dataLength; n++) total = total + column[n];
+      dataAverage[field] = (float)(total / dataLength);
+      }
+    }
 
   
   
   
+  /****** Find a datum: **********************************************************
+   * Converts a point index (0 = most recent; 1 = next most recent, etc.) to 
+   * a position in the columns. 
+   * 
+   * If the index exceeds the length of the buffer, the oldest value is used. 
+   * NOTE that if less than the maximum number of records have been entererd
+   * into the buffer, the length of the buffer will be less than the maximum size. 
+   * In this case, the index will only go back to the earliest record, no further. 
+   * In other words, if only 2 records have actually been placed in the buffer, 
+   * values greater than 1 will still return the 1'th entry. 
+   ******************************************************************************/
+  private int positionOf(int pointIndex)
+    {
+    int tempIndex = pointIndex;         // Local copy of the requested index (so we can check bounds and change if required)
+    if (tempIndex > (dataLength-1)) tempIndex = (dataLength-1);   // Data index must be less than the available number of records!
+    if (tempIndex < 0) tempIndex = 0;                             // Data index must be 0 or positive.
+    int thisPointer = dataPointer - (tempIndex + 1);              // Temporary data pointer. 
+    if (thisPointer < 0) thisPointer = thisPointer + bufferSize;  // Buffer loops around. Add bufferSize to get to correct position.
+    return thisPointer;
+    }
+  
+  
+  
   /****** Get back a datum: ******************************************************
-   * Gets back an arbitrary entry from the buffer. See notes below. 
+   * Gets back an arbitrary entry from the buffer (see positionOf for the 
+   * index rules). 
+   * 
+   * NOTE: This creates a new array each time. Use GetPoint(pointIndex, dst), 
+   * GetValue or GetRange on a busy path. 
    * 
    * @param pointIndex - Index of point to retrieve. 0 = most recent; 1 = next most recent, etc.
    * @return Array of float values representing the fields from the requested buffer entry.
+   *         If no data have been added, the method returns null!! User should check GetLength 
+   *         if there is any doubt!
    * 
    ******************************************************************************/
   public float[] GetPoint(int pointIndex)
     {
-    // Retrieves a specific point. pointIndex is a number indicating
-    // the point to get, such that: 
-    // 
-    //  0 = Most recent;
-    //  1 = 2nd most recent;
-    //  2 = 3rd most recent; Etc. 
-    // 
-    // If n exceeds the length of the buffer, the oldest value is returned. 
-    // NOTE that if less than the maximum number of records have been entererd
-    // into the buffer, the length of the buffer will be less than the maximum size. 
-    // In this case, n will only go back to the earliest record, no further. 
-    // In other words, if only 2 records have actually been placed in the buffer, 
-    // values of n greater than 1 will still return the 1'th entry. 
-    //
-    // If no data have been added, the method returns null!!
-    // User should check GetLength if there is any doubt!.
-    //
-    int tempIndex = pointIndex;         // Local copy of the requested index (so we can check bounds and change if required)
-    if (tempIndex < 0) tempIndex = 0;                             // Data index must be 0 or positive.
-    if (tempIndex > (dataLength-1)) tempIndex = (dataLength-1);   // Data index must be less than the available number of records!
-    int thisPointer = dataPointer - (pointIndex + 1);             // Temporary data pointer. 
-    if (thisPointer < 0) thisPointer = thisPointer + bufferSize;  // Buffer loops around. Add bufferSize to get to correct position.
-    return dataBuffer[thisPointer].clone();                       // Return a copy of the requested data point.  
+    if (dataLength == 0) return null;
+    return GetPoint(pointIndex, new float[bufferFieldCount]);     // Return a copy of the requested data point.  
+    }
+  
+  
+  /****** Get back a datum (no allocation): **************************************
+   * @param pointIndex - Index of point to retrieve. 0 = most recent; 1 = next most recent, etc.
+   * @param dst        - Array to copy the fields into (at least GetFieldCount() long). 
+   * @return dst. If no data have been added, dst is left as it was. 
+   ******************************************************************************/
+  public float[] GetPoint(int pointIndex, float[] dst)
+    {
+    if (dataLength == 0) return dst;
+    int thisPointer = positionOf(pointIndex);
+    for (int n=0; n<bufferFieldCount; n++) dst[n] = dataColumns[n][thisPointer];
+    return dst;
+    }
+  
+  
+  /****** Get back a single value: ***********************************************
+   * @param pointIndex - Index of point. 0 = most recent; 1 = next most recent, etc.
+   * @param field      - Field number. 
+   * @return Value. 0 if no data have been added. 
+   ******************************************************************************/
+  public float GetValue(int pointIndex, int field)
+    {
+    if (dataLength == 0) return 0f;
+    return dataColumns[field][positionOf(pointIndex)];
+    }
+  
+  
+  
+  /****** Get a run of values: ***************************************************
+   * Copies the most recent 'count' values of one field into dst, in time 
+   * order (oldest first), starting at dst[offset]. If the buffer holds fewer 
+   * than 'count' points, only those are copied. 
+   * 
+   * @param field  - Field number. 
+   * @param dst    - Array to copy the values into. 
+   * @param offset - Position in dst for the first (oldest) value. 
+   * @param count  - Number of values wanted. 
+   * @return Number of values actually copied. 
+   ******************************************************************************/
+  public int GetRange(int field, float[] dst, int offset, int count)
+    {
+    if (count > dataLength) count = dataLength;
+    if (count <= 0) return 0;
+    float[] column = dataColumns[field];
+    int start = dataPointer - count;                  // Position of the oldest value wanted.
+    if (start >= 0)
+      {
+      System.arraycopy(column, start, dst, offset, count);
+      }
+    else
+      {
+      // The run wraps around the end of the buffer: copy the two parts.
+      start = start + bufferSize;
+      int firstPart = bufferSize - start;
+      System.arraycopy(column, start, dst, offset, firstPart);
+      System.arraycopy(column, 0, dst, offset + firstPart, count - firstPart);
+      }
+    return count;
     }
   
   
@@ -248,4 +379,9 @@ public class RingBuffer
     {  return dataAverage.clone();  }
   
   
+  /**** Get the average of one field (no allocation; see GetAverage). ****/
+  public float GetAverage(int field)
+    {  return dataAverage[field];  }
+  
+  
   }  // Class
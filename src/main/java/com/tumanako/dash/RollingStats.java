@@ -0,0 +1,350 @@
+package com.tumanako.dash;
+
+/**
+Tumanako - Electric Vehicle and Motor control software <p>
+
+Copyright (C) 2014 Jeremy Cole-Baker <jeremy@rhtech.co.nz> <p>
+
+This file is part of Tumanako Dashboard. <p>
+
+Tumanako is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published
+by the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version. <p>
+
+Tumanako is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details. <p>
+
+You should have received a copy of the GNU Lesser General Public License
+along with Tumanako.  If not, see <http://www.gnu.org/licenses/>. <p>
+
+@author Jeremy Cole-Baker / Riverhead Technology
+
+*/
+
+
+
+/**
+ Rolling Statistics <p>
+
+ Keeps statistics for the last N samples of one value (a sliding window),
+ updated as each sample is added, so they can be read every frame without
+ going back over the whole window: <p>
+
+ <ul>
+ <li> Mean, variance and standard deviation. The sums are kept relative to a
+      'shift' value (near the mean) using compensated (Neumaier) summation,
+      and every N samples they are recalculated exactly from the window, so
+      rounding errors can't build up over a long session.
+ <li> Minimum and maximum, using monotonic queues (each sample is added and
+      removed once, so these are O(1) on average).
+ <li> An exponentially weighted moving average (EWMA), which doesn't depend
+      on the window.
+ <li> Approximate percentiles (e.g. median) from a histogram of the window.
+      The histogram range and number of bins are set by the constructor;
+      values outside the range are counted in the end bins.
+ </ul>
+
+ Nothing is allocated after the constructor. NaN samples are ignored. <p>
+
+ Not thread safe: add and read on the same thread, or synchronise. <p>
+
+ @author Jeremy Cole-Baker / Riverhead Technology
+
+*/
+public class RollingStats
+  {
+
+  private final int windowSize;
+  private final float[] values;        // The window (ring buffer): values[sequence % windowSize]
+  private long sampleCount = 0;        // Total samples added since clear() (= sequence number of the next sample).
+  private int length = 0;              // Number of samples in the window.
+
+  // Compensated sums of (value - shift) and (value - shift)^2 over the window:
+  private double shift = 0.0;
+  private double sum = 0.0;
+  private double sumCompensation = 0.0;
+  private double sumSquares = 0.0;
+  private double sumSquaresCompensation = 0.0;
+  private int sinceResync = 0;
+
+  // Monotonic queues for min and max (circular; sequence numbers and values):
+  private final long[]  minSequence;
+  private final float[] minValue;
+  private int minHead = 0;
+  private int minSize = 0;
+  private final long[]  maxSequence;
+  private final float[] maxValue;
+  private int maxHead = 0;
+  private int maxSize = 0;
+
+  // EWMA:
+  private final float ewmaAlpha;
+  private float ewma = Float.NaN;
+
+  // Histogram for percentiles (null if not used):
+  private final int[] histogram;
+  private final float histogramMin;
+  private final float binWidth;
+
+
+
+  /**
+   Create rolling statistics without percentiles.
+   @param thisWindowSize  Number of samples in the window.
+   @param thisEwmaAlpha   Weight of each new sample in the EWMA (0 - 1; e.g. 0.1).
+   */
+  public RollingStats(int thisWindowSize, float thisEwmaAlpha)
+    {  this(thisWindowSize, thisEwmaAlpha, 0f, 0f, 0);  }
+
+
+  /**
+   Create rolling statistics.
+   @param thisWindowSize  Number of samples in the window.
+   @param thisEwmaAlpha   Weight of each new sample in the EWMA (0 - 1; e.g. 0.1).
+   @param rangeMin        Lowest value expected (for the percentile histogram).
+   @param rangeMax        Highest value expected (for the percentile histogram).
+   @param bins            Number of histogram bins (percentiles are accurate to about (rangeMax-rangeMin)/bins). 0 = no percentiles.
+   */
+  public RollingStats(int thisWindowSize, float thisEwmaAlpha, float rangeMin, float rangeMax, int bins)
+    {
+    windowSize  = Math.max(1, thisWindowSize);
+    values      = new float[windowSize];
+    minSequence = new long[windowSize];
+    minValue    = new float[windowSize];
+    maxSequence = new long[windowSize];
+    maxValue    = new float[windowSize];
+    ewmaAlpha   = thisEwmaAlpha;
+    if ((bins > 0) && (rangeMax > rangeMin))
+      {
+      histogram    = new int[bins];
+      histogramMin = rangeMin;
+      binWidth     = (rangeMax - rangeMin) / bins;
+      }
+    else
+      {
+      histogram    = null;
+      histogramMin = 0f;
+      binWidth     = 0f;
+      }
+    }
+
+
+
+  /** Throw away all samples (and the EWMA). */
+  public void clear()
+    {
+    sampleCount = 0;
+    length = 0;
+    shift = 0.0;
+    sum = 0.0;
+    sumCompensation = 0.0;
+    sumSquares = 0.0;
+    sumSquaresCompensation = 0.0;
+    sinceResync = 0;
+    minHead = 0;
+    minSize = 0;
+    maxHead = 0;
+    maxSize = 0;
+    ewma = Float.NaN;
+    if (histogram != null) for (int n = 0; n < histogram.length; n++) histogram[n] = 0;
+    }
+
+
+
+  /**
+   Add a sample. If the window is full, the oldest sample drops out.
+   @param value  Sample value (NaN is ignored).
+   */
+  public void add(float value)
+    {
+    if (Float.isNaN(value)) return;
+    int position = (int)(sampleCount % windowSize);
+
+    // Remove the oldest sample, if the window is full:
+    if (length == windowSize)
+      {
+      float oldValue = values[position];
+      double delta = oldValue - shift;
+      addToSum(-delta);
+      addToSumSquares(-(delta * delta));
+      if (histogram != null) histogram[binOf(oldValue)]--;
+      }
+    else
+      {
+      if (length == 0) shift = value;     // First sample; use it as the shift.
+      length++;
+      }
+
+    // Add the new one:
+    values[position] = value;
+    double delta = value - shift;
+    addToSum(delta);
+    addToSumSquares(delta * delta);
+    if (histogram != null) histogram[binOf(value)]++;
+    updateMin(value);
+    updateMax(value);
+    ewma = Float.isNaN(ewma) ? value : (ewma + (ewmaAlpha * (value - ewma)));
+    sampleCount++;
+
+    // Every windowSize samples, recalculate the sums exactly:
+    sinceResync++;
+    if (sinceResync >= windowSize) resync();
+    }
+
+
+
+  /** @return Number of samples in the window. */
+  public int getLength()
+    {  return length;  }
+
+  /** @return Total number of samples added since the last clear(). */
+  public long getSampleCount()
+    {  return sampleCount;  }
+
+  /** @return The most recent sample, or NaN if there are none. */
+  public float getLast()
+    {  return (length > 0) ? values[(int)((sampleCount - 1) % windowSize)] : Float.NaN;  }
+
+  /** @return Mean of the window, or NaN if there are no samples. */
+  public float getMean()
+    {  return (length > 0) ? (float)(shift + ((sum + sumCompensation) / length)) : Float.NaN;  }
+
+  /** @return Sample variance of the window (0 if there are less than 2 samples). */
+  public float getVariance()
+    {
+    if (length < 2) return 0f;
+    double thisSum = sum + sumCompensation;
+    double variance = ((sumSquares + sumSquaresCompensation) - ((thisSum * thisSum) / length)) / (length - 1);
+    return (variance > 0.0) ? (float)variance : 0f;
+    }
+
+  /** @return Sample standard deviation of the window. */
+  public float getStdDev()
+    {  return (float)Math.sqrt(getVariance());  }
+
+  /** @return Minimum of the window, or NaN if there are no samples. */
+  public float getMin()
+    {  return (minSize > 0) ? minValue[minHead] : Float.NaN;  }
+
+  /** @return Maximum of the window, or NaN if there are no samples. */
+  public float getMax()
+    {  return (maxSize > 0) ? maxValue[maxHead] : Float.NaN;  }
+
+  /** @return Exponentially weighted moving average of all samples, or NaN if there are none. */
+  public float getEwma()
+    {  return ewma;  }
+
+
+
+  /**
+   Get an approximate percentile of the window, from the histogram.
+   Takes time in proportion to the number of bins.
+   @param fraction  Percentile as a fraction (e.g. 0.5 = median, 0.95 = 95th percentile).
+   @return The percentile, or NaN if there are no samples or no histogram.
+   */
+  public float getPercentile(float fraction)
+    {
+    if ((histogram == null) || (length == 0)) return Float.NaN;
+    float target = Math.max(0f, Math.min(1f, fraction)) * length;
+    int below = 0;
+    for (int n = 0; n < histogram.length; n++)
+      {
+      int thisCount = histogram[n];
+      if ((thisCount > 0) && ((below + thisCount) >= target))
+        {
+        // The percentile is in this bin. Assume its samples are spread evenly across it:
+        float result = histogramMin + (binWidth * (n + ((target - below) / thisCount)));
+        // Samples are never outside the window min and max:
+        return Math.max(getMin(), Math.min(getMax(), result));
+        }
+      below += thisCount;
+      }
+    return getMax();
+    }
+
+
+
+
+  /*********** Helpers: *****************************************************/
+
+  // Neumaier summation: Keeps the low-order bits lost from each addition in a separate compensation term.
+  private void addToSum(double term)
+    {
+    double total = sum + term;
+    if (Math.abs(sum) >= Math.abs(term)) sumCompensation += (sum - total) + term;
+    else                                 sumCompensation += (term - total) + sum;
+    sum = total;
+    }
+
+  private void addToSumSquares(double term)
+    {
+    double total = sumSquares + term;
+    if (Math.abs(sumSquares) >= Math.abs(term)) sumSquaresCompensation += (sumSquares - total) + term;
+    else                                        sumSquaresCompensation += (term - total) + sumSquares;
+    sumSquares = total;
+    }
+
+
+  // Recalculate the sums exactly from the window, using the current mean as the new shift:
+  private void resync()
+    {
+    sinceResync = 0;
+    shift = shift + ((sum + sumCompensation) / length);
+    sum = 0.0;
+    sumCompensation = 0.0;
+    sumSquares = 0.0;
+    sumSquaresCompensation = 0.0;
+    for (int n = 0; n < length; n++)
+      {
+      double delta = values[n] - shift;
+      addToSum(delta);
+      addToSumSquares(delta * delta);
+      }
+    sum = sum + sumCompensation;
+    sumCompensation = 0.0;
+    sumSquares = sumSquares + sumSquaresCompensation;
+    sumSquaresCompensation = 0.0;
+    }
+
+
+  private int binOf(float value)
+    {
+    int bin = (int)((value - histogramMin) / binWidth);
+    if (bin < 0) return 0;
+    if (bin >= histogram.length) return histogram.length - 1;
+    return bin;
+    }
+
+
+  // Monotonic queue for the minimum: values increase from head to tail.
+  private void updateMin(float value)
+    {
+    long oldest = sampleCount - windowSize + 1;       // Oldest sequence number still in the window after this sample.
+    while ((minSize > 0) && (minSequence[minHead] < oldest))
+      {  minHead = (minHead + 1) % windowSize;  minSize--;  }
+    while ((minSize > 0) && (minValue[(minHead + minSize - 1) % windowSize] >= value)) minSize--;
+    int tail = (minHead + minSize) % windowSize;
+    minSequence[tail] = sampleCount;
+    minValue[tail] = value;
+    minSize++;
+    }
+
+
+  // Monotonic queue for the maximum: values decrease from head to tail.
+  private void updateMax(float value)
+    {
+    long oldest = sampleCount - windowSize + 1;
+    while ((maxSize > 0) && (maxSequence[maxHead] < oldest))
+      {  maxHead = (maxHead + 1) % windowSize;  maxSize--;  }
+    while ((maxSize > 0) && (maxValue[(maxHead + maxSize - 1) % windowSize] <= value)) maxSize--;
+    int tail = (maxHead + maxSize) % windowSize;
+    maxSequence[tail] = sampleCount;
+    maxValue[tail] = value;
+    maxSize++;
+    }
+
+
+  }  // Class
@@ -0,0 +1,200 @@
+package com.tumanako.dash;
+
+/**
+Tumanako - Electric Vehicle and Motor control software <p>
+
+Copyright (C) 2014 Jeremy Cole-Baker <jeremy@rhtech.co.nz> <p>
+
+This file is part of Tumanako Dashboard. <p>
+
+Tumanako is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published
+by the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version. <p>
+
+Tumanako is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details. <p>
+
+You should have received a copy of the GNU Lesser General Public License
+along with Tumanako.  If not, see <http://www.gnu.org/licenses/>. <p>
+
+@author Jeremy Cole-Baker / Riverhead Technology
+
+*/
+
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+
+/**
+ Sample Ring <p>
+
+ A lock-free ring of samples (sets of float fields with a timestamp), written
+ by ONE thread and read by any number of other threads. Unlike RingBuffer, it
+ can be used to pass samples straight from a sensor thread to the UI thread,
+ without posting anything to the main looper: the producer writes at sensor
+ rate, and each reader copies whatever it needs (e.g. the last 60 values of a
+ field for a chart) when it draws. <p>
+
+ Each sample has a sequence number (0, 1, 2...), and is stored in slot
+ (sequence % capacity). To write a sample, the producer calls begin(), then
+ set() for each field, then publish(). begin() 'claims' the next sequence
+ number before the slot is overwritten, and publish() makes the sample
+ visible to readers. <p>
+
+ Readers never wait for the producer. After copying values, a reader checks
+ the claimed sequence number again: any samples which the producer might
+ have started to overwrite while they were being copied are thrown away, so
+ a reader only ever gets complete, consistent samples (a reader which is
+ very slow compared to the producer just gets fewer of them). <p>
+
+ Values are stored in atomic arrays (floats as int bits), so each value is
+ safely published between threads without locks. Nothing is allocated after
+ the constructor. <p>
+
+ @author Jeremy Cole-Baker / Riverhead Technology
+
+*/
+public class SampleRing
+  {
+
+  private final int capacity;
+  private final int fieldCount;
+  private final AtomicIntegerArray values;      // Float bits; values[(slot * fieldCount) + field]
+  private final AtomicLongArray timestamps;     // Timestamp of each slot.
+
+  private final AtomicLong claimed   = new AtomicLong(0);   // Number of samples the producer has started writing.
+  private final AtomicLong published = new AtomicLong(0);   // Number of samples completely written (readers may read these).
+
+  private int writeBase = 0;                    // Producer only: start of the claimed slot in 'values'.
+
+
+
+  /**
+   Create a sample ring
+   @param thisFieldCount  Number of fields in each sample.
+   @param thisCapacity    Number of samples kept. Older samples are overwritten.
+   */
+  public SampleRing(int thisFieldCount, int thisCapacity)
+    {
+    fieldCount = thisFieldCount;
+    capacity   = thisCapacity;
+    values     = new AtomicIntegerArray(fieldCount * capacity);
+    timestamps = new AtomicLongArray(capacity);
+    }
+
+
+
+  public int getCapacity()
+    {  return capacity;  }
+
+  public int getFieldCount()
+    {  return fieldCount;  }
+
+  /** @return Number of samples published so far (= sequence number of the next sample). */
+  public long getSequence()
+    {  return published.get();  }
+
+
+
+
+  /*********** Producer (one thread only): **********************************/
+
+  /** Start writing the next sample. Follow with set() for each field, then publish(). */
+  public void begin()
+    {
+    long sequence = published.get();
+    claimed.set(sequence + 1);                     // Readers now treat the slot being overwritten as invalid...
+    writeBase = (int)(sequence % capacity) * fieldCount;
+    }
+
+
+  /** Set one field of the sample being written (after begin()). */
+  public void set(int field, float value)
+    {
+    if ((field < 0) || (field >= fieldCount)) return;
+    values.lazySet(writeBase + field, Float.floatToRawIntBits(value));   // ...before any of its values change.
+    }
+
+
+  /**
+   Finish writing the sample, and make it visible to readers.
+   @param timestamp  Time of the sample (any units; e.g. System.nanoTime() of arrival).
+   */
+  public void publish(long timestamp)
+    {
+    long sequence = claimed.get() - 1;
+    timestamps.lazySet((int)(sequence % capacity), timestamp);
+    published.lazySet(sequence + 1);
+    }
+
+
+
+
+  /*********** Readers (any thread): ****************************************/
+
+  /**
+   Copy the latest values of one field, oldest first.
+   @param field   Field to read
+   @param dst     Array to copy values into
+   @param offset  Position in dst for the first (oldest) value
+   @param count   Number of values wanted
+   @return Number of values copied (less than count if there aren't that many samples yet).
+   */
+  public int getLatest(int field, float[] dst, int offset, int count)
+    {
+    if ((field < 0) || (field >= fieldCount) || (count <= 0)) return 0;
+    long end = published.get();
+    long start = Math.max(0L, end - Math.min((long)count, (long)capacity));
+    int n = 0;
+    for (long sequence = start; sequence < end; sequence++)
+      dst[offset + n++] = Float.intBitsToFloat(values.get( (int)(sequence % capacity) * fieldCount + field ));
+    // Throw away any samples which may have been overwritten while we were copying:
+    long firstValid = claimed.get() - capacity;
+    if (firstValid > start)
+      {
+      int invalid = (int)Math.min((long)n, firstValid - start);
+      n = n - invalid;
+      System.arraycopy(dst, offset + invalid, dst, offset, n);
+      }
+    return n;
+    }
+
+
+  /**
+   Get the latest value of one field.
+   @param field  Field to read
+   @param defaultValue  Returned if there are no samples yet.
+   */
+  public float getLatestValue(int field, float defaultValue)
+    {
+    if ((field < 0) || (field >= fieldCount)) return defaultValue;
+    while (true)
+      {
+      long end = published.get();
+      if (end == 0) return defaultValue;
+      float value = Float.intBitsToFloat(values.get( (int)((end - 1) % capacity) * fieldCount + field ));
+      if (claimed.get() - capacity < end) return value;      // Otherwise it was overwritten while we read it (very unlikely): try again.
+      }
+    }
+
+
+  /** @return Timestamp of the latest sample, or 0 if there are none. */
+  public long getLatestTimestamp()
+    {
+    while (true)
+      {
+      long end = published.get();
+      if (end == 0) return 0L;
+      long timestamp = timestamps.get((int)((end - 1) % capacity));
+      if (claimed.get() - capacity < end) return timestamp;
+      }
+    }
+
+
+  }  // Class
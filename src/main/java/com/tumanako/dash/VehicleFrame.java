@@ -0,0 +1,122 @@
+package com.tumanako.dash;
+
+/**
+Tumanako - Electric Vehicle and Motor control software <p>
+
+Copyright (C) 2014 Jeremy Cole-Baker <jeremy@rhtech.co.nz> <p>
+
+This file is part of Tumanako Dashboard. <p>
+
+Tumanako is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published
+by the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version. <p>
+
+Tumanako is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details. <p>
+
+You should have received a copy of the GNU Lesser General Public License
+along with Tumanako.  If not, see <http://www.gnu.org/licenses/>. <p>
+
+@author Jeremy Cole-Baker / Riverhead Technology
+
+*/
+
+
+
+/**
+ Vehicle Data Frame <p>
+
+ A snapshot of all the vehicle data channels from one decode cycle, with a
+ sequence number and a timestamp. <p>
+
+ The frame has a fixed layout: one float per vehicle channel, indexed by the
+ DashBus channel ID (DashBus.DATA_CONTACTOR_ON ... DashBus.DATA_ACC_BATTERY_VLT),
+ so frame fields and bus channels are the same thing. <p>
+
+ Frames are meant to be reused rather than created per sample. The data source
+ fills in a frame and publishes it in one go (see VehicleFrameBuffer and
+ DashBus.publishFrame), and subscribers read only the fields they need. <p>
+
+ Units are as displayed, e.g. DATA_MOTOR_RPM is in thousands of RPM
+ (matching the "x1000/min" dial). <p>
+
+ @author Jeremy Cole-Baker / Riverhead Technology
+
+*/
+public class VehicleFrame
+  {
+
+  public static final int FIELD_COUNT = DashBus.VEHICLE_CHANNELS;
+
+  private final float[] values = new float[FIELD_COUNT];
+
+  private long sequence  = 0;        // Sequence number, set when the frame is published. Increments by 1 for each frame.
+  private long timestamp = 0;        // Monotonic time (System.nanoTime()) when the data were captured.
+
+
+
+  /**
+   Get a field value
+   @param field  Field index (a DashBus vehicle channel ID)
+   @return       Value, or 0 if field isn't a vehicle channel.
+   */
+  public float get(int field)
+    {
+    if ((field < 0) || (field >= FIELD_COUNT)) return 0f;
+    return values[field];
+    }
+
+
+  /**
+   Set a field value
+   @param field  Field index (a DashBus vehicle channel ID)
+   @param value  New value. Ignored if field isn't a vehicle channel.
+   */
+  public void set(int field, float value)
+    {
+    if ((field < 0) || (field >= FIELD_COUNT)) return;
+    values[field] = value;
+    }
+
+
+
+  public long getSequence()
+    {  return sequence;  }
+
+  public void setSequence(long thisSequence)
+    {  sequence = thisSequence;  }
+
+
+  /** @return Capture time of the data, from System.nanoTime() */
+  public long getTimestamp()
+    {  return timestamp;  }
+
+  public void setTimestamp(long thisTimestamp)
+    {  timestamp = thisTimestamp;  }
+
+
+
+  /**
+   Copy all fields, sequence and timestamp from another frame (no allocation).
+   @param other  Frame to copy
+   */
+  public void copyFrom(VehicleFrame other)
+    {
+    System.arraycopy(other.values, 0, values, 0, FIELD_COUNT);
+    sequence  = other.sequence;
+    timestamp = other.timestamp;
+    }
+
+
+
+  /** Set all fields to 0. Sequence and timestamp are left alone. */
+  public void clear()
+    {
+    for (int n=0; n<FIELD_COUNT; n++) values[n] = 0f;
+    }
+
+
+  }  // Class
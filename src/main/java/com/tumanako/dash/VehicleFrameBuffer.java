@@ -0,0 +1,131 @@
+package com.tumanako.dash;
+
+/**
+Tumanako - Electric Vehicle and Motor control software <p>
+
+Copyright (C) 2014 Jeremy Cole-Baker <jeremy@rhtech.co.nz> <p>
+
+This file is part of Tumanako Dashboard. <p>
+
+Tumanako is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published
+by the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version. <p>
+
+Tumanako is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details. <p>
+
+You should have received a copy of the GNU Lesser General Public License
+along with Tumanako.  If not, see <http://www.gnu.org/licenses/>. <p>
+
+@author Jeremy Cole-Baker / Riverhead Technology
+
+*/
+
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+
+/**
+ Vehicle Frame Buffer <p>
+
+ Passes VehicleFrames from one producer thread (e.g. the Bluetooth thread in
+ VehicleData) to one consumer thread (e.g. the UI thread) without locks or
+ allocation. <p>
+
+ This is a 'triple buffer': there are three frames. The producer always owns
+ one (the write frame), the consumer always owns one (the read frame), and the
+ third is the most recently published frame, waiting to be picked up. Publishing
+ and picking up are each a single atomic swap, so neither side ever waits for
+ the other, and the consumer always gets the newest complete frame. Frames which
+ are published faster than the consumer reads them are simply overwritten. <p>
+
+ To Use: <p>
+ <pre>
+   Producer:
+     VehicleFrame frame = buffer.getWriteFrame();
+     frame.set(DashBus.DATA_MOTOR_RPM, rpm);   ...etc
+     buffer.publish();
+
+   Consumer:
+     if (buffer.hasNewFrame()) display( buffer.getLatestFrame() );
+ </pre>
+
+ @author Jeremy Cole-Baker / Riverhead Technology
+
+*/
+public class VehicleFrameBuffer
+  {
+
+  private static final int INDEX_MASK = 0x03;     // Low bits of 'waiting' hold the index of the waiting frame...
+  private static final int NEW_FRAME  = 0x04;     // ...and this bit is set if it hasn't been picked up yet.
+
+  private final VehicleFrame[] frames = { new VehicleFrame(), new VehicleFrame(), new VehicleFrame() };
+
+  private int writeIndex = 0;                                       // Owned by the producer.
+  private int readIndex  = 1;                                       // Owned by the consumer.
+  private final AtomicInteger waiting = new AtomicInteger(2);       // Shared: index of the frame in the middle.
+
+  private long nextSequence = 1;                                    // Owned by the producer.
+
+
+
+  /**
+   Get the frame to fill in <p>
+   PRODUCER ONLY. The frame starts out as a copy of the last published frame,
+   so only the fields which have changed need to be set.
+   @return Frame to write the next sample into.
+   */
+  public VehicleFrame getWriteFrame()
+    {  return frames[writeIndex];  }
+
+
+
+  /**
+   Publish the write frame <p>
+   PRODUCER ONLY. Sets the frame's sequence number, makes it available to the
+   consumer, and swaps in a new write frame (see getWriteFrame).
+   @return The sequence number given to the published frame.
+   */
+  public long publish()
+    {
+    long thisSequence = nextSequence++;
+    int publishedIndex = writeIndex;
+    frames[publishedIndex].setSequence(thisSequence);
+    writeIndex = waiting.getAndSet(publishedIndex | NEW_FRAME) & INDEX_MASK;
+    // The new write frame starts as a copy of the one just published, so any fields
+    // the producer doesn't set keep their last value. (The consumer may be reading the
+    // published frame by now, but it never writes to it, so this is safe.)
+    frames[writeIndex].copyFrom(frames[publishedIndex]);
+    return thisSequence;
+    }
+
+
+
+  /**
+   Check for a new frame
+   @return true if a frame has been published since the last call to getLatestFrame.
+   */
+  public boolean hasNewFrame()
+    {  return ((waiting.get() & NEW_FRAME) != 0);  }
+
+
+
+  /**
+   Get the latest frame <p>
+   CONSUMER ONLY. If a new frame has been published, it is swapped in; otherwise
+   the same frame as last time is returned. The returned frame won't be touched
+   by the producer until the next call to getLatestFrame.
+   @return Most recently published frame.
+   */
+  public VehicleFrame getLatestFrame()
+    {
+    if (hasNewFrame()) readIndex = waiting.getAndSet(readIndex) & INDEX_MASK;
+    return frames[readIndex];
+    }
+
+
+  }  // Class
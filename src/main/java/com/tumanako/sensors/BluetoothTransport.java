@@ -0,0 +1,167 @@
+package com.tumanako.sensors;
+
+/************************************************************************************
+Tumanako - Electric Vehicle and Motor control software
+
+Copyright (C) 2014 Jeremy Cole-Baker <jeremy@rhtech.co.nz>
+
+This file is part of Tumanako Dashboard.
+
+Tumanako is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published
+by the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Tumanako is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with Tumanako.  If not, see <http://www.gnu.org/licenses/>.
+
+*************************************************************************************/
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.util.UUID;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothSocket;
+import android.util.Log;
+
+
+
+/****************************************************************
+ *  Bluetooth Vehicle Transport:
+ *  -------------------------------
+ *
+ *  Connects to the vehicle with a Bluetooth RFCOMM (serial port
+ *  profile) socket. This is the normal connection in the car.
+ *
+ * @author Jeremy Cole-Baker / Riverhead Technology
+ *
+ ***************************************************************/
+public class BluetoothTransport implements VehicleTransport
+  {
+
+  private static final UUID RFCOMM_UUID = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");    // UUID for a RfComm connection (used when connecting)
+
+  private final BluetoothAdapter bluetoothAdapter;
+  private final String btDeviceAddress;
+  private volatile BluetoothSocket btSocket = null;       // Volatile: may be closed from another thread to interrupt a blocked read.
+  private volatile InputStream btStreamIn = null;
+  private volatile boolean isClosed = false;
+
+
+
+  /**
+   BluetoothTransport Constructor
+   @param thisAddress  Bluetooth address of the vehicle sensor, e.g. "00:12:05:17:91:65"
+   */
+  public BluetoothTransport(String thisAddress)
+    {
+    bluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
+    btDeviceAddress = thisAddress;
+    }
+
+
+
+  /********** Open Bluetooth connection! ****************************************
+   * This mmethod tries to establish a bluetooth connection.
+   * @return true on success, false if an error occurs.
+   ******************************************************************************/
+  public boolean open()
+    {
+
+    /***** Make sure the bluetooth adaptor is on: *******/
+    if ((bluetoothAdapter == null) || (bluetoothAdapter.getState() != BluetoothAdapter.STATE_ON)) return false;
+
+    /****** Get a bluetooth device for the vehicle sensor: ***************/
+    if (!BluetoothAdapter.checkBluetoothAddress(btDeviceAddress)) return false;   // Invalid address. Give up.
+    BluetoothDevice btVehicleSensor = bluetoothAdapter.getRemoteDevice(btDeviceAddress);
+
+    /************* Try to establish a BT Connection: ***********************************/
+    try
+      {
+      btSocket = btVehicleSensor.createRfcommSocketToServiceRecord(RFCOMM_UUID);   // Create a new BT Socket for RF Comm connection.
+      bluetoothAdapter.cancelDiscovery();                                        // Cancel any bluetooth discovery that's running (in case another app started it...) According to the docs, we should do this...
+      if (isClosed) return false;
+      btSocket.connect();                                                        // Attempt to connect!!!
+      }
+
+    catch (IOException ioe)
+      {
+      // Our attempt to open a BT connection caused an IO exception. This could be due to a bug in
+      // the bluetooth class. Try again using a call to an internal method in createRfcommSocket class:
+      // (See http://stackoverflow.com/questions/4444235/problems-connecting-with-bluetooth-android )
+      try
+        {
+        closeSocket();
+        if (isClosed) return false;
+        Method m = btVehicleSensor.getClass().getMethod("createRfcommSocket", new Class[]{int.class});
+        btSocket = (BluetoothSocket)m.invoke(btVehicleSensor, Integer.valueOf(1));
+        btSocket.connect();
+        }
+      catch (Exception e)
+        {
+        // Still having errors connecting! Give up.
+        Log.i(com.tumanako.ui.UIActivity.APP_TAG, " BluetoothTransport -> Comm Error Persisted. Giving up. ");
+        Log.i(com.tumanako.ui.UIActivity.APP_TAG, String.valueOf(e.getMessage()));
+        return false;  // Give up.
+        }
+      }
+
+    // Connected! Try to open the input stream...
+    try
+      {
+      btStreamIn = btSocket.getInputStream();
+      return !isClosed;                                  // SUCCESS!! (unless we were closed while connecting)
+      }
+    catch (Exception e)
+      {
+      Log.i(com.tumanako.ui.UIActivity.APP_TAG, " BluetoothTransport -> Error opening IO Streams... ");
+      Log.i(com.tumanako.ui.UIActivity.APP_TAG, String.valueOf(e.getMessage()));
+      return false;  // Give up.
+      }
+    }
+
+
+
+  public InputStream getInputStream()
+    {  return btStreamIn;  }
+
+
+
+  /************** Bluetooth socket close / cleanup: ******************************************************/
+  public void close()
+    {
+    isClosed = true;
+    try
+      {
+      InputStream thisStream = btStreamIn;
+      if (thisStream != null) thisStream.close();
+      }
+    catch (Exception e)
+      {  }  // If an error occurs here, quietly ignore.
+    closeSocket();
+    }
+
+
+  private void closeSocket()
+    {
+    BluetoothSocket thisSocket = btSocket;
+    if (thisSocket == null) return;
+    try                    {  thisSocket.close();  }
+    catch (IOException e)  {  }
+    }
+
+
+
+  public String toString()
+    {  return "Bluetooth " + btDeviceAddress;  }
+
+
+  }  // [class BluetoothTransport]
@@ -105,7 +105,9 @@ public class DataService extends Service implements IDashMessages
 
   // ---------------DEMO MODE CODE -------------------------------
   public static final String DATA_SERVICE_DEMO      = "DATASERVICE_DEMO";       // An Intent with this Action is generated by the UI to turn demo mode on / off.
-  private DemoData demoData;
+  private static final String DEMO_RECORDING        = ReplayEngine.ASSET_PREFIX + "demo_session.tdr";   // Recorded session played back in demo mode.
+  private boolean isDemo = false;
+  private ReplayEngine demoReplay = null;   // Latest demo replay: a new one carries on from it (see startVehicleData).
   // ---------------DEMO MODE CODE -------------------------------
   
   
@@ -134,11 +136,21 @@ public class DataService extends Service implements IDashMessages
   
   
   // ---------------DEMO MODE CODE -------------------------------
+  /**
+   Turn demo mode on or off <p>
+   In demo mode, a recorded session is played back (see ReplayEngine) in place 
+   of the vehicle connection and the GPS, so the whole app runs on real data. 
+   */
   public void setDemo(boolean thisIsDemo)
     {
-    // Set the 'Demo' mode flag: 
-    deviceGPS.NMEAData.setDemo(thisIsDemo);
-    demoData.setDemo(thisIsDemo);
+    if (thisIsDemo == isDemo) return;
+    isDemo = thisIsDemo;
+    // Close the current vehicle data connection. startVehicleData() will make a new one to suit: 
+    if (vehicleData != null) vehicleData.close();
+    vehicleData = null;
+    if (isDemo) deviceGPS.suspend();    // The replay provides the NMEA data.
+    else        deviceGPS.resume();
+    startVehicleData();
     }
   // ---------------DEMO MODE CODE -------------------------------
   
@@ -149,7 +161,7 @@ public class DataService extends Service implements IDashMessages
    ************************************************************/
   private void startSensors()
     {
-    deviceGPS.resume();
+    if (!isDemo) deviceGPS.resume();
     startVehicleData();
     chargeNode.resume();
     }
@@ -159,7 +171,13 @@ public class DataService extends Service implements IDashMessages
     chargeNode.suspend();
 
     // ---------------DEMO MODE CODE -------------------------------
-    setDemo(false);
+    // Stop the demo replay (a real connection will be made when the sensors are restarted):
+    if (isDemo)
+      {
+      isDemo = false;
+      if (vehicleData != null) vehicleData.close();
+      vehicleData = null;
+      }
     // ---------------DEMO MODE CODE -------------------------------    
     }
   
@@ -175,7 +193,19 @@ public class DataService extends Service implements IDashMessages
           // if the thread is still active - hence we need to check isFinished. 
       }
     // If the vehicle data connection doesn't exist at this point, create a new one:  
-    if (vehicleData == null) vehicleData = new VehicleData(this);
+    if (vehicleData == null) 
+      {
+      if (isDemo) 
+        {
+        // The new replay carries on where the last one stopped, so GPS time doesn't go back (LapData would see 
+        // time going backwards in the middle of the session): 
+        ReplayEngine replay = new ReplayEngine(this, DEMO_RECORDING, 1f, true, deviceGPS.NMEAData);
+        if (demoReplay != null) replay.resumeFrom(demoReplay);
+        demoReplay = replay;
+        vehicleData = new VehicleData(this, replay);
+        }
+      else vehicleData = new VehicleData(this);
+      }
     }  
   
   
@@ -275,9 +305,9 @@ public class DataService extends Service implements IDashMessages
       dashMessages = new DashMessages(this, this, intentFilters);
       // Add some sensors:
       deviceGPS    = new NmeaGPS(this);
-      demoData     = new DemoData(this);
       chargeNode   = new ChargeNode(this);
       lapData      = new LapData(this);
+      deviceGPS.NMEAData.setFixQueue(lapData.getFixQueue());    // Lap data are worked out on their own thread, from the GPS fixes.
       }
 
     
@@ -343,9 +373,12 @@ public class DataService extends Service implements IDashMessages
       dashMessages.suspend();
       updateStop();          // Stop update timer. 
       stopSensors();         // Stop the sensors.
+      deviceGPS.NMEAData.setFixQueue(null);
+      lapData.close();       // Stop the lap data worker.
       deviceGPS   = null;
       vehicleData = null;
       chargeNode  = null;
+      lapData     = null;
       }
 
 
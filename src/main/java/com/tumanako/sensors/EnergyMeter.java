@@ -0,0 +1,207 @@
+package com.tumanako.sensors;
+
+/************************************************************************************
+Tumanako - Electric Vehicle and Motor control software
+
+Copyright (C) 2014 Jeremy Cole-Baker <jeremy@rhtech.co.nz>
+
+This file is part of Tumanako Dashboard.
+
+Tumanako is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published
+by the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Tumanako is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with Tumanako.  If not, see <http://www.gnu.org/licenses/>.
+
+*************************************************************************************/
+
+
+
+/****************************************************************
+ *  Energy Meter:
+ *  -------------------------------
+ *
+ *  Works out the energy used from the pack (kWh) from the "kWh
+ *  remaining" reading sent by the vehicle, one sample at a time.
+ *
+ *  The reading only changes in steps (0.1 kWh for TDV1), which is a
+ *  large part of the energy used in a lap, so simply subtracting
+ *  readings would give lap energies out by up to a whole step. Instead,
+ *  the time of each step change is noted: at that moment the real
+ *  value is (very nearly) on a step boundary. Between changes, the
+ *  energy used is estimated from the rate at which the steps have been
+ *  coming (kWh per second, smoothed), but only within the step we know
+ *  the real value is in: up to one step further in the direction of
+ *  the last change, since the reading would have changed again by then
+ *  (approached gradually: a long wait for the next change usually means
+ *  the power has dropped), and not back past the boundary just crossed.
+ *  So the error is always less than one step, and is usually a small
+ *  fraction of one when the power is steady.
+ *
+ *  Increases in the reading (regen) are counted as negative energy
+ *  used. The rate is only taken from two changes in the same direction
+ *  (one whole step between them): when the reading turns around, the
+ *  estimate stays on the boundary until the rate is known again. A
+ *  large increase in one sample (e.g. the pack was charged while the
+ *  app was running, or the counter was reset) isn't counted. A large
+ *  decrease in one sample is taken to be a bad reading and ignored; if
+ *  it lasts for GLITCH_SAMPLES samples, the reading really has jumped
+ *  (e.g. the counter was reset), and it isn't counted either. Missing
+ *  readings (NaN) are ignored.
+ *
+ *  update() is called for every sample on the decoder thread. It does
+ *  a fixed amount of work, and allocates nothing.
+ *
+ * @author Jeremy Cole-Baker / Riverhead Technology
+ *
+ ***************************************************************/
+public class EnergyMeter
+  {
+
+  private static final float RESET_JUMP = 1.0f;      // kWh. A bigger change in one sample is a reset or glitch, not real use.
+  private static final int   GLITCH_SAMPLES = 5;     // A bigger drop has to last this many samples to be believed.
+  private static final float RATE_ALPHA = 0.3f;      // Smoothing for the step rate (weight of the newest step).
+
+  private final float resolution;                    // Size of one step in the reading (kWh)
+
+  private boolean hasReading = false;
+  private float   lastReading = 0f;                  // Reading at the last step change
+  private long    stepTime = 0L;                     // Time of the last step change (nS)
+  private int     direction = 0;                     // Last step change: 1 = energy used, -1 = regen, 0 = none yet
+  private boolean hasRate = false;                   // Is rate known? (Two changes in the same direction)
+  private double  stepUsed = 0.0;                    // Energy used up to the last step change (kWh)
+  private float   rate = 0f;                         // kWh per second (smoothed)
+  private float   used = 0f;                         // Latest estimate of the energy used (kWh)
+  private int     glitchCount = 0;                   // Samples in a row which were a big drop from lastReading
+
+
+
+  /**
+   Create an energy meter
+   @param thisResolution  Size of one step in the "kWh remaining" reading (kWh).
+   */
+  public EnergyMeter(float thisResolution)
+    {
+    resolution = thisResolution;
+    }
+
+
+
+  /** Start again from zero. */
+  public void reset()
+    {
+    hasReading = false;
+    direction = 0;
+    hasRate = false;
+    stepUsed = 0.0;
+    rate = 0f;
+    used = 0f;
+    glitchCount = 0;
+    }
+
+
+
+  /**
+   Add a sample
+   @param reading    kWh remaining in the pack (as sent by the vehicle)
+   @param timestamp  Time of the sample (nS, e.g. System.nanoTime())
+   @return Energy used since the first sample (kWh)
+   */
+  public float update(float reading, long timestamp)
+    {
+    if (Float.isNaN(reading)) return used;
+    if (!hasReading)
+      {
+      hasReading = true;
+      lastReading = reading;
+      stepTime = timestamp;
+      return used;
+      }
+
+    float delta = lastReading - reading;             // Positive: energy used.
+    if (delta > RESET_JUMP)
+      {
+      // Big drop: probably a bad reading, so ignore it, unless it lasts.
+      glitchCount++;
+      if (glitchCount < GLITCH_SAMPLES) return used;
+      restart(reading, timestamp);
+      return used;
+      }
+    glitchCount = 0;
+    if (delta < -RESET_JUMP)
+      {
+      // Charged or reset:
+      restart(reading, timestamp);
+      return used;
+      }
+
+    if (delta != 0f)
+      {
+      // The reading has changed: the real value is now on a step boundary. If the last
+      // change was in the same direction, a whole step was used (or regained) since then,
+      // which gives the rate. (Not after the first change, since we don't know how far
+      // through a step we were when we started, or if the reading has turned around.)
+      int thisDirection = (delta > 0f) ? 1 : -1;
+      float seconds = (float)(timestamp - stepTime) / 1e9f;
+      if ( (thisDirection == direction) && (seconds > 0f) )
+        {
+        float newRate = delta / seconds;
+        rate = hasRate ? rate + (RATE_ALPHA * (newRate - rate)) : newRate;
+        hasRate = true;
+        }
+      else hasRate = false;
+      direction = thisDirection;
+      stepUsed += delta;
+      lastReading = reading;
+      stepTime = timestamp;
+      used = (float)stepUsed;
+      return used;
+      }
+
+    // No change: estimate how far we are into the step beyond the boundary just crossed. 
+    // This follows the rate at first, then levels off towards the next boundary (half a 
+    // step when the next change is due at the current rate): 
+    float extra = 0f;
+    if (hasRate)
+      {
+      extra = rate * ((float)(timestamp - stepTime) / 1e9f);
+      extra = extra / (1f + (Math.abs(extra) / resolution));
+      if (direction > 0) extra = Math.max(0f, extra);
+      else               extra = Math.min(0f, extra);
+      }
+    used = (float)(stepUsed + extra);
+    return used;
+    }
+
+
+
+  // Carry on from a new reading, without counting the jump to it:
+  private void restart(float reading, long timestamp)
+    {
+    lastReading = reading;
+    stepTime = timestamp;
+    direction = 0;
+    hasRate = false;
+    stepUsed = used;
+    glitchCount = 0;
+    }
+
+
+
+  /** @return Latest estimate of the energy used (kWh). */
+  public float getUsed()
+    {  return used;  }
+
+  /** @return Smoothed rate of energy use (kW). */
+  public float getPower()
+    {  return rate * 3600f;  }
+
+
+  }  // [class EnergyMeter]
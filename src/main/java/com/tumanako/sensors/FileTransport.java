@@ -0,0 +1,100 @@
+package com.tumanako.sensors;
+
+/************************************************************************************
+Tumanako - Electric Vehicle and Motor control software
+
+Copyright (C) 2014 Jeremy Cole-Baker <jeremy@rhtech.co.nz>
+
+This file is part of Tumanako Dashboard.
+
+Tumanako is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published
+by the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Tumanako is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with Tumanako.  If not, see <http://www.gnu.org/licenses/>.
+
+*************************************************************************************/
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import android.util.Log;
+
+
+
+/****************************************************************
+ *  File Vehicle Transport:
+ *  -------------------------------
+ *
+ *  Reads the vehicle data stream from a local file, named pipe
+ *  (FIFO) or pty / serial device.
+ *
+ *  A normal file is read as fast as possible, and the connection
+ *  ends at the end of the file. A pipe or device blocks until
+ *  data are written to it, like the Bluetooth connection.
+ *
+ *  NOTE: Opening a named pipe blocks until something opens the
+ *  other end for writing. Also, on some systems close() doesn't wake
+ *  up a read which is blocked on an idle pipe; the read then ends
+ *  when the next data arrive (or the writer closes the pipe).
+ *
+ * @author Jeremy Cole-Baker / Riverhead Technology
+ *
+ ***************************************************************/
+public class FileTransport implements VehicleTransport
+  {
+
+  private final String path;
+  private volatile InputStream streamIn = null;
+
+
+
+  public FileTransport(String thisPath)
+    {  path = thisPath;  }
+
+
+
+  public boolean open()
+    {
+    try
+      {
+      streamIn = new FileInputStream(path);
+      return true;
+      }
+    catch (IOException e)
+      {
+      Log.i(com.tumanako.ui.UIActivity.APP_TAG, " FileTransport -> Can't open " + path + "; " + e.getMessage());
+      return false;
+      }
+    }
+
+
+
+  public InputStream getInputStream()
+    {  return streamIn;  }
+
+
+
+  public void close()
+    {
+    InputStream thisStream = streamIn;
+    if (thisStream == null) return;
+    try                    {  thisStream.close();  }
+    catch (IOException e)  {  }
+    }
+
+
+
+  public String toString()
+    {  return "File " + path;  }
+
+
+  }  // [class FileTransport]
@@ -0,0 +1,216 @@
+package com.tumanako.sensors;
+
+/************************************************************************************
+Tumanako - Electric Vehicle and Motor control software
+
+Copyright (C) 2014 Jeremy Cole-Baker <jeremy@rhtech.co.nz>
+
+This file is part of Tumanako Dashboard.
+
+Tumanako is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published
+by the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Tumanako is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with Tumanako.  If not, see <http://www.gnu.org/licenses/>.
+
+*************************************************************************************/
+
+import java.util.concurrent.locks.LockSupport;
+
+
+
+/****************************************************************
+ *  Fix Queue:
+ *  -------------------------------
+ *
+ *  Passes GPS fixes from one producer thread (the UI thread, where
+ *  NmeaProcessor decodes the NMEA data) to one consumer thread (the
+ *  lap data worker; see LapData), without locks or allocation.
+ *
+ *  Unlike the sensor fusion (which only needs the latest fix), lap
+ *  timing looks at the path between each fix and the one before it,
+ *  so every fix is queued. Fixes are kept in a ring of fixed slots
+ *  (primitive arrays). Each fix is stamped with the time it was queued
+ *  (System.nanoTime()), so the delay before it's processed can be
+ *  measured.
+ *
+ *  If the ring fills (consumer stalled), new fixes are dropped until
+ *  there is room, and counted (see getFixesDropped). At GPS rates
+ *  (1 - 25 Hz) this shouldn't happen.
+ *
+ *  Producer:
+ *    queue.put(lat, lon, timeMs, speed, track);
+ *
+ *  Consumer:
+ *    if (queue.awaitFix(timeout))
+ *      {
+ *      int slot = queue.nextFix();
+ *      ...use getLat(slot), getLon(slot), etc...
+ *      queue.release();
+ *      }
+ *
+ * @author Jeremy Cole-Baker / Riverhead Technology
+ *
+ ***************************************************************/
+public class FixQueue
+  {
+
+  private final int capacity;           // Number of slots (a power of 2)
+  private final int mask;
+  private final double[] lats;
+  private final double[] lons;
+  private final long[]   times;         // GPS time (mS)
+  private final float[]  speeds;        // kph
+  private final float[]  tracks;        // Deg. True
+  private final long[]   postTimes;     // System.nanoTime() when queued
+
+  private volatile long head = 0;       // Next fix to read. Written by the consumer only.
+  private volatile long tail = 0;       // Next fix to write. Written by the producer only.
+  private volatile Thread waitingConsumer = null;    // Set while the consumer is parked in awaitFix.
+
+  // Counters (each has a single writer):
+  private volatile long fixesQueued = 0;       // Producer
+  private volatile long fixesDropped = 0;      // Producer: ring was full
+  private volatile long putTimeTotal = 0;      // Producer: time spent in put() (nS)
+
+
+
+
+  /**
+   FixQueue Constructor
+   @param thisCapacity  Number of fix slots. Rounded up to a power of 2.
+   */
+  public FixQueue(int thisCapacity)
+    {
+    int size = 2;
+    while (size < thisCapacity) size = size << 1;
+    capacity = size;
+    mask = size - 1;
+    lats      = new double[size];
+    lons      = new double[size];
+    times     = new long[size];
+    speeds    = new float[size];
+    tracks    = new float[size];
+    postTimes = new long[size];
+    }
+
+
+
+
+  /************* Queue a fix (PRODUCER ONLY): ********************************
+   * Adds a fix, and wakes the consumer if it is waiting.
+   * @param lat     Latitude (decimal degrees)
+   * @param lon     Longitude (decimal degrees)
+   * @param timeMs  GPS time of the fix (mS; see NmeaProcessor.getTimeMillis)
+   * @param speed   Ground speed (kph)
+   * @param track   Ground track (Deg. True)
+   * @return false if the ring was full (the fix was dropped).
+   ***************************************************************************/
+  public boolean put(double lat, double lon, long timeMs, float speed, float track)
+    {
+    long postTime = System.nanoTime();
+    if ((tail - head) >= capacity)
+      {
+      fixesDropped++;
+      return false;
+      }
+    int slot = (int)(tail & mask);
+    lats[slot]      = lat;
+    lons[slot]      = lon;
+    times[slot]     = timeMs;
+    speeds[slot]    = speed;
+    tracks[slot]    = track;
+    postTimes[slot] = postTime;
+    tail = tail + 1;                     // Publishes the fix to the consumer.
+    fixesQueued++;
+    Thread thisConsumer = waitingConsumer;
+    if (thisConsumer != null) LockSupport.unpark(thisConsumer);
+    putTimeTotal += System.nanoTime() - postTime;
+    return true;
+    }
+
+
+  /************* Wait for a fix (CONSUMER ONLY): *****************************
+   * Returns straight away if a fix is waiting, otherwise parks the
+   * calling thread until the producer queues one, the timeout expires,
+   * or the thread is unparked (e.g. to handle a command) or interrupted.
+   * @param timeoutNanos  Maximum time to wait
+   * @return true if a fix is waiting.
+   ***************************************************************************/
+  public boolean awaitFix(long timeoutNanos)
+    {
+    if (head != tail) return true;
+    waitingConsumer = Thread.currentThread();
+    if (head == tail) LockSupport.parkNanos(timeoutNanos);   // Check again after setting waitingConsumer, so we can't miss a wakeup.
+    waitingConsumer = null;
+    return (head != tail);
+    }
+
+
+
+  /**
+   Get the next fix (CONSUMER ONLY) <p>
+   The slot belongs to the consumer until release() is called.
+   @return Slot index of the oldest waiting fix, or -1 if there isn't one.
+   */
+  public int nextFix()
+    {
+    long thisHead = head;
+    if (thisHead == tail) return -1;
+    return (int)(thisHead & mask);
+    }
+
+
+  /** Finished with the fix returned by nextFix (CONSUMER ONLY). */
+  public void release()
+    {  head = head + 1;  }
+
+
+  public double getLat(int slot)
+    {  return lats[slot];  }
+
+  public double getLon(int slot)
+    {  return lons[slot];  }
+
+  public long getTimeMillis(int slot)
+    {  return times[slot];  }
+
+  public float getSpeed(int slot)
+    {  return speeds[slot];  }
+
+  public float getTrack(int slot)
+    {  return tracks[slot];  }
+
+  /** @return Time (System.nanoTime()) that the fix was queued. */
+  public long getPostTime(int slot)
+    {  return postTimes[slot];  }
+
+
+
+
+  /******** Counters (can be read from any thread): *************/
+
+  public long getFixesQueued()
+    {  return fixesQueued;  }
+
+  /** @return Fixes thrown away because the ring was full. */
+  public long getFixesDropped()
+    {  return fixesDropped;  }
+
+  /** @return Total time spent in put() on the producer thread (nS). */
+  public long getPutTimeTotal()
+    {  return putTimeTotal;  }
+
+  /** @return Number of fixes waiting for the consumer. */
+  public int getBacklog()
+    {  return (int)(tail - head);  }
+
+
+  }  // [class FixQueue]
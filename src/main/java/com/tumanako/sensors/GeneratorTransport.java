@@ -0,0 +1,179 @@
+package com.tumanako.sensors;
+
+/************************************************************************************
+Tumanako - Electric Vehicle and Motor control software
+
+Copyright (C) 2014 Jeremy Cole-Baker <jeremy@rhtech.co.nz>
+
+This file is part of Tumanako Dashboard.
+
+Tumanako is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published
+by the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Tumanako is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with Tumanako.  If not, see <http://www.gnu.org/licenses/>.
+
+*************************************************************************************/
+
+import java.io.IOException;
+import java.io.InputStream;
+
+
+
+/****************************************************************
+ *  Generator Vehicle Transport:
+ *  -------------------------------
+ *
+ *  Generates fake TDV1 data in memory (similar to the demo data:
+ *  the RPM follows a sine wave, and the battery slowly runs down).
+ *  Used to exercise and load-test the whole vehicle data pipeline
+ *  without a car.
+ *
+ *  Lines are generated at a fixed rate (lines per second), or as
+ *  fast as they can be read if the rate is 0. Data are produced
+ *  in whole lines, and no objects are created per line.
+ *
+ * @author Jeremy Cole-Baker / Riverhead Technology
+ *
+ ***************************************************************/
+public class GeneratorTransport implements VehicleTransport
+  {
+
+  private final float linesPerSecond;
+  private final GeneratorStream streamIn = new GeneratorStream();
+  private volatile boolean isClosed = false;
+
+
+
+  /**
+   GeneratorTransport Constructor
+   @param thisRate  Lines per second to generate (e.g. 20 is about the real rate). 0 = as fast as possible.
+   */
+  public GeneratorTransport(float thisRate)
+    {  linesPerSecond = Math.max(0f, thisRate);  }
+
+
+
+  public boolean open()
+    {  return !isClosed;  }
+
+  public InputStream getInputStream()
+    {  return streamIn;  }
+
+  public void close()
+    {  isClosed = true;  }
+
+  public String toString()
+    {  return "Generator " + linesPerSecond + " lines/s";  }
+
+
+
+  /****************************************************************
+   * Input stream which makes up the data.
+   ***************************************************************/
+  private class GeneratorStream extends InputStream
+    {
+
+    private final byte[] line = new byte[TDV1Decoder.MAX_LINE_LENGTH];
+    private int lineLength = 0;
+    private int linePos = 0;             // Next byte of 'line' to be read.
+    private long lineCount = 0;
+    private long startTime = 0;          // nanoTime of the first line (for pacing).
+    private int kWhTenths = 300;
+    private final byte[] oneByte = new byte[1];   // For read()
+
+
+    public int read() throws IOException
+      {
+      return (read(oneByte, 0, 1) < 0) ? -1 : (oneByte[0] & 0xFF);
+      }
+
+
+    public int read(byte[] buffer, int offset, int length) throws IOException
+      {
+      if (isClosed) return -1;
+      if (length == 0) return 0;
+      if (linePos >= lineLength)
+        {
+        if (!waitForNextLine()) return -1;
+        makeLine();
+        }
+      int count = Math.min(length, lineLength - linePos);
+      System.arraycopy(line, linePos, buffer, offset, count);
+      linePos += count;
+      return count;
+      }
+
+
+    // Sleeps until the next line is due. Returns false if closed while waiting.
+    private boolean waitForNextLine()
+      {
+      if (lineCount == 0) startTime = System.nanoTime();
+      if (linesPerSecond <= 0f) return !isClosed;
+      long dueTime = startTime + (long)(lineCount * (1000000000.0 / linesPerSecond));
+      while (!isClosed)
+        {
+        long waitTime = dueTime - System.nanoTime();
+        if (waitTime <= 0) return true;
+        try  {  Thread.sleep(waitTime / 1000000, (int)(waitTime % 1000000));  }
+        catch (InterruptedException e)  {  return false;  }
+        }
+      return false;
+      }
+
+
+    // Fills in 'line' with the next line of fake data.
+    private void makeLine()
+      {
+      double phase = (double)(lineCount % 240) / 240.0 * 2.0 * Math.PI;
+      int rpm = (int)((Math.sin(phase) + 0.3) * 3000.0);
+      if ((lineCount % 20) == 0) { kWhTenths--;  if (kWhTenths < 0) kWhTenths = 300; }
+      lineCount++;
+
+      int pos = 0;
+      line[pos++] = 'T';  line[pos++] = 'D';  line[pos++] = 'V';  line[pos++] = '1';  line[pos++] = ':';
+      pos = putInt(rpm,                      pos);  line[pos++] = ',';
+      pos = putInt((rpm / 56) + 25,          pos);  line[pos++] = ',';   // Motor temp
+      pos = putInt((rpm / 100) + 35,         pos);  line[pos++] = ',';   // Controller temp
+      pos = putInt(60 - (rpm / 100),         pos);  line[pos++] = ',';   // Pack temp
+      pos = putInt(375 - (rpm / 100),        pos);  line[pos++] = ',';   // Pack volts
+      pos = putInt(138,                      pos);  line[pos++] = ',';   // Acc volts x 10
+      pos = putInt(kWhTenths,                pos);  line[pos++] = ',';   // kWh x 10
+      pos = putInt((rpm > 1) ? 1 : 0,        pos);  line[pos++] = ',';   // Contactor
+      pos = putInt((rpm < -1500) ? 1 : 0,    pos);                       // Fault
+      line[pos++] = 0x0D;
+      line[pos++] = 0x0A;
+      lineLength = pos;
+      linePos = 0;
+      }
+
+
+    // Writes an integer into 'line' as decimal text. Returns the next position.
+    private int putInt(int value, int pos)
+      {
+      if (value < 0)
+        {
+        line[pos++] = '-';
+        value = -value;
+        }
+      int digits = 1;
+      for (int n = value; n >= 10; n /= 10) digits++;
+      for (int n = digits - 1; n >= 0; n--)
+        {
+        line[pos + n] = (byte)('0' + (value % 10));
+        value /= 10;
+        }
+      return pos + digits;
+      }
+
+    }  // [class GeneratorStream]
+
+
+  }  // [class GeneratorTransport]
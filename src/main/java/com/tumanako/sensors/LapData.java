@@ -22,14 +22,27 @@ along with Tumanako.  If not, see <http://www.gnu.org/licenses/>.
 
 *************************************************************************************/
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.lang.reflect.Method;
+import java.util.HashMap;
 import java.util.UUID;
+import java.util.concurrent.locks.LockSupport;
 
+import com.tumanako.dash.DashBus;
+import com.tumanako.dash.DashFormat;
 import com.tumanako.dash.DashMessages;
 import com.tumanako.dash.IDashMessages;
+import com.tumanako.dash.RollingStats;
+import com.tumanako.dash.SampleRing;
 import com.tumanako.ui.UIActivity;
 
 import android.bluetooth.BluetoothAdapter;
@@ -47,7 +60,26 @@ import android.widget.Toast;
  Lap Data Input Class <p>
 
  This class uses the NMEA gps sensor and other data sources to 
- keep track of lap data when operating in "track" mode.  
+ keep track of lap data when operating in "track" mode.  <p>
+ 
+ On the first good GPS fix, the track database (see TrackDatabase) is 
+ checked for a track nearby. If one is found which isn't the current 
+ track, its start / finish and sector gates are loaded automatically.  <p>
+ 
+ Threads: All the lap data work is done on a worker thread, which owns 
+ the lap data (and the lap store). Good GPS fixes are passed to it by 
+ NmeaProcessor through a FixQueue (see getFixQueue), so the UI thread 
+ only queues each fix. Messages from the UI (start / finish set, reset, 
+ redraw) just set a flag for the worker. The results are sent to the UI 
+ only when they change (see publish); the previous lap details are 
+ re-sent only when a lap ends, or when the UI is reset or resumed.  <p>
+ 
+ Between GPS fixes, and when they stop for a while (e.g. under a bridge), 
+ the worker carries on with the fused position from the vehicle data (see 
+ SensorFusion and processFused), every FUSED_STEP. So the gates are still 
+ checked, and the lap keeps running, with a 1 Hz GPS or a dropout. With a 
+ fast receiver (10 Hz or more) the next fix nearly always comes first, so 
+ the fused position is only used if the fixes stop.  
    
  @author Jeremy Cole-Baker / Riverhead Technology
 
@@ -57,42 +89,138 @@ public class LapData implements IDashMessages
 
   public static final String START_FINISH_SET = "LAPDATA_START_FINISH_SET";
 
-  public static final float START_FINISH_BOX_RADIUS = 8f;            // metres
-  private static final int   START_FINISH_DEAD_TIME = 10;             // GPS messages, =seconds
+  public static final float START_FINISH_BOX_RADIUS = TrackRecord.DEFAULT_HALF_WIDTH;   // metres; half width of the start / finish and sector gates.
+  public static final float MIN_GATE_SPEED = 10f;                    // kph. Slowest speed at which the track (direction of a gate) can be taken from GPS.
+  private static final long  MAX_GPS_GAP = 5000;                      // mS. Longer gaps between GPS updates aren't counted as lap time (e.g. lost fix).
+  private static final String BEST_LAP_FILE = "bestlap.trace";        // Best lap trace (in the app's files directory)
+  private static final String LAP_STORE_FILE = "laps.dat";            // Lap history (see LapStore)
+  private static final int    PREVIOUS_LAPS = 4;                      // Number of previous laps shown
+  private static final int    LAP_ENERGY_WINDOW = 10;                 // Number of laps used for the energy per lap (mean and spread)
+  private static final float  LAPS_REMAINING_Z = 1.645f;              // Standard deviations for the laps remaining range (95% one-sided)
+  private static final float  MIN_ENERGY_SPREAD = 0.1f;               // Spread of lap energy assumed (fraction of the mean) until there are enough laps to measure it
+  private static final int    FIX_QUEUE_SIZE = 64;                    // GPS fixes waiting for the worker (a few seconds at 25 Hz)
+  private static final long   WORKER_WAIT = 1000000000L;              // nS. Worker checks for a stop request at least this often.
+  private static final long   FUSED_STEP = 150000000L;                // nS. With no GPS fix for this long, the fused position is used (see processFused). More than a 10 Hz fix interval.
+  private static final int    REPORT_FIXES = 200;                     // Log the worker stats every n fixes (if UIActivity.DEBUG_STATS is set).
+  
+  // Formats for the values sent to the UI (see publish):
+  private static final DashFormat FORMAT_LAP_TIME   = DashFormat.compile("mm:ss.s");
+  private static final DashFormat FORMAT_SPLIT_TIME = DashFormat.compile("mm:ss.ss");
+  private static final DashFormat FORMAT_KWH        = DashFormat.compile("%1.2f");
+  private static final DashFormat FORMAT_LAP_KWH    = DashFormat.compile("%4.2f");
+  private static final DashFormat FORMAT_RANGE      = DashFormat.compile("%4.2f");
+  private static final DashFormat FORMAT_DELTA      = DashFormat.compile("%+1.2f");
+  private static final DashFormat FORMAT_NUMBER     = DashFormat.compile("%d");
+  
+  // Actions for the previous lap details (DATA_LAP_NUMBER_1, etc.):
+  private static final String [] PREVIOUS_LAP_NUMBER = new String[PREVIOUS_LAPS];
+  private static final String [] PREVIOUS_LAP_TIME   = new String[PREVIOUS_LAPS];
+  private static final String [] PREVIOUS_LAP_KWH    = new String[PREVIOUS_LAPS];
+  static
+    {
+    int i;
+    for (i=0; i<PREVIOUS_LAPS; i++)
+      {
+      PREVIOUS_LAP_NUMBER[i] = String.format("DATA_LAP_NUMBER_%d", i + 1);
+      PREVIOUS_LAP_TIME[i]   = String.format("DATA_LAP_TIME_%d",   i + 1);
+      PREVIOUS_LAP_KWH[i]    = String.format("DATA_LAP_KWH_%d",    i + 1);
+      }
+    }
   
   private float startFinishLat = 0.0f;
   private float startFinishLon = 0.0f;
+  private float startFinishTrack = -1f;  // Direction of travel through the start / finish (Deg. True), or -1 if not known yet
 
   private boolean startFinishSet = false;
   
+  private final TrackDatabase trackDatabase;
+  private final TrackRecord detectedTrack = new TrackRecord();
+  private boolean trackChecked = false;  // Have we looked for the track we're at in the track database yet?
+  
   private float startBoxRadius = START_FINISH_BOX_RADIUS; 
   
+  private final LapGates gates = new LapGates();             // Start / finish and sector gates (no start gate if start / finish not set, or its direction isn't known yet)
+  
   private double  positionLat = 0.0;
   private double  positionLon = 0.0;
   private float   speed = 0.0f;          // Speed (kph) 
   private float   track = 0.0f;          // Ground track (Deg. True)
   private boolean positionGood = false;
   
+  private double  lastLat = 0.0;         // Position and speed at the last GPS update (for gate crossing)
+  private double  lastLon = 0.0;
+  private float   lastSpeed = 0.0f;
+  private float   lastEnergy = 0.0f;     // Energy used (kWh, DashBus.DATA_ENERGY_USED) at the last GPS update
+  
   private float range = 0.0f;
   private float bearing = 0.0f;
-  private float lastRange = 0.0f;
      
   private boolean flagLapStarted = false;
-  private boolean flagFinishPending = false;
   
-  private int startBoxTimer = 0;
+  private double lapStartTime = 0.0;     // GPS time (mS) at which the current lap started (interpolated)
+  private long lastGpsTime = -1;         // GPS time (mS) of the last position update, or -1 if none yet
+  private float [] sectorTimes = new float[0];   // Split times (s from start of lap) for the current lap
+  
+  private final LapTrace currentTrace = new LapTrace();   // Path of the current lap
+  private final LapTrace bestTrace    = new LapTrace();   // Path of the best lap: reference for the lap delta 
+  private boolean bestLapValid = false;
  
-  private int   [] lapNumber = { 0,  0,  0,  0,  0  };
-  private float [] lapTime   = { 0f, 0f, 0f, 0f, 0f };
-  private float [] lapKWH    = { 0f, 0f, 0f, 0f, 0f };
+  private int   lapNumber = 0;           // Current lap number in this session (0 until the first start / finish)
+  private float lapTime = 0f;            // Current lap time (s)
+  private float lapKWH = 0f;             // Energy used in the current lap
+  private float lapStartEnergy = 0f;     // Energy used (kWh, DashBus.DATA_ENERGY_USED) when the current lap started (interpolated)
+  
+  private LapStore lapStore;                                // All completed laps (opened on the worker thread)
+  private int lapStoreErrors = 0;                           // lapStore.getWriteErrors() when last logged
+  private final LapRecord lapRecord = new LapRecord();      // Min / max channels for the current lap
+  private final SampleRing vehicleSamples = DashBus.getInstance().getSampleRing();
+  
+  /****** Fused Positions (see processFused): ****************/
+  private final SensorFusion sensorFusion = SensorFusion.getInstance();
+  private final double[] fusedState = new double[5];
+  private long    lastFixTime = -1;          // GPS time (mS) of the last GPS fix, or -1 if none yet
+  private long    lastFixPostTime = 0;       // ...and when it was queued (System.nanoTime()): converts fused state times to GPS time.
+  private long    lastPointTime = 0;         // System.nanoTime() of the last fix or fused position used.
+  private boolean isLastPointFused = false;
 
-  private float kwhRemaining = 20f;   // DEMO: This value should actually be read from BMS?   
+  private final RollingStats lapEnergy = new RollingStats(LAP_ENERGY_WINDOW, 0.3f);   // Energy of the last few laps (kWh)
+  private float kwhRemaining = 0f;       // From the vehicle (DashBus.DATA_MAIN_BATTERY_KWH)
   private int lapsRemaining = 0;
+  private int lapsRemainingLow = 0;      // Range of laps remaining (see updateLapsRemaining) 
+  private int lapsRemainingHigh = 0;
   private float lapAvgKWH = 0f;
   
   private DashMessages dashMessages;
   private final Context lapDataContext;
 
+  /****** Worker Thread: *************************************
+   * Requests from the UI thread (see messageReceived) are 
+   * flags, picked up by the worker before its next fix. 
+   ***********************************************************/
+  private final FixQueue fixQueue = new FixQueue(FIX_QUEUE_SIZE);
+  private final Thread workerThread;
+  private volatile boolean isWorkerStop = false;
+  private volatile boolean isStartFinishChanged = false;
+  private volatile boolean isResetRequested = false;
+  private volatile boolean isRedrawRequested = false;
+  
+  private final HashMap<String,String> lastSent = new HashMap<String,String>();   // Last text sent for each action (see publish) 
+  private final char[] text = new char[64];                                       // Text being formatted (worker thread)
+  
+  /****** Worker Statistics (worker thread): *****************
+   * Time to process each fix, and its delay in the queue, 
+   * logged every REPORT_FIXES fixes with the UI thread's 
+   * share (time to queue each fix) and the messages sent. 
+   ***********************************************************/
+  private int  statFixes = 0;
+  private long statWorkTotal = 0;        // nS
+  private long statWorkMax = 0;
+  private long statDelayTotal = 0;       // nS
+  private long statDelayMax = 0;
+  private long statMessages = 0;
+  private long statPutTime = 0;          // FixQueue.getPutTimeTotal() at the start of the period
+  private long statQueued = 0;           // FixQueue.getFixesQueued() at the start of the period
+
   
   
   
@@ -101,67 +229,217 @@ public class LapData implements IDashMessages
     {
     
     lapDataContext = context; 
+    trackDatabase = TrackDatabase.getInstance(context.getFilesDir());
     
     String [] intentFilters = 
         { 
         START_FINISH_SET,
         "CLICK_RESETLAPDATA",
-        NmeaProcessor.GPS_POSITION
+        UIActivity.UI_RESET,
+        UIActivity.UI_RESUMED
         };
 
-    setDefaults();
+    workerThread = new Thread(workerTask, "LapData Worker");
     
     dashMessages = new DashMessages(context, this, intentFilters);    // We are extending the 'DashMessages' class, and we need to call its Constructor here. 
 
-    readStartPos();
-    readLaps();
+    workerThread.start();
     
     }  // Constructor
 
   
+  
+  /** @return Queue for good GPS fixes (see NmeaProcessor.setFixQueue). */
+  public FixQueue getFixQueue()
+    {  return fixQueue;  }
+  
+  
+  /** Stop the worker thread and stop listening for messages. Call on the UI thread. */ 
+  public void close()
+    {
+    dashMessages.suspend();
+    isWorkerStop = true;
+    LockSupport.unpark(workerThread);
+    }
+
+  
    
   
   
   
 
+  /**
+   Read the current track from the preferences (as set by TrackSettingsActivity).
+   @param settings  The app's preferences
+   @param track     Filled in with the current track
+   @return false if the start / finish isn't set.
+   */
+  public static boolean readTrack(SharedPreferences settings, TrackRecord track)
+    {
+    if (!settings.getBoolean("startFinishSet", false)) return false;
+    track.name        = settings.getString("trackName", "");
+    track.startLat    = settings.getFloat("startFinishLat", 0.0f);
+    track.startLon    = settings.getFloat("startFinishLon", 0.0f);
+    track.startTrack  = settings.getFloat("startFinishTrack", -1f);
+    track.halfWidth   = settings.getFloat("startBoxRadius", START_FINISH_BOX_RADIUS);
+    track.sectorCount = Math.max(0, Math.min(TrackRecord.MAX_SECTORS, settings.getInt("sectorCount", 0)));
+    int i;
+    for (i = 0; i < track.sectorCount; i++)
+      {
+      track.sectorLat[i]   = settings.getFloat( String.format("sectorLat%d", i),   0.0f );
+      track.sectorLon[i]   = settings.getFloat( String.format("sectorLon%d", i),   0.0f );
+      track.sectorTrack[i] = settings.getFloat( String.format("sectorTrack%d", i), 0.0f );
+      }
+    return true;
+    }
+
+
+  /** Make a track the current track (the caller commits the edits). */
+  public static void writeTrack(TrackRecord track, SharedPreferences.Editor editor)
+    {
+    editor.putString("trackName", track.name);
+    editor.putFloat("startFinishLat", (float)track.startLat);
+    editor.putFloat("startFinishLon", (float)track.startLon);
+    editor.putFloat("startFinishTrack", track.startTrack);
+    editor.putFloat("startBoxRadius", track.halfWidth);
+    editor.putBoolean("startFinishSet", true);
+    editor.putInt("sectorCount", track.sectorCount);
+    int i;
+    for (i = 0; i < track.sectorCount; i++)
+      {
+      editor.putFloat( String.format("sectorLat%d", i),   (float)track.sectorLat[i] );
+      editor.putFloat( String.format("sectorLon%d", i),   (float)track.sectorLon[i] );
+      editor.putFloat( String.format("sectorTrack%d", i), track.sectorTrack[i] );
+      }
+    }
+
+
+
   private void readStartPos()
     {
-    // Read stored preferences, and extract the start / finish location:
+    // Read stored preferences, and extract the start / finish location and sector gates:
     SharedPreferences settings = lapDataContext.getSharedPreferences(UIActivity.PREFS_NAME, 0);
     startFinishLat = settings.getFloat("startFinishLat", 0.0f);
     startFinishLon = settings.getFloat("startFinishLon", 0.0f);
+    startFinishTrack = settings.getFloat("startFinishTrack", -1f);
     startFinishSet = settings.getBoolean("startFinishSet", false);
     startBoxRadius = settings.getFloat("startBoxRadius", START_FINISH_BOX_RADIUS);
+
+    if (startFinishSet && (startFinishTrack >= 0f)) gates.setStartGate(new TimingGate(startFinishLat, startFinishLon, startFinishTrack, startBoxRadius));
+    else                                            gates.setStartGate(null);
+    
+    int sectorCount = startFinishSet ? settings.getInt("sectorCount", 0) : 0;
+    TimingGate [] sectorGates = new TimingGate[sectorCount];
+    sectorTimes = new float[sectorCount];
+    int i;
+    for (i=0; i<sectorCount; i++)
+      {
+      sectorGates[i] = new TimingGate( settings.getFloat( String.format("sectorLat%d", i),   0.0f ),
+                                       settings.getFloat( String.format("sectorLon%d", i),   0.0f ),
+                                       settings.getFloat( String.format("sectorTrack%d", i), 0.0f ),
+                                       startBoxRadius );
+      }
+    gates.setSectorGates(sectorGates);     // (Not looked for until the next start / finish)
     }
 
   
-  private void readLaps()
+  /**
+   Look for the track we're at in the track database (on the first good fix). If 
+   one is found, and it isn't the current track, make it the current track: its 
+   start / finish and sectors are saved in the preferences (as if they had been 
+   set in TrackSettingsActivity) and loaded.    
+   */
+  private void detectTrack()
     {
-    // Read stored preferences, and extract the data for the previous 5 laps:
-    SharedPreferences settings = lapDataContext.getSharedPreferences(UIActivity.PREFS_NAME, 0);
-    int i;
-    for (i=0; i<5; i++)
+    trackChecked = true;
+    double distance = trackDatabase.findNearest(positionLat, positionLon, TrackDatabase.DETECT_RADIUS, detectedTrack);
+    String error = trackDatabase.takeError();
+    if (error != null) Log.i(UIActivity.APP_TAG, " LapData -> Track database: " + error);
+    if (distance < 0.0) return;
+    if (startFinishSet)
       {
-      lapNumber[i] = settings.getInt   ( String.format("lapNumber%d", i),   0  );
-      lapTime[i]   = settings.getFloat ( String.format("lapTime%d", i),   0.0f );
-      lapKWH[i]    = settings.getFloat ( String.format("lapKWH%d", i),    0.0f );
+      double metresNorth = (detectedTrack.startLat - startFinishLat) * 111120;
+      double metresEast  = (detectedTrack.startLon - startFinishLon) * Math.cos( Math.toRadians(startFinishLat) ) * 111120;
+      if ( Math.sqrt( (metresNorth * metresNorth) + (metresEast * metresEast) ) < TrackDatabase.SAME_TRACK_DISTANCE ) return;     // Already the current track.
       }
+    SharedPreferences settings = lapDataContext.getSharedPreferences(UIActivity.PREFS_NAME, 0);
+    SharedPreferences.Editor editor = settings.edit();
+    writeTrack(detectedTrack, editor);
+    editor.commit();
+    readStartPos();
+    if (bestLapValid) bestLapValid = isBestLapForStart();   // Best lap is no use with a different start / finish
+    dashMessages.sendData( UIActivity.UI_TOAST_MESSAGE, null, null, "Track: " + detectedTrack.name, null);
     }
- 
+
   
-  private void saveLaps()
+  /**
+   Set the direction of the start / finish gate from the current track. Used 
+   if the start / finish was set while stationary, the first time we pass 
+   close to it at speed. The direction is saved for next time.   
+   */
+  private void setStartTrack()
     {
-    // Save lap data to shared preferences:
+    startFinishTrack = track;
+    gates.setStartGate(new TimingGate(startFinishLat, startFinishLon, startFinishTrack, startBoxRadius));
     SharedPreferences settings = lapDataContext.getSharedPreferences(UIActivity.PREFS_NAME, 0);
     SharedPreferences.Editor editor = settings.edit();
-    int i;
-    for (i=0; i<5; i++)
+    editor.putFloat("startFinishTrack", startFinishTrack);
+    editor.commit();
+    }
+
+  
+  /**
+   Read the best lap trace saved by saveBestLap(). It's only used if it was 
+   recorded from the current start / finish.   
+   */
+  private void readBestLap()
+    {
+    bestLapValid = false;
+    File bestLapFile = new File(lapDataContext.getFilesDir(), BEST_LAP_FILE);
+    if (!startFinishSet || !bestLapFile.exists()) return;
+    DataInputStream in = null;
+    try
+      {
+      in = new DataInputStream(new BufferedInputStream(new FileInputStream(bestLapFile)));
+      bestTrace.load(in, bestLapFile.length());
+      bestLapValid = isBestLapForStart();
+      }
+    catch (IOException e)
       {
-      editor.putInt   ( String.format("lapNumber%d", i), lapNumber[i] );
-      editor.putFloat ( String.format("lapTime%d", i),   lapTime[i]   );
-      editor.putFloat ( String.format("lapKWH%d", i),    lapKWH[i]    );
+      Log.i(UIActivity.APP_TAG, " LapData -> Can't read best lap; " + e.getMessage());
+      }
+    finally
+      {
+      if (in != null) try { in.close(); } catch (IOException e) {  }
       }
-    editor.commit();        // Commit the edits!
+    }
+  
+  
+  private void saveBestLap()
+    {
+    DataOutputStream out = null;
+    try
+      {
+      out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(new File(lapDataContext.getFilesDir(), BEST_LAP_FILE))));
+      bestTrace.save(out);
+      }
+    catch (IOException e)
+      {
+      Log.i(UIActivity.APP_TAG, " LapData -> Can't save best lap; " + e.getMessage());
+      }
+    finally
+      {
+      if (out != null) try { out.close(); } catch (IOException e) {  }
+      }
+    }
+  
+  
+  /** @return true if the best lap trace starts at the current start / finish. */ 
+  private boolean isBestLapForStart()
+    {
+    return startFinishSet && (bestTrace.getLapTime() > 0f) &&
+           ((float)bestTrace.getOriginLat() == startFinishLat) && 
+           ((float)bestTrace.getOriginLon() == startFinishLon);
     }
   
   
@@ -251,26 +529,44 @@ public class LapData implements IDashMessages
   
   
   /**
-   * Ckeck whether current ground track is "towards" a destination track. 
-   * This function checks whether the 'track' given by track (degrees) is 
-   * within 20 degrees of the bearing given by 'destination'. 
-   *  
-   * @param track         Current track (typically in degrees true)
-   * @param destination   Bearing to destination point (typically in degrees true)
-   * @return              True - On track (i.e. heading towards destination)
-   *                      False - Not heading towards destination 
+   Check the path from the previous fix to the current one for start / finish 
+   and sector gate crossings. Crossing times are interpolated between the fixes 
+   (see TimingGate), so lap and split times aren't limited to the GPS rate.   
+   @param lat1     Latitude of the previous fix
+   @param lon1     Longitude of the previous fix
+   @param time1    GPS time (mS) of the previous fix
+   @param speed1   Speed (kph) at the previous fix
+   @param energy1  Energy used (kWh) at the previous fix
+   @param time2    GPS time (mS) of the current fix (position, speed and energy are in positionLat, etc.) 
+   @param elapsed  Time between the fixes (s)
    */
-  private boolean trackTowards(float track, float destination)
+  private void checkGates(double lat1, double lon1, long time1, float speed1, float energy1, long time2, float elapsed)
     {
-    float diff = Math.abs(destination-track);   // Angle difference (trivial case). 
-
-    // Special case: Destination and Track near to due north. Must deal with 'wrap' 
-    // (e.g. destination = 355, track = 5; Difference is actually 10): 
-    if ( (destination > 345) && (track < 15)  ) diff = track - (destination - 360);
-    if ( (track > 345) && (destination < 15)  ) diff = destination - (track - 360);
-
-    if (diff < 15) return true;
-    else           return false; 
+    // If the direction of the start / finish isn't known yet (it was set while stopped),
+    // take it from our track the first time we pass close to it at speed:
+    if ( !gates.hasStartGate() && (speed >= MIN_GATE_SPEED) && 
+         (range <= (startBoxRadius + (speed / 3.6f * elapsed))) )  setStartTrack();
+    if (!gates.hasStartGate()) return;
+    
+    // Sector gates are expected in order, but a missed one is skipped (see LapGates):
+    int i = gates.findSector(lat1, lon1, time1, speed1, positionLat, positionLon, time2, speed);
+    if (i >= 0)
+      {
+      sectorTimes[i] = (float)((gates.getSectorCrossing() - lapStartTime) / 1000.0);
+      text[0] = 'S';
+      int length = FORMAT_NUMBER.format(i + 1, text, 1);
+      text[length++] = ' ';
+      publish("DATA_LAP_SPLIT", text, FORMAT_SPLIT_TIME.format(sectorTimes[i], text, length));
+      }
+    
+    // Start / finish. A crossing too soon after the last one is ignored (jumpy location data):
+    double crossing = gates.findStartFinish(lat1, lon1, time1, speed1, positionLat, positionLon, time2, speed, flagLapStarted, lapStartTime);
+    if (!Double.isNaN(crossing)) 
+      {
+      // Energy used at the crossing, interpolated between the fixes like the time: 
+      float fraction = (float)((crossing - time1) / (double)(time2 - time1));
+      lapEnd(crossing, energy1 + ((lastEnergy - energy1) * fraction));
+      }
     }
   
   
@@ -278,48 +574,62 @@ public class LapData implements IDashMessages
   
   
   
+  
   /**
     End of Lap: Update lap statistics 
+    @param crossingTime    GPS time (mS) at which the start / finish was crossed 
+    @param crossingEnergy  Energy used (kWh, DashBus.DATA_ENERGY_USED) when the start / finish was crossed 
    */
-  private void lapEnd()
+  private void lapEnd(double crossingTime, float crossingEnergy)
     {
     dashMessages.sendData( UIActivity.UI_TOAST_MESSAGE, null, null, "Start / Finish!", null);
-    // Update "previous laps" list: Inefficient array shuffle method:
-    // We also calculate the average energy use over the last 5 laps as we go. 
-    lapAvgKWH = 0f;
-    int i;
-    int avgItemCount = 0;
-    if (flagLapStarted)
+    // Lap time is from start / finish to start / finish, both interpolated between fixes:
+    if (flagLapStarted) 
       {
-      for (i=4; i>0; i--)
+      lapTime = (float)((crossingTime - lapStartTime) / 1000.0);
+      lapKWH = crossingEnergy - lapStartEnergy;
+      // Finish the trace of this lap at the start / finish. If it's the best lap so far, keep it as the reference:
+      currentTrace.add(startFinishLat, startFinishLon, lapTime, lapKWH);
+      currentTrace.setLapTime(lapTime);
+      if (!bestLapValid || (lapTime < bestTrace.getLapTime()))
         {
-        // Add this lap to the KWHr average:
-        if ( (lapNumber[i] > 0) && (lapKWH[i] > 0) )
-          {
-          lapAvgKWH += lapKWH[i];
-          avgItemCount++;
-          }
-        lapNumber[i] = lapNumber[i-1];
-        lapTime[i] = lapTime[i-1];
-        lapKWH[i] = lapKWH[i-1];
+        bestTrace.copy(currentTrace);
+        bestLapValid = true;
+        saveBestLap();
         }
-      
-      lapAvgKWH += lapKWH[0];
-      lapAvgKWH = (lapAvgKWH / (avgItemCount+1) );
-
-      }  // [if (flagLapStarted)]
-    
+      // Add it to the lap history (written to file in the background): 
+      lapRecord.endTime = System.currentTimeMillis();
+      lapRecord.lapTime = lapTime;
+      lapRecord.kwh = lapKWH;
+      lapRecord.sectorCount = Math.min(sectorTimes.length, LapRecord.MAX_SECTORS);
+      System.arraycopy(sectorTimes, 0, lapRecord.sectors, 0, lapRecord.sectorCount);
+      lapStore.add(lapRecord);
+      if (lapStore.getWriteErrors() != lapStoreErrors)
+        {
+        // (Written in the background, so this is usually from an earlier lap.)
+        lapStoreErrors = lapStore.getWriteErrors();
+        Log.i(UIActivity.APP_TAG, " LapData -> Can't write to the lap store; " + lapStoreErrors + " laps not saved. ");
+        }
+      if (lapKWH > 0f) lapEnergy.add(lapKWH);      // (Not if there's no vehicle data)
+      updateLapsRemaining();
+      }
     
     // Reset current lap data:
-    lapNumber[0]++;
-    lapTime[0] = 0.0f;
-    lapKWH[0] = 0.0f;
+    lapNumber = lapStore.getSessionLaps() + 1;
+    lapTime = 0.0f;
+    lapKWH = 0.0f;
+    lapRecord.clear();
 
-    // Start the "start box timer" so we don't continually restart.
-    startBoxTimer = START_FINISH_DEAD_TIME;
-    saveLaps();
+    // Start timing the new lap, and look for the sectors again:
+    lapStartTime = crossingTime;
+    lapStartEnergy = crossingEnergy;
+    currentTrace.clear(startFinishLat, startFinishLon);
+    currentTrace.add(startFinishLat, startFinishLon, 0f, 0f);
+    bestTrace.resetCursor();
+    gates.restartSectors();
+    int i;
+    for (i=0; i<sectorTimes.length; i++) sectorTimes[i] = 0f;
     redrawLapData();
-    flagFinishPending = false;  // Start / Finish now processed (no longer pending)
     flagLapStarted = true;      // New lap started!
     }
   
@@ -332,17 +642,28 @@ public class LapData implements IDashMessages
   
   /**
     Redraw "Previous Lap" data. This should be called after each lap, and also 
-    if the UI is recreated (e.g. on resume). 
+    if the UI is reset or recreated (e.g. on resume). 
    */
   private void redrawLapData()
     {
-    // Update the previous lap details: 
+    // Update the previous lap details (the last few laps of this session from the lap store): 
+    int first = lapStore.getSessionFirst();
     int i;
-    for (i=1; i<5; i++)
+    for (i=1; i<=PREVIOUS_LAPS; i++)
       {
-      dashMessages.sendData( String.format("DATA_LAP_NUMBER_%d", i), lapNumber[i], null, null, null );
-      dashMessages.sendData( String.format("DATA_LAP_TIME_%d", i), null, null, String.format("%02.0f:%04.1f", (float)Math.floor(lapTime[i] / 60f), (lapTime[i] % 60f) ), null );
-      dashMessages.sendData( String.format("DATA_LAP_KWH_%d", i), null, lapKWH[i], "%4.2f", null );
+      int index = lapStore.getCount() - i;
+      int   number = 0;
+      float time   = 0f;
+      float kwh    = 0f;
+      if (index >= first)
+        {
+        number = lapStore.getLapNumber(index);
+        time   = lapStore.getLapTime(index);
+        kwh    = lapStore.getLapKWH(index);
+        }
+      publish( PREVIOUS_LAP_NUMBER[i - 1], FORMAT_NUMBER,     number );
+      publish( PREVIOUS_LAP_TIME[i - 1],   FORMAT_SPLIT_TIME, time   );
+      publish( PREVIOUS_LAP_KWH[i - 1],    FORMAT_LAP_KWH,    kwh    );
       }
     }
   
@@ -351,25 +672,95 @@ public class LapData implements IDashMessages
   
   
   
+  /**
+   Load the energy of the last few laps of this session from the lap store (so
+   the laps remaining are still known if the app is restarted during a session). 
+   */
+  private void readLapEnergy()
+    {
+    lapEnergy.clear();
+    int end = lapStore.getCount();
+    int index = Math.max(lapStore.getSessionFirst(), end - LAP_ENERGY_WINDOW);
+    for (; index < end; index++)
+      {
+      float kwh = lapStore.getLapKWH(index);
+      if (kwh > 0f) lapEnergy.add(kwh);
+      }
+    updateLapsRemaining();
+    }
+  
+  
+  
+  /**
+   Update the number of laps remaining from the energy remaining and the energy 
+   per lap (mean and standard deviation of the last few laps). <p>
+   
+   If lap energies vary independently with standard deviation s, n laps use 
+   n * mean +/- z * s * sqrt(n). The range is the n for which that just uses the 
+   energy remaining, at z = LAPS_REMAINING_Z either way: a lap count which should 
+   be reached (low) or beaten (high) about 19 times in 20. With only a lap or two 
+   the spread can't be measured, so at least MIN_ENERGY_SPREAD of the mean is used. <p>
+   
+   Only the window statistics are used (no laps are re-read), so this is cheap 
+   enough to call on every GPS update.  
+   */
+  private void updateLapsRemaining()
+    {
+    float mean = lapEnergy.getMean();
+    lapAvgKWH = (mean > 0f) ? mean : 0f;
+    if ( !(mean > 0f) || !(kwhRemaining > 0f) )
+      {
+      lapsRemaining = 0;
+      lapsRemainingLow = 0;
+      lapsRemainingHigh = 0;
+      return;
+      }
+    float spread = lapEnergy.getStdDev();
+    if (lapEnergy.getLength() < 3) spread = Math.max(spread, mean * MIN_ENERGY_SPREAD);
+    lapsRemaining     = (int)(kwhRemaining / mean);
+    lapsRemainingLow  = lapsWithin(kwhRemaining, mean,  LAPS_REMAINING_Z * spread);
+    lapsRemainingHigh = lapsWithin(kwhRemaining, mean, -LAPS_REMAINING_Z * spread);
+    }
+  
+  
+  /**
+   Number of laps n which use the given energy, where n laps use n * mean + margin * sqrt(n). 
+   With x = sqrt(n), this is mean * x^2 + margin * x - energy = 0 (positive root). 
+   */
+  private static int lapsWithin(float energy, float mean, float margin)
+    {
+    double x = ( -margin + Math.sqrt( ((double)margin * margin) + (4.0 * mean * energy) ) ) / (2.0 * mean);
+    return (int)Math.floor(x * x);
+    }
+  
+  
+  
+  
+  
+  
   /**
    Reset lap data to default values
    */
   private void setDefaults()
     {
     flagLapStarted = false;
-    flagFinishPending = false;
-    startBoxTimer = 0;
+    lapStartTime = 0.0;
+    lastGpsTime = -1;
+    lastFixTime = -1;
+    isLastPointFused = false;
+    gates.skipSectors();
+    bestLapValid = false;
    
-    int i;
-    for (i=0; i<5; i++)
-      {
-      lapNumber[i] = 0;
-      lapTime[i] = 0f;
-      lapKWH[i] = 0f;
-      }
+    lapNumber = 0;
+    lapTime = 0f;
+    lapKWH = 0f;
+    lapStartEnergy = 0f;
+    lapRecord.clear();
 
-    kwhRemaining = 20f;   // DEMO: This value should actually be read from BMS?   
+    lapEnergy.clear();
     lapsRemaining = 0;
+    lapsRemainingLow = 0;
+    lapsRemainingHigh = 0;
     lapAvgKWH = 0f;  
     }
   
@@ -380,111 +771,295 @@ public class LapData implements IDashMessages
   
   
   
-  public void messageReceived(String action, Integer intData, Float floatData, String stringData, Bundle bundleData)
+  /**
+   Send a value to the UI, if it has changed since it was last sent (or since 
+   lastSent was cleared, to redraw everything). Values are sent as text, 
+   formatted here on the worker thread (with a DashFormat, into a reused 
+   char[]), so a String is only made when the text changes.
+   @param action  Message action (e.g. "DATA_LAP_TIME")
+   @param chars   Text to show
+   @param length  Number of chars
+   */
+  private void publish(String action, char[] chars, int length)
+    {
+    String last = lastSent.get(action);
+    if ( (last != null) && (last.length() == length) )
+      {
+      int n = 0;
+      while ( (n < length) && (chars[n] == last.charAt(n)) ) n++;
+      if (n == length) return;
+      }
+    String newText = new String(chars, 0, length);
+    lastSent.put(action, newText);
+    dashMessages.sendData(action, null, null, newText, null);
+    statMessages++;
+    }
+  
+  private void publish(String action, DashFormat format, float value)
+    {  publish(action, text, format.format(value, text, 0));  }
+  
+  private void publish(String action, DashFormat format, int value)
+    {  publish(action, text, format.format(value, text, 0));  }
+  
+  private void publish(String action, String constantText)
     {
-     if (action.equals(START_FINISH_SET)) 
+    if (constantText.equals(lastSent.get(action))) return;
+    lastSent.put(action, constantText);
+    dashMessages.sendData(action, null, null, constantText, null);
+    statMessages++;
+    }
+  
+  
+  
+  
+  /**
+   Process a good GPS fix, or a fused position (worker thread): Detect the track, 
+   check for gate crossings, update the current lap and send the results.   
+   @param lat      Latitude (decimal degrees)
+   @param lon      Longitude (decimal degrees)
+   @param gpsTime  GPS time of the fix (mS)
+   @param thisSpeed  Ground speed (kph)
+   @param thisTrack  Ground track (Deg. True)
+   */
+  private void processFix(double lat, double lon, long gpsTime, float thisSpeed, float thisTrack)
+    {
+    positionLat = lat;
+    positionLon = lon;
+    speed       = thisSpeed;
+    track       = thisTrack;
+    
+    if (!trackChecked) detectTrack();
+    
+    // Time since the last update (seconds), from the GPS UTC time. Updates may come at any 
+    // rate (1 Hz for a phone; 10 - 25 Hz for an external receiver): 
+    float elapsed = 0f;
+    if ( (lastGpsTime >= 0) && (gpsTime > lastGpsTime) && ((gpsTime - lastGpsTime) <= MAX_GPS_GAP) ) 
+      elapsed = (float)(gpsTime - lastGpsTime) / 1000f;
+    
+    // Keep the previous fix: the path between it and this one is checked for gate crossings:
+    double prevLat   = lastLat;
+    double prevLon   = lastLon;
+    float  prevSpeed = lastSpeed;
+    float  prevEnergy = lastEnergy;
+    long   prevTime  = lastGpsTime;
+    lastLat   = positionLat;
+    lastLon   = positionLon;
+    lastSpeed = speed;
+    lastEnergy = vehicleSamples.getLatestValue(DashBus.DATA_ENERGY_USED, lastEnergy);   // (Unchanged if there's no vehicle data) 
+    if (gpsTime >= 0) lastGpsTime = gpsTime;
+    
+    // Calculate range and bearing to start / finish: 
+    rangeAndBearing();
+    if (!positionGood) return;
+      // Range and bearing calculation indicated that we don't have a good position, 
+      // or the start/finish isn't correctly set.  
+    
+    publish("DATA_START_RANGE", FORMAT_RANGE, range); 
+    //publish("DATA_START_BEARING", FORMAT_NUMBER, (int)Math.toDegrees(bearing));
+    
+    if (elapsed > 0f) checkGates(prevLat, prevLon, prevTime, prevSpeed, prevEnergy, gpsTime, elapsed);
+    
+    if (flagLapStarted) 
+      {
+      if (gpsTime >= 0) lapTime = (float)((gpsTime - lapStartTime) / 1000.0);
+      lapKWH = lastEnergy - lapStartEnergy;
+
+      // Min / max for the lap history:
+      lapRecord.updateChannel(LapRecord.CHANNEL_SPEED, speed);
+      int i;
+      for (i=0; i<LapRecord.CHANNELS; i++)
+        if (LapRecord.BUS_CHANNELS[i] >= 0)  lapRecord.updateChannel(i, vehicleSamples.getLatestValue(LapRecord.BUS_CHANNELS[i], Float.NaN));
+
+      // Delta to the best lap: compare our lap time with the best lap's time at the same point on the track:
+      currentTrace.add(positionLat, positionLon, lapTime, lapKWH);
+      if (bestLapValid && bestTrace.match(positionLat, positionLon))
         {
-        // Start / Finish location has changed. Reload new location:
-        readStartPos();
+        float delta = lapTime - bestTrace.getMatchTime();
+        float predicted = bestTrace.getLapTime() + delta;
+        publish("DATA_LAP_DELTA",     FORMAT_DELTA,    delta);
+        publish("DATA_LAP_PREDICTED", FORMAT_LAP_TIME, predicted);
         }
-     
-     
-     if (action.equals("CLICK_RESETLAPDATA"))  setDefaults();
-       // ...RESET the lap data 
-       
-     
-     if (action.equals(NmeaProcessor.GPS_POSITION))
-       {
-       // GPS position update:
-       positionGood   = bundleData.getBoolean ( "FIX",   false );
-       positionLat    = bundleData.getDouble  ( "LAT",    0.0  );
-       positionLon    = bundleData.getDouble  ( "LON",    0.0  );
-       speed          = bundleData.getFloat   ( "SPEED",  0.0f );
-       track          = bundleData.getFloat   ( "TRACKT", 0.0f );
-
-       if (!positionGood) return;  // GPS doesn't have a lock. Give up.  
-       
-       // Calculate range and bearing to start / finish (but only if the GPS has a fix): 
-       rangeAndBearing();
-       if (!positionGood) return;
-         // Range and bearing calculation indicated that we don't have a good position, 
-         // or the start/finish isn't correctly set.  
-       
-       dashMessages.sendData("DATA_START_RANGE",   null, range,   "%4.2f", null); 
-       //dashMessages.sendData("DATA_START_BEARING", null, (float)Math.toDegrees(bearing), "%.0f",  null);
-       
-       if (startBoxTimer > 0)
-         {
-         // Start box timer is running. Ignore start/finish checking during this time.  
-         // This provides "anti-jitter" to prevent false start/finish in the event of 
-         // jumpy location data 
-         startBoxTimer--;  
-         }
-       else
-         {
-         float deltaRange = range - lastRange; 
-
-         // CASE 1: 
-         // In the start box, but already past the start/finish (getting further away)!
-         if ( (flagFinishPending) || 
-              (deltaRange >= 0) && (range <= startBoxRadius) )
-           {
-
-           lapEnd();
-           }
-         else
-           {
-           // CASE 2: 
-           // The range to the start/finish is smaller than the distance we are covering 
-           // each period, AND we are heading towards the start/finish. 
-           // Predict a start/finish in the next period. 
-           if (  ( (-1 * deltaRange) > range) &&
-                 ( trackTowards(track, bearing) )  )
-             {
-             flagFinishPending = true;
-             }
-           }
-           
-         /* ------ Simple Method: ---------------------------------------------------------------- */
-         //if (range <= START_FINISH_BOX_RADIUS)  lapEnd();    // We're currently in the "start box".
-         /* -------------------------------------------------------------------------------------- */
-         
-         }
-                
-       lastRange = range;
-       
-       if (flagLapStarted) 
-         {
-         lapTime[0]++;
-
-         //------- FAKE: Use formula based on speed to simulate energy usage for demo: -------
-         float thisLapKWH = ( (float)Math.pow(speed, 2) / 200);
-         lapKWH[0] += thisLapKWH;
-         kwhRemaining -= thisLapKWH;
-         if (kwhRemaining < 0f) kwhRemaining = 0f;
-         if (lapAvgKWH > 0) lapsRemaining = (int) (kwhRemaining / lapAvgKWH);
-         else               lapsRemaining = 0;
-         //-----------------------------------------------------------------------------------
-
-         }
-       
-       // Update UI with latest data for current lap:
-       dashMessages.sendData("DATA_LAP_NUMBER",  lapNumber[0], null, null, null);
-       dashMessages.sendData("DATA_LAP_KWH",     null, lapKWH[0], "%1.2f", null);
-       dashMessages.sendData("DATA_LAP_AVG_KWH", null, lapAvgKWH, "%1.2f", null);
-       dashMessages.sendData("DATA_LAP_TIME",    null, null, String.format("%02.0f:%04.1f", (float)Math.floor(lapTime[0] / 60f), (lapTime[0] % 60f) ), null);
-
-       dashMessages.sendData("DATA_LAPS_REMAINING", lapsRemaining, null, null, null );
-       dashMessages.sendData("DATA_KWH_REMAINING", null, kwhRemaining, "%1.2f", null );
-       
-       redrawLapData();
-       
-       //gpsTime   = bundleData.getFloat   ( "TIME",   0.0f  );
-       //gpsSpeed  = bundleData.getFloat   ( "SPEED",  0.0f  );
-       //gpsSats   = bundleData.getInt     ( "NSATS",  0     );
-
-       }
-        
+      else
+        {
+        publish("DATA_LAP_DELTA",     "--.--");
+        publish("DATA_LAP_PREDICTED", "--:--.-");
+        }
+      }
+    
+    // Energy remaining in the pack, and how many laps it's good for: 
+    kwhRemaining = vehicleSamples.getLatestValue(DashBus.DATA_MAIN_BATTERY_KWH, 0f);
+    updateLapsRemaining();
+    
+    // Update UI with latest data for current lap:
+    publish("DATA_LAP_NUMBER",  FORMAT_NUMBER,   lapNumber);
+    publish("DATA_LAP_KWH",     FORMAT_KWH,      lapKWH);
+    publish("DATA_LAP_AVG_KWH", FORMAT_KWH,      lapAvgKWH);
+    publish("DATA_LAP_TIME",    FORMAT_LAP_TIME, lapTime);
+
+    publish("DATA_LAPS_REMAINING", FORMAT_NUMBER, lapsRemaining);
+    int length = FORMAT_NUMBER.format(lapsRemainingLow, text, 0);
+    text[length++] = '-';
+    publish("DATA_LAPS_REMAINING_RANGE", text, FORMAT_NUMBER.format(lapsRemainingHigh, text, length));
+    publish("DATA_KWH_REMAINING", FORMAT_KWH, kwhRemaining);
+    }
+  
+  
+  
+  
+  /**
+   Use the fused position (worker thread): Called when no GPS fix has come for a 
+   while. If it's been FUSED_STEP since the last fix or fused position, and the 
+   sensor fusion has a newer position (it's updated with the vehicle data, and 
+   dead reckons for up to 30 s after the last fix), it's processed like a fix. 
+   Its time is converted to GPS time from the time the last fix was queued.   
+   */
+  private void processFused()
+    {
+    if (!gates.hasStartGate() || (lastFixTime < 0)) return;        // No gates to check yet, or no fix to start from. 
+    if ((System.nanoTime() - lastPointTime) < FUSED_STEP) return;
+    if (!sensorFusion.getState(fusedState)) return;              // No valid position (no fix for too long). 
+    long stateTime = (long)fusedState[4];
+    if (stateTime <= lastPointTime) return;                      // Nothing new (e.g. no vehicle data). 
+    long gpsTime = lastFixTime + ((stateTime - lastFixPostTime) / 1000000L);
+    processFix(fusedState[0], fusedState[1], gpsTime, (float)fusedState[2], (float)fusedState[3]);
+    lastPointTime = stateTime;
+    isLastPointFused = true;
+    }
+  
+  
+  
+  
+  /**
+   Handle requests from the UI thread (worker thread; see messageReceived).
+   */
+  private void handleRequests()
+    {
+    if (isStartFinishChanged)
+      {
+      // Start / Finish location has changed. Reload new location:
+      isStartFinishChanged = false;
+      readStartPos();
+      if (bestLapValid) bestLapValid = isBestLapForStart();   // Best lap is no use with a different start / finish
+      }
+    
+    if (isResetRequested)
+      {
+      // ...RESET the lap data (including the best lap), and start a new session in the lap history: 
+      isResetRequested = false;
+      setDefaults();
+      lapStore.newSession();
+      new File(lapDataContext.getFilesDir(), BEST_LAP_FILE).delete();
+      redrawLapData();
+      }
+    
+    if (isRedrawRequested)
+      {
+      // The UI has been reset or recreated: send everything again (the current lap on the next fix): 
+      isRedrawRequested = false;
+      lastSent.clear();
+      redrawLapData();
+      }
+    }
+  
+  
+  
+  
+  /******** Worker Statistics: ******************************
+   * Logs the stats for the last REPORT_FIXES fixes, then 
+   * starts a new period. 
+   **********************************************************/
+  private void reportStats()
+    {
+    long putTime = fixQueue.getPutTimeTotal();
+    long queued  = fixQueue.getFixesQueued();
+    long putAverage = (queued > statQueued) ? ((putTime - statPutTime) / (queued - statQueued)) : 0;
+    if (UIActivity.DEBUG_STATS)
+      Log.i(UIActivity.APP_TAG, " LapData -> Fixes: " + statFixes 
+          + "; Worker avg: " + (statWorkTotal / statFixes / 1000) + " uS, max: " + (statWorkMax / 1000) 
+          + " uS; Queue delay avg: " + (statDelayTotal / statFixes / 1000) + " uS, max: " + (statDelayMax / 1000) 
+          + " uS; UI thread per fix: " + putAverage + " nS; Messages per fix: " + String.format("%.1f", (float)statMessages / statFixes) 
+          + "; Fixes dropped: " + fixQueue.getFixesDropped() );
+    statFixes = 0;
+    statWorkTotal = 0;
+    statWorkMax = 0;
+    statDelayTotal = 0;
+    statDelayMax = 0;
+    statMessages = 0;
+    statPutTime = putTime;
+    statQueued = queued;
+    }
+  
+  
+  
+  
+  /**********************************************************************************************************************
+   *************** Worker Thread: ***************************************************************************************
+   * Opens the lap store and reads the saved lap data, then processes fixes from the queue until closed.  
+   **********************************************************************************************************************/
+  private Runnable workerTask = new Runnable() 
+    {
+    public void run()
+      {
+      lapStore = new LapStore(new File(lapDataContext.getFilesDir(), LAP_STORE_FILE));
+      if (lapStore.getOpenError() != null) Log.i(UIActivity.APP_TAG, " LapData -> Lap store: " + lapStore.getOpenError());
+      setDefaults();
+      readStartPos();
+      readBestLap();
+      readLapEnergy();
+      
+      while (!isWorkerStop)
+        {
+        handleRequests();
+        if (!fixQueue.awaitFix( gates.hasStartGate() ? FUSED_STEP : WORKER_WAIT ))
+          {
+          // Nothing yet (or woken for a request). Use the fused position if the fixes are slow or have 
+          // stopped, then check for requests and wait again: 
+          processFused();
+          continue;
+          }
+        int slot = fixQueue.nextFix();
+        if (slot < 0) continue;
+        long startTime = System.nanoTime();
+        long fixTime = fixQueue.getTimeMillis(slot);
+        // A fused position may have been given a time just after this fix (if the fix took longer than usual 
+        // to arrive). Keep the times in order, so the path from it to the fix is still checked: 
+        if (isLastPointFused && (fixTime <= lastGpsTime)) lastGpsTime = fixTime - 1;
+        processFix( fixQueue.getLat(slot), fixQueue.getLon(slot), fixTime, 
+                    fixQueue.getSpeed(slot), fixQueue.getTrack(slot) );
+        lastFixTime = fixTime;
+        lastFixPostTime = fixQueue.getPostTime(slot);
+        lastPointTime = lastFixPostTime;
+        isLastPointFused = false;
+        long endTime = System.nanoTime();
+        long delay = startTime - fixQueue.getPostTime(slot);
+        fixQueue.release();
+        statFixes++;
+        statWorkTotal += (endTime - startTime);
+        if ((endTime - startTime) > statWorkMax) statWorkMax = endTime - startTime;
+        statDelayTotal += delay;
+        if (delay > statDelayMax) statDelayMax = delay;
+        if (statFixes >= REPORT_FIXES) reportStats();
+        }
+      }
+    };
+  
+  
+  
+  
+  
+  
+  
+  
+  /** 
+   Messages from the UI thread. Nothing is done here, except to flag the request 
+   and wake the worker thread (see handleRequests). 
+   */
+  public void messageReceived(String action, Integer intData, Float floatData, String stringData, Bundle bundleData)
+    {
+    if      (action.equals(START_FINISH_SET))      isStartFinishChanged = true;
+    else if (action.equals("CLICK_RESETLAPDATA"))  isResetRequested = true;
+    else                                           isRedrawRequested = true;       // UI_RESET or UI_RESUMED
+    LockSupport.unpark(workerThread);
     }
   
-  }
+  }
\ No newline at end of file
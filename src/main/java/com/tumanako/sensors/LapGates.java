@@ -0,0 +1,141 @@
+package com.tumanako.sensors;
+
+/************************************************************************************
+Tumanako - Electric Vehicle and Motor control software
+
+Copyright (C) 2014 Jeremy Cole-Baker <jeremy@rhtech.co.nz>
+
+This file is part of Tumanako Dashboard.
+
+Tumanako is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published
+by the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Tumanako is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with Tumanako.  If not, see <http://www.gnu.org/licenses/>.
+
+*************************************************************************************/
+
+
+
+
+/****************************************************************
+ *  Lap Gates:
+ *  -------------------------------
+ *
+ *  The start / finish and sector gates for a track (see TimingGate),
+ *  and the rules for using them, for LapData:
+ *
+ *   - Sector gates are expected in order, but a missed one is
+ *     skipped. They aren't looked for until the lap has started
+ *     (restartSectors), and each is only found once per lap.
+ *
+ *   - A start / finish crossing less than START_FINISH_DEAD_TIME after
+ *     the start of the lap is ignored (jumpy location data can cross
+ *     the line more than once).
+ *
+ *  The lap itself (start time, etc.) is kept by LapData. This class
+ *  doesn't use the Android libraries, so it can be tested on a
+ *  desktop JVM.
+ *
+ * @author Jeremy Cole-Baker / Riverhead Technology
+ *
+ ***************************************************************/
+public class LapGates
+  {
+
+  public static final long START_FINISH_DEAD_TIME = 10000;   // mS (GPS time) after a start / finish during which we don't look for another.
+
+  private TimingGate startGate = null;                        // null if start / finish not set (or its direction isn't known yet)
+  private TimingGate [] sectorGates = new TimingGate[0];
+  private int nextSector = 0;                                 // Index of the next sector gate expected in this lap
+  private double sectorCrossing = Double.NaN;                 // Time of the last sector crossing found (see findSector)
+
+
+
+  /** Set the start / finish gate (or null if there isn't one). */
+  public void setStartGate(TimingGate gate)
+    {  startGate = gate;  }
+
+  public TimingGate getStartGate()
+    {  return startGate;  }
+
+  public boolean hasStartGate()
+    {  return (startGate != null);  }
+
+
+  /** Set the sector gates (in order). They aren't looked for until the next lap starts. */
+  public void setSectorGates(TimingGate [] gates)
+    {
+    sectorGates = gates;
+    nextSector = gates.length;
+    }
+
+  public int getSectorCount()
+    {  return sectorGates.length;  }
+
+
+  /** A lap has started: look for the sectors from the first one. */
+  public void restartSectors()
+    {  nextSector = 0;  }
+
+  /** Don't look for any more sectors until the next lap starts (e.g. lap data reset). */
+  public void skipSectors()
+    {  nextSector = sectorGates.length;  }
+
+
+
+  /**
+   Check the path between two fixes for the next sector gate (or a later 
+   one, if it was missed). 
+   @return Index of the sector gate crossed (its crossing time is given 
+           by getSectorCrossing), or -1 if none. 
+   */
+  public int findSector(double lat1, double lon1, long time1, float speed1,
+                        double lat2, double lon2, long time2, float speed2)
+    {
+    int i;
+    for (i=nextSector; i<sectorGates.length; i++)
+      {
+      double crossing = sectorGates[i].findCrossing(lat1, lon1, time1, speed1, lat2, lon2, time2, speed2);
+      if (!Double.isNaN(crossing))
+        {
+        sectorCrossing = crossing;
+        nextSector = i + 1;
+        return i;
+        }
+      }
+    return -1;
+    }
+
+  /** @return Time (mS) of the last sector crossing found by findSector. */
+  public double getSectorCrossing()
+    {  return sectorCrossing;  }
+
+
+
+  /**
+   Check the path between two fixes for the start / finish. 
+   @param isLapStarted  Is a lap being timed? 
+   @param lapStartTime  Time (mS) the lap started (if isLapStarted) 
+   @return Time of the crossing (mS), or NaN if there isn't one (or it's 
+           within START_FINISH_DEAD_TIME of the start of the lap). 
+   */
+  public double findStartFinish(double lat1, double lon1, long time1, float speed1,
+                                double lat2, double lon2, long time2, float speed2,
+                                boolean isLapStarted, double lapStartTime)
+    {
+    if (startGate == null) return Double.NaN;
+    double crossing = startGate.findCrossing(lat1, lon1, time1, speed1, lat2, lon2, time2, speed2);
+    if ( isLapStarted && ((crossing - lapStartTime) < START_FINISH_DEAD_TIME) ) return Double.NaN;
+    return crossing;
+    }
+
+
+  }  // [class LapGates]
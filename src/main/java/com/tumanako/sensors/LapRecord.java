@@ -0,0 +1,176 @@
+package com.tumanako.sensors;
+
+/************************************************************************************
+Tumanako - Electric Vehicle and Motor control software
+
+Copyright (C) 2014 Jeremy Cole-Baker <jeremy@rhtech.co.nz>
+
+This file is part of Tumanako Dashboard.
+
+Tumanako is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published
+by the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Tumanako is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with Tumanako.  If not, see <http://www.gnu.org/licenses/>.
+
+*************************************************************************************/
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import com.tumanako.dash.DashBus;
+
+
+
+/****************************************************************
+ *  Lap Record:
+ *  -------------------------------
+ *
+ *  Everything stored about one completed lap (see LapStore): lap
+ *  time, energy, sector split times, and the minimum and maximum
+ *  of a few channels (speed and temperatures) during the lap.
+ *
+ *  Records are a fixed size when written (RECORD_SIZE bytes), so
+ *  the store can find any lap in its file without an index.
+ *
+ *  A LapRecord is meant to be reused: fill it with read() or
+ *  LapStore.get(), or clear() it and build up a new lap with
+ *  updateChannel() while driving.
+ *
+ * @author Jeremy Cole-Baker / Riverhead Technology
+ *
+ ***************************************************************/
+public class LapRecord
+  {
+
+  public static final int MAX_SECTORS = 8;
+
+  // Min / max channels:
+  public static final int CHANNEL_SPEED            = 0;    // GPS speed (kph)
+  public static final int CHANNEL_MOTOR_TEMP       = 1;
+  public static final int CHANNEL_CONTROLLER_TEMP  = 2;
+  public static final int CHANNEL_BATTERY_TEMP     = 3;
+  public static final int CHANNEL_BATTERY_VLT      = 4;
+  public static final int CHANNELS                 = 5;
+
+  /** DashBus channel for each min / max channel (-1: not from the DashBus). */
+  public static final int[] BUS_CHANNELS =
+    { -1, DashBus.DATA_MOTOR_TEMP, DashBus.DATA_CONTROLLER_TEMP, DashBus.DATA_MAIN_BATTERY_TEMP, DashBus.DATA_MAIN_BATTERY_VLT };
+
+  /** Size of a record in the lap store file (bytes), and of the summary at the start of it (see readSummary). */
+  public static final int RECORD_SIZE  = 4 + 4 + 8 + 4 + 4 + 4 + (MAX_SECTORS * 4) + (CHANNELS * 2 * 4);
+  public static final int SUMMARY_SIZE = 4 + 4 + 8 + 4 + 4;
+
+  public int   session = 0;           // Session (see LapStore.newSession)
+  public int   lapNumber = 0;         // Lap number within the session (1, 2, 3...)
+  public long  endTime = 0L;          // Wall clock time at the end of the lap (System.currentTimeMillis)
+  public float lapTime = 0f;          // Lap time (s)
+  public float kwh = 0f;              // Energy used (kWh)
+  public int   sectorCount = 0;
+  public final float[] sectors = new float[MAX_SECTORS];    // Split times (s from start of lap)
+  public final float[] min = new float[CHANNELS];
+  public final float[] max = new float[CHANNELS];
+
+
+
+  public LapRecord()
+    {  clear();  }
+
+
+  /** Clear the record, ready to start a new lap. Min / max are NaN until updated. */
+  public void clear()
+    {
+    session = 0;
+    lapNumber = 0;
+    endTime = 0L;
+    lapTime = 0f;
+    kwh = 0f;
+    sectorCount = 0;
+    int i;
+    for (i = 0; i < MAX_SECTORS; i++) sectors[i] = 0f;
+    for (i = 0; i < CHANNELS; i++)
+      {
+      min[i] = Float.NaN;
+      max[i] = Float.NaN;
+      }
+    }
+
+
+  /** Include a value in the min / max for a channel. NaN values are ignored. */
+  public void updateChannel(int channel, float value)
+    {
+    if (Float.isNaN(value)) return;
+    if ( Float.isNaN(min[channel]) || (value < min[channel]) ) min[channel] = value;
+    if ( Float.isNaN(max[channel]) || (value > max[channel]) ) max[channel] = value;
+    }
+
+
+  public void copy(LapRecord source)
+    {
+    session     = source.session;
+    lapNumber   = source.lapNumber;
+    endTime     = source.endTime;
+    lapTime     = source.lapTime;
+    kwh         = source.kwh;
+    sectorCount = source.sectorCount;
+    System.arraycopy(source.sectors, 0, sectors, 0, MAX_SECTORS);
+    System.arraycopy(source.min,     0, min,     0, CHANNELS);
+    System.arraycopy(source.max,     0, max,     0, CHANNELS);
+    }
+
+
+
+  /** Write the record (exactly RECORD_SIZE bytes). */
+  public void write(DataOutput out) throws IOException
+    {
+    out.writeInt(session);
+    out.writeInt(lapNumber);
+    out.writeLong(endTime);
+    out.writeFloat(lapTime);
+    out.writeFloat(kwh);
+    out.writeInt(sectorCount);
+    int i;
+    for (i = 0; i < MAX_SECTORS; i++) out.writeFloat(sectors[i]);
+    for (i = 0; i < CHANNELS; i++)
+      {
+      out.writeFloat(min[i]);
+      out.writeFloat(max[i]);
+      }
+    }
+
+
+  /** Read a record written by write(). */
+  public void read(DataInput in) throws IOException
+    {
+    readSummary(in);
+    sectorCount = Math.max(0, Math.min(MAX_SECTORS, in.readInt()));
+    int i;
+    for (i = 0; i < MAX_SECTORS; i++) sectors[i] = in.readFloat();
+    for (i = 0; i < CHANNELS; i++)
+      {
+      min[i] = in.readFloat();
+      max[i] = in.readFloat();
+      }
+    }
+
+
+  /** Read just the first SUMMARY_SIZE bytes of a record (session, lap number, end time, lap time and energy). */
+  public void readSummary(DataInput in) throws IOException
+    {
+    session     = in.readInt();
+    lapNumber   = in.readInt();
+    endTime     = in.readLong();
+    lapTime     = in.readFloat();
+    kwh         = in.readFloat();
+    }
+
+
+  }  // [class LapRecord]
@@ -0,0 +1,489 @@
+package com.tumanako.sensors;
+
+/************************************************************************************
+Tumanako - Electric Vehicle and Motor control software
+
+Copyright (C) 2014 Jeremy Cole-Baker <jeremy@rhtech.co.nz>
+
+This file is part of Tumanako Dashboard.
+
+Tumanako is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published
+by the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Tumanako is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with Tumanako.  If not, see <http://www.gnu.org/licenses/>.
+
+*************************************************************************************/
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.LinkedList;
+
+
+
+/****************************************************************
+ *  Lap Store:
+ *  -------------------------------
+ *
+ *  History of all completed laps, kept in an append-only binary file
+ *  of fixed size LapRecords (after a short header), so lap n is at
+ *  HEADER_SIZE + (n * RECORD_SIZE) in the file.
+ *
+ *  Laps are grouped into sessions. A new session starts when
+ *  newSession() is called (e.g. when the driver resets the lap data),
+ *  or when a lap ends more than SESSION_GAP after the one before it
+ *  (e.g. the next track day). Restarting the app doesn't start a new
+ *  session. Lap numbers start from 1 in each session.
+ *
+ *  add() returns straight away: the record is queued, and written to
+ *  the file by a short-lived writer thread, so the caller never waits
+ *  for the file system.
+ *
+ *  The lap time and energy of every lap are also kept in memory, with
+ *  running totals (prefix sums), and each session's first lap and best
+ *  lap are kept in a small table. So the queries used while driving
+ *  (last few laps, best lap, average of the last n laps, session
+ *  statistics) take the same time however many laps are stored. The
+ *  full record of an older lap (sectors, min / max channels) is read
+ *  from the file when asked for with get().
+ *
+ *  All methods except the writer are meant to be called from one
+ *  thread (the one which owns the LapData).
+ *
+ *  Nothing here uses Android (so it can be tested on a desktop JVM):
+ *  problems with the file are kept for the owner to log (see
+ *  getOpenError() and getWriteErrors()).
+ *
+ * @author Jeremy Cole-Baker / Riverhead Technology
+ *
+ ***************************************************************/
+public class LapStore
+  {
+
+  private static final int FILE_MAGIC   = 0x4C415053;     // "LAPS"
+  private static final int FILE_VERSION = 1;
+  private static final int HEADER_SIZE  = 12;             // Magic, version, record size
+  private static final int INITIAL_CAPACITY = 256;
+  private static final long SESSION_GAP = 2L * 60L * 60L * 1000L;   // mS. A longer gap between laps starts a new session.
+
+  private final File storeFile;
+
+  // Lap summaries (index = lap in the file):
+  private int     count = 0;
+  private int[]   lapSession = new int[INITIAL_CAPACITY];
+  private int[]   lapNumber  = new int[INITIAL_CAPACITY];
+  private float[] lapTime    = new float[INITIAL_CAPACITY];
+  private float[] lapKWH     = new float[INITIAL_CAPACITY];
+  private double[] sumTime   = new double[INITIAL_CAPACITY + 1];   // sumTime[i] = total time of laps 0 .. i-1
+  private double[] sumKWH    = new double[INITIAL_CAPACITY + 1];
+  private int     bestLap = -1;                                    // Index of the fastest lap, or -1 if none
+  private long    lastEndTime = 0L;                                // End time of the last lap
+
+  // Session table (one row per session which has laps):
+  private int   sessionCount = 0;
+  private int[] sessionId    = new int[16];
+  private int[] sessionFirst = new int[16];                        // Index of first lap
+  private int[] sessionBest  = new int[16];                        // Index of fastest lap
+
+  private int currentSession = 0;
+  private int currentFirst   = 0;                                  // Index of the first lap of the current session
+
+  private int loadedCount = 0;                                     // Laps read from the file when opened
+  private final ArrayList<LapRecord> addedLaps = new ArrayList<LapRecord>();   // Full records of laps added since then
+
+  // Writer:
+  private final LinkedList<LapRecord> writeQueue = new LinkedList<LapRecord>();
+  private Thread writerThread = null;                              // Running while there are records to write
+  private volatile int writeErrors = 0;                            // Records which couldn't be written
+
+  private String openError = null;                                 // What was wrong with the file when it was opened, or null
+
+
+
+  /**
+   Open a lap store (the file is created when the first lap is added)
+   @param file  Lap store file (e.g. in the app's files directory)
+   */
+  public LapStore(File file)
+    {
+    storeFile = file;
+    load();
+    loadedCount = count;
+    if ( (count == 0) || ((System.currentTimeMillis() - lastEndTime) > SESSION_GAP) ) newSession();
+    }
+
+
+
+  /** Read the summaries of all laps in the file. */
+  private void load()
+    {
+    if (!storeFile.exists()) return;
+    long validLength = HEADER_SIZE;
+    DataInputStream in = null;
+    LapRecord record = new LapRecord();
+    try
+      {
+      in = new DataInputStream(new BufferedInputStream(new FileInputStream(storeFile), 16384));
+      if ( (in.readInt() != FILE_MAGIC) || (in.readInt() != FILE_VERSION) || (in.readInt() != LapRecord.RECORD_SIZE) )
+        {
+        in.close();
+        in = null;
+        openError = "Unknown file format; starting a new one";
+        storeFile.renameTo(new File(storeFile.getPath() + ".old"));
+        return;
+        }
+      long laps = (storeFile.length() - HEADER_SIZE) / LapRecord.RECORD_SIZE;
+      long i;
+      for (i = 0; i < laps; i++)
+        {
+        record.readSummary(in);
+        in.skipBytes(LapRecord.RECORD_SIZE - LapRecord.SUMMARY_SIZE);
+        append(record);
+        validLength += LapRecord.RECORD_SIZE;
+        }
+      }
+    catch (IOException e)
+      {
+      openError = "Error reading laps; " + e.getMessage();
+      }
+    finally
+      {
+      if (in != null) try { in.close(); } catch (IOException e) {  }
+      }
+
+    // Drop any partly written record at the end (e.g. power lost while writing), so new records line up:
+    if (storeFile.length() > validLength)
+      {
+      RandomAccessFile file = null;
+      try
+        {
+        file = new RandomAccessFile(storeFile, "rw");
+        file.setLength(validLength);
+        }
+      catch (IOException e)  {  }
+      finally
+        {
+        if (file != null) try { file.close(); } catch (IOException e) {  }
+        }
+      }
+    if (count > 0)
+      {
+      // Carry on with the last session:
+      currentSession = lapSession[count - 1];
+      currentFirst = sessionFirst[sessionCount - 1];
+      }
+    }
+
+
+
+  /** Add a lap summary to the in-memory tables. */
+  private void append(LapRecord record)
+    {
+    if (count == lapTime.length) grow();
+    lapSession[count] = record.session;
+    lapNumber[count]  = record.lapNumber;
+    lapTime[count]    = record.lapTime;
+    lapKWH[count]     = record.kwh;
+    sumTime[count + 1] = sumTime[count] + record.lapTime;
+    sumKWH[count + 1]  = sumKWH[count]  + record.kwh;
+
+    if ( (sessionCount == 0) || (sessionId[sessionCount - 1] != record.session) )
+      {
+      if (sessionCount == sessionId.length)
+        {
+        sessionId    = copyOf(sessionId,    sessionCount * 2);
+        sessionFirst = copyOf(sessionFirst, sessionCount * 2);
+        sessionBest  = copyOf(sessionBest,  sessionCount * 2);
+        }
+      sessionId[sessionCount]    = record.session;
+      sessionFirst[sessionCount] = count;
+      sessionBest[sessionCount]  = count;
+      sessionCount++;
+      }
+    else if (record.lapTime < lapTime[sessionBest[sessionCount - 1]]) sessionBest[sessionCount - 1] = count;
+
+    if ( (bestLap < 0) || (record.lapTime < lapTime[bestLap]) ) bestLap = count;
+    lastEndTime = record.endTime;
+    count++;
+    }
+
+
+  private void grow()
+    {
+    int newCapacity = lapTime.length * 2;
+    lapSession = copyOf(lapSession, newCapacity);
+    lapNumber  = copyOf(lapNumber,  newCapacity);
+    float[] newTime = new float[newCapacity];
+    float[] newKWH  = new float[newCapacity];
+    double[] newSumTime = new double[newCapacity + 1];
+    double[] newSumKWH  = new double[newCapacity + 1];
+    System.arraycopy(lapTime, 0, newTime,    0, count);
+    System.arraycopy(lapKWH,  0, newKWH,     0, count);
+    System.arraycopy(sumTime, 0, newSumTime, 0, count + 1);
+    System.arraycopy(sumKWH,  0, newSumKWH,  0, count + 1);
+    lapTime = newTime;
+    lapKWH  = newKWH;
+    sumTime = newSumTime;
+    sumKWH  = newSumKWH;
+    }
+
+
+  private static int[] copyOf(int[] source, int length)
+    {
+    int[] result = new int[length];
+    System.arraycopy(source, 0, result, 0, Math.min(source.length, length));
+    return result;
+    }
+
+
+
+
+  /************* Adding laps: ************************************************/
+
+  /** Start a new session: following laps are numbered from 1 again. */
+  public void newSession()
+    {
+    currentSession++;
+    currentFirst = count;
+    }
+
+
+  /**
+   Add a completed lap. The session and lap number are filled in here. The
+   record is copied, so the caller can reuse it straight away.
+   @return Lap number (within the session)
+   */
+  public int add(LapRecord lap)
+    {
+    if ( (count > currentFirst) && ((lap.endTime - lastEndTime) > SESSION_GAP) ) newSession();
+    LapRecord record = new LapRecord();
+    record.copy(lap);
+    record.session = currentSession;
+    record.lapNumber = count - currentFirst + 1;
+    append(record);
+    addedLaps.add(record);
+    synchronized (writeQueue)
+      {
+      writeQueue.addLast(record);
+      if (writerThread == null)
+        {
+        writerThread = new Thread(writerTask, "LapStore Writer");
+        writerThread.start();
+        }
+      }
+    return record.lapNumber;
+    }
+
+
+
+  /** Writes queued records to the end of the file, then stops when the queue is empty. */
+  private final Runnable writerTask = new Runnable()
+    {
+    public void run()
+      {
+      while (true)
+        {
+        LapRecord record;
+        synchronized (writeQueue)
+          {
+          if (writeQueue.isEmpty())
+            {
+            writerThread = null;
+            return;
+            }
+          record = writeQueue.getFirst();
+          }
+        boolean isNewFile = !storeFile.exists() || (storeFile.length() < HEADER_SIZE);
+        DataOutputStream out = null;
+        try
+          {
+          out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(storeFile, !isNewFile)));
+          if (isNewFile)
+            {
+            out.writeInt(FILE_MAGIC);
+            out.writeInt(FILE_VERSION);
+            out.writeInt(LapRecord.RECORD_SIZE);
+            }
+          record.write(out);
+          out.close();
+          out = null;
+          }
+        catch (IOException e)
+          {
+          writeErrors++;                  // (Only this thread writes it)
+          }
+        finally
+          {
+          if (out != null) try { out.close(); } catch (IOException e) {  }
+          }
+        synchronized (writeQueue)
+          {
+          writeQueue.removeFirst();       // (Also if the write failed: the lap is still in memory until the app restarts)
+          }
+        }
+      }
+    };
+
+
+
+
+  /************* Queries: ****************************************************/
+
+  /** @return Total number of laps stored (all sessions). Laps are numbered 0 .. getCount()-1 for the other methods. */
+  public int getCount()
+    {  return count;  }
+
+  public float getLapTime(int index)
+    {  return lapTime[index];  }
+
+  public float getLapKWH(int index)
+    {  return lapKWH[index];  }
+
+  /** @return Lap number of a lap (within its session). */
+  public int getLapNumber(int index)
+    {  return lapNumber[index];  }
+
+  public int getLapSession(int index)
+    {  return lapSession[index];  }
+
+  /** @return Index of the fastest lap ever, or -1 if there are no laps. */
+  public int getBestLap()
+    {  return bestLap;  }
+
+  /** @return What was wrong with the file when the store was opened (for the log), or null if nothing. */
+  public String getOpenError()
+    {  return openError;  }
+
+  /** @return Number of laps which couldn't be written to the file (they are still in memory until the app restarts). */
+  public int getWriteErrors()
+    {  return writeErrors;  }
+
+
+  /**
+   Get the full record of a lap. Laps added since the store was opened are kept
+   in memory; older ones are read from the file.
+   @return false if the lap couldn't be read.
+   */
+  public boolean get(int index, LapRecord dst)
+    {
+    if ((index < 0) || (index >= count)) return false;
+    if (index >= loadedCount)
+      {
+      dst.copy(addedLaps.get(index - loadedCount));
+      return true;
+      }
+    RandomAccessFile file = null;
+    try
+      {
+      file = new RandomAccessFile(storeFile, "r");
+      file.seek(HEADER_SIZE + ((long)index * LapRecord.RECORD_SIZE));
+      dst.read(file);
+      return true;
+      }
+    catch (IOException e)
+      {
+      return false;
+      }
+    finally
+      {
+      if (file != null) try { file.close(); } catch (IOException e) {  }
+      }
+    }
+
+
+  /** @return Mean lap time (s) of laps first .. end-1, or 0 if there are none. */
+  public float getMeanTime(int first, int end)
+    {
+    first = Math.max(0, first);
+    end = Math.min(count, end);
+    return (end > first) ? (float)((sumTime[end] - sumTime[first]) / (end - first)) : 0f;
+    }
+
+  /** @return Mean energy (kWh) of laps first .. end-1, or 0 if there are none. */
+  public float getMeanKWH(int first, int end)
+    {
+    first = Math.max(0, first);
+    end = Math.min(count, end);
+    return (end > first) ? (float)((sumKWH[end] - sumKWH[first]) / (end - first)) : 0f;
+    }
+
+  /** @return Total energy (kWh) of laps first .. end-1. */
+  public float getTotalKWH(int first, int end)
+    {
+    first = Math.max(0, first);
+    end = Math.min(count, end);
+    return (end > first) ? (float)(sumKWH[end] - sumKWH[first]) : 0f;
+    }
+
+
+
+
+  /************* Current session: ********************************************/
+
+  public int getSession()
+    {  return currentSession;  }
+
+  /** @return Index of the first lap of the current session (= getCount() if it has no laps yet). */
+  public int getSessionFirst()
+    {  return currentFirst;  }
+
+  /** @return Number of laps in the current session. */
+  public int getSessionLaps()
+    {  return count - currentFirst;  }
+
+  /** @return Index of the fastest lap in the current session, or -1 if none. */
+  public int getSessionBest()
+    {
+    if ( (count == currentFirst) || (sessionId[sessionCount - 1] != currentSession) ) return -1;
+    return sessionBest[sessionCount - 1];
+    }
+
+  /** @return Mean lap time (s) of the last n laps in the current session. */
+  public float getRecentMeanTime(int n)
+    {  return getMeanTime(Math.max(currentFirst, count - n), count);  }
+
+  /** @return Mean energy (kWh) of the last n laps in the current session. */
+  public float getRecentMeanKWH(int n)
+    {  return getMeanKWH(Math.max(currentFirst, count - n), count);  }
+
+
+
+
+  /************* All sessions: ***********************************************/
+
+  /** @return Number of sessions with laps (sessions are numbered 0 .. getSessionCount()-1 here). */
+  public int getSessionCount()
+    {  return sessionCount;  }
+
+  public int getSessionId(int session)
+    {  return sessionId[session];  }
+
+  /** @return Index of the first lap of a session. */
+  public int getSessionFirst(int session)
+    {  return sessionFirst[session];  }
+
+  /** @return Index after the last lap of a session. */
+  public int getSessionEnd(int session)
+    {  return (session + 1 < sessionCount) ? sessionFirst[session + 1] : count;  }
+
+  /** @return Index of the fastest lap of a session. */
+  public int getSessionBest(int session)
+    {  return sessionBest[session];  }
+
+
+  }  // [class LapStore]
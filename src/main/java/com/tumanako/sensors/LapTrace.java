@@ -0,0 +1,386 @@
+package com.tumanako.sensors;
+
+/************************************************************************************
+Tumanako - Electric Vehicle and Motor control software
+
+Copyright (C) 2014 Jeremy Cole-Baker <jeremy@rhtech.co.nz>
+
+This file is part of Tumanako Dashboard.
+
+Tumanako is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published
+by the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Tumanako is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with Tumanako.  If not, see <http://www.gnu.org/licenses/>.
+
+*************************************************************************************/
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+
+
+/****************************************************************
+ *  Lap Trace:
+ *  -------------------------------
+ *
+ *  The path driven during one lap: a list of points, each with its
+ *  position (metres east and north of an origin, normally the start /
+ *  finish), the distance driven from the start of the lap, the lap
+ *  time and the energy used so far.
+ *
+ *  A trace is recorded point by point with add(). A completed lap
+ *  (e.g. the best lap) can then be used as a reference: match() finds
+ *  the point on the reference path nearest to the current position,
+ *  and gives the reference lap's time, distance and energy at that
+ *  point (interpolated along the path). The difference between the
+ *  current lap time and the matched time is the "delta" to the
+ *  reference lap.
+ *
+ *  Matching uses a cursor which only moves forward through the lap:
+ *  each call only searches a few segments ahead of the last match
+ *  (SEARCH_AHEAD), so it takes the same (small) time wherever we are
+ *  on the track, and can't jump to a different part of the track
+ *  which happens to pass nearby (e.g. a crossover). If nothing close
+ *  is found ahead (e.g. after a GPS dropout or an off), the whole
+ *  trace is searched to pick the track up again. If that fails too
+ *  (we're off the track altogether, e.g. in the pits), the whole
+ *  trace is only searched again every RESCAN_INTERVAL calls until the
+ *  track is found, not on every fix.
+ *
+ *  Points are kept in float arrays which grow as needed (a lap at
+ *  25 Hz is a few thousand points), so nothing is allocated per point
+ *  once the arrays are big enough. A trace is limited to MAX_POINTS
+ *  points (e.g. if a lap never ends because the start / finish is
+ *  missed); points after that are not added.
+ *
+ * @author Jeremy Cole-Baker / Riverhead Technology
+ *
+ ***************************************************************/
+public class LapTrace
+  {
+
+  private static final double METRES_PER_DEGREE = 111120.0;
+
+  private static final int   FILE_MAGIC = 0x4C545231;          // "LTR1"
+  private static final int   FILE_HEADER_SIZE = 28;            // Bytes before the points (see save()).
+  private static final int   FILE_POINT_SIZE = 20;             // Bytes per point.
+  private static final int   INITIAL_CAPACITY = 1024;
+  private static final int   MAX_POINTS = 32768;               // About 20 minutes of points at 25 Hz.
+  private static final int   SEARCH_AHEAD = 64;                // Segments searched ahead of the cursor.
+  private static final int   RESCAN_INTERVAL = 25;             // Calls to match() between whole trace searches while lost.
+  private static final float MIN_SPACING = 0.5f;               // metres. Closer points are not added (e.g. stationary).
+  private static final float MAX_MATCH_DISTANCE = 30f;         // metres. Further than this from the trace is 'lost'.
+
+  private double originLat = 0.0;
+  private double originLon = 0.0;
+  private double metresPerDegreeLon = METRES_PER_DEGREE;
+
+  private float[] east     = new float[INITIAL_CAPACITY];
+  private float[] north    = new float[INITIAL_CAPACITY];
+  private float[] distance = new float[INITIAL_CAPACITY];      // metres from start of lap
+  private float[] time     = new float[INITIAL_CAPACITY];      // seconds from start of lap
+  private float[] energy   = new float[INITIAL_CAPACITY];      // kWh used since start of lap
+  private int count = 0;
+
+  private float lapTime = 0f;         // Total time of the lap (s), once complete.
+
+  // Matching:
+  private int   cursor = 0;           // Segment (cursor -> cursor + 1) matched last time.
+  private float matchTime = 0f;
+  private float matchDistance = 0f;
+  private float matchEnergy = 0f;
+  private int   rescanCount = 0;
+  private int   lostCount = 0;        // Calls to match() since a whole trace search failed (0 = not lost).
+
+
+
+  /**
+   Start a new (empty) trace
+   @param lat  Latitude of the origin for positions (normally the start / finish)
+   @param lon  Longitude of the origin
+   */
+  public void clear(double lat, double lon)
+    {
+    originLat = lat;
+    originLon = lon;
+    metresPerDegreeLon = Math.cos( Math.toRadians(lat) ) * METRES_PER_DEGREE;
+    count = 0;
+    lapTime = 0f;
+    cursor = 0;
+    lostCount = 0;
+    }
+
+
+  /**
+   Add a point to the end of the trace (ignored if the trace already has MAX_POINTS points)
+   @param lat      Latitude (decimal degrees)
+   @param lon      Longitude (decimal degrees)
+   @param seconds  Time since the start of the lap (s)
+   @param kwh      Energy used since the start of the lap (kWh)
+   */
+  public void add(double lat, double lon, float seconds, float kwh)
+    {
+    float thisEast  = (float)((lon - originLon) * metresPerDegreeLon);
+    float thisNorth = (float)((lat - originLat) * METRES_PER_DEGREE);
+    float thisDistance = 0f;
+    if (count > 0)
+      {
+      float dEast  = thisEast  - east[count - 1];
+      float dNorth = thisNorth - north[count - 1];
+      float step = (float)Math.sqrt( (dEast * dEast) + (dNorth * dNorth) );
+      if (step < MIN_SPACING)
+        {
+        // Not moving: just update the time and energy of the last point:
+        time[count - 1]   = seconds;
+        energy[count - 1] = kwh;
+        return;
+        }
+      thisDistance = distance[count - 1] + step;
+      }
+    if (count == MAX_POINTS) return;
+    if (count == east.length) grow();
+    east[count]     = thisEast;
+    north[count]    = thisNorth;
+    distance[count] = thisDistance;
+    time[count]     = seconds;
+    energy[count]   = kwh;
+    count++;
+    }
+
+
+  private void grow()
+    {
+    int newCapacity = east.length * 2;
+    east     = copyOf(east,     newCapacity);
+    north    = copyOf(north,    newCapacity);
+    distance = copyOf(distance, newCapacity);
+    time     = copyOf(time,     newCapacity);
+    energy   = copyOf(energy,   newCapacity);
+    }
+
+
+  private static float[] copyOf(float[] source, int length)
+    {
+    float[] result = new float[length];
+    System.arraycopy(source, 0, result, 0, Math.min(source.length, length));
+    return result;
+    }
+
+
+  /** Mark the trace as a complete lap, with the given total lap time (s). */
+  public void setLapTime(float seconds)
+    {  lapTime = seconds;  }
+
+
+
+  public int getCount()
+    {  return count;  }
+
+  /** @return Total lap time (s) if this is a complete lap, otherwise 0. */
+  public float getLapTime()
+    {  return lapTime;  }
+
+  /** @return Total distance (m) of the trace. */
+  public float getLength()
+    {  return (count > 0) ? distance[count - 1] : 0f;  }
+
+  public double getOriginLat()
+    {  return originLat;  }
+
+  public double getOriginLon()
+    {  return originLon;  }
+
+  /** @return Number of times match() has had to search the whole trace. */
+  public int getRescanCount()
+    {  return rescanCount;  }
+
+
+
+
+  /************* Matching: ***************************************************/
+
+  /** Start matching from the beginning of the trace again (call at the start of each lap). */
+  public void resetCursor()
+    {
+    cursor = 0;
+    lostCount = 0;
+    }
+
+
+  /**
+   Find the point on the trace nearest to a position, and get the reference time,
+   distance and energy there (see getMatchTime() etc.).
+   @param lat  Latitude (decimal degrees)
+   @param lon  Longitude (decimal degrees)
+   @return true if a point within MAX_MATCH_DISTANCE was found.
+   */
+  public boolean match(double lat, double lon)
+    {
+    if (count < 2) return false;
+    float thisEast  = (float)((lon - originLon) * metresPerDegreeLon);
+    float thisNorth = (float)((lat - originLat) * METRES_PER_DEGREE);
+
+    // Search a few segments ahead of the cursor:
+    int last = Math.min(cursor + SEARCH_AHEAD, count - 2);
+    int bestSegment = cursor;
+    float bestDistance = Float.MAX_VALUE;
+    int segment;
+    for (segment = cursor; segment <= last; segment++)
+      {
+      float thisDistance = segmentDistance(segment, thisEast, thisNorth);
+      if (thisDistance < bestDistance)
+        {
+        bestDistance = thisDistance;
+        bestSegment = segment;
+        }
+      }
+
+    if (bestDistance > (MAX_MATCH_DISTANCE * MAX_MATCH_DISTANCE))
+      {
+      // Lost the track: search the whole trace (but only every RESCAN_INTERVAL calls if that's already failed).
+      if (lostCount > 0)
+        {
+        lostCount++;
+        if (lostCount <= RESCAN_INTERVAL) return false;
+        }
+      rescanCount++;
+      for (segment = 0; segment < (count - 1); segment++)
+        {
+        float thisDistance = segmentDistance(segment, thisEast, thisNorth);
+        if (thisDistance < bestDistance)
+          {
+          bestDistance = thisDistance;
+          bestSegment = segment;
+          }
+        }
+      if (bestDistance > (MAX_MATCH_DISTANCE * MAX_MATCH_DISTANCE))
+        {
+        lostCount = 1;
+        return false;
+        }
+      }
+
+    lostCount = 0;
+    cursor = bestSegment;
+    float fraction = segmentFraction(bestSegment, thisEast, thisNorth);
+    matchTime     = time[bestSegment]     + ((time[bestSegment + 1]     - time[bestSegment])     * fraction);
+    matchDistance = distance[bestSegment] + ((distance[bestSegment + 1] - distance[bestSegment]) * fraction);
+    matchEnergy   = energy[bestSegment]   + ((energy[bestSegment + 1]   - energy[bestSegment])   * fraction);
+    return true;
+    }
+
+
+  /** Position along a segment (0 - 1) of the point on it nearest to (pointEast, pointNorth). */
+  private float segmentFraction(int segment, float pointEast, float pointNorth)
+    {
+    float segEast  = east[segment + 1]  - east[segment];
+    float segNorth = north[segment + 1] - north[segment];
+    float lengthSquared = (segEast * segEast) + (segNorth * segNorth);
+    if (lengthSquared <= 0f) return 0f;
+    float fraction = ( ((pointEast - east[segment]) * segEast) + ((pointNorth - north[segment]) * segNorth) ) / lengthSquared;
+    if (fraction < 0f) return 0f;
+    if (fraction > 1f) return 1f;
+    return fraction;
+    }
+
+
+  /** Squared distance from (pointEast, pointNorth) to the nearest point on a segment. */
+  private float segmentDistance(int segment, float pointEast, float pointNorth)
+    {
+    float fraction = segmentFraction(segment, pointEast, pointNorth);
+    float dEast  = east[segment]  + ((east[segment + 1]  - east[segment])  * fraction) - pointEast;
+    float dNorth = north[segment] + ((north[segment + 1] - north[segment]) * fraction) - pointNorth;
+    return (dEast * dEast) + (dNorth * dNorth);
+    }
+
+
+  /** @return Reference lap time (s) at the last matched position. */
+  public float getMatchTime()
+    {  return matchTime;  }
+
+  /** @return Reference lap distance (m) at the last matched position. */
+  public float getMatchDistance()
+    {  return matchDistance;  }
+
+  /** @return Reference lap energy (kWh) at the last matched position. */
+  public float getMatchEnergy()
+    {  return matchEnergy;  }
+
+
+
+
+  /************* Copy / Save / Load: *****************************************/
+
+  /** Make this trace a copy of another one. */
+  public void copy(LapTrace source)
+    {
+    clear(source.originLat, source.originLon);
+    while (east.length < source.count) grow();
+    System.arraycopy(source.east,     0, east,     0, source.count);
+    System.arraycopy(source.north,    0, north,    0, source.count);
+    System.arraycopy(source.distance, 0, distance, 0, source.count);
+    System.arraycopy(source.time,     0, time,     0, source.count);
+    System.arraycopy(source.energy,   0, energy,   0, source.count);
+    count = source.count;
+    lapTime = source.lapTime;
+    }
+
+
+  public void save(DataOutputStream out) throws IOException
+    {
+    out.writeInt(FILE_MAGIC);
+    out.writeDouble(originLat);
+    out.writeDouble(originLon);
+    out.writeFloat(lapTime);
+    out.writeInt(count);
+    int i;
+    for (i = 0; i < count; i++)
+      {
+      out.writeFloat(east[i]);
+      out.writeFloat(north[i]);
+      out.writeFloat(distance[i]);
+      out.writeFloat(time[i]);
+      out.writeFloat(energy[i]);
+      }
+    }
+
+
+  /**
+   Read a trace written by save()
+   @param in      Stream to read from
+   @param length  Length of the file (bytes): the point count read from it is checked against this
+   @throws IOException if the file can't be read or isn't a valid trace.
+   */
+  public void load(DataInputStream in, long length) throws IOException
+    {
+    if (in.readInt() != FILE_MAGIC) throw new IOException("Not a lap trace");
+    clear(in.readDouble(), in.readDouble());
+    float thisLapTime = in.readFloat();
+    int thisCount = in.readInt();
+    if ( (thisCount < 0) || (thisCount > MAX_POINTS)
+      || ((FILE_HEADER_SIZE + ((long)thisCount * FILE_POINT_SIZE)) > length) ) throw new IOException("Bad lap trace");
+    while (east.length < thisCount) grow();
+    int i;
+    for (i = 0; i < thisCount; i++)
+      {
+      east[i]     = in.readFloat();
+      north[i]    = in.readFloat();
+      distance[i] = in.readFloat();
+      time[i]     = in.readFloat();
+      energy[i]   = in.readFloat();
+      }
+    count = thisCount;
+    lapTime = thisLapTime;
+    }
+
+
+  }  // [class LapTrace]
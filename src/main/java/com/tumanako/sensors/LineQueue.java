@@ -0,0 +1,262 @@
+package com.tumanako.sensors;
+
+/************************************************************************************
+Tumanako - Electric Vehicle and Motor control software
+
+Copyright (C) 2014 Jeremy Cole-Baker <jeremy@rhtech.co.nz>
+
+This file is part of Tumanako Dashboard.
+
+Tumanako is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published
+by the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Tumanako is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with Tumanako.  If not, see <http://www.gnu.org/licenses/>.
+
+*************************************************************************************/
+
+import java.util.concurrent.locks.LockSupport;
+
+
+
+/****************************************************************
+ *  Line Queue:
+ *  -------------------------------
+ *
+ *  Splits a stream of bytes into lines (ending in CR; LF is ignored)
+ *  and passes them from one producer thread (the thread reading the
+ *  input stream) to one consumer thread (the decoder), without locks
+ *  or allocation.
+ *
+ *  Lines are assembled directly into a ring of fixed byte[] slots.
+ *  Each line is stamped with the time (System.nanoTime()) of the read
+ *  which delivered its first byte, so the delay from arrival to display
+ *  can be measured.
+ *
+ *  Backlog Policy:
+ *  It is more important for the UI to be up to date than to process
+ *  ALL data. If the consumer falls more than maxBacklog lines behind,
+ *  the oldest lines are dropped when it next takes a line. If the ring
+ *  fills completely (consumer stalled), new lines are dropped until
+ *  there is room. Both cases are counted (see getLinesDropped).
+ *
+ *  Producer:
+ *    queue.write(buffer, 0, bytesRead, System.nanoTime());
+ *
+ *  Consumer:
+ *    if (queue.awaitLine(timeout))
+ *      {
+ *      int slot = queue.nextLine();
+ *      ...use getLine(slot), getLineLength(slot), getArrivalTime(slot)...
+ *      queue.release();
+ *      }
+ *
+ * @author Jeremy Cole-Baker / Riverhead Technology
+ *
+ ***************************************************************/
+public class LineQueue
+  {
+
+  public static final int MAX_LINE_LENGTH = TDV1Decoder.MAX_LINE_LENGTH;   // Longer lines are discarded.
+
+  private static final byte CR = 0x0D;
+  private static final byte LF = 0x0A;
+
+  private final int capacity;           // Number of slots (a power of 2)
+  private final int mask;
+  private final int maxBacklog;
+  private final byte[][] lines;
+  private final int[] lineLengths;
+  private final long[] arrivalTimes;
+
+  private volatile long head = 0;       // Next line to read. Written by the consumer only.
+  private volatile long tail = 0;       // Next line to write. Written by the producer only.
+  private volatile Thread waitingConsumer = null;    // Set while the consumer is parked in awaitLine.
+
+  // Producer state (line being assembled):
+  private int lineLength = 0;
+  private long lineArrivalTime = 0;
+  private boolean isLineStarted = false;
+  private boolean isLineDiscarded = false;     // Line is too long, or there was no free slot. Skip to the next CR.
+
+  // Counters (each has a single writer):
+  private volatile long linesQueued = 0;        // Producer
+  private volatile long linesDroppedNew = 0;    // Producer: ring was full
+  private volatile long linesDroppedOld = 0;    // Consumer: backlog too long
+  private volatile long linesTooLong = 0;       // Producer
+
+
+
+
+  /**
+   LineQueue Constructor
+   @param thisCapacity    Number of line slots. Rounded up to a power of 2.
+   @param thisMaxBacklog  Maximum number of lines allowed to wait for the consumer before the oldest are dropped.
+   */
+  public LineQueue(int thisCapacity, int thisMaxBacklog)
+    {
+    int size = 2;
+    while (size < thisCapacity) size = size << 1;
+    capacity = size;
+    mask = size - 1;
+    maxBacklog = Math.max(1, Math.min(thisMaxBacklog, size));
+    lines = new byte[size][MAX_LINE_LENGTH];
+    lineLengths = new int[size];
+    arrivalTimes = new long[size];
+    }
+
+
+
+
+  /************* Write bytes (PRODUCER ONLY): ********************************
+   * Adds a block of bytes from the input stream. Each complete line is
+   * queued, and the consumer is woken if it is waiting.
+   * @param data      Bytes received
+   * @param from      Index of the first byte
+   * @param to        Index after the last byte
+   * @param readTime  Time the bytes were received (System.nanoTime())
+   ***************************************************************************/
+  public void write(byte[] data, int from, int to, long readTime)
+    {
+    boolean isQueued = false;
+    for (int n = from; n < to; n++)
+      {
+      byte thisByte = data[n];
+      if (thisByte == LF) continue;      // Ignore LF characters.
+      if (thisByte == CR)
+        {
+        if (isLineStarted && !isLineDiscarded)
+          {
+          int slot = (int)(tail & mask);
+          lineLengths[slot] = lineLength;
+          arrivalTimes[slot] = lineArrivalTime;
+          tail = tail + 1;               // Publishes the line to the consumer.
+          linesQueued++;
+          isQueued = true;
+          }
+        isLineStarted = false;
+        isLineDiscarded = false;
+        lineLength = 0;
+        continue;
+        }
+      if (!isLineStarted)
+        {
+        // First byte of a new line. Is there a free slot to put it in?
+        isLineStarted = true;
+        lineArrivalTime = readTime;
+        if ((tail - head) >= capacity)
+          {
+          isLineDiscarded = true;
+          linesDroppedNew++;
+          }
+        }
+      if (isLineDiscarded) continue;
+      if (lineLength < MAX_LINE_LENGTH) lines[(int)(tail & mask)][lineLength++] = thisByte;
+      else
+        {
+        isLineDiscarded = true;
+        linesTooLong++;
+        }
+      }
+    if (isQueued)
+      {
+      Thread thisConsumer = waitingConsumer;
+      if (thisConsumer != null) LockSupport.unpark(thisConsumer);
+      }
+    }
+
+
+
+  /** Throw away any partial line (PRODUCER ONLY; e.g. after reconnecting). */
+  public void reset()
+    {
+    isLineStarted = false;
+    isLineDiscarded = false;
+    lineLength = 0;
+    }
+
+
+
+
+  /************* Wait for a line (CONSUMER ONLY): ****************************
+   * Returns straight away if a line is waiting, otherwise parks the
+   * calling thread until the producer queues one, the timeout expires or
+   * the thread is interrupted.
+   * @param timeoutNanos  Maximum time to wait
+   * @return true if a line is waiting.
+   ***************************************************************************/
+  public boolean awaitLine(long timeoutNanos)
+    {
+    if (head != tail) return true;
+    waitingConsumer = Thread.currentThread();
+    if (head == tail) LockSupport.parkNanos(timeoutNanos);   // Check again after setting waitingConsumer, so we can't miss a wakeup.
+    waitingConsumer = null;
+    return (head != tail);
+    }
+
+
+
+  /**
+   Get the next line (CONSUMER ONLY) <p>
+   Applies the backlog policy first (see class notes). The slot belongs to the
+   consumer until release() is called.
+   @return Slot index of the oldest waiting line, or -1 if there isn't one.
+   */
+  public int nextLine()
+    {
+    long thisTail = tail;
+    long thisHead = head;
+    if (thisTail == thisHead) return -1;
+    if ((thisTail - thisHead) > maxBacklog)
+      {
+      linesDroppedOld = linesDroppedOld + (thisTail - thisHead - maxBacklog);
+      thisHead = thisTail - maxBacklog;
+      head = thisHead;
+      }
+    return (int)(thisHead & mask);
+    }
+
+
+  /** Finished with the line returned by nextLine (CONSUMER ONLY). */
+  public void release()
+    {  head = head + 1;  }
+
+
+  public byte[] getLine(int slot)
+    {  return lines[slot];  }
+
+  public int getLineLength(int slot)
+    {  return lineLengths[slot];  }
+
+  /** @return Time (System.nanoTime()) that the first byte of the line was received. */
+  public long getArrivalTime(int slot)
+    {  return arrivalTimes[slot];  }
+
+
+
+
+  /******** Counters (can be read from any thread): *************/
+
+  public long getLinesQueued()
+    {  return linesQueued;  }
+
+  /** @return Lines thrown away by the backlog policy (oldest dropped, or ring full). */
+  public long getLinesDropped()
+    {  return linesDroppedOld + linesDroppedNew;  }
+
+  public long getLinesTooLong()
+    {  return linesTooLong;  }
+
+  /** @return Number of lines waiting for the consumer. */
+  public int getBacklog()
+    {  return (int)(tail - head);  }
+
+
+  }  // [class LineQueue]
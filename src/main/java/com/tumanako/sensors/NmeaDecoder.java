@@ -0,0 +1,419 @@
+package com.tumanako.sensors;
+
+/************************************************************************************
+Tumanako - Electric Vehicle and Motor control software
+
+Copyright (C) 2014 Jeremy Cole-Baker <jeremy@rhtech.co.nz>
+
+This file is part of Tumanako Dashboard.
+
+Tumanako is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published
+by the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Tumanako is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with Tumanako.  If not, see <http://www.gnu.org/licenses/>.
+
+*************************************************************************************/
+
+
+
+/****************************************************************
+ *  NMEA Decoder:
+ *  -------------------------------
+ *
+ *  Decodes a stream of NMEA sentences into GPS fixes, one per epoch
+ *  (see decode). This is the plain Java part of NmeaProcessor, which
+ *  feeds it the sentences from the location services and sends the
+ *  fixes out to the rest of the app. It doesn't use the Android
+ *  libraries, so it can also be run on a desktop JVM (e.g. to test
+ *  the epoch logic).
+ *
+ *  A subclass provides the clock used to tell whether the data are
+ *  current (clockMillis), and is told when a fix is ready (onFix).
+ *  The data for the fix are read with getTimeMillis(), getLat(), etc.
+ *
+ * @author Jeremy Cole-Baker / Riverhead Technology
+ *
+ ***************************************************************/
+public abstract class NmeaDecoder
+  {
+
+  // ****** Information directly from the GPS: **********
+  private float  gpsTime   = 0f;           // GPS Time (UTC), HHMMSS (e.g. 123542.0 for 12:35:42 pm)
+  private double gpsLat    = 0.0;          // GPS Latitude (Dec. Degrees)
+  private double gpsLon    = 0.0;          // GPS Longitude (Dec. Degrees)
+  private int    gpsQual   = 0;            // GPS Fix Quality *
+  private int    gpsSats   = 0;            // GPS Number of satellites
+  private float  gpsAlt    = 0f;           // GPS Altitude (m)
+  private float  gpsTrackT = 0f;           // GPS Ground track (Deg, True)
+  private float  gpsSpeed  = 0f;           // GPS Grong speed (kph)
+  private String gpsLastGGA = "";          // Will store the last GGA and
+  private String gpsLastVTG = "";          // VTG strings received (for debugging)
+  
+  // ***** Information derived during operation: **********
+  private int     epochSentences     = 0;     // Sentences received in the current epoch (one position fix; see decode): SEEN_ flags. 
+  private int     lastEpochSentences = 0;     // Sentences received in the previous epoch. 
+  private long    epochTimeMillis  = -1;      // UTC time of the current epoch (mS, see utcMillis)
+  private long    gpsTimeMillis    = 0;       // UTC time of the latest fix (mS; keeps counting up past midnight) 
+  private long    dayOffsetMillis  = 0;       // Added to the UTC time after midnight(s). 
+  private long    updateCount      = 0;       // Number of GPS updates sent. 
+  private boolean isDataSent       = false;   // Flag to indicate that the latest update has been sent. Reset when a new epoch is started. 
+  private long    timeLastPosition = 0l;      // clockMillis() time (mS) for the last position update.
+  private boolean isFixGood        = false;   // Do we have a current fix? True when we are receiving good NMEA data; false if NMEA data is empty (i.e. no fix)
+                                              //  NOTE: This only looks at the last NMEA we received; if NMEA data stop alltogether, isFixGood may still be true. 
+                                              //  See NmeaProcessor.isFixGood() (also checks for time since last NMEA data).
+  
+  private final NmeaParser nmeaParser = new NmeaParser();   // Splits up and checks NMEA sentences. 
+
+  private static final long MILLIS_PER_DAY = 86400000L;
+
+
+
+  /** Called once per epoch, when a fix is ready (see decode). */
+  protected abstract void onFix();
+
+  /** Current time (mS) used to time the last position update (e.g. SystemClock.elapsedRealtime()). */
+  protected abstract long clockMillis();
+
+
+
+  // ******* Methods to return GPS data: ******************
+  public float getTime()
+    {  return gpsTime;  }
+    
+  public long getTimeMillis()             // UTC time of the latest fix in mS (carries on past midnight, so it can be used to time things). 
+    {  return gpsTimeMillis;  }
+    
+  public long getUpdateCount()            // Number of GPS updates sent (one per epoch). 
+    {  return updateCount;  }
+    
+  public double getLat()
+    {  return gpsLat;  }
+    
+  public double getLon()
+    {  return gpsLon;  }
+    
+  public int getQual()
+    {  return gpsQual;  }
+    
+  public int getSats()
+    {  return gpsSats;  }
+    
+  public float getAlt()
+    {  return gpsAlt;  }
+    
+  public float getTrackT()
+    {  return gpsTrackT;  }
+    
+  public float getSpeed()
+    {  return gpsSpeed;  }
+  
+  /** Was the latest data a good fix? (Only looks at the last sentences received; see NmeaProcessor.isFixGood.) */
+  protected boolean hasFix()
+    {  return isFixGood;  }
+
+  /** clockMillis() time of the last position or velocity update. */
+  protected long getTimeLastPosition()
+    {  return timeLastPosition;  }
+
+
+
+  public String getLastGGA()
+    {  return gpsLastGGA;  }
+  
+  
+  
+  public String getLastVTG()
+    {  return gpsLastVTG;  }
+  
+  
+  
+  public long getSentencesRejected()      // Number of NMEA sentences thrown away (bad format or checksum).
+    {  return nmeaParser.getSentencesRejected();  }
+
+
+  
+  
+  
+  
+  
+
+  /********** toString Method: *************************************
+   * Returns a string with a data summary (useful for debugging):
+   * @return String representing class data 
+   ******************************************************************/
+  public String toString()
+    {
+    // Return a summary of GPS data as a string (for debugging).
+    StringBuffer thisDump = new StringBuffer(); 
+        
+    thisDump.append(  String.format( " Time:      %.1f\n" +
+                                     " Qual:      %d\n" +
+                                     " Sats:      %d\n\n" +
+                                     " Latitude:  %.6f\n" + 
+                                     " Longitude: %.6f\n" +
+                                     " Altitude:  %.1f\n" +
+                                     " Track:     %.1f\n" +
+                                     " Speed:     %.1f\n\n",  
+                                     gpsTime, gpsQual, gpsSats, gpsLat, gpsLon, gpsAlt, gpsTrackT, gpsSpeed )  );
+    if (isFixGood) thisDump.append( "Fix: GOOD\n\n");
+    else           thisDump.append( "Fix: NO FIX\n\n");
+    thisDump.append( " Rejected:  " + nmeaParser.getSentencesRejected() + "\n" );
+    // -- DEBUG: -- thisDump.append( gpsLastGGA.replace(",",",\n") + "\n\n" + gpsLastVTG.replace(",",",\n");
+    return thisDump.toString();
+    }
+  
+
+  private void sendFix()
+    {
+    onFix();
+    isDataSent = true; 
+    updateCount++;
+    }
+
+
+
+
+
+
+  /**
+   NMEA Sentence filter and decoder <p>
+   
+   Filters out specific NMEA sentences, and decodes the values contained in them. 
+   In particular, it uses the GGA sentence to get most data (position, time, etc) 
+   and either VTG or RMC to get velocity and ground track. Any talker ID is 
+   accepted (GP, GN, GL, GA, BD...), so multi-constellation receivers work. <p> 
+   
+   GPS data output varies between devices, in terms of which NMEA sentences are 
+   included, the order they come in, and the update rate (1 Hz for phones, 10 - 25 Hz
+   for external receivers). The sentences for one position fix (an 'epoch') all 
+   carry the same UTC time, so the decoder works like this: <p>
+   
+    <ul>
+     <li>A new epoch starts when a GGA or RMC arrives with a different UTC time
+         (or the same sentence arrives twice, if there is no time yet). VTG and 
+         other sentences without a time belong to the current epoch.
+          
+     <li>The epoch is complete (and the data are sent) once we have a position and 
+         a velocity. The position comes from GGA; if the receiver didn't send GGA 
+         in the previous epoch, RMC is used for the position instead.
+     
+     <li>If GGA, VTG and RMC are all included, they will contain the same speed and 
+         ground track, so the first version in each epoch will be used.
+     
+     <li>If an epoch ends without being complete but has a position, it is sent 
+         when the next epoch starts.
+    </ul>
+    
+   So there are no assumptions about the update rate. The UTC time of the epoch is 
+   kept in mS (see getTimeMillis), and is used as the time base for lap timing. 
+
+   @param thisNMEA  String containing an NMEA sentence from the GPS  
+   */
+  public void decode( String thisNMEA )
+    {
+    // Decodes NMEA sentences and sets NMEAData values.
+    //
+    // Example NMEA data sentence: 
+    //  "$GPGGA,123519,4807.038,N,01131.000,E,1,08,0.9,545.4,M,46.9,M,,*47"
+    //
+    // The parser checks the checksum and finds the fields without creating any 
+    // objects. Corrupted sentences are rejected (and counted), and ignored here. 
+    
+    // --DEBUG!!-- Dump NMEA Sentences: Log.i( "NMEA", thisNMEA );
+        
+    int nmeaSentenceID = nmeaParser.parse(thisNMEA);   // Identifies the sentence (e.g. GGA). 
+    
+    // Select and process the sentences we want to use:
+    /*********************************************************************************************/
+    if (nmeaSentenceID == NmeaParser.SENTENCE_GGA)
+      {
+      // GGA String - Essential Fix Data:
+      //  $GPGGA,Time, Lat, N|S, Lon, E|W, Qual, Sats, HDOP, Alt,M, Geoid,M, , , Checksum
+      checkEpoch(1, SEEN_GGA);
+      epochSentences |= SEEN_GGA;
+      gpsLastGGA = thisNMEA;
+      // --DEBUG!!-- dashMessages.sendData( "GPS_GGA", null, null, gpsLastGGA, null );
+      if (nmeaParser.getFieldCount() >= 12)
+        {
+        // Should be at least 12 fields in a GGA String.
+        // Lat and Lon come back with the correct sign (South of equator and West of Grenwitch are negative). 
+        float  thisTime = nmeaParser.getFloat(1);
+        double thisLat  = nmeaParser.getDegrees(2);
+        double thisLon  = nmeaParser.getDegrees(4);
+        int    thisQual = nmeaParser.getInt(6, -1);
+        int    thisSats = nmeaParser.getInt(7, -1);
+        float  thisAlt  = nmeaParser.getFloat(9);
+        if ( Float.isNaN(thisTime) || Double.isNaN(thisLat) || Double.isNaN(thisLon) 
+             || (thisQual < 0) || (thisSats < 0) || Float.isNaN(thisAlt) )
+          {  
+          // Missing fields... Indicates that we aren't receiving good data. (e.g. empty fields)
+          isFixGood = false; 
+          }
+        else
+          {
+          gpsTime = thisTime;
+          gpsLat  = thisLat;
+          gpsLon  = thisLon;
+          gpsQual = thisQual;
+          gpsSats = thisSats;
+          gpsAlt  = thisAlt;
+          isFixGood = (gpsQual > 0);
+          timeLastPosition = clockMillis();  //  We have a position fix!
+          }
+        }  // [if (nmeaParser.getFieldCount() >= 12)]
+      }  // [if (nmeaSentenceID == NmeaParser.SENTENCE_GGA)]
+    /*********************************************************************************************/
+    else if (nmeaSentenceID == NmeaParser.SENTENCE_VTG)
+      {
+      // VTG String - Velocity Made Good:
+      //  $GPVTG,TrueTrack,T, MagTrack,M, Speed_knots,N, Speed_kph,K, Checksum
+      if (!hasVelocity() && (nmeaParser.getFieldCount() >= 8))
+        {
+        // Should be at least 8 fields in a VTG String.
+        // (Track may be empty when stopped; keep the last one.) 
+        float thisSpeed  = nmeaParser.getFloat(7);
+        float thisTrackT = nmeaParser.getFloat(1);
+        if (!Float.isNaN(thisSpeed))
+          {
+          gpsSpeed  = thisSpeed;
+          if (!Float.isNaN(thisTrackT)) gpsTrackT = thisTrackT;
+          timeLastPosition = clockMillis();  // We have VTG data!
+          }
+        // Otherwise, empty fields... Indicates that we aren't receiving good data. Ignore. 
+        }  // [if (nmeaParser.getFieldCount() >= 8)]
+      gpsLastVTG = thisNMEA;
+      epochSentences |= SEEN_VTG;
+      }  // [if (nmeaSentenceID == NmeaParser.SENTENCE_VTG)]
+    /*********************************************************************************************/
+    else if (nmeaSentenceID == NmeaParser.SENTENCE_RMC)
+      {
+      // RMC String - Recommended minimum data: 
+      //  $GPRMC, Time, [A|V], Lat, N|S, Lon, E|W, Speed (Knots), Track (Deg True), Date, MagVariation, E|W, A*4A
+      checkEpoch(1, SEEN_RMC);
+      // --DEBUG!!-- dashMessages.sendData( "GPS_VTG", null, null, gpsLastVTG, null );
+      if (nmeaParser.getFieldCount() >= 10)
+        {
+        // Should be at least 10 fields in a RMC String (older receivers don't send the mode field). 
+        if (!hasVelocity())
+          {
+          float thisSpeed  = nmeaParser.getFloat(7);
+          float thisTrackT = nmeaParser.getFloat(8);
+          if (!Float.isNaN(thisSpeed))
+            {
+            gpsSpeed  = thisSpeed * 1.852f;  // Note: RMC speed is in knots! Convert to kph
+            if (!Float.isNaN(thisTrackT)) gpsTrackT = thisTrackT;
+            timeLastPosition = clockMillis();  // We have RMC data!
+            }
+          // Otherwise, empty fields... Indicates that we aren't receiving good data. Ignore. 
+          }
+        if (!isGGAExpected())
+          {
+          // This receiver isn't sending GGA, so use the RMC position: 
+          float  thisTime = nmeaParser.getFloat(1);
+          double thisLat  = nmeaParser.getDegrees(3);
+          double thisLon  = nmeaParser.getDegrees(5);
+          if ( (nmeaParser.getChar(2) != 'A') || Float.isNaN(thisTime) || Double.isNaN(thisLat) || Double.isNaN(thisLon) )
+            {  isFixGood = false;  }
+          else
+            {
+            gpsTime = thisTime;
+            gpsLat  = thisLat;
+            gpsLon  = thisLon;
+            isFixGood = true;
+            timeLastPosition = clockMillis();
+            }
+          }
+        }  // [if (nmeaParser.getFieldCount() >= 10)]
+      gpsLastVTG = thisNMEA;
+      epochSentences |= SEEN_RMC;
+      }  // [if (nmeaSentenceID == NmeaParser.SENTENCE_RMC)]
+    /*********************************************************************************************/
+    else return;   // Some other sentence (or rejected). 
+    
+    // Is the epoch complete? If so, send the data (once per epoch): 
+    if ( (!isDataSent) && hasVelocity() && hasPosition() ) sendFix();
+    }
+  
+  
+  
+  
+  // ******** Epoch Tracking: ********
+  private static final int SEEN_GGA = 1;      // ]
+  private static final int SEEN_VTG = 2;      // ] Bits in epochSentences 
+  private static final int SEEN_RMC = 4;      // ]
+  
+  // Did the receiver send GGA in the last epoch? If not, we'll use RMC for the position: 
+  private boolean isGGAExpected()
+    {  return ((lastEpochSentences & SEEN_GGA) != 0) || ((epochSentences & SEEN_GGA) != 0);  }
+
+  private boolean hasVelocity()
+    {  return (epochSentences & (SEEN_VTG | SEEN_RMC)) != 0;  }
+
+  private boolean hasPosition()
+    {
+    if ((epochSentences & SEEN_GGA) != 0) return true;
+    return ((epochSentences & SEEN_RMC) != 0) && !isGGAExpected();
+    }
+  
+  
+  /**
+   Check whether a sentence with a UTC time (GGA or RMC) starts a new epoch 
+   @param timeField  Field containing the time (hhmmss.sss) 
+   @param thisSentence  SEEN_ flag for this sentence 
+   */
+  private void checkEpoch(int timeField, int thisSentence)
+    {
+    long thisTime = utcMillis(timeField);
+    boolean isNewEpoch;
+    if (thisTime < 0) isNewEpoch = ((epochSentences & thisSentence) != 0);   // No time (no fix yet): New epoch if we've already had this sentence. 
+    else              isNewEpoch = (thisTime != epochTimeMillis);
+    if (!isNewEpoch) return;
+    
+    // Previous epoch incomplete, but had a position? Send it now: 
+    if ( (!isDataSent) && hasPosition() ) sendFix();
+    lastEpochSentences = epochSentences;
+    epochSentences = 0;
+    isDataSent     = false;
+    if (thisTime >= 0)
+      {
+      epochTimeMillis = thisTime;
+      gpsTimeMillis = thisTime;
+      }
+    }
+  
+  
+  /**
+   Convert a UTC time field (hhmmss.sss) to mS. The result keeps counting up past 
+   midnight (a day is added whenever the time jumps back by more than 12 hours), 
+   so it can be used to measure elapsed time. 
+   @return Time in mS, or -1 if the field is empty. 
+   */
+  private long utcMillis(int field)
+    {
+    double hhmmss = nmeaParser.getDouble(field);
+    if (Double.isNaN(hhmmss) || (hhmmss < 0.0)) return -1;
+    int hours   = (int)(hhmmss / 10000.0);
+    int minutes = (int)(hhmmss / 100.0) % 100;
+    double seconds = hhmmss - (hours * 10000) - (minutes * 100);
+    long thisTime = Math.round( ((hours * 3600) + (minutes * 60) + seconds) * 1000.0 ) + dayOffsetMillis;
+    if ( (gpsTimeMillis > 0) && (thisTime < (gpsTimeMillis - (MILLIS_PER_DAY / 2))) )
+      {
+      // Past midnight! 
+      dayOffsetMillis += MILLIS_PER_DAY;
+      thisTime += MILLIS_PER_DAY;
+      }
+    return thisTime;
+    }
+
+
+
+
+  }  // [class NmeaDecoder]
@@ -0,0 +1,273 @@
+package com.tumanako.sensors;
+
+/************************************************************************************
+Tumanako - Electric Vehicle and Motor control software
+
+Copyright (C) 2014 Jeremy Cole-Baker <jeremy@rhtech.co.nz>
+
+This file is part of Tumanako Dashboard.
+
+Tumanako is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published
+by the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Tumanako is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with Tumanako.  If not, see <http://www.gnu.org/licenses/>.
+
+*************************************************************************************/
+
+
+
+/****************************************************************
+ *  NMEA Sentence Parser:
+ *  -------------------------------
+ *
+ *  Splits an NMEA sentence into fields and decodes them, working
+ *  directly on the characters of the sentence String (no substrings,
+ *  split() or boxed numbers, so nothing is allocated per sentence).
+ *  A sentence looks like this:
+ *
+ *    $GPGGA,123519,4807.038,N,01131.000,E,1,08,0.9,545.4,M,46.9,M,,*47
+ *
+ *  parse() checks the '*hh' checksum (the XOR of all characters
+ *  between '$' and '*'), finds the sentence type from the three
+ *  letters after the talker ID (so GPGGA, GNGGA, GLGGA etc. are all
+ *  SENTENCE_GGA), and records where each field starts and ends.
+ *  Sentences with a bad or missing checksum are rejected, and
+ *  counted. Fields are then read with getDouble(), getInt(),
+ *  getChar() or getDegrees(). Field 0 is the sentence ID ("GPGGA").
+ *
+ *  Empty or badly formed numbers are returned as NaN (getDouble,
+ *  getDegrees) or the given default (getInt), so the caller can tell
+ *  when a value is missing (e.g. no fix).
+ *
+ * @author Jeremy Cole-Baker / Riverhead Technology
+ *
+ ***************************************************************/
+public class NmeaParser
+  {
+
+  /****** Sentence types (returned by parse): ********************/
+  public static final int SENTENCE_INVALID = 0;    // Rejected: bad format or checksum.
+  public static final int SENTENCE_OTHER   = 1;    // Valid, but not one we decode.
+  public static final int SENTENCE_GGA     = 2;    // Fix data
+  public static final int SENTENCE_VTG     = 3;    // Track and speed
+  public static final int SENTENCE_RMC     = 4;    // Recommended minimum data
+  public static final int SENTENCE_GSA     = 5;    // DOP and active satellites
+
+  public static final int MAX_FIELDS = 32;         // Extra fields are ignored.
+
+  // Powers of ten for the number parser (avoids Math.pow):
+  private static final double[] POW10 =
+    { 1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18 };
+
+  private String sentence = "";
+  private final int[] fieldStart = new int[MAX_FIELDS];
+  private final int[] fieldEnd   = new int[MAX_FIELDS];
+  private int fieldCount = 0;
+
+  private volatile long sentencesParsed   = 0;     // Counters are written by the parsing thread only, but may be read from any thread.
+  private volatile long sentencesRejected = 0;
+  private volatile long checksumErrors    = 0;
+
+
+
+
+
+  /************* Parse a sentence: *******************************************
+   * Checks the sentence and finds its fields. Trailing CR / LF are ignored.
+   * The sentence is kept (not copied) until the next call, for the get
+   * methods to read.
+   *
+   * @param thisSentence  NMEA sentence, e.g. from GpsStatus.NmeaListener
+   * @return Sentence type (SENTENCE_...), or SENTENCE_INVALID if rejected.
+   ***************************************************************************/
+  public int parse(String thisSentence)
+    {
+    sentence = thisSentence;
+    fieldCount = 0;
+    int length = (thisSentence == null) ? 0 : thisSentence.length();
+    while ((length > 0) && (thisSentence.charAt(length - 1) <= ' ')) length--;   // Trailing CR / LF / spaces.
+
+    // Must start with '$' and end with '*hh':
+    if ((length < 10) || (thisSentence.charAt(0) != '$') || (thisSentence.charAt(length - 3) != '*'))
+      {  return reject(false);  }
+    int checksumAt = length - 3;
+    int expected = (hexValue(thisSentence.charAt(length - 2)) << 4) | hexValue(thisSentence.charAt(length - 1));
+    if (expected < 0) return reject(true);
+
+    // Work out the checksum, and find the fields at the same time:
+    int checksum = 0;
+    boolean isFieldsFull = false;
+    fieldStart[0] = 1;
+    fieldCount = 1;
+    for (int pos = 1; pos < checksumAt; pos++)
+      {
+      char thisChar = thisSentence.charAt(pos);
+      checksum ^= thisChar;
+      if ((thisChar == ',') && !isFieldsFull)
+        {
+        fieldEnd[fieldCount - 1] = pos;
+        if (fieldCount < MAX_FIELDS)
+          {
+          fieldStart[fieldCount] = pos + 1;
+          fieldCount++;
+          }
+        else isFieldsFull = true;
+        }
+      }
+    if (!isFieldsFull) fieldEnd[fieldCount - 1] = checksumAt;
+    if ((checksum & 0xFF) != expected) return reject(true);
+
+    // Sentence ID: 2 character talker ID, then the sentence type (e.g. "GP" "GGA"):
+    if ((fieldEnd[0] - fieldStart[0]) != 5) return reject(false);
+    sentencesParsed++;
+    char c1 = thisSentence.charAt(3);
+    char c2 = thisSentence.charAt(4);
+    char c3 = thisSentence.charAt(5);
+    if      ((c1 == 'G') && (c2 == 'G') && (c3 == 'A'))  return SENTENCE_GGA;
+    else if ((c1 == 'V') && (c2 == 'T') && (c3 == 'G'))  return SENTENCE_VTG;
+    else if ((c1 == 'R') && (c2 == 'M') && (c3 == 'C'))  return SENTENCE_RMC;
+    else if ((c1 == 'G') && (c2 == 'S') && (c3 == 'A'))  return SENTENCE_GSA;
+    return SENTENCE_OTHER;
+    }
+
+
+
+  private int reject(boolean isChecksumError)
+    {
+    fieldCount = 0;
+    sentencesRejected++;
+    if (isChecksumError) checksumErrors++;
+    return SENTENCE_INVALID;
+    }
+
+
+  private static int hexValue(char thisChar)
+    {
+    if ((thisChar >= '0') && (thisChar <= '9')) return thisChar - '0';
+    if ((thisChar >= 'A') && (thisChar <= 'F')) return thisChar - 'A' + 10;
+    if ((thisChar >= 'a') && (thisChar <= 'f')) return thisChar - 'a' + 10;
+    return -256;      // Makes the combined checksum negative.
+    }
+
+
+
+
+  /************* Read fields: ************************************************/
+
+  /** @return Number of fields in the last sentence parsed (including the sentence ID). */
+  public int getFieldCount()
+    {  return fieldCount;  }
+
+
+  /** @return true if the field is missing or empty. */
+  public boolean isEmpty(int field)
+    {  return (field < 0) || (field >= fieldCount) || (fieldEnd[field] <= fieldStart[field]);  }
+
+
+  /** @return First character of a field (e.g. 'N', 'S', 'A'), or 0 if empty. */
+  public char getChar(int field)
+    {  return isEmpty(field) ? (char)0 : sentence.charAt(fieldStart[field]);  }
+
+
+  /** @return Field as a number, or NaN if it is empty or not a number. */
+  public double getDouble(int field)
+    {
+    if (isEmpty(field)) return Double.NaN;
+    String thisSentence = sentence;
+    int pos = fieldStart[field];
+    int end = fieldEnd[field];
+
+    boolean isNegative = false;
+    char thisChar = thisSentence.charAt(pos);
+    if ((thisChar == '-') || (thisChar == '+'))
+      {
+      isNegative = (thisChar == '-');
+      pos++;
+      }
+    long mantissa = 0;
+    int digits = 0;
+    int exponent = 0;
+    boolean isFraction = false;
+    for (; pos < end; pos++)
+      {
+      thisChar = thisSentence.charAt(pos);
+      if ((thisChar >= '0') && (thisChar <= '9'))
+        {
+        if (mantissa < 100000000000000000L)
+          {
+          mantissa = (mantissa * 10) + (thisChar - '0');
+          if (isFraction) exponent--;
+          }
+        else if (!isFraction) exponent++;     // Too many digits to hold: just keep track of the magnitude.
+        digits++;
+        }
+      else if ((thisChar == '.') && !isFraction) isFraction = true;
+      else return Double.NaN;                 // Not a number.
+      }
+    if (digits == 0) return Double.NaN;
+
+    double value = mantissa;
+    if (exponent < 0)      value = (-exponent < POW10.length) ? (value / POW10[-exponent]) : 0.0;
+    else if (exponent > 0) value = (exponent < POW10.length)  ? (value * POW10[exponent])  : Double.NaN;
+    return isNegative ? -value : value;
+    }
+
+
+  /** @return Field as a float, or NaN if it is empty or not a number. */
+  public float getFloat(int field)
+    {  return (float)getDouble(field);  }
+
+
+  /** @return Field as an integer (fraction dropped), or defaultValue if it is empty or not a number. */
+  public int getInt(int field, int defaultValue)
+    {
+    double value = getDouble(field);
+    return Double.isNaN(value) ? defaultValue : (int)value;
+    }
+
+
+  /**
+   Get a latitude or longitude field in decimal degrees <p>
+   NMEA lat and long are in a funny format: "DDDMM.MMMMM" or "DDMM.MMMMM",
+   where DDD is degrees (000-180) and MM.MMM is decimal minutes. The sign
+   is in the next field (N / S or E / W), and is applied here if present.
+   @param field  Field containing the lat or long (the hemisphere is the next field)
+   @return Decimal degrees (South and West are negative), or NaN if empty or not a number.
+   */
+  public double getDegrees(int field)
+    {
+    double value = getDouble(field);
+    if (Double.isNaN(value) || (value < 0.0)) return Double.NaN;
+    double degrees = Math.floor(value / 100.0);
+    double result = degrees + ((value - (degrees * 100.0)) / 60.0);
+    char hemisphere = getChar(field + 1);
+    return ((hemisphere == 'S') || (hemisphere == 'W')) ? -result : result;
+    }
+
+
+
+
+  /************* Statistics: *************************************************/
+
+  /** @return Number of valid sentences parsed. */
+  public long getSentencesParsed()
+    {  return sentencesParsed;  }
+
+  /** @return Number of sentences rejected (bad format or checksum). */
+  public long getSentencesRejected()
+    {  return sentencesRejected;  }
+
+  /** @return Number of sentences rejected because of a bad or unreadable checksum. */
+  public long getChecksumErrors()
+    {  return checksumErrors;  }
+
+
+  }  // [class NmeaParser]
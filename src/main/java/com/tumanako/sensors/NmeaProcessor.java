@@ -24,6 +24,7 @@ along with Tumanako.  If not, see <http://www.gnu.org/licenses/>.
 
 
 //import com.tumanako.dash.DashMessages;
+import com.tumanako.dash.DashBus;
 import com.tumanako.dash.DashMessages;
 import com.tumanako.dash.IDashMessages;
 
@@ -41,8 +42,8 @@ import android.util.Log;
  *  Implements the GpsStatus.NmeaListener interface, which receives NMEA 
  *  sentences from the NMEAData. 
  *  
- *  This class also includes filters to select specific NMEA strings and 
- *  extract the data fields.
+ *  The sentences are decoded by NmeaDecoder (the plain Java part, which 
+ *  filters out specific NMEA strings and extracts the data fields).
  *  
  *  Methods are provided to return the extracted gps data to a parent
  *  class. 
@@ -54,9 +55,12 @@ import android.util.Log;
  *  First create a NmeaGPS object (see NmeaGPS.java). That class will
  *  create an instance of this class to receive and process NMEA data. 
  *   
- *  Once up and running, this class generates an intent whenever GPS data are
- *  updated, used to signal other components that they can request elements
- *  of the new data by calling getTime(), getLat(), etc as needed.  
+ *  Once up and running, this class publishes the GPS values for the UI on 
+ *  DashBus channels (DATA_GPS_TIME, DATA_GPS_SPEED etc.) for every epoch, 
+ *  and passes good fixes to the sensor fusion and the lap data worker. It 
+ *  also sends the whole fix as an intent (GPS_POSITION, with a Bundle of 
+ *  GPS data), but only every BROADCAST_INTERVAL mS, since each one 
+ *  allocates an Intent. 
  *   
  * NOTE: 
  *  Currently, any other component which wants actual GPS data
@@ -72,40 +76,30 @@ import android.util.Log;
  *
  ***************************************************************/
 
-public class NmeaProcessor implements GpsStatus.NmeaListener, IDroidSensor, IDashMessages
+public class NmeaProcessor extends NmeaDecoder implements GpsStatus.NmeaListener, IDroidSensor, IDashMessages
   {
      
-  // ****** Information directly from the NMEAData: **********
-  private float  gpsTime   = 0f;           // NMEAData Time (UTC), HHMMSS (e.g. 123542.0 for 12:35:42 pm)
-  private double gpsLat    = 0.0;          // NMEAData Latitude (Dec. Degrees)
-  private double gpsLon    = 0.0;          // NMEAData Longitude (Dec. Degrees)
-  private int    gpsQual   = 0;            // NMEAData Fix Quality *
-  private int    gpsSats   = 0;            // NMEAData Number of satellites
-  private float  gpsAlt    = 0f;           // NMEAData Altitude (m)
-  private float  gpsTrackT = 0f;           // NMEAData Ground track (Deg, True)
-  private float  gpsSpeed  = 0f;           // NMEAData Grong speed (kph)
-  private String gpsLastGGA = "";          // Will store the last GGA and
-  private String gpsLastVTG = "";          // VTG strings received (for debugging)
-  
-  // ***** Information derived during operation: **********
-  private boolean isLastSentence   = false;   // Set to true after the 'GSA' sentence arrives (last in a cycle), and false when any other sentence arrives.
-  private boolean isDataSent       = false;   // Flag to indicate that the latest update has been sent. Reset when a new cycle is started. 
-  private long    timeLastPosition = 0l;      // System time (mS) for the last position update.
-  private boolean isFixGood        = false;   // Do we have a current fix? True when we are receiving good NMEA data; false if NMEA data is empty (i.e. no fix)
-                                              //  NOTE: This only looks at the last NMEA we received; if NMEA data stop alltogether, isFixGood may still be true. 
-                                              //  See IsFixGood() method below (also checks for time since last NMEA data).
+  private final SensorFusion sensorFusion = SensorFusion.getInstance();
+  private FixQueue fixQueue = null;                         // Good fixes are also queued here for the lap data worker (see setFixQueue).
   
   private static final int NMEA_WAIT_TIMEOUT = 3000;   // If no NMEA sentences received after this many mS, we'll declare that the NMEAData has stopped. 
+  private static final int BROADCAST_INTERVAL = 200;   // mS. GPS_POSITION is sent at most this often (5 per second; more than the text needs). 
   
   /****** GPS Data Message Intent Filters: *********/
   public static final String GPS_POSITION = "DATA_GPS_POSITION";  
 
     
   private DashMessages dashMessages;
-  
-  // ---------------DEMO MODE CODE -------------------------------
-  private boolean isDemo = false;  // Demo mode flag!
-  // ---------------DEMO MODE CODE -------------------------------  
+  private final Bundle gpsData = new Bundle();           // Reused for each GPS_POSITION message.
+  private long lastBroadcastTime = 0;                    // clockMillis() when GPS_POSITION was last sent.
+
+  // DashBus channels for the GPS values shown in text boxes: 
+  private final DashBus dashBus = DashBus.getInstance();
+  private final int channelGpsTime  = dashBus.channel("DATA_GPS_TIME");
+  private final int channelGpsSpeed = dashBus.channel("DATA_GPS_SPEED");
+  private final int channelGpsSats  = dashBus.channel("DATA_GPS_NSATS");
+  private final int channelGpsLat   = dashBus.channel("DATA_GPS_LAT");
+  private final int channelGpsLon   = dashBus.channel("DATA_GPS_LON");
 
   
   /************************************************************
@@ -119,42 +113,17 @@ public class NmeaProcessor implements GpsStatus.NmeaListener, IDroidSensor, IDas
 
   
   
-  // ******* Methods to return NMEAData data: ******************
-  public float getTime()
-    {  return gpsTime;  }
-    
-  public double getLat()
-    {  return gpsLat;  }
-    
-  public double getLon()
-    {  return gpsLon;  }
-    
-  public int getQual()
-    {  return gpsQual;  }
-    
-  public int getSats()
-    {  return gpsSats;  }
-    
-  public float getAlt()
-    {  return gpsAlt;  }
+  /** Queue each good fix to the given queue (e.g. LapData.getFixQueue()), or null to stop. Call on the UI thread. */
+  public void setFixQueue(FixQueue thisQueue)
+    {  fixQueue = thisQueue;  }
     
-  public float getTrackT()
-    {  return gpsTrackT;  }
-    
-  public float getSpeed()
-    {  return gpsSpeed;  }
-  
   public boolean isFixGood()
     {
     // Do we have good NMEAData data?
     
-    // ---------------DEMO MODE CODE -------------------------------
-    // Overrides normal operation in demo mode: 
-    if (isDemo) return true;
-    // ---------------DEMO MODE CODE -------------------------------    
-    
     //  If isFixGood and it's been less than NMEA_WAIT_TIMEOUT mS since the last good NMEA data, this is a good fix! 
-    if (isFixGood && (timeLastPosition > NMEA_WAIT_TIMEOUT) && (timeLastPosition + NMEA_WAIT_TIMEOUT) > (SystemClock.elapsedRealtime()) )
+    long timeLastPosition = getTimeLastPosition();
+    if (hasFix() && (timeLastPosition > NMEA_WAIT_TIMEOUT) && (timeLastPosition + NMEA_WAIT_TIMEOUT) > (SystemClock.elapsedRealtime()) )
       {  return true;  }
     else
       {  return false;  }
@@ -162,53 +131,6 @@ public class NmeaProcessor implements GpsStatus.NmeaListener, IDroidSensor, IDas
   
   
   
-  public String getLastGGA()
-    {  return gpsLastGGA;  }
-  
-  
-  
-  public String getLastVTG()
-    {  return gpsLastVTG;  }
-
-
-  
-  
-  // ---------------DEMO MODE CODE -------------------------------
-  public void setDemo(boolean thisIsDemo)
-    {
-    // Set the 'Demo' mode flag: 
-    isDemo = thisIsDemo;
-    }
-  // ---------------DEMO MODE CODE -------------------------------
-  
-  
-  
-
-  /********** toString Method: *************************************
-   * Returns a string with a data summary (useful for debugging):
-   * @return String representing class data 
-   ******************************************************************/
-  public String toString()
-    {
-    // Return a summary of NMEAData data as a string (for debugging).
-    StringBuffer thisDump = new StringBuffer(); 
-        
-    thisDump.append(  String.format( " Time:      %.1f\n" +
-                                     " Qual:      %d\n" +
-                                     " Sats:      %d\n\n" +
-                                     " Latitude:  %.6f\n" + 
-                                     " Longitude: %.6f\n" +
-                                     " Altitude:  %.1f\n" +
-                                     " Track:     %.1f\n" +
-                                     " Speed:     %.1f\n\n",  
-                                     gpsTime, gpsQual, gpsSats, gpsLat, gpsLon, gpsAlt, gpsTrackT, gpsSpeed )  );
-    if (isFixGood) thisDump.append( "Fix: GOOD\n\n");
-    else           thisDump.append( "Fix: NO FIX\n\n");
-    // -- DEBUG: -- thisDump.append( gpsLastGGA.replace(",",",\n") + "\n\n" + gpsLastVTG.replace(",",",\n");
-    return thisDump.toString();
-    }
-  
-
   public boolean isOK()
     {  return isFixGood();  }  // Returns the 'Fix Good' indication
 
@@ -219,19 +141,43 @@ public class NmeaProcessor implements GpsStatus.NmeaListener, IDroidSensor, IDas
   
   
   
-  private void sendGPSData()
+  protected long clockMillis()
+    {  return SystemClock.elapsedRealtime();  }
+  
+  
+  
+  // Called by the decoder once per epoch (on the UI thread): send the GPS data. 
+  protected void onFix()
     {
-    Bundle gpsData = new Bundle();
-    gpsData.putDouble  ( "LAT",    gpsLat    );
-    gpsData.putDouble  ( "LON",    gpsLon    );
-    gpsData.putFloat   ( "TIME",   gpsTime   );
-    gpsData.putFloat   ( "SPEED",  gpsSpeed  );
-    gpsData.putFloat   ( "TRACKT", gpsTrackT );
-    gpsData.putInt     ( "NSATS",  gpsSats   );
-    gpsData.putBoolean ( "FIX",    isFixGood ) ;
-    // Now transmit the data to the UI by sending a message!  
-    dashMessages.sendData( GPS_POSITION, null, null, null, gpsData );
-    isDataSent = true; 
+    boolean isFixGood = hasFix();
+    // Values for the UI text boxes (formats are in the layout). Nothing is allocated: 
+    dashBus.publishFloat( DashBus.DATA_GPS_HAS_LOCK, isFixGood ? 1f : 0f );
+    dashBus.publishFloat( channelGpsTime,  getTime()       );
+    dashBus.publishFloat( channelGpsSpeed, getSpeed()      );
+    dashBus.publishInt  ( channelGpsSats,  getSats()       );
+    dashBus.publishFloat( channelGpsLat,   (float)getLat() );
+    dashBus.publishFloat( channelGpsLon,   (float)getLon() );
+    // The whole fix as a message, for activities which want it (e.g. TrackSettingsActivity). Not every 
+    // epoch: each message allocates an Intent. The Bundle is reused (each message has been delivered, 
+    // on this thread, long before the next one is sent): 
+    long now = clockMillis();
+    if ((now - lastBroadcastTime) >= BROADCAST_INTERVAL)
+      {
+      lastBroadcastTime = now;
+      gpsData.putDouble  ( "LAT",    getLat()    );
+      gpsData.putDouble  ( "LON",    getLon()    );
+      gpsData.putFloat   ( "TIME",   getTime()   );
+      gpsData.putLong    ( "TIMEMS", getTimeMillis() );
+      gpsData.putFloat   ( "SPEED",  getSpeed()  );
+      gpsData.putFloat   ( "TRACKT", getTrackT() );
+      gpsData.putInt     ( "NSATS",  getSats()   );
+      gpsData.putBoolean ( "FIX",    isFixGood ) ;
+      dashMessages.sendData( GPS_POSITION, null, null, null, gpsData );
+      }
+    // Also pass good fixes to the sensor fusion (combined with the vehicle data on the vehicle data thread): 
+    if (isFixGood) sensorFusion.postFix( getLat(), getLon(), getSpeed(), getTrackT() );
+    // ...and to the lap data worker: 
+    if (isFixGood && (fixQueue != null)) fixQueue.put( getLat(), getLon(), getTimeMillis(), getSpeed(), getTrackT() );
     }
 
   
@@ -243,20 +189,8 @@ public class NmeaProcessor implements GpsStatus.NmeaListener, IDroidSensor, IDas
   public void onNmeaReceived(long timestamp, String nmea)
     {
     // Called by the location services when an NMEA sentence is received. 
-    nmeaDecode(nmea);
-
-    // ---------------DEMO MODE CODE -------------------------------
-    // Overrides normal operation in demo mode: 
-    if (isDemo)
-      {
-      //gpsSpeed  = (float)(Math.cos( (double)(System.currentTimeMillis() % 20000) / 3183  ) + 2) * 20;
-      isFixGood = true;                    //
-      }
-    // ---------------DEMO MODE CODE -------------------------------      
-        
-
-    // Finished one NMEA sentence cycle. Notify UI Class:
-    if ( (isLastSentence) && (!isDataSent) ) sendGPSData();   // Send some GPS data as Intents.
+    // Sends the GPS data (see onFix) when an epoch is complete: 
+    decode(nmea);
     }
   
   
@@ -267,177 +201,6 @@ public class NmeaProcessor implements GpsStatus.NmeaListener, IDroidSensor, IDas
   
   
   
-  /**
-   NMEA Sentence filter and decoder <p>
-   
-   Filters out specific NMEA sentences, and decodes the values contained in them. 
-   In particular, it uses the GPGGA sentence to get most data (position, time, etc) 
-   and either GPVTG or GPRMC to get velocity and ground track. <p> 
-   
-   GPS data output seems to vary between devices, in terms of which NMEA sentences are 
-   included. The decoder process makes several assumptions:  <p>
-   
-    <ul>
-     <li>Sentences will be transmitted on an update cycle, assumed to be 1 second. 
-         This means that a number of sentences will be transmitted close together, 
-         followed by a pause
-          
-     <li>Each cycle contains the GPGGA sentence on every device (minimum position information).
-         This sentence must occur BEFORE GPVTG or GPRMC (see below) 
-     
-     <li>Each cycle will include either GPVTG or GPRMC (or both), which will contain velocity 
-         and track information
-         
-     <li>If GPVTG and GPRMC are both included, they will contain the same speed and ground track, 
-         so the first version in each cycle will be used.
-    </ul>
-    
-   The code assumes a new cycle when it receives a GPGGA. The cycle is considered "complete" 
-   and the isLastSentence flag is set when the first of either GPVTG or GPRMC is received. 
-
-   @param thisNMEA  String containing an NMEA sentence from the GPS  
-   */
-  private void nmeaDecode( String thisNMEA )
-    {
-    // Decodes NMEA sentences and sets NMEAData values.
-    //
-    // Example NMEA data sentence: 
-    //  "$GPGGA,123519,4807.038,N,01131.000,E,1,08,0.9,545.4,M,46.9,M,,*47"
-    
-    // --DEBUG!!-- Dump NMEA Sentences: Log.i( "NMEA", thisNMEA );
-        
-    if (thisNMEA.length() < 6) return;   // Can't decode string - not enough data!
-
-    // "GGA" identifies the sentence:
-    String nmeaSentenceID = thisNMEA.substring(3,6);  // Get the name of the sentence. 
-    
-    // Split the sentence into fields using the comma: 
-    String[] nmeaParts = thisNMEA.split(",");
-    
-    // Select and process the sentences we want to use:
-    /*********************************************************************************************/
-    if (nmeaSentenceID.equals("GGA"))
-      {
-      // GGA String - Essential Fix Data:
-      //  $GPGGA,Time, Lat, N|S, Lon, E|W, Qual, Sats, HDOP, Alt,M, Geoid,M, , , Checksum
-      isLastSentence = false;   // Start of new cycle.
-      isDataSent     = false;   //
-      gpsLastGGA = thisNMEA;
-      // --DEBUG!!-- dashMessages.sendData( "GPS_GGA", null, null, gpsLastGGA, null );
-      if (nmeaParts.length >= 12)
-        {
-        // Should be at least 12 fields in a GGA String.
-        try
-          {
-          gpsTime = Float.valueOf(nmeaParts[1]);
-          gpsLat  = nmeaDegreeFix(nmeaParts[2]);
-          gpsLon  = nmeaDegreeFix(nmeaParts[4]);
-          gpsQual = Integer.valueOf(nmeaParts[6]);
-          gpsSats = Integer.valueOf(nmeaParts[7]);
-          gpsAlt  = Float.valueOf(nmeaParts[9]);
-          // Correct sign (South of equator and East of Grenwitch should be negative): 
-          if (nmeaParts[3].equals("S")) gpsLat = gpsLat * -1;   // South of equator!          
-          if (nmeaParts[5].equals("W")) gpsLon = gpsLon * -1;   // West of Grenwitch!
-          if (gpsQual > 0)
-            {  isFixGood = true;  }                          //
-          else
-            {  isFixGood = false;  }                         //
-          timeLastPosition = SystemClock.elapsedRealtime();  //  We have a position fix!
-          }
-        catch (NumberFormatException e)
-          {  
-          // Number format exception... Indicates that we aren't receiving good data. (e.g. empty fields)
-          isFixGood = false; 
-          }
-        }  // [if (nmeaParts.length >= 12)]
-      }  // [if (nmeaSentenceID.equals("GGA"))]
-    /*********************************************************************************************/
-    if (isLastSentence) return;  // If we've found the VTG or RMC data, don't bother checking 
-                                 // anything until we receive another GGA.  
-    /*********************************************************************************************/
-    if (nmeaSentenceID.equals("VTG"))
-      {
-      // VTG String - Velocity Made Good:
-      //  $GPVTG,TrueTrack,T, MagTrack,M, Speed_knots,N, Speed_kph,K, Checksum
-      isLastSentence = true;  // A VTG means the end of the cycle (we have all the data we need...). 
-      gpsLastVTG = thisNMEA;
-      if (nmeaParts.length >= 8)
-        {
-        // Should be at least 8 fields in a GGA String.
-        try
-          {
-          gpsSpeed  = Float.valueOf(nmeaParts[7]);
-          gpsTrackT = Float.valueOf(nmeaParts[1]);
-          // isFixGood = true;                                  //
-          timeLastPosition = SystemClock.elapsedRealtime();  // We have VTG data!
-          }
-        catch (NumberFormatException e)
-          {  
-          // Number format exception... Indicates that we aren't receiving good data. (e.g. empty fields) 
-          //isFixGood = false; // Ignore
-          }
-        }  // [if (nmeaParts.length >= 8)]
-      }  // [if (nmeaSentenceID.equals("VTG"))]
-    /*********************************************************************************************/
-    if (nmeaSentenceID.equals("RMC"))
-      {
-      // RMC String - Recommended minimum data: 
-      //  $GPRMC, Time, [A|V], Lat, N|S, Lon, E|W, Speed (Knots), Track (Deg True), Date, MagVariation, E|W, A*4A
-      isLastSentence = true;  // A RMC means the end of the cycle (we have all the data we need...). 
-      gpsLastVTG = thisNMEA;
-      // --DEBUG!!-- dashMessages.sendData( "GPS_VTG", null, null, gpsLastVTG, null );
-      if (nmeaParts.length >= 12)
-        {
-        // Should be at least 12 fields in a RMC String.
-        try
-          {
-          gpsSpeed  = Float.valueOf(nmeaParts[7]) * 1.852f;  // Note: RMC speed is in knots! Convert to kph
-          gpsTrackT = Float.valueOf(nmeaParts[8]);
-          // isFixGood = true;                                  //
-          timeLastPosition = SystemClock.elapsedRealtime();  // We have RMC data!
-          }
-        catch (NumberFormatException e)
-          {  
-          // Number format exception... Indicates that we aren't receiving good data. (e.g. empty fields) 
-          //isFixGood = false; // Ignore
-          }
-        }  // [if (nmeaParts.length >= 8)]
-      }  // [if (nmeaSentenceID.equals("VTG"))]
-    /*********************************************************************************************/
-    }
-  
-  
-  
-  
-  // ******** NMEA Degree format fix: *******
-  private double nmeaDegreeFix(String thisLatLon)
-    {
-    // NMEA lat and long are in a funny format: 
-    // "DDDMM.MMMMM" or "DDMM.MMMMM"
-    // Where DDD is degrees (000-180) and DD is degrees (00-90),
-    // and MM.MMM is decimal minutes. 
-    //
-    // This method unpacks the above number (represented as a string) and
-    // returns the value in decimal degrees. 
-    // (i.e. DDD + (MM.MMM / 60)
-    //
-    // Returns 0 if the conversion fails.   
-    if (thisLatLon.length() < 7) return 0.0;   // Should have at least 'DDMM.MM'.
-    try
-      {
-      int dotAt = thisLatLon.indexOf(".");
-      Double degrees = Double.valueOf(thisLatLon.substring(0,dotAt-2));
-      Double minutes = Double.valueOf(thisLatLon.substring(dotAt-2));
-      return degrees + (minutes /60.0);
-      }
-    catch (Exception e)
-      { 
-      return 0.0;  // On error, give up and return 0.0
-      }
-    }
-
-
-
   public void messageReceived(String action, Integer intData, Float floatData, String stringData, Bundle bundleData)
     {}
 
@@ -0,0 +1,516 @@
+package com.tumanako.sensors;
+
+/************************************************************************************
+Tumanako - Electric Vehicle and Motor control software
+
+Copyright (C) 2014 Jeremy Cole-Baker <jeremy@rhtech.co.nz>
+
+This file is part of Tumanako Dashboard.
+
+Tumanako is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published
+by the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Tumanako is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with Tumanako.  If not, see <http://www.gnu.org/licenses/>.
+
+*************************************************************************************/
+
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import android.content.Context;
+import android.location.GpsStatus;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+
+
+/****************************************************************
+ *  Recorded Session Replay Engine:
+ *  -------------------------------
+ *
+ *  Plays back a recorded session: the raw vehicle data stream (TDV1
+ *  lines) and the GPS NMEA sentences, with the times they were captured.
+ *
+ *  The engine is a VehicleTransport, so the TDV1 lines go through exactly
+ *  the same path as live data (VehicleData's line queue, decoder and
+ *  frame publishing). NMEA sentences are passed to a GpsStatus.NmeaListener
+ *  (normally the NmeaProcessor) on the UI thread, just as the location
+ *  service would, so LapData sees the same GPS updates as on the track.
+ *
+ *  Recording Format:
+ *  A text file, one record per line: capture time in mS from the start of
+ *  the session, a space, then the TDV1 line or NMEA sentence. Lines
+ *  starting with '#' are comments. E.g.
+ *
+ *    # Tumanako session recording
+ *    0 TDV1:3670,54,52,32,375,138,214,1,0
+ *    100 TDV1:3702,54,52,32,375,138,214,1,0
+ *    112 $GPGGA,123519,4807.038,N,01131.000,E,1,08,0.9,545.4,M,46.9,M,,*47
+ *
+ *  The source is a file path, or "asset:name" for a file in the app's assets.
+ *
+ *  Speed:
+ *   1     = real time
+ *   N     = N times real time
+ *   0     = as fast as possible (records are still delivered in order)
+ *
+ *  LapData times laps from the UTC times in the NMEA sentences, which come
+ *  from the recording, so the lap timing comes out the same on every run
+ *  whatever the speed, and a recording can be used to check lap timing
+ *  changes.
+ *
+ *  Loop Mode:
+ *  Each pass carries on in GPS time from the end of the last one: the UTC
+ *  times in the GGA and RMC sentences are moved forward by the length of
+ *  the recording (plus the gap between passes, rounded up to whole seconds)
+ *  on every pass, and the checksums are updated. Otherwise GPS time would
+ *  jump back at the start of each pass, and lap timing would stop working
+ *  after the first one. (The RMC date isn't changed.)
+ *
+ *  Resuming:
+ *  A new engine can carry on where an earlier one (for the same recording)
+ *  stopped: see resumeFrom(). DataService does this when it replaces the
+ *  demo replay (e.g. after the watchdog has stopped VehicleData), so GPS
+ *  time and position carry on instead of going back to the start of the
+ *  recording in the middle of a session.
+ *
+ *  Reporting:
+ *  At the end of each pass through the recording (and on close), the engine
+ *  logs the records replayed, the achieved rate, how late records were
+ *  delivered compared with the schedule, and the delay from posting each
+ *  NMEA sentence to it being processed on the UI thread. The VehicleData
+ *  latency report covers the vehicle data stages.
+ *
+ * @author Jeremy Cole-Baker / Riverhead Technology
+ *
+ ***************************************************************/
+public class ReplayEngine implements VehicleTransport
+  {
+
+  public static final String ASSET_PREFIX = "asset:";
+
+  private static final int RECORD_MAX_LENGTH = 256;      // Longer records are skipped.
+  private static final long LOOP_GAP         = 1000;     // mS between the end of the recording and the start of the next pass (loop mode)
+  private static final byte[] HEX_DIGITS    = { '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'A', 'B', 'C', 'D', 'E', 'F' };
+
+  private final Context context;
+  private final String source;
+  private final float speed;
+  private final boolean isLoop;
+  private final GpsStatus.NmeaListener nmeaListener;     // May be null (NMEA sentences are then skipped).
+  private final Handler nmeaHandler;
+
+  private volatile boolean isClosed = false;
+  private volatile InputStream recording = null;
+  private volatile Thread replayThread = null;          // Thread reading the stream (so close() can wake it up).
+  private final ReplayStream streamIn = new ReplayStream();
+
+  // Stats (written by the replay thread, except nmeaLatency*, which are written on the UI thread):
+  private volatile long linesReplayed = 0;
+  private volatile long sentencesReplayed = 0;
+  private volatile long recordsSkipped = 0;
+  private long lagCount = 0;
+  private long lagTotal = 0;          // nS
+  private long lagMax = 0;            // nS
+  private volatile long nmeaLatencyCount = 0;
+  private volatile long nmeaLatencyTotal = 0;    // nS
+  private volatile long nmeaLatencyMax = 0;      // nS
+
+
+
+
+  /**
+   ReplayEngine Constructor
+   @param thisContext       Context (used to open assets)
+   @param thisSource        File path, or "asset:name"
+   @param thisSpeed         1 = real time, N = N x real time, 0 = as fast as possible
+   @param thisIsLoop        Start again at the end of the recording?
+   @param thisNmeaListener  Receives the NMEA sentences (on the UI thread). null = skip them.
+   */
+  public ReplayEngine(Context thisContext, String thisSource, float thisSpeed, boolean thisIsLoop, GpsStatus.NmeaListener thisNmeaListener)
+    {
+    context = thisContext;
+    source = thisSource;
+    speed = Math.max(0f, thisSpeed);
+    isLoop = thisIsLoop;
+    nmeaListener = thisNmeaListener;
+    nmeaHandler = new Handler(Looper.getMainLooper());
+    }
+
+
+
+
+  public boolean open()
+    {
+    if (isClosed) return false;
+    try
+      {
+      openRecording();
+      return true;
+      }
+    catch (IOException e)
+      {
+      Log.i(com.tumanako.ui.UIActivity.APP_TAG, " ReplayEngine -> Can't open " + source + "; " + e.getMessage());
+      return false;
+      }
+    }
+
+
+  private void openRecording() throws IOException
+    {
+    InputStream thisStream;
+    if (source.startsWith(ASSET_PREFIX)) thisStream = context.getAssets().open(source.substring(ASSET_PREFIX.length()));
+    else                                 thisStream = new FileInputStream(source);
+    recording = new BufferedInputStream(thisStream, 4096);
+    }
+
+
+
+  public InputStream getInputStream()
+    {  return streamIn;  }
+
+
+
+  /**
+   Carry on from where another engine stopped (call before open()) <p>
+   Records up to the last one the other engine reached are skipped, and the NMEA
+   times keep the other engine's loop mode offset, so GPS time carries on from
+   where it stopped. The other engine should have finished (closed).
+   @param previous  Engine which was playing the same recording.
+   */
+  public void resumeFrom(ReplayEngine previous)
+    {  streamIn.resumeFrom(previous.streamIn);  }
+
+
+
+  public void close()
+    {
+    if (isClosed) return;
+    isClosed = true;
+    Thread thisThread = replayThread;
+    if (thisThread != null) thisThread.interrupt();      // Wake it up if it's waiting for the next record.
+    closeRecording();
+    report();
+    }
+
+
+  private void closeRecording()
+    {
+    InputStream thisStream = recording;
+    if (thisStream == null) return;
+    try                    {  thisStream.close();  }
+    catch (IOException e)  {  }
+    }
+
+
+
+  public String toString()
+    {  return "Replay " + source + " x" + speed;  }
+
+
+
+
+  /******** Stats: ***********************************************/
+
+  public long getLinesReplayed()
+    {  return linesReplayed;  }
+
+  public long getSentencesReplayed()
+    {  return sentencesReplayed;  }
+
+  /** @return Records per second achieved during the current pass. */
+  public float getThroughput()
+    {  return streamIn.getThroughput();  }
+
+
+  /**
+   Log a summary of the replay stats, then start again.
+   */
+  public void report()
+    {
+    long thisNmeaCount = nmeaLatencyCount;
+    Log.i(com.tumanako.ui.UIActivity.APP_TAG, " ReplayEngine -> " + toString()
+        + "; TDV1 lines: " + linesReplayed + "; NMEA: " + sentencesReplayed + "; Skipped: " + recordsSkipped
+        + "; Rate: " + (int)getThroughput() + " records/s"
+        + "; Schedule lag avg: " + ((lagCount > 0) ? (lagTotal / lagCount / 1000) : 0) + " uS, max: " + (lagMax / 1000) + " uS"
+        + "; NMEA delivery avg: " + ((thisNmeaCount > 0) ? (nmeaLatencyTotal / thisNmeaCount / 1000) : 0) + " uS, max: " + (nmeaLatencyMax / 1000) + " uS" );
+    lagCount = 0;
+    lagTotal = 0;
+    lagMax = 0;
+    nmeaLatencyCount = 0;
+    nmeaLatencyTotal = 0;
+    nmeaLatencyMax = 0;
+    }
+
+
+
+
+  /****************************************************************
+   * Delivers one NMEA sentence on the UI thread.
+   ***************************************************************/
+  private class NmeaTask implements Runnable
+    {
+    private final long captureTime;
+    private final String sentence;
+    private final long postTime;
+
+    public NmeaTask(long thisCaptureTime, String thisSentence)
+      {
+      captureTime = thisCaptureTime;
+      sentence = thisSentence;
+      postTime = System.nanoTime();
+      }
+
+    public void run()
+      {
+      if (isClosed) return;
+      long latency = System.nanoTime() - postTime;
+      nmeaLatencyCount++;
+      nmeaLatencyTotal += latency;
+      if (latency > nmeaLatencyMax) nmeaLatencyMax = latency;
+      nmeaListener.onNmeaReceived(captureTime, sentence);
+      }
+    }
+
+
+
+
+  /****************************************************************
+   * Input stream which plays back the recording. Each read waits
+   * until the next TDV1 line is due, and returns it (with CR LF).
+   * NMEA sentences found on the way are posted to the listener.
+   ***************************************************************/
+  private class ReplayStream extends InputStream
+    {
+
+    private final byte[] record = new byte[RECORD_MAX_LENGTH];
+    private int recordLength = 0;
+    private volatile long recordTime = 0;   // Capture time of the current record (mS)
+    private int payloadStart = 0;       // Index of the TDV1 line / NMEA sentence in 'record'
+
+    private final byte[] line = new byte[RECORD_MAX_LENGTH + 2];
+    private int lineLength = 0;
+    private int linePos = 0;
+
+    private long passStartNanos = -1;   // nanoTime at the start of this pass (-1 = not started)
+    private volatile long nmeaTimeOffset = 0;    // Added to the NMEA UTC times in this pass (mS; whole seconds; see Loop Mode)
+    private long skipUntil = -1;        // Records up to this capture time are skipped (mS; -1 = none; see resumeFrom)
+    private long passRecords = 0;
+    private volatile float throughput = 0f;
+    private final byte[] oneByte = new byte[1];   // For read()
+
+
+    public float getThroughput()
+      {  return throughput;  }
+
+
+    public void resumeFrom(ReplayStream previous)
+      {
+      nmeaTimeOffset = previous.nmeaTimeOffset;
+      skipUntil = previous.recordTime;
+      }
+
+
+    public int read() throws IOException
+      {
+      return (read(oneByte, 0, 1) < 0) ? -1 : (oneByte[0] & 0xFF);
+      }
+
+
+    public int read(byte[] buffer, int offset, int length) throws IOException
+      {
+      if (length == 0) return 0;
+      replayThread = Thread.currentThread();
+      while (linePos >= lineLength)
+        {
+        if (isClosed || !nextRecord()) return -1;
+        }
+      int count = Math.min(length, lineLength - linePos);
+      System.arraycopy(line, linePos, buffer, offset, count);
+      linePos += count;
+      return count;
+      }
+
+
+
+    /* Reads and schedules the next record. If it's a TDV1 line, it is left in 'line'.
+       Returns false at the end of the recording (unless looping) or if closed. */
+    private boolean nextRecord() throws IOException
+      {
+      if (!readRecord())
+        {
+        // End of the recording:
+        report();
+        if (!isLoop || isClosed) return false;
+        closeRecording();
+        openRecording();
+        passStartNanos = -1;
+        nmeaTimeOffset += ((recordTime + LOOP_GAP + 999) / 1000) * 1000;    // (recordTime is still the time of the last record.)
+        if (!sleepNanos(LOOP_GAP * 1000000L)) return false;
+        if (!readRecord()) return false;     // Empty recording!
+        }
+
+      // Wait until the record is due:
+      long now = System.nanoTime();
+      if (passStartNanos < 0)
+        {
+        passStartNanos = now - (long)(recordTime * 1000000.0 / ((speed > 0f) ? speed : 1f));
+        passRecords = 0;
+        }
+      if (speed > 0f)
+        {
+        long dueTime = passStartNanos + (long)(recordTime * 1000000.0 / speed);
+        if (!sleepNanos(dueTime - now)) return false;
+        long lag = System.nanoTime() - dueTime;
+        if (lag < 0) lag = 0;
+        lagCount++;
+        lagTotal += lag;
+        if (lag > lagMax) lagMax = lag;
+        }
+      passRecords++;
+      long passTime = System.nanoTime() - passStartNanos;
+      if (passTime > 0) throughput = (float)(passRecords * 1000000000.0 / passTime);
+
+      if (record[payloadStart] == '$')
+        {
+        // NMEA Sentence:
+        sentencesReplayed++;
+        if (nmeaTimeOffset != 0) shiftNmeaTime(payloadStart, recordLength);
+        if (nmeaListener != null)
+          nmeaHandler.post( new NmeaTask(recordTime, new String(record, payloadStart, recordLength - payloadStart, "US-ASCII")) );
+        lineLength = 0;
+        linePos = 0;
+        }
+      else
+        {
+        // Vehicle data: pass it on, with the line ending VehicleData expects.
+        int payloadLength = recordLength - payloadStart;
+        System.arraycopy(record, payloadStart, line, 0, payloadLength);
+        line[payloadLength]     = 0x0D;
+        line[payloadLength + 1] = 0x0A;
+        lineLength = payloadLength + 2;
+        linePos = 0;
+        linesReplayed++;
+        }
+      return true;
+      }
+
+
+
+    /* Reads the next valid record from the recording into 'record', and parses the time.
+       Returns false at the end of the recording. */
+    private boolean readRecord() throws IOException
+      {
+      InputStream thisStream = recording;
+      while (true)
+        {
+        // Read one line:
+        recordLength = 0;
+        boolean isTooLong = false;
+        int thisByte = thisStream.read();
+        if (thisByte < 0)
+          {
+          skipUntil = -1;       // (Only skip on the first pass.)
+          return false;
+          }
+        while ((thisByte >= 0) && (thisByte != '\n'))
+          {
+          if (thisByte != '\r')
+            {
+            if (recordLength < RECORD_MAX_LENGTH) record[recordLength++] = (byte)thisByte;
+            else                                  isTooLong = true;
+            }
+          thisByte = thisStream.read();
+          }
+        if ((recordLength == 0) || (record[0] == '#')) continue;    // Blank line or comment.
+
+        // Parse the time stamp:
+        int pos = 0;
+        long thisTime = 0;
+        while ((pos < recordLength) && (record[pos] >= '0') && (record[pos] <= '9'))
+          {
+          thisTime = (thisTime * 10) + (record[pos] - '0');
+          pos++;
+          }
+        if (isTooLong || (pos == 0) || (pos >= recordLength - 1) || (record[pos] != ' '))
+          {
+          recordsSkipped++;
+          continue;
+          }
+        recordTime = thisTime;
+        if (thisTime <= skipUntil) continue;     // Already replayed (see resumeFrom).
+        skipUntil = -1;
+        payloadStart = pos + 1;
+        return true;
+        }
+      }
+
+
+
+    /* Moves the UTC time in a GGA or RMC sentence in 'record' forward by nmeaTimeOffset (see 
+       Loop Mode), and updates the checksum. The time keeps the same format, so the sentence 
+       stays the same length. Other sentences are left alone. */
+    private void shiftNmeaTime(int start, int end)
+      {
+      // "$ttGGA,hhmmss.ss,..." or "$ttRMC,hhmmss.ss,...": 
+      if ( ((end - start) < 13) || (record[start + 6] != ',') ) return;
+      boolean isGGA = (record[start + 3] == 'G') && (record[start + 4] == 'G') && (record[start + 5] == 'A');
+      boolean isRMC = (record[start + 3] == 'R') && (record[start + 4] == 'M') && (record[start + 5] == 'C');
+      if (!isGGA && !isRMC) return;
+      int timePos = start + 7;
+      for (int n = timePos; n < timePos + 6; n++)  if ((record[n] < '0') || (record[n] > '9')) return;    // No time (no fix yet).
+
+      int seconds = (digits(timePos) * 3600) + (digits(timePos + 2) * 60) + digits(timePos + 4);
+      seconds = (int)((seconds + (nmeaTimeOffset / 1000)) % 86400);
+      setDigits(timePos,     seconds / 3600);
+      setDigits(timePos + 2, (seconds / 60) % 60);
+      setDigits(timePos + 4, seconds % 60);
+
+      // New checksum (XOR of everything between '$' and '*'): 
+      int checksum = 0;
+      int pos = start + 1;
+      while ((pos < end) && (record[pos] != '*'))
+        {
+        checksum ^= record[pos];
+        pos++;
+        }
+      if (pos + 2 >= end) return;      // No checksum.
+      record[pos + 1] = HEX_DIGITS[(checksum >> 4) & 0x0F];
+      record[pos + 2] = HEX_DIGITS[checksum & 0x0F];
+      }
+
+    private int digits(int pos)
+      {  return ((record[pos] - '0') * 10) + (record[pos + 1] - '0');  }
+
+    private void setDigits(int pos, int value)
+      {
+      record[pos]     = (byte)('0' + (value / 10));
+      record[pos + 1] = (byte)('0' + (value % 10));
+      }
+
+
+
+    // Sleep for the given time. Returns false if the engine is closed.
+    private boolean sleepNanos(long waitTime)
+      {
+      if (waitTime <= 0) return !isClosed;
+      try  {  Thread.sleep(waitTime / 1000000, (int)(waitTime % 1000000));  }
+      catch (InterruptedException e)  {  }     // Woken by close() (or a stale interrupt: just carry on).
+      return !isClosed;
+      }
+
+    }  // [class ReplayStream]
+
+
+  }  // [class ReplayEngine]
@@ -0,0 +1,350 @@
+package com.tumanako.sensors;
+
+/************************************************************************************
+Tumanako - Electric Vehicle and Motor control software
+
+Copyright (C) 2014 Jeremy Cole-Baker <jeremy@rhtech.co.nz>
+
+This file is part of Tumanako Dashboard.
+
+Tumanako is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published
+by the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Tumanako is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with Tumanako.  If not, see <http://www.gnu.org/licenses/>.
+
+*************************************************************************************/
+
+import com.tumanako.ui.UIActivity;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+
+
+/****************************************************************
+ *  GPS / Vehicle Sensor Fusion:
+ *  -------------------------------
+ *
+ *  Combines GPS fixes (1 - 25 Hz) with the wheel speed worked out
+ *  from the motor RPM (at the vehicle data rate, about 20 Hz), to
+ *  give a smooth estimate of speed and position between fixes, and
+ *  dead reckoning when the GPS drops out.
+ *
+ *  The filter is a pair of small Kalman filters:
+ *
+ *   - Speed: A single state (m/s). Each vehicle data line predicts
+ *     (the uncertainty grows with time) then updates with the wheel
+ *     speed; each GPS fix updates with the GPS speed. The wheel speed
+ *     is multiplied by a scale factor, which is slowly adjusted to
+ *     match the GPS speed when moving (this corrects for tyre size,
+ *     wear and a slightly wrong drive ratio).
+ *
+ *   - Position: East and North (metres from the first fix). Moved on
+ *     by the speed along the last GPS ground track on each vehicle
+ *     data line, and pulled towards each GPS fix according to how
+ *     uncertain the dead reckoned position has become.
+ *
+ *  Threads: GPS fixes are posted with postFix() on the UI thread (by
+ *  NmeaProcessor). Everything else is done on the vehicle data decoder
+ *  thread by update(), which picks up the latest fix. Fixes are passed
+ *  over, and the fused state is read back (getState), with a sequence
+ *  lock, so no locks are held and nothing is allocated.
+ *
+ *  The fused speed is sent out with the vehicle data (DashBus
+ *  DATA_FUSED_SPEED, shown on the speed gauge). LapData uses the fused
+ *  position between GPS fixes and when they drop out, to check the
+ *  timing gates (see LapData.processFused).
+ *
+ *  The wheel speed is:
+ *
+ *    RPM / PREF_DRIVE_RATIO * PREF_WHEEL_CIRCUMFERENCE / 60  (m/s)
+ *
+ *  The drive ratio and wheel circumference are set on the settings
+ *  page (see SettingsActivity), and read with configure().
+ *
+ *  There is one fusion object for the app (getInstance).
+ *
+ * @author Jeremy Cole-Baker / Riverhead Technology
+ *
+ ***************************************************************/
+public class SensorFusion
+  {
+
+  public static final String PREF_DRIVE_RATIO          = "fusionDriveRatio";           // Motor revs per wheel rev (float)
+  public static final String PREF_WHEEL_CIRCUMFERENCE  = "fusionWheelCircumference";   // Rolling circumference of the driven wheels (m; float)
+  public static final float DEFAULT_DRIVE_RATIO         = 7.0f;
+  public static final float DEFAULT_WHEEL_CIRCUMFERENCE = 1.9f;
+
+  // Filter tuning:
+  private static final float SPEED_PROCESS_NOISE    = 4.0f;     // (m/s)^2 per second: how fast the speed can change.
+  private static final float WHEEL_SPEED_VARIANCE   = 0.25f;    // (m/s)^2
+  private static final float GPS_SPEED_VARIANCE     = 0.25f;    // (m/s)^2
+  private static final float POSITION_PROCESS_NOISE = 1.0f;     // m^2 per second (plus the speed uncertainty).
+  private static final float GPS_POSITION_VARIANCE  = 6.25f;    // m^2 (2.5 m)
+  private static final float MIN_TRACK_SPEED        = 2.0f;     // m/s. The GPS track is ignored below this speed.
+  private static final float MIN_SCALE_SPEED        = 5.0f;     // m/s. The wheel speed scale is only adjusted above this speed.
+  private static final float SCALE_GAIN             = 0.02f;    // Fraction of the error corrected per GPS fix.
+  private static final float MIN_SCALE              = 0.8f;
+  private static final float MAX_SCALE              = 1.2f;
+  private static final long  DEAD_RECKON_LIMIT      = 30000000000L;   // nS. Position is invalid after this long without a fix.
+  private static final float MAX_STEP               = 1.0f;     // S. Longer gaps between vehicle data lines are treated as this long.
+  private static final double METRES_PER_DEGREE     = 111120.0; // Same as LapData (one minute = one nautical mile).
+
+  private static SensorFusion instance = null;
+
+  // Configuration (set on any thread; read on the decoder thread):
+  private volatile float driveRatio       = DEFAULT_DRIVE_RATIO;
+  private volatile float wheelCircumference = DEFAULT_WHEEL_CIRCUMFERENCE;
+
+
+  /****** GPS fix handoff (written on the UI thread, read on the decoder thread): *****
+   * fixSequence is odd while a fix is being written. */
+  private volatile int     fixSequence = 0;
+  private volatile double  fixLat;
+  private volatile double  fixLon;
+  private volatile float   fixSpeed;          // m/s
+  private volatile float   fixTrack;          // Degrees true
+  private int lastFixSequence = 0;            // Decoder thread: last fix used.
+
+
+  /****** Filter state (decoder thread only): ******/
+  private boolean isReferenceSet = false;
+  private double referenceLat;
+  private double referenceLon;
+  private double lonScale;                    // Metres per degree of longitude at the reference.
+  private float speed = 0f;                   // m/s
+  private float speedVariance = 100f;
+  private float wheelScale = 1f;
+  private float lastWheelSpeed = 0f;          // m/s, unscaled
+  private double east = 0.0;                  // m from reference
+  private double north = 0.0;
+  private float positionVariance = 1000f;
+  private float trackSin = 0f;                // Sin and Cos of the last good GPS track
+  private float trackCos = 1f;
+  private float trackDegrees = 0f;
+  private long lastUpdateTime = 0;            // nS
+  private long lastGpsTime = 0;               // nS, of the last fix used.
+  private long updateCount = 0;
+
+
+  /****** Fused state for readers (written on the decoder thread): *****/
+  private volatile int     stateSequence = 0;
+  private volatile double  stateLat;
+  private volatile double  stateLon;
+  private volatile float   stateSpeed;        // m/s
+  private volatile float   stateTrack;        // Degrees true
+  private volatile boolean isStatePositionValid = false;
+  private volatile long    stateTime;         // nS
+
+
+
+
+  public static synchronized SensorFusion getInstance()
+    {
+    if (instance == null) instance = new SensorFusion();
+    return instance;
+    }
+
+  private SensorFusion()
+    {  }
+
+
+
+  /**
+   Read the drive ratio and wheel size from the app preferences.
+   @param context  Context (for the preferences)
+   */
+  public void configure(Context context)
+    {
+    SharedPreferences settings = context.getSharedPreferences(UIActivity.PREFS_NAME, 0);
+    float thisRatio         = settings.getFloat(PREF_DRIVE_RATIO, DEFAULT_DRIVE_RATIO);
+    float thisCircumference = settings.getFloat(PREF_WHEEL_CIRCUMFERENCE, DEFAULT_WHEEL_CIRCUMFERENCE);
+    driveRatio         = (thisRatio > 0f) ? thisRatio : DEFAULT_DRIVE_RATIO;
+    wheelCircumference = (thisCircumference > 0f) ? thisCircumference : DEFAULT_WHEEL_CIRCUMFERENCE;
+    }
+
+
+
+
+  /************* Post a GPS fix (UI thread): *********************************
+   * Called for each GPS update. The fix is picked up by the next update().
+   * @param lat       Latitude (decimal degrees)
+   * @param lon       Longitude (decimal degrees)
+   * @param speedKph  Ground speed (kph)
+   * @param track     Ground track (degrees true)
+   ***************************************************************************/
+  public void postFix(double lat, double lon, float speedKph, float track)
+    {
+    fixSequence++;                // Odd: writing.
+    fixLat   = lat;
+    fixLon   = lon;
+    fixSpeed = speedKph / 3.6f;
+    fixTrack = track;
+    fixSequence++;                // Even: done.
+    }
+
+
+
+
+  /************* Update the filter (decoder thread): *************************
+   * Called for each line of vehicle data.
+   * @param motorRPM  Motor RPM (sign is ignored; NaN if not known: just dead reckon)
+   * @param timeNow   System.nanoTime() of the data
+   * @return Fused speed (kph)
+   ***************************************************************************/
+  public float update(float motorRPM, long timeNow)
+    {
+    float dt = (lastUpdateTime == 0) ? 0f : Math.min(MAX_STEP, Math.max(0f, (timeNow - lastUpdateTime) / 1e9f));
+    lastUpdateTime = timeNow;
+
+    // Predict: dead reckon along the last track. Uncertainties grow:
+    east  += speed * trackSin * dt;
+    north += speed * trackCos * dt;
+    speedVariance    += SPEED_PROCESS_NOISE * dt;
+    positionVariance += (POSITION_PROCESS_NOISE + speedVariance) * dt;
+
+    // Wheel speed measurement:
+    if (!Float.isNaN(motorRPM))
+      {
+      lastWheelSpeed = Math.abs(motorRPM) / driveRatio * wheelCircumference / 60f;
+      speedUpdate(lastWheelSpeed * wheelScale, WHEEL_SPEED_VARIANCE);
+      }
+
+    // GPS fix?
+    readFix(timeNow);
+
+    updateCount++;
+    publishState(timeNow);
+    return speed * 3.6f;
+    }
+
+
+
+  // Kalman update of the speed with a measurement:
+  private void speedUpdate(float measurement, float variance)
+    {
+    float gain = speedVariance / (speedVariance + variance);
+    speed += gain * (measurement - speed);
+    speedVariance *= (1f - gain);
+    if (speed < 0f) speed = 0f;
+    }
+
+
+
+  // Pick up a new GPS fix, if there is one, and use it:
+  private void readFix(long timeNow)
+    {
+    int sequence = fixSequence;
+    if ((sequence == lastFixSequence) || ((sequence & 1) != 0)) return;   // No new fix, or it is being written (use it next time).
+    double lat   = fixLat;
+    double lon   = fixLon;
+    float  gpsSpeed = fixSpeed;
+    float  track = fixTrack;
+    if (fixSequence != sequence) return;      // Changed while we read it: try next time.
+    lastFixSequence = sequence;
+    lastGpsTime = timeNow;
+
+    if (!isReferenceSet)
+      {
+      // First fix: Use it as the reference point (local flat-earth coordinates):
+      referenceLat = lat;
+      referenceLon = lon;
+      lonScale = METRES_PER_DEGREE * Math.cos(Math.toRadians(lat));
+      isReferenceSet = true;
+      east = 0.0;
+      north = 0.0;
+      positionVariance = GPS_POSITION_VARIANCE;
+      }
+    else
+      {
+      // Position update:
+      double gpsEast  = (lon - referenceLon) * lonScale;
+      double gpsNorth = (lat - referenceLat) * METRES_PER_DEGREE;
+      float gain = positionVariance / (positionVariance + GPS_POSITION_VARIANCE);
+      east  += gain * (gpsEast  - east);
+      north += gain * (gpsNorth - north);
+      positionVariance *= (1f - gain);
+      }
+
+    // Adjust the wheel speed scale to match the GPS (only when moving at a reasonable speed):
+    if ((gpsSpeed > MIN_SCALE_SPEED) && (lastWheelSpeed > MIN_SCALE_SPEED))
+      {
+      wheelScale += SCALE_GAIN * ((gpsSpeed / lastWheelSpeed) - wheelScale);
+      wheelScale = Math.max(MIN_SCALE, Math.min(MAX_SCALE, wheelScale));
+      }
+
+    speedUpdate(gpsSpeed, GPS_SPEED_VARIANCE);
+
+    // Track (only meaningful when moving):
+    if (gpsSpeed > MIN_TRACK_SPEED)
+      {
+      double trackRadians = Math.toRadians(track);
+      trackSin = (float)Math.sin(trackRadians);
+      trackCos = (float)Math.cos(trackRadians);
+      trackDegrees = track;
+      }
+    }
+
+
+
+  // Make the fused state available to other threads:
+  private void publishState(long timeNow)
+    {
+    stateSequence++;
+    stateSpeed = speed;
+    stateTrack = trackDegrees;
+    stateTime  = timeNow;
+    isStatePositionValid = isReferenceSet && ((timeNow - lastGpsTime) < DEAD_RECKON_LIMIT);
+    if (isReferenceSet)
+      {
+      stateLat = referenceLat + (north / METRES_PER_DEGREE);
+      stateLon = referenceLon + (east / lonScale);
+      }
+    stateSequence++;
+    }
+
+
+
+
+  /************* Read the fused state (any thread): **************************
+   * @param dst  Array (at least 5 long) for: latitude, longitude (decimal
+   *             degrees), speed (kph), track (degrees true), and the time
+   *             of the state (System.nanoTime(), as a double).
+   * @return     true if the position is valid (there has been a GPS fix in
+   *             the last 30 s). Speed is always valid.
+   ***************************************************************************/
+  public boolean getState(double[] dst)
+    {
+    while (true)
+      {
+      int sequence = stateSequence;
+      if ((sequence & 1) != 0) continue;     // Being written.
+      dst[0] = stateLat;
+      dst[1] = stateLon;
+      dst[2] = stateSpeed * 3.6;
+      dst[3] = stateTrack;
+      dst[4] = stateTime;
+      boolean isValid = isStatePositionValid;
+      if (stateSequence == sequence) return isValid;
+      }
+    }
+
+
+  /** @return Current wheel speed scale factor (GPS speed / wheel speed; 1 = drive ratio and wheel size are exact). */
+  public float getWheelScale()
+    {  return wheelScale;  }
+
+  /** @return Number of vehicle data updates. */
+  public long getUpdateCount()
+    {  return updateCount;  }
+
+
+  }  // [class SensorFusion]
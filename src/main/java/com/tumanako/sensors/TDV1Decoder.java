@@ -0,0 +1,235 @@
+package com.tumanako.sensors;
+
+/************************************************************************************
+Tumanako - Electric Vehicle and Motor control software
+
+Copyright (C) 2014 Jeremy Cole-Baker <jeremy@rhtech.co.nz>
+
+This file is part of Tumanako Dashboard.
+
+Tumanako is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published
+by the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Tumanako is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with Tumanako.  If not, see <http://www.gnu.org/licenses/>.
+
+*************************************************************************************/
+
+
+
+/****************************************************************
+ *  TDV1 Line Decoder:
+ *  -------------------------------
+ *
+ *  Decodes the "TDV1" vehicle data format straight from the bytes
+ *  received from the vehicle, without creating any Strings or other
+ *  objects. A line looks like this:
+ *
+ *    TDV1:rpm,tMotor,tController,tPack,vPack,vAcc,kWh,contactor,fault<CR><LF>
+ *
+ *  The stream is split into lines by a LineQueue (which copes with
+ *  lines split across several bluetooth reads). Each line is then
+ *  decoded in place:
+ *
+ *    if (decoder.decodeLine(line, 0, length)) ...use decoder.getField(n)...
+ *
+ *  Values are exactly as sent (no unit conversion). The line must start
+ *  with "TDV1:" and be at least 20 characters long. If a field is
+ *  missing or isn't a number (e.g. a line garbled by a bluetooth
+ *  dropout), its value is NaN, so users can tell it from a real 0 and
+ *  keep their last good value; the other fields are still decoded.
+ *
+ * @author Jeremy Cole-Baker / Riverhead Technology
+ *
+ ***************************************************************/
+public class TDV1Decoder
+  {
+
+  /****** Field indexes: ********************/
+  public static final int FIELD_MOTOR_RPM       = 0;
+  public static final int FIELD_MOTOR_TEMP      = 1;
+  public static final int FIELD_CONTROLLER_TEMP = 2;
+  public static final int FIELD_PACK_TEMP       = 3;
+  public static final int FIELD_PACK_VOLTS      = 4;
+  public static final int FIELD_ACC_VOLTS       = 5;    // Sent in 1/10 V
+  public static final int FIELD_KWH             = 6;    // Sent in 1/10 kWh
+  public static final int FIELD_CONTACTOR       = 7;
+  public static final int FIELD_FAULT           = 8;
+  public static final int FIELD_COUNT           = 9;
+
+  public static final int MAX_LINE_LENGTH = 128;        // Longer lines are discarded (real lines are about 40 characters; see LineQueue).
+  private static final int MIN_LINE_LENGTH = 20;        // Shorter lines are ignored (includes the tag).
+
+  private static final byte[] TAG = { 'T', 'D', 'V', '1', ':' };
+
+  // Powers of ten for the number parser (avoids Math.pow):
+  private static final double[] POW10 =
+    { 1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18 };
+
+  private final float[] fields = new float[FIELD_COUNT];
+  private boolean isLineValid = false;      // Set if the last line decoded was a TDV1 line.
+
+  // Used while parsing numbers:
+  private int parsePos;
+  private float parsedValue;
+
+  private volatile long linesDecoded = 0;     // Counters are written by the decoding thread only, but may be read from any thread.
+  private volatile long linesRejected = 0;
+
+
+
+
+
+  /************* Decode a complete line: *************************************
+   * Decodes a line which has already been separated out (without CR / LF).
+   * @return true if this was a TDV1 line (fields can then be read).
+   ***************************************************************************/
+  public boolean decodeLine(byte[] line, int offset, int length)
+    {
+    isLineValid = false;
+    if ((length < MIN_LINE_LENGTH) || !startsWithTag(line, offset))
+      {
+      linesRejected++;
+      return false;    // Line doesn't start with the 'TDV1' tag, or it's too short. Give up.
+      }
+    int end = offset + length;
+    parsePos = offset + TAG.length;
+    for (int field = 0; field < FIELD_COUNT; field++)
+      {
+      if (parsePos >= end) fields[field] = Float.NaN;            // Missing (line too short).
+      else if (parseNumber(line, end)) fields[field] = parsedValue;
+      else
+        {
+        // Not a number: skip to the next comma.
+        fields[field] = Float.NaN;
+        while ((parsePos < end) && (line[parsePos] != ',')) parsePos++;
+        }
+      if (parsePos < end) parsePos++;        // Skip the comma.
+      }
+    isLineValid = true;
+    linesDecoded++;
+    return true;
+    }
+
+
+
+  /** @return true if the last line decoded was a TDV1 line. */
+  public boolean isLineValid()
+    {  return isLineValid;  }
+
+
+  /**
+   Get a field from the last line decoded
+   @param field  Field index (FIELD_MOTOR_RPM etc.)
+   @return       Value, as sent (NaN if it was missing or not a number).
+   */
+  public float getField(int field)
+    {  return fields[field];  }
+
+
+  public long getLinesDecoded()
+    {  return linesDecoded;  }
+
+  public long getLinesRejected()
+    {  return linesRejected;  }
+
+
+
+
+  private static boolean startsWithTag(byte[] line, int offset)
+    {
+    for (int n = 0; n < TAG.length; n++)  if (line[offset + n] != TAG[n]) return false;
+    return true;
+    }
+
+
+
+  /************* Number Parser: **********************************************
+   * Parses a decimal number (e.g. "-1234", "12.5", " 3", "1.2e3") starting
+   * at parsePos and ending at the next comma or the end of the line.
+   * Leading and trailing spaces are allowed (as with Float.parseFloat).
+   * On success, the value is left in parsedValue and parsePos is left on
+   * the comma (or end of line).
+   * @return false if the field is empty or isn't a valid number.
+   ***************************************************************************/
+  private boolean parseNumber(byte[] line, int end)
+    {
+    int pos = parsePos;
+    while ((pos < end) && (line[pos] == ' ')) pos++;
+
+    boolean isNegative = false;
+    if ((pos < end) && ((line[pos] == '-') || (line[pos] == '+')))
+      {
+      isNegative = (line[pos] == '-');
+      pos++;
+      }
+
+    long mantissa = 0;
+    int digits = 0;        // Number of digits found (before and after the decimal point)
+    int exponent = 0;      // Power of ten to apply to mantissa
+    boolean isFraction = false;
+    while (pos < end)
+      {
+      byte thisByte = line[pos];
+      if ((thisByte >= '0') && (thisByte <= '9'))
+        {
+        if (mantissa < 100000000000000000L)
+          {
+          mantissa = (mantissa * 10) + (thisByte - '0');
+          if (isFraction) exponent--;
+          }
+        else if (!isFraction) exponent++;    // Too many digits to hold: just keep track of the magnitude.
+        digits++;
+        }
+      else if ((thisByte == '.') && !isFraction) isFraction = true;
+      else break;
+      pos++;
+      }
+    if (digits == 0) return false;
+
+    // Optional exponent:
+    if ((pos < end) && ((line[pos] == 'e') || (line[pos] == 'E')))
+      {
+      pos++;
+      boolean isExpNegative = false;
+      if ((pos < end) && ((line[pos] == '-') || (line[pos] == '+')))
+        {
+        isExpNegative = (line[pos] == '-');
+        pos++;
+        }
+      int expValue = 0;
+      int expDigits = 0;
+      while ((pos < end) && (line[pos] >= '0') && (line[pos] <= '9'))
+        {
+        if (expValue < 1000) expValue = (expValue * 10) + (line[pos] - '0');
+        expDigits++;
+        pos++;
+        }
+      if (expDigits == 0) return false;
+      exponent += isExpNegative ? -expValue : expValue;
+      }
+
+    while ((pos < end) && (line[pos] == ' ')) pos++;
+    if ((pos < end) && (line[pos] != ',')) return false;   // Junk after the number.
+
+    double value = mantissa;
+    if (exponent != 0)
+      {
+      int absExponent = Math.abs(exponent);
+      double scale = (absExponent < POW10.length) ? POW10[absExponent] : Math.pow(10, absExponent);
+      value = (exponent > 0) ? (value * scale) : (value / scale);
+      }
+    parsedValue = (float)(isNegative ? -value : value);
+    parsePos = pos;
+    return true;
+    }
+
+
+  }  // [class TDV1Decoder]
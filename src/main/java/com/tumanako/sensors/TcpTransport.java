@@ -0,0 +1,107 @@
+package com.tumanako.sensors;
+
+/************************************************************************************
+Tumanako - Electric Vehicle and Motor control software
+
+Copyright (C) 2014 Jeremy Cole-Baker <jeremy@rhtech.co.nz>
+
+This file is part of Tumanako Dashboard.
+
+Tumanako is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published
+by the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Tumanako is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with Tumanako.  If not, see <http://www.gnu.org/licenses/>.
+
+*************************************************************************************/
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+import android.util.Log;
+
+
+
+/****************************************************************
+ *  TCP Vehicle Transport:
+ *  -------------------------------
+ *
+ *  Reads the vehicle data stream from a plain TCP socket, e.g. a
+ *  PC playing back recorded data, or a serial-to-network adaptor.
+ *  For example, on a Linux box:
+ *
+ *    cat recorded.tdv1 | nc -l 5000
+ *
+ * @author Jeremy Cole-Baker / Riverhead Technology
+ *
+ ***************************************************************/
+public class TcpTransport implements VehicleTransport
+  {
+
+  private static final int CONNECT_TIMEOUT = 5000;     // mS
+
+  private final String host;
+  private final int port;
+  private volatile Socket socket = null;
+  private volatile InputStream streamIn = null;
+
+
+
+  public TcpTransport(String thisHost, int thisPort)
+    {
+    host = thisHost;
+    port = thisPort;
+    }
+
+
+
+  public boolean open()
+    {
+    try
+      {
+      Socket thisSocket = new Socket();
+      socket = thisSocket;
+      thisSocket.setTcpNoDelay(true);     // Vehicle data lines are small; don't let them sit in a buffer.
+      thisSocket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT);
+      streamIn = thisSocket.getInputStream();
+      return true;
+      }
+    catch (Exception e)
+      {
+      Log.i(com.tumanako.ui.UIActivity.APP_TAG, " TcpTransport -> Can't connect to " + host + ":" + port + "; " + e.getMessage());
+      close();
+      return false;
+      }
+    }
+
+
+
+  public InputStream getInputStream()
+    {  return streamIn;  }
+
+
+
+  public void close()
+    {
+    Socket thisSocket = socket;
+    if (thisSocket == null) return;
+    try                    {  thisSocket.close();  }   // Also closes the stream, and wakes up a blocked read.
+    catch (IOException e)  {  }
+    }
+
+
+
+  public String toString()
+    {  return "TCP " + host + ":" + port;  }
+
+
+  }  // [class TcpTransport]
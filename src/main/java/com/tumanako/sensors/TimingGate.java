@@ -0,0 +1,175 @@
+package com.tumanako.sensors;
+
+/************************************************************************************
+Tumanako - Electric Vehicle and Motor control software
+
+Copyright (C) 2014 Jeremy Cole-Baker <jeremy@rhtech.co.nz>
+
+This file is part of Tumanako Dashboard.
+
+Tumanako is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published
+by the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Tumanako is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with Tumanako.  If not, see <http://www.gnu.org/licenses/>.
+
+*************************************************************************************/
+
+
+
+/****************************************************************
+ *  Timing Gate:
+ *  -------------------------------
+ *
+ *  A start / finish or sector line: a line segment across the track,
+ *  defined by its centre point, the direction of travel through it
+ *  (degrees true) and its half width (metres either side of the
+ *  centre).
+ *
+ *  findCrossing() is given two consecutive GPS fixes. If the path
+ *  between them crosses the gate in the direction of travel, it
+ *  returns the time of the crossing, interpolated between the times
+ *  of the two fixes; otherwise it returns NaN. This gives lap and
+ *  split times to a small fraction of the fix interval, instead of
+ *  the time of whichever fix happened to be nearest the line.
+ *
+ *  The distance along the path to the crossing is found first. If
+ *  the speeds at both fixes are known, the time is then found
+ *  assuming constant acceleration between the fixes (which matters
+ *  at 1 Hz on the brakes); otherwise constant speed is assumed.
+ *
+ *  Positions are converted to metres east and north of the gate
+ *  centre with the same flat earth approximation used by LapData
+ *  (one minute of latitude = 1852 m), which is accurate to well
+ *  within a GPS error over the few hundred metres between fixes.
+ *
+ * @author Jeremy Cole-Baker / Riverhead Technology
+ *
+ ***************************************************************/
+public class TimingGate
+  {
+
+  private static final double METRES_PER_DEGREE = 111120.0;
+
+  private final double centreLat;
+  private final double centreLon;
+  private final float  gateTrack;
+  private final float  halfWidth;
+
+  private final double metresPerDegreeLon;     // At the gate latitude.
+  private final double dirEast;                // Unit vector: direction of travel through the gate.
+  private final double dirNorth;
+
+
+
+  /**
+   Create a timing gate
+   @param lat        Latitude of the centre of the gate (decimal degrees)
+   @param lon        Longitude of the centre of the gate (decimal degrees)
+   @param track      Direction of travel through the gate (degrees true). The gate line is at right angles to this.
+   @param width      Distance (metres) the gate extends either side of the centre.
+   */
+  public TimingGate(double lat, double lon, float track, float width)
+    {
+    centreLat = lat;
+    centreLon = lon;
+    gateTrack = track;
+    halfWidth = width;
+    metresPerDegreeLon = Math.cos( Math.toRadians(lat) ) * METRES_PER_DEGREE;
+    dirEast  = Math.sin( Math.toRadians(track) );
+    dirNorth = Math.cos( Math.toRadians(track) );
+    }
+
+
+
+  public double getLat()
+    {  return centreLat;  }
+
+  public double getLon()
+    {  return centreLon;  }
+
+  public float getTrack()
+    {  return gateTrack;  }
+
+  public float getHalfWidth()
+    {  return halfWidth;  }
+
+
+
+  /**
+   Find where the path between two fixes crosses the gate
+   @param lat1    Latitude of the first (earlier) fix
+   @param lon1    Longitude of the first fix
+   @param time1   Time of the first fix (mS)
+   @param speed1  Speed at the first fix (any units, same as speed2), or a negative value if not known
+   @param lat2    Latitude of the second fix
+   @param lon2    Longitude of the second fix
+   @param time2   Time of the second fix (mS)
+   @param speed2  Speed at the second fix, or a negative value if not known
+   @return Time of the crossing (mS, between time1 and time2), or NaN if the
+           path doesn't cross the gate in the direction of travel.
+   */
+  public double findCrossing(double lat1, double lon1, long time1, float speed1,
+                             double lat2, double lon2, long time2, float speed2)
+    {
+    // Metres east and north of the gate centre:
+    double east1  = (lon1 - centreLon) * metresPerDegreeLon;
+    double north1 = (lat1 - centreLat) * METRES_PER_DEGREE;
+    double east2  = (lon2 - centreLon) * metresPerDegreeLon;
+    double north2 = (lat2 - centreLat) * METRES_PER_DEGREE;
+
+    // Distance of each point past the gate line (along the direction of travel).
+    // A crossing in the right direction goes from behind (or on) the line to in front of it:
+    double along1 = (east1 * dirEast) + (north1 * dirNorth);
+    double along2 = (east2 * dirEast) + (north2 * dirNorth);
+    if ( !(along1 <= 0.0) || !(along2 > 0.0) ) return Double.NaN;      // (Also rejects NaN positions)
+
+    // Fraction of the way along the path where it meets the line, and the
+    // position across the gate at that point (must be within the half width):
+    double fraction = along1 / (along1 - along2);
+    double across1 = (east1 * dirNorth) - (north1 * dirEast);
+    double across2 = (east2 * dirNorth) - (north2 * dirEast);
+    double across = across1 + ((across2 - across1) * fraction);
+    if (Math.abs(across) > halfWidth) return Double.NaN;
+
+    return time1 + ( (double)(time2 - time1) * timeFraction(fraction, speed1, speed2) );
+    }
+
+
+
+  /**
+   Convert a fraction of the distance between two fixes to a fraction of the time. <p>
+
+   With constant acceleration from speed v1 to v2 over the interval, the distance
+   covered by time fraction t (as a fraction of the whole distance) is:
+
+      d = ( v1 t + (v2 - v1) t^2 / 2 ) / ( (v1 + v2) / 2 )
+
+   which is solved here for t. If either speed is unknown (or both are zero),
+   constant speed is assumed (t = d).
+   */
+  static double timeFraction(double distanceFraction, float speed1, float speed2)
+    {
+    if ( !(speed1 >= 0f) || !(speed2 >= 0f) || ((speed1 + speed2) <= 0f) ) return distanceFraction;
+    double v1 = speed1;
+    double a = (speed2 - speed1) * 0.5;
+    double c = -distanceFraction * (speed1 + speed2) * 0.5;
+    if (Math.abs(a) < 1e-9 * (speed1 + speed2)) return distanceFraction;       // Constant speed.
+    double discriminant = (v1 * v1) - (4.0 * a * c);
+    if (discriminant < 0.0) return distanceFraction;
+    // Root of a t^2 + v1 t + c = 0, in the numerically stable form (v1 >= 0, so no cancellation):
+    double t = (2.0 * -c) / (v1 + Math.sqrt(discriminant));
+    if ( !(t >= 0.0) ) return 0.0;
+    if (t > 1.0)       return 1.0;
+    return t;
+    }
+
+
+  }  // [class TimingGate]
@@ -0,0 +1,573 @@
+package com.tumanako.sensors;
+
+/************************************************************************************
+Tumanako - Electric Vehicle and Motor control software
+
+Copyright (C) 2014 Jeremy Cole-Baker <jeremy@rhtech.co.nz>
+
+This file is part of Tumanako Dashboard.
+
+Tumanako is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published
+by the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Tumanako is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with Tumanako.  If not, see <http://www.gnu.org/licenses/>.
+
+*************************************************************************************/
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedList;
+
+
+
+/****************************************************************
+ *  Track Database:
+ *  -------------------------------
+ *
+ *  A file of named tracks (TrackRecords: start / finish and sector
+ *  gates), with a spatial index so the track nearest to a position can
+ *  be found quickly however many tracks are stored. LapData uses this
+ *  to load the gates of the circuit we're at from the first good fix.
+ *
+ *  Index: the world is divided into a grid of CELL_SIZE degree cells,
+ *  and each track is filed under the cell its start / finish is in.
+ *  Longitudes wrap around at 180 degrees: the cells either side of it
+ *  are neighbours, and distances are measured the short way round.
+ *  The file holds:
+ *
+ *    Header:          magic, version, record size, track count, cell
+ *                     count, cells per index page.
+ *    Page directory:  first cell key of each index page.
+ *    Cell index:      (cell key, first track, track count) for each
+ *                     cell which has tracks, sorted by key, in pages
+ *                     of PAGE_CELLS cells.
+ *    Tracks:          fixed size records, in cell key order (so the
+ *                     tracks in a cell are together).
+ *
+ *  Opening the database only reads the header and page directory (a
+ *  few bytes per thousand tracks). An index page is read the first
+ *  time a cell in it is looked up, then kept. findNearest() looks up
+ *  the few cells around a position (binary search of the directory,
+ *  then of the page), and reads just the start / finish positions of
+ *  the tracks in them, then the full record of the nearest one.
+ *
+ *  add() returns straight away: a short-lived writer thread rebuilds
+ *  the file (into a temporary file, which then replaces the old one),
+ *  so the caller never waits for the file system. Tracks are added
+ *  rarely (from TrackSettingsActivity), so rebuilding the whole file
+ *  keeps the format simple.
+ *
+ *  There is one database for the app (getInstance()). All methods are
+ *  synchronised, so it can be used from any thread. Nothing here uses
+ *  Android (so it can be tested on a desktop JVM): problems with the
+ *  file are kept for the owner to log (see takeError()).
+ *
+ * @author Jeremy Cole-Baker / Riverhead Technology
+ *
+ ***************************************************************/
+public class TrackDatabase
+  {
+
+  private static final String DATABASE_FILE = "tracks.dat";      // In the app's files directory
+  private static final int FILE_MAGIC   = 0x54524B53;            // "TRKS"
+  private static final int FILE_VERSION = 1;
+  private static final int HEADER_SIZE  = 24;
+  private static final int INDEX_ENTRY_SIZE = 16;                // Cell key (long), first track, track count
+  private static final int PAGE_CELLS   = 128;                   // Cells per index page
+
+  private static final double CELL_SIZE = 0.1;                   // Degrees (about 11 km north - south)
+  private static final int    LON_CELLS = (int)Math.round(360.0 / CELL_SIZE);   // Cells around the world
+  private static final double METRES_PER_DEGREE = 111120.0;
+
+  public static final double DETECT_RADIUS = 5000.0;             // metres. Default search radius for findNearest.
+  public static final double SAME_TRACK_DISTANCE = 20.0;         // metres. Tracks with their start / finish this close are the same track.
+
+  private static TrackDatabase instance = null;
+
+  private final File databaseFile;
+
+  // Header and page directory (read when opened):
+  private int trackCount = 0;
+  private int cellCount = 0;
+  private long[] pageFirstKey = new long[0];
+
+  // Index pages: key, first track and number of tracks of each cell in the page (read when first needed; null until then):
+  private long[][] cellKeys   = new long[0][];
+  private int[][]  cellFirst  = new int[0][];
+  private int[][]  cellTracks = new int[0][];
+
+  private byte[] readBuffer = new byte[TrackRecord.RECORD_SIZE * 16];     // Tracks read by findNearest
+
+  // Writer:
+  private final LinkedList<TrackRecord> writeQueue = new LinkedList<TrackRecord>();
+  private Thread writerThread = null;                            // Running while there are tracks to add
+
+  private String lastError = null;                               // Last problem with the file (for the log), or null
+
+
+
+  /**
+   Get the track database (opened the first time)
+   @param directory  The app's files directory (Context.getFilesDir())
+   */
+  public static synchronized TrackDatabase getInstance(File directory)
+    {
+    if (instance == null) instance = new TrackDatabase(new File(directory, DATABASE_FILE));
+    return instance;
+    }
+
+
+  /**
+   Open a track database (the file is created when the first track is added)
+   @param file  Track database file
+   */
+  TrackDatabase(File file)
+    {
+    databaseFile = file;
+    open();
+    }
+
+
+
+  /** Read the header and page directory. */
+  private synchronized void open()
+    {
+    trackCount = 0;
+    cellCount = 0;
+    pageFirstKey = new long[0];
+    cellKeys  = new long[0][];
+    cellFirst = new int[0][];
+    cellTracks = new int[0][];
+    if (!databaseFile.exists()) return;
+    DataInputStream in = null;
+    try
+      {
+      in = new DataInputStream(new BufferedInputStream(new FileInputStream(databaseFile), 4096));
+      if ( (in.readInt() != FILE_MAGIC) || (in.readInt() != FILE_VERSION) || (in.readInt() != TrackRecord.RECORD_SIZE) )
+        {
+        in.close();
+        in = null;
+        lastError = "Unknown file format; starting a new one";
+        databaseFile.renameTo(new File(databaseFile.getPath() + ".old"));
+        return;
+        }
+      int thisTrackCount = in.readInt();
+      int thisCellCount  = in.readInt();
+      if ( (in.readInt() != PAGE_CELLS) || (thisTrackCount < 0) || (thisCellCount < 0) ) throw new IOException("Bad header");
+      int pages = (thisCellCount + PAGE_CELLS - 1) / PAGE_CELLS;
+      long fileSize = HEADER_SIZE + (pages * 8L) + ((long)thisCellCount * INDEX_ENTRY_SIZE) + ((long)thisTrackCount * TrackRecord.RECORD_SIZE);
+      if (databaseFile.length() < fileSize)
+        {
+        in.close();
+        in = null;
+        lastError = "File is too short; starting a new one";
+        databaseFile.renameTo(new File(databaseFile.getPath() + ".old"));
+        return;
+        }
+      long[] thisFirstKey = new long[pages];
+      int i;
+      for (i = 0; i < pages; i++) thisFirstKey[i] = in.readLong();
+      trackCount = thisTrackCount;
+      cellCount  = thisCellCount;
+      pageFirstKey = thisFirstKey;
+      cellKeys  = new long[pages][];
+      cellFirst = new int[pages][];
+      cellTracks = new int[pages][];
+      }
+    catch (IOException e)
+      {
+      lastError = "Error reading track database; " + e.getMessage();
+      trackCount = 0;
+      cellCount = 0;
+      }
+    finally
+      {
+      if (in != null) try { in.close(); } catch (IOException e) {  }
+      }
+    }
+
+
+  private int pageCount()
+    {  return pageFirstKey.length;  }
+
+  private long indexOffset()
+    {  return HEADER_SIZE + (pageCount() * 8L);  }
+
+  private long trackOffset(int track)
+    {  return indexOffset() + ((long)cellCount * INDEX_ENTRY_SIZE) + ((long)track * TrackRecord.RECORD_SIZE);  }
+
+
+
+  /** @return Number of tracks in the database (not counting any still being added). */
+  public synchronized int getCount()
+    {  return trackCount;  }
+
+  /** @return The last problem with the file since this was last called (for the log), or null if none. */
+  public synchronized String takeError()
+    {
+    String error = lastError;
+    lastError = null;
+    return error;
+    }
+
+
+
+
+  /************* Spatial index: **********************************************/
+
+  private static int cellOf(double degrees)
+    {  return (int)Math.floor(degrees / CELL_SIZE);  }
+
+  /** Cell key (for the index). The longitude cell is wrapped into -180 .. 180 degrees (e.g. 180.05 is -179.95). */
+  private static long cellKey(int latCell, int lonCell)
+    {
+    lonCell = ((lonCell % LON_CELLS) + LON_CELLS + (LON_CELLS / 2)) % LON_CELLS - (LON_CELLS / 2);
+    return ((long)latCell << 32) | (lonCell & 0xFFFFFFFFL);
+    }
+
+  private static long cellKey(double lat, double lon)
+    {  return cellKey(cellOf(lat), cellOf(lon));  }
+
+  /** @return Longitude difference (a - b), the short way round (-180 .. 180 degrees). */
+  private static double lonDifference(double a, double b)
+    {
+    double difference = a - b;
+    if (difference > 180.0)  return difference - 360.0;
+    if (difference < -180.0) return difference + 360.0;
+    return difference;
+    }
+
+
+  /**
+   Find a cell in the index (reading its index page if it hasn't been read yet).
+   @return Position of the cell in its page (page * PAGE_CELLS + n), or -1 if no tracks are in the cell.
+   */
+  private int findCell(RandomAccessFile file, long key) throws IOException
+    {
+    // Last page which starts at or before the key:
+    int low = 0;
+    int high = pageCount() - 1;
+    int page = -1;
+    while (low <= high)
+      {
+      int middle = (low + high) >>> 1;
+      if (pageFirstKey[middle] <= key) { page = middle; low = middle + 1; }
+      else                             high = middle - 1;
+      }
+    if (page < 0) return -1;
+    if (cellKeys[page] == null) readPage(file, page);
+    int n = Arrays.binarySearch(cellKeys[page], key);
+    return (n >= 0) ? (page * PAGE_CELLS) + n : -1;
+    }
+
+
+  private void readPage(RandomAccessFile file, int page) throws IOException
+    {
+    int cells = Math.min(PAGE_CELLS, cellCount - (page * PAGE_CELLS));
+    byte[] buffer = new byte[cells * INDEX_ENTRY_SIZE];
+    file.seek( indexOffset() + ((long)page * PAGE_CELLS * INDEX_ENTRY_SIZE) );
+    file.readFully(buffer);
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(buffer));
+    long[] keys  = new long[cells];
+    int[]  first = new int[cells];
+    int[]  count = new int[cells];
+    int i;
+    for (i = 0; i < cells; i++)
+      {
+      keys[i]  = in.readLong();
+      first[i] = in.readInt();
+      count[i] = in.readInt();
+      }
+    cellFirst[page] = first;
+    cellTracks[page] = count;
+    cellKeys[page]  = keys;
+    }
+
+
+
+  /**
+   Find the track with its start / finish nearest to a position.
+   @param lat     Latitude (decimal degrees)
+   @param lon     Longitude (decimal degrees)
+   @param radius  Only tracks with their start / finish within this distance (metres) are found (e.g. DETECT_RADIUS)
+   @param dst     Filled in with the track, if one is found
+   @return Distance (metres) to the start / finish of the track found, or -1 if none was found.
+   */
+  public synchronized double findNearest(double lat, double lon, double radius, TrackRecord dst)
+    {
+    if (trackCount == 0) return -1.0;
+    double metresPerDegreeLon = Math.cos( Math.toRadians(lat) ) * METRES_PER_DEGREE;
+    int latCells = (int)Math.ceil( radius / (CELL_SIZE * METRES_PER_DEGREE) );
+    int lonCells = (metresPerDegreeLon > 1.0) ? (int)Math.ceil( radius / (CELL_SIZE * metresPerDegreeLon) ) : 0;
+    lonCells = Math.min(lonCells, LON_CELLS / 2);                         // (Near the poles: all the way round)
+    int latCell = cellOf(lat);
+    int lonCell = cellOf(lon);
+
+    RandomAccessFile file = null;
+    double bestDistance = radius;
+    int bestTrack = -1;
+    try
+      {
+      file = new RandomAccessFile(databaseFile, "r");
+      int thisLat, thisLon;
+      for (thisLat = latCell - latCells; thisLat <= latCell + latCells; thisLat++)
+        for (thisLon = lonCell - lonCells; thisLon <= lonCell + lonCells; thisLon++)
+          {
+          int cell = findCell(file, cellKey(thisLat, thisLon));
+          if (cell < 0) continue;
+          int first = cellFirst[cell / PAGE_CELLS][cell % PAGE_CELLS];
+          int count = cellTracks[cell / PAGE_CELLS][cell % PAGE_CELLS];
+          // Read the tracks in the cell in one go, and check their start / finish positions:
+          int length = count * TrackRecord.RECORD_SIZE;
+          if (readBuffer.length < length) readBuffer = new byte[length];
+          file.seek(trackOffset(first));
+          file.readFully(readBuffer, 0, length);
+          int n;
+          for (n = 0; n < count; n++)
+            {
+            double metresNorth = (getDouble(readBuffer, n * TrackRecord.RECORD_SIZE)     - lat) * METRES_PER_DEGREE;
+            double metresEast  = lonDifference(getDouble(readBuffer, n * TrackRecord.RECORD_SIZE + 8), lon) * metresPerDegreeLon;
+            double distance = Math.sqrt( (metresNorth * metresNorth) + (metresEast * metresEast) );
+            if (distance <= bestDistance)
+              {
+              bestDistance = distance;
+              bestTrack = first + n;
+              }
+            }
+          }
+      if (bestTrack < 0) return -1.0;
+      file.seek(trackOffset(bestTrack));
+      file.readFully(readBuffer, 0, TrackRecord.RECORD_SIZE);
+      dst.read( new DataInputStream(new ByteArrayInputStream(readBuffer, 0, TrackRecord.RECORD_SIZE)) );
+      return bestDistance;
+      }
+    catch (IOException e)
+      {
+      lastError = "Error reading track database; " + e.getMessage();
+      return -1.0;
+      }
+    finally
+      {
+      if (file != null) try { file.close(); } catch (IOException e) {  }
+      }
+    }
+
+
+
+  /** Read a double (as written by DataOutput.writeDouble) from a buffer. */
+  private static double getDouble(byte[] buffer, int offset)
+    {
+    long bits = 0L;
+    int i;
+    for (i = 0; i < 8; i++) bits = (bits << 8) | (buffer[offset + i] & 0xFFL);
+    return Double.longBitsToDouble(bits);
+    }
+
+
+
+
+  /************* Adding tracks: **********************************************/
+
+  /**
+   Add a track. A track already in the database with the same name, or with its
+   start / finish in the same place, is replaced. The record is copied, so the
+   caller can reuse it straight away.
+   */
+  public void add(TrackRecord track)
+    {
+    TrackRecord record = new TrackRecord();
+    record.copy(track);
+    if (record.name.length() > TrackRecord.NAME_LENGTH) record.name = record.name.substring(0, TrackRecord.NAME_LENGTH);
+    synchronized (writeQueue)
+      {
+      writeQueue.addLast(record);
+      if (writerThread == null)
+        {
+        writerThread = new Thread(writerTask, "TrackDatabase Writer");
+        writerThread.start();
+        }
+      }
+    }
+
+
+
+  /** Adds queued tracks (rebuilding the file for each), then stops when the queue is empty. */
+  private final Runnable writerTask = new Runnable()
+    {
+    public void run()
+      {
+      while (true)
+        {
+        TrackRecord record;
+        synchronized (writeQueue)
+          {
+          if (writeQueue.isEmpty())
+            {
+            writerThread = null;
+            return;
+            }
+          record = writeQueue.getFirst();
+          }
+        rebuild(record);
+        synchronized (writeQueue)
+          {
+          writeQueue.removeFirst();
+          }
+        }
+      }
+    };
+
+
+
+  /** Rebuild the file with a new track added (replacing any it matches). */
+  private synchronized void rebuild(TrackRecord newTrack)
+    {
+    ArrayList<TrackRecord> tracks = new ArrayList<TrackRecord>(trackCount + 1);
+    boolean isChanged = true;
+    DataInputStream in = null;
+    try
+      {
+      if (trackCount > 0)
+        {
+        in = new DataInputStream(new BufferedInputStream(new FileInputStream(databaseFile), 16384));
+        int skip = (int)trackOffset(0);
+        if (in.skipBytes(skip) < skip) throw new IOException("File is too short");
+        double metresPerDegreeLon = Math.cos( Math.toRadians(newTrack.startLat) ) * METRES_PER_DEGREE;
+        int i;
+        for (i = 0; i < trackCount; i++)
+          {
+          TrackRecord track = new TrackRecord();
+          track.read(in);
+          if (track.sameAs(newTrack)) isChanged = false;
+          double metresNorth = (track.startLat - newTrack.startLat) * METRES_PER_DEGREE;
+          double metresEast  = lonDifference(track.startLon, newTrack.startLon) * metresPerDegreeLon;
+          boolean isSamePlace = ( ((metresNorth * metresNorth) + (metresEast * metresEast)) < (SAME_TRACK_DISTANCE * SAME_TRACK_DISTANCE) );
+          if ( !track.name.equals(newTrack.name) && !isSamePlace ) tracks.add(track);
+          }
+        }
+      }
+    catch (IOException e)
+      {
+      lastError = "Error reading track database; " + e.getMessage();
+      return;         // (Don't lose the tracks we couldn't read)
+      }
+    finally
+      {
+      if (in != null) try { in.close(); } catch (IOException e) {  }
+      }
+    if (!isChanged) return;          // Already there.
+    tracks.add(newTrack);
+
+    File tempFile = new File(databaseFile.getPath() + ".new");
+    try
+      {
+      write(tempFile, tracks);
+      if (!tempFile.renameTo(databaseFile)) throw new IOException("Can't replace " + databaseFile.getName());
+      }
+    catch (IOException e)
+      {
+      lastError = "Error writing track database; " + e.getMessage();
+      tempFile.delete();
+      }
+    open();
+    }
+
+
+
+  /**
+   Write a track database file.
+   @param file    File to write (replaced if it exists)
+   @param tracks  Tracks to put in it (in any order)
+   */
+  static void write(File file, ArrayList<TrackRecord> tracks) throws IOException
+    {
+    // Sort the tracks by cell, and count the cells:
+    int count = tracks.size();
+    final long[] keys = new long[count];
+    Integer[] order = new Integer[count];
+    int i;
+    for (i = 0; i < count; i++)
+      {
+      keys[i] = cellKey(tracks.get(i).startLat, tracks.get(i).startLon);
+      order[i] = Integer.valueOf(i);
+      }
+    Arrays.sort(order, new Comparator<Integer>()
+      {
+      public int compare(Integer a, Integer b)
+        {
+        long keyA = keys[a.intValue()];
+        long keyB = keys[b.intValue()];
+        return (keyA < keyB) ? -1 : ((keyA > keyB) ? 1 : 0);
+        }
+      });
+    int cells = 0;
+    for (i = 0; i < count; i++)
+      if ( (i == 0) || (keys[order[i].intValue()] != keys[order[i - 1].intValue()]) ) cells++;
+
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 16384));
+    try
+      {
+      out.writeInt(FILE_MAGIC);
+      out.writeInt(FILE_VERSION);
+      out.writeInt(TrackRecord.RECORD_SIZE);
+      out.writeInt(count);
+      out.writeInt(cells);
+      out.writeInt(PAGE_CELLS);
+
+      // Page directory, then the cell index:
+      int pass;
+      for (pass = 0; pass < 2; pass++)
+        {
+        int cell = -1;
+        for (i = 0; i < count; i++)
+          {
+          long key = keys[order[i].intValue()];
+          if ( (i > 0) && (key == keys[order[i - 1].intValue()]) ) continue;
+          cell++;
+          if (pass == 0)
+            {
+            if ((cell % PAGE_CELLS) == 0) out.writeLong(key);
+            }
+          else
+            {
+            int end = i + 1;
+            while ( (end < count) && (keys[order[end].intValue()] == key) ) end++;
+            out.writeLong(key);
+            out.writeInt(i);
+            out.writeInt(end - i);
+            }
+          }
+        }
+
+      // Tracks:
+      for (i = 0; i < count; i++) tracks.get(order[i].intValue()).write(out);
+      out.close();
+      out = null;
+      }
+    finally
+      {
+      if (out != null) try { out.close(); } catch (IOException e) {  }
+      }
+    }
+
+
+  }  // [class TrackDatabase]
@@ -0,0 +1,142 @@
+package com.tumanako.sensors;
+
+/************************************************************************************
+Tumanako - Electric Vehicle and Motor control software
+
+Copyright (C) 2014 Jeremy Cole-Baker <jeremy@rhtech.co.nz>
+
+This file is part of Tumanako Dashboard.
+
+Tumanako is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published
+by the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Tumanako is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with Tumanako.  If not, see <http://www.gnu.org/licenses/>.
+
+*************************************************************************************/
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+
+
+/****************************************************************
+ *  Track Record:
+ *  -------------------------------
+ *
+ *  One track in the track database (see TrackDatabase): its name,
+ *  the start / finish gate and up to LapRecord.MAX_SECTORS sector
+ *  gates (centre and direction of travel of each; see TimingGate).
+ *
+ *  The current track is kept in the preferences file (that's where
+ *  TrackSettingsActivity sets it and LapData reads it from); see
+ *  LapData.readTrack() and writeTrack() to copy a record to and from
+ *  the preferences. Nothing here uses Android.
+ *
+ *  Records are a fixed size when written (RECORD_SIZE bytes), so the
+ *  database can read any track from its file without reading the rest.
+ *
+ * @author Jeremy Cole-Baker / Riverhead Technology
+ *
+ ***************************************************************/
+public class TrackRecord
+  {
+
+  public static final int MAX_SECTORS = LapRecord.MAX_SECTORS;
+  public static final int NAME_LENGTH = 32;     // Characters (longer names are cut short)
+  public static final float DEFAULT_HALF_WIDTH = 8f;    // metres (LapData.START_FINISH_BOX_RADIUS)
+
+  /** Size of a record in the track database file (bytes). */
+  public static final int RECORD_SIZE = (NAME_LENGTH * 2) + 8 + 8 + 4 + 4 + 4 + (MAX_SECTORS * (8 + 8 + 4));
+
+  public String name = "";
+  public double startLat = 0.0;           // Start / finish gate centre (decimal degrees)
+  public double startLon = 0.0;
+  public float  startTrack = -1f;         // Direction of travel through the start / finish (Deg. True), or -1 if not known
+  public float  halfWidth = DEFAULT_HALF_WIDTH;                    // Gate half width (metres)
+  public int    sectorCount = 0;
+  public final double[] sectorLat   = new double[MAX_SECTORS];
+  public final double[] sectorLon   = new double[MAX_SECTORS];
+  public final float[]  sectorTrack = new float[MAX_SECTORS];
+
+
+
+  public void copy(TrackRecord source)
+    {
+    name        = source.name;
+    startLat    = source.startLat;
+    startLon    = source.startLon;
+    startTrack  = source.startTrack;
+    halfWidth   = source.halfWidth;
+    sectorCount = source.sectorCount;
+    System.arraycopy(source.sectorLat,   0, sectorLat,   0, MAX_SECTORS);
+    System.arraycopy(source.sectorLon,   0, sectorLon,   0, MAX_SECTORS);
+    System.arraycopy(source.sectorTrack, 0, sectorTrack, 0, MAX_SECTORS);
+    }
+
+
+  /** @return true if the other record has the same name and gates. */
+  public boolean sameAs(TrackRecord other)
+    {
+    if ( !name.equals(other.name) || (startLat != other.startLat) || (startLon != other.startLon) ||
+         (startTrack != other.startTrack) || (halfWidth != other.halfWidth) || (sectorCount != other.sectorCount) ) return false;
+    int i;
+    for (i = 0; i < sectorCount; i++)
+      if ( (sectorLat[i] != other.sectorLat[i]) || (sectorLon[i] != other.sectorLon[i]) || (sectorTrack[i] != other.sectorTrack[i]) ) return false;
+    return true;
+    }
+
+
+
+  /** Write the record (exactly RECORD_SIZE bytes). The start / finish position comes first (TrackDatabase reads just that to search). */
+  public void write(DataOutput out) throws IOException
+    {
+    out.writeDouble(startLat);
+    out.writeDouble(startLon);
+    int i;
+    for (i = 0; i < NAME_LENGTH; i++) out.writeChar( (i < name.length()) ? name.charAt(i) : 0 );
+    out.writeFloat(startTrack);
+    out.writeFloat(halfWidth);
+    out.writeInt(sectorCount);
+    for (i = 0; i < MAX_SECTORS; i++)
+      {
+      out.writeDouble(sectorLat[i]);
+      out.writeDouble(sectorLon[i]);
+      out.writeFloat(sectorTrack[i]);
+      }
+    }
+
+
+  /** Read a record written by write(). */
+  public void read(DataInput in) throws IOException
+    {
+    startLat = in.readDouble();
+    startLon = in.readDouble();
+    StringBuilder thisName = new StringBuilder(NAME_LENGTH);
+    int i;
+    for (i = 0; i < NAME_LENGTH; i++)
+      {
+      char c = in.readChar();
+      if (c != 0) thisName.append(c);
+      }
+    name        = thisName.toString();
+    startTrack  = in.readFloat();
+    halfWidth   = in.readFloat();
+    sectorCount = Math.max(0, Math.min(MAX_SECTORS, in.readInt()));
+    for (i = 0; i < MAX_SECTORS; i++)
+      {
+      sectorLat[i]   = in.readDouble();
+      sectorLon[i]   = in.readDouble();
+      sectorTrack[i] = in.readFloat();
+      }
+    }
+
+  }  // [class TrackRecord]
@@ -22,23 +22,22 @@ along with Tumanako.  If not, see <http://www.gnu.org/licenses/>.
 
 *************************************************************************************/
 
-import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
-import java.lang.reflect.Method;
-import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import com.tumanako.dash.DashBus;
 import com.tumanako.dash.DashMessages;
 import com.tumanako.dash.IDashMessages;
+import com.tumanako.dash.SampleRing;
+import com.tumanako.dash.VehicleFrame;
+import com.tumanako.dash.VehicleFrameBuffer;
 import com.tumanako.ui.UIActivity;
 
-import android.bluetooth.BluetoothAdapter;
-import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothSocket;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.SystemClock;
 import android.util.Log;
 
 
@@ -49,12 +48,17 @@ import android.util.Log;
  *  This class is designed to connect to get a stream of data from 
  *  the vehicle electronics.
  *   
- *  The stream is decoded as necessary and sent to the UI as 
- *  an Intent with a bundle of data (see DashMessages).
+ *  The stream is decoded as necessary into a VehicleFrame, which 
+ *  is handed to the UI thread and published on the DashBus (one 
+ *  frame per line of data received; see DashBus.publishFrame). 
  *
- *  Connection uses Bluetooth. The class extends Thread and
- *  launches the bluetooth connection in a new thread so that
+ *  Connection normally uses Bluetooth, but any VehicleTransport 
+ *  can be used (e.g. TCP, a file or generated data for testing; 
+ *  see openTransport). The class extends Thread and
+ *  launches the connection in a new thread so that
  *  it can listen for incomming data without stalling the UI. 
+ *  The watchdog and reconnect logic below work the same way 
+ *  whichever transport is used. 
  *  
  *  A 'Watchdog' mechanism is used to keep the connection alive. 
  *  This class implements IDashMessages and registers to listen 
@@ -90,19 +94,19 @@ public class VehicleData extends Thread implements IDashMessages
 
   private final Handler watchdogTimer = new Handler();      // Watchdog timer: checks bluetooth status.  
 
-  /***** Bluetooth constants and objects: **************************/
+  /***** Connection constants and objects: *************************/
   private static final int BT_WATCHDOG_TIME     = 1000;      // Check bluetooth connection every n mSec
   private static final int BT_WATCHDOG_MAXCOUNT = 2;         // Close down bluetooth after BT_WATCHDOG_TIME x n without a 'KeepAlive' message from UI.
   /*****************************************************************/
-  private static final int BT_READ_SIZE         = 200;         // Max Number of characters we read per stream read. Not too critical.
-  private static final int BT_STREAM_OVERFLOW   = 600;         // If there are more than this many bytes left in the BT input stream after processing, we should dump some.  
+  private static final int BT_READ_SIZE         = 1024;        // Max Number of characters we read per stream read. Not too critical.
+  private static final int LINE_QUEUE_SIZE      = 32;          // Lines which can be queued between the BT thread and the decoder thread. 
+  private static final int LINE_MAX_BACKLOG     = 8;           // If more lines than this are waiting to be decoded, the oldest are dropped. 
+  private static final long DECODER_WAIT        = 250000000L;  // Decoder thread checks for a stop request every n nS while waiting for data.
+  private static final long DECODER_STOP_WAIT   = 1000;        // close() waits up to n mS for the decoder thread to stop.
   /*****************************************************************/
-  private BluetoothAdapter bluetoothAdapter;
-  private BluetoothDevice  btVehicleSensor;
-  private BluetoothSocket  btSocket;
-  private InputStream      btStreamIn;
-  private OutputStream     btStreamOut;
-  private final UUID       myUUID;
+  private volatile VehicleTransport transport = null;   // Connection to the vehicle. Volatile: closed from the UI thread to interrupt a blocked read (see messageReceived).
+  private InputStream streamIn = null;
+  private final VehicleTransport fixedTransport;        // If not null, always use this transport (see constructor).
   /*****************************************************************/
   private volatile boolean isBTConnected = false;       // Internal flag which indicates when the BT connection is established.
   private volatile boolean isFinished = false;          // Internal flag which signals when the comms loop has ended and the BT connection has been closed.
@@ -113,7 +117,9 @@ public class VehicleData extends Thread implements IDashMessages
   /****** Vehicle Data Message Intent Filters: *********/
   public static final String VEHICLE_DATA                  = "VEHICLE_DATA";  
   public static final String VEHICLE_DATA_KEEPALIVE        = "VEHICLE_DATA_KEEPALIVE";  
-  public static final String VEHICLE_DATA_BTADDRESS_CHANGE = "VEHICLE_DATA_BTADDRESS";
+  public static final String VEHICLE_DATA_BTADDRESS_CHANGE = "VEHICLE_DATA_BTADDRESS";     // Also sent when PREF_TRANSPORT changes: reconnects with the new settings.
+  
+  public static final String PREF_TRANSPORT = "vehicleTransport";    // App preference which selects the vehicle connection (see openTransport).
   public static final String intentFilters[] = 
     {
     VEHICLE_DATA_KEEPALIVE,
@@ -126,6 +132,52 @@ public class VehicleData extends Thread implements IDashMessages
   private final Context vehicledataContext;
 
   
+  /****** Vehicle Data Frames: *******************************
+   * Each line of data is decoded into the write frame of frameBuffer (on the BT thread). 
+   * The frame is then published, and frameTask is posted to the UI thread to pass it 
+   * on to the DashBus. If frames arrive faster than the UI thread can take them, 
+   * frameTask is only posted once and picks up the latest frame when it runs.
+   ***********************************************************/
+  private final VehicleFrameBuffer frameBuffer = new VehicleFrameBuffer();
+  private final Handler frameHandler = new Handler();                        // Same thread as the watchdog timer (the UI thread).
+  private final AtomicBoolean isFramePending = new AtomicBoolean(false);     // Is frameTask waiting to run?
+  private final DashBus dashBus = DashBus.getInstance();
+  private final SampleRing sampleRing = dashBus.getSampleRing();             // Written on the decoder thread (the only producer).
+  private final SensorFusion sensorFusion = SensorFusion.getInstance();      // Updated on the decoder thread (the only one which may). 
+  private final EnergyMeter energyMeter = new EnergyMeter(0.1f);           // kWh used, from the kWh reading (0.1 kWh steps). Decoder thread only. 
+  private long timeLastUIUpdated = 0;                                        // Time (mS) we last sent UIActivity.UI_UPDATED
+  private static final int UI_UPDATED_INTERVAL = 500;                        // Send UI_UPDATED at most once per n mS.
+
+  
+  /****** Decoder Thread: ************************************
+   * The BT thread just reads the input stream (blocking until data arrive) and 
+   * splits it into lines in lineQueue. The decoder thread takes lines from the 
+   * queue, decodes them and publishes the frames. 
+   ***********************************************************/
+  private final LineQueue lineQueue = new LineQueue(LINE_QUEUE_SIZE, LINE_MAX_BACKLOG);
+  private final TDV1Decoder tdv1Decoder = new TDV1Decoder();                 // Decodes lines of data from the vehicle (decoder thread only).
+  private volatile boolean isDecoderStop = false;
+  private Thread decoderThread = null;                   // Started (or not) and read under decoderLock. 
+  private boolean isClosed = false;                      // Set by close(), under decoderLock: the decoder thread mustn't be started. 
+  private final Object decoderLock = new Object();
+  
+  
+  /****** Latency Statistics: ********************************
+   * Time from the arrival of a line (first byte read from the 
+   * input stream) to its frame being published on the DashBus. 
+   * Updated on the UI thread, and summarised every LATENCY_REPORT_TICKS
+   * ticks of the watchdog timer (logged only if UIActivity.DEBUG_STATS 
+   * is set). 
+   ***********************************************************/
+  private static final int LATENCY_REPORT_TICKS = 10;
+  private int  latencyReportCounter = 0;
+  private long latencyCount = 0;
+  private long latencyTotal = 0;       // nS
+  private long latencyMax   = 0;       // nS
+  private long lastLatencyAverage = 0; // nS, for the last reporting period.
+  private long lastLatencyMax     = 0; // nS, for the last reporting period.
+
+  
   /*********** TEMP DEBUG ********************************
    * This update timer can be used to trigger output of
    * debug info during BT operations. 
@@ -148,16 +200,26 @@ public class VehicleData extends Thread implements IDashMessages
   
   // ************** Constructor: *****************************************
   public VehicleData(Context context)
+    {  this(context, null);  }
+  
+  
+  /**
+   VehicleData Constructor: Uses the given transport instead of the one 
+   chosen in the app preferences (e.g. a ReplayEngine for demo mode). 
+   A fixed transport is not changed by VEHICLE_DATA_BTADDRESS_CHANGE. 
+   @param context        Context
+   @param thisTransport  Transport to use, or null to use the preferences.
+   */
+  public VehicleData(Context context, VehicleTransport thisTransport)
     {
     
     // --DEBUG!!-- Log.i(com.tumanako.ui.UIActivity.APP_TAG, " VehicleData -> Constructor; ");
 
     vehicledataContext = context; 
     
-    /*********** Bluetooth Init: *******************/
-    myUUID = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");    // Build a UUID for a RfComm connection (used when connecting)
-    bluetoothAdapter = BluetoothAdapter.getDefaultAdapter();                   // Create a Bluetooth adaptor object
     isBTConnected = false;
+    fixedTransport = thisTransport;
+    sensorFusion.configure(context);     // Drive ratio and wheel size, for the wheel speed. 
     
     dashMessages = new DashMessages(context, this, intentFilters);    // We are extending the 'DashMessages' class, and we need to call its Constructor here. 
 
@@ -188,10 +250,12 @@ public class VehicleData extends Thread implements IDashMessages
    // We respond to 'keep alive' messages and bluetooth address changes.
    watchdogCounter = 0;     // Whatever the type of message, treat it as a 'keep alive' event and reset watchdog counter. 
    
-   if (action.equals(VEHICLE_DATA_BTADDRESS_CHANGE)) 
+   if (action.equals(VEHICLE_DATA_BTADDRESS_CHANGE) && (fixedTransport == null)) 
      {
      // Bluetooth device address has changed! Note: We'll only do this if we've been sent a string (should be new address).  
      isAddressChanged = true;    // This flag tells the connection thread to reconnect with the new address. 
+     // The connection thread is probably blocked reading the old connection. Close it to wake it up: 
+     closeTransport();
      }
    }
   
@@ -202,6 +266,15 @@ public class VehicleData extends Thread implements IDashMessages
  public boolean isConnected()    // Is the bluetooth socket connected?
     {  return isBTConnected;  }
     
+  public long getLatencyAverage()   // Average time (nS) from data arrival to display during the last reporting period. UI thread only. 
+    {  return lastLatencyAverage;  }
+
+  public long getLatencyMax()       // Maximum time (nS) from data arrival to display during the last reporting period. UI thread only. 
+    {  return lastLatencyMax;  }
+
+  public long getLinesDropped()     // Total lines of data thrown away because the decoder fell behind. 
+    {  return lineQueue.getLinesDropped();  }
+    
   public boolean isFinished()    // Has the bluetooth thread finished and terminated? (Usually caused by loss of connection or watchdog timeout). 
     {  return isFinished;  }
     
@@ -213,11 +286,27 @@ public class VehicleData extends Thread implements IDashMessages
    * This is Called when the thread is to be terminated. 
    * Stops all BT activity and closes the socket: 
    **********************************************************/
+  public void close()              // Stop now, instead of waiting for the watchdog. Call on the UI thread. 
+    {
+    // The decoder thread writes to the sample ring and the sensor fusion, which only 
+    // allow one producer. Make sure it has stopped before we return, so a new 
+    // VehicleData can start its own straight away: 
+    Thread thisDecoder;
+    synchronized (decoderLock)
+      {
+      isClosed = true;
+      thisDecoder = decoderThread;
+      }
+    stopVehicleData();
+    if ( (thisDecoder != null) && !stopDecoder(thisDecoder, DECODER_STOP_WAIT) )
+      Log.i(com.tumanako.ui.UIActivity.APP_TAG, " VehicleData -> Decoder thread didn't stop! ");
+    }
+  
   private void stopVehicleData()
     {
     // *** Stop the vehicle sensor... ***
     // --DEBUG!!-- Log.i(com.tumanako.ui.UIActivity.APP_TAG, " VehicleData -> stopVehicleData(); ");
-    btClose();   // Close the BT connection 
+    closeTransport();   // Close the connection 
     // Stop the update timer if it's running:
     watchdogTimer.removeCallbacks(watchdogTimerTask);       // Stop timer.
     dashMessages.suspend();                                 // Stop the DashMessages object (unregisters intent listener)
@@ -233,6 +322,27 @@ public class VehicleData extends Thread implements IDashMessages
    
 
   
+  /******** Latency Report: *********************************
+   * Called on the UI thread (from the watchdog timer). Saves 
+   * and logs the latency stats for the last period, then 
+   * starts a new period. 
+   **********************************************************/
+  private void reportLatency()
+    {
+    latencyReportCounter = 0;
+    lastLatencyAverage = (latencyCount > 0) ? (latencyTotal / latencyCount) : 0;
+    lastLatencyMax     = latencyMax;
+    if (UIActivity.DEBUG_STATS && (latencyCount > 0)) 
+      Log.i(UIActivity.APP_TAG, " VehicleData -> Frames: " + latencyCount 
+          + "; Latency avg: " + (lastLatencyAverage / 1000) + " uS, max: " + (lastLatencyMax / 1000) 
+          + " uS; Lines dropped: " + lineQueue.getLinesDropped() + "; Rejected: " + tdv1Decoder.getLinesRejected() );
+    latencyCount = 0;
+    latencyTotal = 0;
+    latencyMax = 0;
+    }
+
+  
+  
   /******* Watchdog Timer: **********************************************/
   private Runnable watchdogTimerTask = new Runnable() 
    {
@@ -243,6 +353,9 @@ public class VehicleData extends Thread implements IDashMessages
 
      // !!DEBUG!! Log.i(com.tumanako.ui.UIActivity.APP_TAG, " VehicleData -> Tick. Counter:" + watchdogCounter );
      
+     latencyReportCounter++;
+     if (latencyReportCounter >= LATENCY_REPORT_TICKS) reportLatency();
+     
      if (watchdogCounter > BT_WATCHDOG_MAXCOUNT) stopVehicleData();                                                   // Watchdog Counter Overflow! We haven't been told to keep going, so stop the BT thread:
      else                                        watchdogTimer.postDelayed(watchdogTimerTask, BT_WATCHDOG_TIME);      // ...Callback in n milliseconds!
 
@@ -263,12 +376,42 @@ public class VehicleData extends Thread implements IDashMessages
   
   
   
+  /******* Frame Task: **************************************************
+   * Runs on the UI thread. Picks up the latest frame and publishes it.
+   **********************************************************************/
+  private Runnable frameTask = new Runnable() 
+   {
+   public void run()  
+     {
+     isFramePending.set(false);   // Clear this first, so a frame published while we are busy will post us again.
+     VehicleFrame frame = frameBuffer.getLatestFrame();
+     dashBus.publishFrame( frame );
+     // Latency stats: 
+     long latency = System.nanoTime() - frame.getTimestamp();
+     latencyCount++;
+     latencyTotal += latency;
+     if (latency > latencyMax) latencyMax = latency;
+     // Let the UI know that it is being updated (stops it resetting), but don't flood it with intents:
+     long timeNow = SystemClock.elapsedRealtime();
+     if ((timeNow - timeLastUIUpdated) >= UI_UPDATED_INTERVAL)
+       {
+       timeLastUIUpdated = timeNow;
+       dashMessages.sendData( UIActivity.UI_UPDATED, null, null, null, null );
+       }
+     } 
+   };
+
+  
+  
+  
   /************* Data Decode / Send: *****************************
-   * This method decodes a string of data received from the input stream 
-   * and fills in the various data fields in vehicleData.
-   * @param thisData - A string containing encoded vehicle data.
+   * Called (on the decoder thread) when tdv1Decoder has decoded a line 
+   * of data received from the input stream. Fills in the various data 
+   * fields in the next vehicle data frame, then publishes the frame.
+   * @param thisData    Decoder holding the fields from the line.
+   * @param arrivalTime Time (System.nanoTime()) the line was received. 
    * 
-   *  Data Format:
+   *  Data Format (see TDV1Decoder):
    *  TDV1:3670,54,52,32,375,138,214,1,0
    *  
    *  Which equates to:
@@ -283,72 +426,75 @@ public class VehicleData extends Thread implements IDashMessages
    *    Fault = OFF (i.e. no fault)
    *    
    *    Note that acc volt and kWhr are multiplied by 10. 
+   *    
+   *  Fields which were missing or garbled (NaN) aren't set, so they 
+   *  keep their last value in the frame. 
    *     
    ***************************************************************/
   
-  private void decodeAndSend(String thisData)
+  private void decodeAndSend(TDV1Decoder thisData, long arrivalTime)
     {
-    if ((!thisData.startsWith("TDV1:")) ||
-        (thisData.length() < 20)) return;  // Line doesn't start with the 'TDV1' tag, or it's too short. Give up. 
-    
-    String dataPart = thisData.substring(5);   // Get the part AFTER the tag.
-    String[] splitData = dataPart.split(",");  // Split the data at the comma characters. 
-    
-    float motorRPM     = 0f;
-    float tMotor       = 0f;
-    float tController  = 0f;
-    float tPack        = 0f;
-    float voltPack     = 0f;
-    float voltAcc      = 0f;
-    float kWh          = 0f;
-    float contactorOn  = 0f;
-    float faultOn      = 0f;
+    float motorRPM     = thisData.getField(TDV1Decoder.FIELD_MOTOR_RPM);
+    float tMotor       = thisData.getField(TDV1Decoder.FIELD_MOTOR_TEMP);
+    float tController  = thisData.getField(TDV1Decoder.FIELD_CONTROLLER_TEMP);
+    float tPack        = thisData.getField(TDV1Decoder.FIELD_PACK_TEMP);
+    float voltPack     = thisData.getField(TDV1Decoder.FIELD_PACK_VOLTS);
+    float voltAcc      = thisData.getField(TDV1Decoder.FIELD_ACC_VOLTS) / 10;
+    float kWh          = thisData.getField(TDV1Decoder.FIELD_KWH) / 10;
+    float contactorOn  = thisData.getField(TDV1Decoder.FIELD_CONTACTOR);
+    float faultOn      = thisData.getField(TDV1Decoder.FIELD_FAULT);
     float motorReverse = 0f;
     
-    // Extract each value from the string (now expanded to an array). 
-    // For simplicity, all values are sent as floating point. 
-    // We'll wrap this in a tyy / catch block, so that corrupt data
-    // won't crash the app (Float.parseFloat will fail if the string 
-    // it's given isn't a valid number). 
-    try
-      {
-      motorRPM    = Float.parseFloat(splitData[0]);
-      tMotor      = Float.parseFloat(splitData[1]);
-      tController = Float.parseFloat(splitData[2]);
-      tPack       = Float.parseFloat(splitData[3]);
-      voltPack    = Float.parseFloat(splitData[4]);
-      voltAcc     = Float.parseFloat(splitData[5]) / 10;
-      kWh         = Float.parseFloat(splitData[6]) / 10;
-      contactorOn = Float.parseFloat(splitData[7]); 
-      faultOn     = Float.parseFloat(splitData[8]);
-      }
-    catch (Exception e)
-      { }
+    float fusedSpeed   = sensorFusion.update(motorRPM, arrivalTime);    // Speed from the wheel speed and GPS (see SensorFusion). 
+    float energyUsed   = energyMeter.update(kWh, arrivalTime);          // kWh used, interpolated between steps of the reading (see EnergyMeter). 
     
-    motorReverse = (motorRPM < 0) ? 1f : 0f;  // This turns on the reverse indicator lamp if the RPM is negative. 
-    motorRPM = Math.abs(motorRPM);            // Convert negative RPM into positive for display. 
+    motorReverse = Float.isNaN(motorRPM) ? Float.NaN : ((motorRPM < 0) ? 1f : 0f);  // This turns on the reverse indicator lamp if the RPM is negative. 
+    motorRPM = Math.abs(motorRPM) / 1000f;    // Convert negative RPM into positive for display (in thousands of RPM, to suit the dial). 
     
-    // Make the data up into a 'Bundle', using the data type indicators
-    // defined above as 'keys': 
-    Bundle vehicleData = new Bundle();
-    vehicleData.putFloat("DATA_CONTACTOR_ON",      contactorOn       );
-    vehicleData.putFloat("DATA_FAULT",             faultOn           );
-    vehicleData.putFloat("DATA_MAIN_BATTERY_KWH",  kWh               );
-    vehicleData.putFloat("DATA_MOTOR_RPM",         motorRPM          );
-    vehicleData.putFloat("DATA_MOTOR_REVERSE",     motorReverse      );
-    vehicleData.putFloat("DATA_MAIN_BATTERY_TEMP", tPack             );
-    vehicleData.putFloat("DATA_MOTOR_TEMP",        tMotor            );
-    vehicleData.putFloat("DATA_CONTROLLER_TEMP",   tController       );
-    vehicleData.putFloat("DATA_PRECHARGE",         0f                );
-    vehicleData.putFloat("DATA_MAIN_BATTERY_VLT",  voltPack          );
-    vehicleData.putFloat("DATA_MAIN_BATTERY_AH",   0f                );
-    vehicleData.putFloat("DATA_AIR_TEMP",          0f                );
-    vehicleData.putFloat("DATA_DATA_OK",           1f                );
-    vehicleData.putFloat("DATA_DRIVE_TIME",        0f                );
-    vehicleData.putFloat("DATA_DRIVE_RANGE",       0f                );
-    vehicleData.putFloat("DATA_ACC_BATTERY_VLT",   voltAcc           );
-    // Now transmit the data to the UI by sending a message!  
-    dashMessages.sendData( VEHICLE_DATA, null, null, null, vehicleData );   
+    // Fill in the next frame: 
+    VehicleFrame frame = frameBuffer.getWriteFrame();
+    frame.setTimestamp(arrivalTime);
+    setField( frame, DashBus.DATA_CONTACTOR_ON,      contactorOn       );
+    setField( frame, DashBus.DATA_FAULT,             faultOn           );
+    setField( frame, DashBus.DATA_MAIN_BATTERY_KWH,  kWh               );
+    setField( frame, DashBus.DATA_MOTOR_RPM,         motorRPM          );
+    setField( frame, DashBus.DATA_MOTOR_REVERSE,     motorReverse      );
+    setField( frame, DashBus.DATA_MAIN_BATTERY_TEMP, tPack             );
+    setField( frame, DashBus.DATA_MOTOR_TEMP,        tMotor            );
+    setField( frame, DashBus.DATA_CONTROLLER_TEMP,   tController       );
+    frame.set( DashBus.DATA_PRECHARGE,         0f                );
+    setField( frame, DashBus.DATA_MAIN_BATTERY_VLT,  voltPack          );
+    frame.set( DashBus.DATA_MAIN_BATTERY_AH,   0f                );
+    frame.set( DashBus.DATA_AIR_TEMP,          0f                );
+    frame.set( DashBus.DATA_DATA_OK,           1f                );
+    frame.set( DashBus.DATA_DRIVE_TIME,        0f                );
+    frame.set( DashBus.DATA_DRIVE_RANGE,       0f                );
+    setField( frame, DashBus.DATA_ACC_BATTERY_VLT,   voltAcc           );
+    frame.set( DashBus.DATA_FUSED_SPEED,       fusedSpeed        );
+    frame.set( DashBus.DATA_ENERGY_USED,       energyUsed        );
+    // Also write the values straight into the sample ring (for charts; no UI thread needed): 
+    sampleRing.begin();
+    for (int field=0; field<VehicleFrame.FIELD_COUNT; field++) sampleRing.set(field, frame.get(field));
+    sampleRing.publish(arrivalTime);
+    publishFrame();
+    }
+  
+  
+  
+  // Set a field in a frame, unless the value is missing (NaN): 
+  private static void setField(VehicleFrame frame, int field, float value)
+    {
+    if (!Float.isNaN(value)) frame.set(field, value);
+    }
+  
+  
+  /**
+   Publish the write frame, and make sure frameTask will run on the UI thread to pick it up. 
+   */
+  private void publishFrame()
+    {
+    frameBuffer.publish();
+    if (isFramePending.compareAndSet(false, true)) frameHandler.post(frameTask);
     }
   
      
@@ -361,103 +507,64 @@ public class VehicleData extends Thread implements IDashMessages
    
   
    
-   /********** Open Bluetooth connection! ****************************************
-    * This mmethod tries to establish a bluetooth connection. 
+   /********** Open vehicle connection! ****************************************
+    * Creates a transport to suit the app preferences, and tries to connect. 
+    * The transport is chosen with the PREF_TRANSPORT setting: 
+    * 
+    *   "" or "bluetooth"    - Bluetooth, using the btDeviceAddress setting (normal use) 
+    *   "tcp:host:port"      - TCP socket 
+    *   "file:/path"         - Local file, named pipe or pty 
+    *   "generator:rate"     - Fake data, at 'rate' lines per second (0 = flat out) 
+    *   "replay:speed:path"  - Recorded session (vehicle data only; see ReplayEngine) 
+    * 
     * @return true on success, false if an error occurs. 
     ******************************************************************************/
-   private boolean btOpen()
+   private boolean openTransport()
      {
-     
-     /***** Make sure the bluetooth adaptor is on: *******/ 
-     if ((bluetoothAdapter == null) || (bluetoothAdapter.getState() != BluetoothAdapter.STATE_ON))
-       {
-       //dashMessages.sendData( UIActivity.UI_TOAST_MESSAGE, null, null, "Bluetooth Adaptor Not Available!", null );
-       return false;
-       }
-//Log.i(com.tumanako.ui.UIActivity.APP_TAG, "             -> Adaptor is ON! ");
-     
-     /****** Get a bluetooth device for the vehicle sensor: ***************/
-     //  We need to retrieve the device address of the selected bluetooth device from the stored app preferences: 
      SharedPreferences settings = vehicledataContext.getSharedPreferences(UIActivity.PREFS_NAME, 0);
-     String btDeviceAddress = settings.getString("btDeviceAddress", "");   
-     // Check the address: 
-     if (!BluetoothAdapter.checkBluetoothAddress(btDeviceAddress)) return false;   // Invalid address. Give up. 
-     btVehicleSensor = bluetoothAdapter.getRemoteDevice(btDeviceAddress);          // "00:12:05:17:91:65" = MDFlyBTSerial bluetooth serial device (for testing).
-//Log.i(com.tumanako.ui.UIActivity.APP_TAG, "             -> Got remote device OK! " );
-
-     /************* Try to establish a BT Connection: ***********************************/  
+     String transportSetting = settings.getString(PREF_TRANSPORT, "");
+     VehicleTransport thisTransport = fixedTransport;
+     if (thisTransport != null) transportSetting = "";
      try
        {
-       if (btSocket != null) btSocket.close();                                 // If there's already a BT Socket open, close it. 
-       btSocket = btVehicleSensor.createRfcommSocketToServiceRecord(myUUID);   // Create a new BT Socket for RF Comm connection.
-//Log.i(com.tumanako.ui.UIActivity.APP_TAG, "             -> Socket Created. " );
-       bluetoothAdapter.cancelDiscovery();                                     // Cancel any bluetooth discovery that's running (in case another app started it...) According to the docs, we should do this...        
-       btSocket.connect();                                                     // Attempt to connect!!!  
-       }
-     
-     catch (IOException ioe)
-       {
-//Log.i(com.tumanako.ui.UIActivity.APP_TAG, "             -> Connection Attempt Generated Error! Trying Workaround... " );        
-       // Our attempt to open a BT connection caused an IO exception. This could be due to a bug in 
-       // the bluetooth class. Try again using a call to an internal method in createRfcommSocket class:
-       // (See http://stackoverflow.com/questions/4444235/problems-connecting-with-bluetooth-android ) 
-       Method m;
-       try
+       if (transportSetting.startsWith("tcp:"))
          {
-         m = btVehicleSensor.getClass().getMethod("createRfcommSocket", new Class[]{int.class});
-         if (btSocket != null) btSocket.close();    // If there's already a BT Socket open, close it.
-         btSocket = (BluetoothSocket)m.invoke(btVehicleSensor, Integer.valueOf(1));
-         btSocket.connect();
+         int portStart = transportSetting.lastIndexOf(':');
+         thisTransport = new TcpTransport( transportSetting.substring(4, portStart), 
+                                           Integer.parseInt(transportSetting.substring(portStart + 1)) );
          }
-       catch (Exception e)
+       else if (transportSetting.startsWith("file:"))      thisTransport = new FileTransport( transportSetting.substring(5) );
+       else if (transportSetting.startsWith("generator:")) thisTransport = new GeneratorTransport( Float.parseFloat(transportSetting.substring(10)) );
+       else if (transportSetting.startsWith("replay:"))
          {
-         // Still having errors connecting! Give up. 
-         e.printStackTrace();
-         Log.i(com.tumanako.ui.UIActivity.APP_TAG, " VehicleData -> BT Com Thread: Comm Error Persisted. Giving up. ");        
-         Log.i(com.tumanako.ui.UIActivity.APP_TAG, e.getMessage());
-         return false;  // Give up.
-         }            
-       }
-     
-     // Connected! Try to open streams...        
-     try
-       {
-//Log.i(com.tumanako.ui.UIActivity.APP_TAG, "             -> CONNECTED. " );
-       btStreamIn  = btSocket.getInputStream();                 // Get input and output streams 
-       btStreamOut = btSocket.getOutputStream();                //  for communication through the socket. 
-//Log.i(com.tumanako.ui.UIActivity.APP_TAG, "             -> IO Streams Open! " );
-       return true;                                  // SUCCESS!!
+         int pathStart = transportSetting.indexOf(':', 7);
+         thisTransport = new ReplayEngine( vehicledataContext, transportSetting.substring(pathStart + 1), 
+                                           Float.parseFloat(transportSetting.substring(7, pathStart)), false, null );
+         }
        }
-     
      catch (Exception e)
        {
-       // An error occurred during BT comms setup:
-       Log.i(com.tumanako.ui.UIActivity.APP_TAG, " VehicleData -> BT Com Thread: Error opening IO Streams... ");        
-       Log.i(com.tumanako.ui.UIActivity.APP_TAG, e.getMessage());
-       return false;  // Give up.
+       Log.i(com.tumanako.ui.UIActivity.APP_TAG, " VehicleData -> Bad transport setting: " + transportSetting);
+       return false;
        }
-
+     // Default: Bluetooth. We need to retrieve the device address of the selected bluetooth device from the stored app preferences: 
+     if (thisTransport == null) thisTransport = new BluetoothTransport( settings.getString("btDeviceAddress", "") );
+     
+     transport = thisTransport;
+     if (!thisTransport.open()) return false;
+     streamIn = thisTransport.getInputStream();
+     Log.i(com.tumanako.ui.UIActivity.APP_TAG, " VehicleData -> Connected: " + thisTransport);
+     return true;
      }
    
    
    
-   
-   
-   
-   
-   
-   /************** Bluetooth socket close / cleanup: ******************************************************/   
-   private void btClose()
+   /************** Connection close / cleanup: ******************************************************/   
+   private void closeTransport()
      {
-     // --DEBUG!!-- Log.i(com.tumanako.ui.UIActivity.APP_TAG, " VehicleData -> btClose(); ");    
-     try
-       {
-       if (btStreamIn != null)  btStreamIn.close();
-       if (btStreamOut != null) btStreamOut.close();
-       if (btSocket != null)    btSocket.close();
-       } 
-     catch (Exception e)
-       {  e.printStackTrace();  }  // If an error occurs here, print a stack trace (debug only) but otherwise quietly ignore.     
+     // --DEBUG!!-- Log.i(com.tumanako.ui.UIActivity.APP_TAG, " VehicleData -> closeTransport(); ");    
+     VehicleTransport thisTransport = transport;
+     if (thisTransport != null) thisTransport.close();
      }
 
    
@@ -481,10 +588,9 @@ public class VehicleData extends Thread implements IDashMessages
   public void run()
       {
       byte[] byteBuffer = new byte[BT_READ_SIZE];
-      StringBuffer btRawData = new StringBuffer();
 // !!DEBUG!! Log.i(com.tumanako.ui.UIActivity.APP_TAG, " VehicleData -> BT Com Thread Run ");      
       // Try to open a BT connection: 
-      if (!btOpen())
+      if (!openTransport())
         {
         // Connection failed! Close any open objects and exit.  
         stopVehicleData();        
@@ -494,7 +600,18 @@ public class VehicleData extends Thread implements IDashMessages
       isBTConnected = true;
 //Log.i(com.tumanako.ui.UIActivity.APP_TAG, " VehicleData -> BT Com Thread Connected. ");      
       
-      
+      // Start the decoder thread (unless we were closed while connecting): 
+      synchronized (decoderLock)
+        {
+        if (isClosed)
+          {
+          stopVehicleData();
+          isFinished = true;
+          return;
+          }
+        decoderThread = new Thread(decoderTask, "VehicleData Decoder");
+        decoderThread.start();
+        }
 
       // ******* BT Connection should now be open! Keep listening to the InputStream while connected: *********************************      
       int bytesRead;
@@ -508,60 +625,34 @@ public class VehicleData extends Thread implements IDashMessages
 //Log.i(com.tumanako.ui.UIActivity.APP_TAG, " VehicleData -> BT Address Change! ");            
             isBTConnected = false;
             isAddressChanged = false;
-            btClose();     // Close existing connection.
-            if (!btOpen()) break;   // If we failed to open a connection, exit BT loop. 
+            closeTransport();     // Close existing connection.
+            if (!openTransport()) break;   // If we failed to open a connection, exit BT loop. 
             isBTConnected = true;
+            lineQueue.reset();    // Throw away any partial line from the old connection.
 //Log.i(com.tumanako.ui.UIActivity.APP_TAG, " VehicleData -> BT Reconnected OK. ");            
             }
-/****** TEMP DEBUG ************************************/
-//if (isPing)
-//  {
-//try  {  Log.i("BT_STREAM", String.format("%d",btStreamIn.available()));  } catch (IOException e) {  e.printStackTrace();  }
-//isPing = false;
-//  }
-/****** TEMP DEBUG ************************************/
           try 
             {
-            // Read bytes from the InputStream:
-            bytesRead = btStreamIn.read(byteBuffer,0,100);  // Reads up to 100 bytes.
-            /*********** Buffer Overflow Check: *******************************************
-             * It is very important that the UI remain up-to-date (this is more important than
-             * trying to process ALL data). 
-             * Therefore, if the input stream is filling with data faster than we are processing
-             * it, we have to dump data. 
-             * Note that this relies on the behaviour of the StreamIn.available() method 
-             * to report the number of bytes available. The documentation indicates that 
-             * available() may not be reliablie, and in particular, "may be significantly 
-             * smaller than the actual number of bytes available." However, testing shows 
-             * that it works well. The following code will work fine so long as available()
-             * doesn't return /more/ than the number of bytes available, which it shouldn't! 
+            /*********** Read bytes from the InputStream: ********************************
+             * This blocks until data are available (or the connection is closed), so 
+             * there is no need to sleep between reads. Complete lines are passed to 
+             * the decoder thread through lineQueue, which also takes care of dropping 
+             * old data if the decoder can't keep up (it is very important that the UI 
+             * remain up-to-date; this is more important than trying to process ALL data). 
              ******************************************************************************/
-            int bytesInStream = btStreamIn.available();
-            if (bytesInStream > BT_STREAM_OVERFLOW) btStreamIn.skip(bytesInStream - BT_STREAM_OVERFLOW);
-            /******************************************************************************/
-            if (bytesRead > 0)  // ACTUAL number of bytes read.  
+            bytesRead = streamIn.read(byteBuffer, 0, BT_READ_SIZE);
+            if (bytesRead < 0)
               {
-              for (int n = 0; n < bytesRead; n++)
-                {
-                // Process the incomming aray of bytes:
-                if (byteBuffer[n] == 0x0D)
-                  {
-                  // End of line! Send record: 
-                  decodeAndSend(btRawData.toString());
-                  btRawData = new StringBuffer();        // Reset the line buffer. 
-                  }
-                else
-                  {
-                  if (byteBuffer[n] != 0x0A) btRawData.append((char)byteBuffer[n]);  // If this is not a LF character, add it to the line buffer.  
-                  }
-                }  // [for (int n = 0; n < bytesRead; n++)]
-              }  // [if (bytesRead > 0)]
-            
-            Thread.sleep(1);  // Give up CPU time (waiting for bluetooth characters is so tedious...)            
+              // End of stream: the other end has closed the connection. 
+              isBTConnected = false;
+              break;
+              }
+            lineQueue.write(byteBuffer, 0, bytesRead, System.nanoTime());
             }  // try...
           
           catch (Exception e) 
             {
+            if (isAddressChanged) continue;    // Socket was closed so we can reconnect with a new address. Go round again. 
             // An error occurred during BT comms operation:
             Log.i(com.tumanako.ui.UIActivity.APP_TAG, " VehicleData -> BT Com Thread: Error During Comms... ");
             isBTConnected = false;
@@ -572,6 +663,7 @@ public class VehicleData extends Thread implements IDashMessages
       
        // Close down the input and ouptut streams and the bluetooth socket: 
        stopVehicleData();
+       stopDecoder(decoderThread, 0);
        isFinished = true;
        Log.i(com.tumanako.ui.UIActivity.APP_TAG, " VehicleData -> BT Com Thread Exit! ");
       
@@ -580,6 +672,44 @@ public class VehicleData extends Thread implements IDashMessages
  
 
       
+  /**
+   Stop the decoder thread and wait for it to finish 
+   @param thisDecoder  The decoder thread
+   @param timeout      Maximum time to wait (mS; 0 = as long as it takes)
+   @return true if the thread has finished. 
+   */
+  private boolean stopDecoder(Thread thisDecoder, long timeout)
+    {
+    isDecoderStop = true;
+    thisDecoder.interrupt();      // Wakes the decoder thread if it's waiting for data. 
+    try
+      {  thisDecoder.join(timeout);  }
+    catch (InterruptedException e)
+      {  Thread.currentThread().interrupt();  }
+    return !thisDecoder.isAlive();
+    }
+
+
+
+  /**********************************************************************************************************************
+   *************** Decoder Thread: **************************************************************************************
+   * Waits for lines from the BT thread, decodes them and publishes the results. 
+   **********************************************************************************************************************/
+  private Runnable decoderTask = new Runnable() 
+    {
+    public void run()
+      {
+      while (!isDecoderStop)
+        {
+        if (!lineQueue.awaitLine(DECODER_WAIT)) continue;    // Nothing yet. Check for stop request and wait again.  
+        int slot = lineQueue.nextLine();
+        if (slot < 0) continue;
+        if (tdv1Decoder.decodeLine(lineQueue.getLine(slot), 0, lineQueue.getLineLength(slot)))
+          decodeAndSend(tdv1Decoder, lineQueue.getArrivalTime(slot));
+        lineQueue.release();
+        }
+      }
+    };
   
    
   
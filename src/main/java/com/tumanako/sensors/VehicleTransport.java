@@ -0,0 +1,72 @@
+package com.tumanako.sensors;
+
+/************************************************************************************
+Tumanako - Electric Vehicle and Motor control software
+
+Copyright (C) 2014 Jeremy Cole-Baker <jeremy@rhtech.co.nz>
+
+This file is part of Tumanako Dashboard.
+
+Tumanako is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published
+by the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Tumanako is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with Tumanako.  If not, see <http://www.gnu.org/licenses/>.
+
+*************************************************************************************/
+
+import java.io.InputStream;
+
+
+/**************************************************************
+ *
+ * Vehicle Transport Interface:
+ *
+ * A connection which delivers the raw vehicle data stream
+ * (TDV1 lines) to VehicleData. Implementations:
+ *
+ *  BluetoothTransport - RFCOMM serial link to the vehicle (normal use)
+ *  TcpTransport       - Plain TCP socket (e.g. a PC or serial server)
+ *  FileTransport      - Local file or named pipe / pty
+ *  GeneratorTransport - Fake data generated in memory, at any rate
+ *
+ * The transport only moves bytes. Everything else (decoding, the
+ * watchdog, reconnecting when the address changes) is done by
+ * VehicleData, so it works the same way for all of them.
+ *
+ * The lifecycle is:
+ *
+ * open()  - Called on the VehicleData thread. May block while connecting.
+ *
+ * getInputStream().read() - Called repeatedly on the VehicleData thread.
+ *           Should block until data are available, and return -1
+ *           at the end of the stream.
+ *
+ * close() - May be called from ANY thread, and more than once. If the
+ *           VehicleData thread is blocked in read(), it must be woken
+ *           up (read() should return -1 or throw an IOException).
+ *
+ * A transport is not reused after it has been closed.
+ *
+ * @author Jeremy Cole-Baker / Riverhead Technology
+ *
+ **************************************************************/
+
+
+public interface VehicleTransport
+  {
+
+  public boolean open();                  // Connect. Returns true on success, false if the connection failed.
+  public InputStream getInputStream();    // Stream to read vehicle data from. Only valid after open() has succeeded.
+  public void close();                    // Disconnect and wake up any blocked read. Safe to call from any thread.
+
+  public String toString();               // Describes the transport (e.g. address). Used for logging.
+
+  }
@@ -57,7 +57,8 @@ public class BarGauge extends RenderedGauge
   private int blockLong = 1;        // Will be the pixel length of a single block on the bar. 
   
   private int lastDrawnBlock = -1;  // Index of last complete block on the scale.
-  private Rect lastBlockRect;       // Will be a Rect used to draw the last bare block (smaller than a full block).
+  private final Rect lastBlockRect = new Rect();   // Rect used to draw the last bar block (smaller than a full block).
+  private boolean hasLastBlock = false;            // Is there a last (part) block to draw?
   
   private Paint barPaint;
   private Rect[] barRects;
@@ -164,27 +165,26 @@ public class BarGauge extends RenderedGauge
         }  // [for ...]
 
       }  // [if (isVertical)]
-    invalidate();    
+    invalidateGauge();    
     }
 
   
   
   
-  /***** Set the value displayed on the bar: *******************
-   * @param value Value to set 
+  /***** The value displayed on the bar has changed: *******************
+   * Work out the blocks to draw, and redraw just the part of the bar 
+   * between the old and new ends. 
    *************************************************************/
   @Override
-  public void setValue(float value)
+  protected void valueChanged()
     {
-    // First, call the 'RenderedGauge' version (sets value and clamps to scale).
-    super.setValue(value);  
-
     // Figure out how many 'blocks' to draw on the bar. 
     // We'll draw all the complete blocks, then add another 
     // reduced-size block for the last part of the scale:
     // Note... we can't do this until after 'calcBar()' has been called, which sets up many parameters. 
     if (measurementsValid)
       {
+      int oldEnd = barEnd();
       lastDrawnBlock = ( (int) ((gaugeValue - scaleMin) / blockValue) ) - 1;
       if (lastDrawnBlock < -1) lastDrawnBlock = -1;  //  ?? Shouldn't happen. 
     
@@ -196,36 +196,63 @@ public class BarGauge extends RenderedGauge
         if (isVertical)
           {
           // VERTICAL bar: 
-          lastBlockRect = new Rect( barRects[n].left,
-                                    barRects[n].bottom - (int)lastBlockLong,
-                                    barRects[n].right,
-                                    barRects[n].bottom);
+          lastBlockRect.set( barRects[n].left,
+                             barRects[n].bottom - (int)lastBlockLong,
+                             barRects[n].right,
+                             barRects[n].bottom);
           }  // [if (isVertical)]
         else
           {
           // HORIZONTAL bar:
-          lastBlockRect = new Rect( barRects[n].left,
-                                    barRects[n].top,
-                                    barRects[n].left + (int)lastBlockLong,
-                                    barRects[n].bottom);          
+          lastBlockRect.set( barRects[n].left,
+                             barRects[n].top,
+                             barRects[n].left + (int)lastBlockLong,
+                             barRects[n].bottom);          
           }  // [if (isVertical)]
+        hasLastBlock = true;
         }  // [if (lastDrawnBlock < (numberBlocks-1))]
       else
         {
         if ( lastDrawnBlock > (numberBlocks-1) ) lastDrawnBlock = (numberBlocks-1);  // ??  Shouldn't happen.  
-        lastBlockRect = null;  // No last block required.    
+        hasLastBlock = false;  // No last block required.    
         }  // [if (lastDrawnBlock < (numberBlocks-1))]
+
+      // Redraw the part of the bar between the old and new ends (nothing else has changed). 
+      // A part block can cover the gap at the end of its block, which is cleared again when 
+      // the block fills up, so the gap either side is included: 
+      int newEnd = barEnd();
+      if (newEnd != oldEnd)
+        {
+        int start = Math.min(oldEnd, newEnd) - barSegmentGap;
+        int end   = Math.max(oldEnd, newEnd) + barSegmentGap;
+        if (isVertical) invalidateGauge( (int)originX, start, (int)originX + barAcross, end );
+        else            invalidateGauge( start, (int)originY - barAcross, end, (int)originY );
+        }
       }
     else  // [if (!isFirstDraw)]
       {
       // Not set up yet. Set defaults. 
       lastDrawnBlock = -1;
-      lastBlockRect = new Rect(0,0,0,0);
+      hasLastBlock = false;
+      invalidateGauge();
       }  // [if (!isFirstDraw)]
     }  // [function]
   
   
   
+  /***** Find the end of the bar as currently drawn: ***************
+   * @return Y coordinate of the top of a vertical bar, or X coordinate 
+   *         of the right hand end of a horizontal bar. 
+   *************************************************************/
+  private int barEnd()
+    {
+    if (hasLastBlock)        return isVertical ? lastBlockRect.top : lastBlockRect.right;
+    if (lastDrawnBlock >= 0) return isVertical ? barRects[lastDrawnBlock].top : barRects[lastDrawnBlock].right;
+    return isVertical ? (int)originY : (int)originX;
+    }
+  
+  
+  
 
   @Override
   protected void onLayout (boolean changed, int left, int top, int right, int bottom)
@@ -239,6 +266,7 @@ public class BarGauge extends RenderedGauge
       // -- DEBUG!! -- Log.i( UIActivity.APP_TAG, "  BarGauge -> onLayout Changed!! ");      
       calcBar();
       measurementsValid = true;    
+      valueChanged();       // Work out the bar blocks at the new size.
       }
     }
 
@@ -247,10 +275,9 @@ public class BarGauge extends RenderedGauge
   
 
   @Override 
-  protected void onDraw(Canvas canvas)
+  protected void drawGauge(Canvas canvas)
     {
-    super.onDraw(canvas);
-
+    // Draw the bar first; the scale and label (see RenderedGauge) go over it. 
     for (int n = 0; n <= lastDrawnBlock; n++)
       {
       if (n < numberColours) barPaint.setColor(scaleColours[n]);
@@ -259,7 +286,7 @@ public class BarGauge extends RenderedGauge
       }
     
     
-    if (lastBlockRect != null)
+    if (hasLastBlock)
       {
       int lastBlockColourIndex = lastDrawnBlock + 1; 
       if (lastBlockColourIndex < numberColours) barPaint.setColor(scaleColours[lastBlockColourIndex]);
@@ -267,7 +294,7 @@ public class BarGauge extends RenderedGauge
       canvas.drawRect( lastBlockRect, barPaint);
       }
 
-    super.onDraw(canvas);
+    super.drawGauge(canvas);
 
     }
   
@@ -28,6 +28,7 @@ along with Tumanako.  If not, see <http://www.gnu.org/licenses/>. <p>
 
 
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.os.Bundle;
 import android.util.Log;
 import android.view.GestureDetector;
@@ -45,7 +46,6 @@ import android.widget.TabHost.TabSpec;
 
 import com.tumanako.dash.ChargeNode;
 import com.tumanako.sensors.DataService;
-import com.tumanako.sensors.NmeaProcessor;
 
 
 
@@ -61,15 +61,6 @@ public class DashActivity extends UIActivity implements OnLongClickListener, OnT
     {
     
     
-    // **** GPS Time / Speed / Position Data: **********
-    float   gpsTime   = 0f;
-    float   gpsSpeed  = 0f;
-    double  gpsLat    = 0.0;
-    double  gpsLon    = 0.0;
-    int     gpsSats   = 0;
-    boolean gpsHasFix = false;
-
-    
     // **** Tabs and Swipes: ***************************
     private TabHost tabHost;
     private int currentTab = 0;
@@ -84,7 +75,6 @@ public class DashActivity extends UIActivity implements OnLongClickListener, OnT
     // Extra intent filters for main dashboard activity:
     private static final String intentFilters[] = 
       {
-      NmeaProcessor.GPS_POSITION,
       ChargeNode.CHARGE_NODE,
       "CLICK_CHARGECONNECT",
       "CLICK_CHARGESTART",
@@ -95,6 +85,8 @@ public class DashActivity extends UIActivity implements OnLongClickListener, OnT
     private boolean isDemo = false;  // Demo mode flag!
     // ---------------DEMO MODE CODE -------------------------------  
 
+    private DashSurface dashSurface = null;     // Draws the main page gauges, if enabled (see DashSurface.PREF_SURFACE_RENDER).
+
     
     
     
@@ -113,6 +105,11 @@ public class DashActivity extends UIActivity implements OnLongClickListener, OnT
       super.onCreate(savedInstanceState);
       setContentView(com.tumanako.ui.R.layout.main);
 
+      // Draw the main page gauges on a render thread? (Must be done before the page goes in the tab.)
+      SharedPreferences settings = getSharedPreferences(PREFS_NAME, 0);
+      if (settings.getBoolean(DashSurface.PREF_SURFACE_RENDER, false)) 
+        dashSurface = DashSurface.attach( findViewById(R.id.layoutPrimaryData) );
+
       // ***** Set up tabs: ****
       tabHost = (TabHost)findViewById(R.id.tabhost);
       tabHost.setup();
@@ -404,6 +401,11 @@ Log.i(APP_TAG,"DashActivity -> chargeNodeUIReset()");
 Log.i(APP_TAG,"DashActivity -> onResume()");
 Log.i(APP_TAG,"     State: currentTab = " + currentTab + "; isDemo = " + isDemo );
       super.onResume();
+      if (dashSurface != null)
+        {
+        SharedPreferences settings = getSharedPreferences(PREFS_NAME, 0);
+        dashSurface.setMaxRate( settings.getFloat(FrameScheduler.PREF_MAX_FRAME_RATE, FrameScheduler.DEFAULT_MAX_RATE) );
+        }
       
       // Start the data server (in case it's not already going; doesn't matter if it is). 
       startService(dataIntent);
@@ -489,27 +491,6 @@ Log.i(APP_TAG,"DashActivity -> onStop()");
       
       super.messageReceived(action, intData, floatData, stringData, bundleData);
 
-      if ( (action.equals(NmeaProcessor.GPS_POSITION)) && (null != bundleData) )
-        {
-        // GPS position received:
-        gpsLat    = bundleData.getDouble  ( "LAT",    0.0   );
-        gpsLon    = bundleData.getDouble  ( "LON",    0.0   );
-        gpsTime   = bundleData.getFloat   ( "TIME",   0.0f  );
-        gpsSpeed  = bundleData.getFloat   ( "SPEED",  0.0f  );
-        gpsSats   = bundleData.getInt     ( "NSATS",  0     );
-        gpsHasFix = bundleData.getBoolean ( "FIX",    false );
-        
-        // Re-send GPS data as individual intents to update the UI:
-        dashMessages.sendData( "DATA_GPS_HAS_LOCK", null,    gpsHasFix ? 1f : 0f,  null,     null );
-        dashMessages.sendData( "DATA_GPS_TIME",     null,    gpsTime,              "%06.0f", null );
-        dashMessages.sendData( "DATA_GPS_SPEED",    null,    gpsSpeed,             null,     null );
-        dashMessages.sendData( "DATA_GPS_NSATS",    gpsSats, null,                 null,     null );
-        dashMessages.sendData( "DATA_GPS_LAT",      null,    (float)gpsLat,        "%.7f",   null );
-        dashMessages.sendData( "DATA_GPS_LON",      null,    (float)gpsLon,        "%.7f",   null );
-
-        }
-        
-
       // *** Click messages from buttons on the "Charge Node" page: ***
       // Send intent to ChargeNode class, including the login details.
       if (action.equals("CLICK_CHARGECONNECT"))  
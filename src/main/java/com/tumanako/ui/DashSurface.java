@@ -0,0 +1,369 @@
+package com.tumanako.ui;
+
+/************************************************************************************
+Tumanako - Electric Vehicle and Motor control software
+
+Copyright (C) 2014 Jeremy Cole-Baker <jeremy@rhtech.co.nz>
+
+This file is part of Tumanako Dashboard.
+
+Tumanako is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published
+by the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Tumanako is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with Tumanako.  If not, see <http://www.gnu.org/licenses/>.
+
+*************************************************************************************/
+
+import java.util.ArrayList;
+import java.util.concurrent.locks.LockSupport;
+
+import com.tumanako.dash.DashBus;
+import com.tumanako.dash.SampleRing;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.PixelFormat;
+import android.graphics.PorterDuff;
+import android.graphics.Rect;
+import android.os.Process;
+import android.util.Log;
+import android.view.SurfaceHolder;
+import android.view.SurfaceView;
+import android.view.View;
+import android.view.ViewGroup;
+import android.view.ViewTreeObserver;
+import android.widget.FrameLayout;
+
+
+
+/*************************************************************************************
+ * 
+ * Dash Surface: 
+ * 
+ * Optional render mode for a page of gauges: the gauges (Dial, BarGauge; see RenderedGauge) 
+ * are drawn on a SurfaceView by a render thread of their own, instead of by the UI thread. 
+ * The UI thread can then be held up (layout, message handling, lap data, charge node JSON...) 
+ * without the gauges missing a frame. 
+ * 
+ * The page is laid out from its XML file as usual: the gauges are still views, and are 
+ * measured and laid out by the UI thread (so the same layout attributes work), and the view 
+ * draws the gauge background. The surface sits on top of the page, with a transparent 
+ * background, and the render thread draws each gauge on it at the gauge's position. 
+ * 
+ * The render thread runs at up to maxRate frames per second (see setMaxRate; same setting 
+ * as the FrameScheduler). Each frame, it reads the latest value for each gauge without 
+ * locks or the UI thread: vehicle channels from the DashBus sample ring (written by the 
+ * vehicle data thread), other channels from the last value published on the DashBus. Then 
+ * it moves the gauges (see RenderedGauge.surfaceFrame), and redraws only the area which 
+ * has changed. Nothing is drawn when nothing has changed. 
+ * 
+ * To Use (on the UI thread, before the page is attached to the window, e.g. in onCreate 
+ * after setContentView): 
+ * 
+ *    DashSurface surface = DashSurface.attach( findViewById(R.id.layoutPrimaryData) );
+ * 
+ * The page is put in a FrameLayout (which takes over the page's ID and layout parameters), 
+ * with the surface on top. The render thread runs while the surface exists, i.e. while the 
+ * page is shown. 
+ * 
+ * The render thread logs its frame count and timing every REPORT_FRAMES frames drawn, if 
+ * UIActivity.DEBUG_STATS is set. 
+ * 
+ * @author Jeremy Cole-Baker / Riverhead Technology
+ *
+ ************************************************************************************/
+public class DashSurface extends SurfaceView implements SurfaceHolder.Callback, ViewTreeObserver.OnGlobalLayoutListener
+  {
+
+  /** App preference: draw the main page gauges on a DashSurface (boolean; default false). */
+  public static final String PREF_SURFACE_RENDER = "surfaceRender";
+
+  private static final int REPORT_FRAMES = 300;          // Log the render stats every n frames drawn.
+
+  private final SurfaceHolder holder;
+  private final DashBus dashBus = DashBus.getInstance();
+  private final SampleRing sampleRing = dashBus.getSampleRing();
+
+  private RenderedGauge[] gauges = new RenderedGauge[0];
+  private int[] gaugeChannels = new int[0];
+  private final int[] surfaceLocation = new int[2];
+  private final int[] gaugeLocation = new int[2];
+
+  private volatile long frameInterval = (long)(1e9f / FrameScheduler.DEFAULT_MAX_RATE);   // nS between frames.
+  private volatile int surfaceWidth = 0;
+  private volatile int surfaceHeight = 0;
+  private volatile boolean isFullRedraw = true;       // Redraw everything in the next frame (surface changed).
+
+  // ****** Render Thread: ******
+  private Thread renderThread = null;
+  private volatile boolean isRenderStop = false;
+  private final Rect dirty = new Rect();               // Area to redraw (render thread only).
+  private long lastSequence = -1;                      // Sample ring sequence when last read.
+  private long lastPublishCount = -1;                  // DashBus publish count when last read.
+
+  // Render stats (render thread only; see reportStats): 
+  private int  statFrames = 0;
+  private long statDrawTotal = 0;
+  private long statDrawMax = 0;
+  private long statLateMax = 0;
+  private int  statSkipped = 0;
+
+
+
+  // ********** Constructor: ***************************
+  public DashSurface(Context context)
+    {
+    super(context);
+    holder = getHolder();
+    holder.addCallback(this);
+    holder.setFormat(PixelFormat.TRANSLUCENT);     // Transparent where there are no gauges...
+    setZOrderOnTop(true);                          // ...over the top of the page. 
+    }
+
+
+
+  /**
+   Draw the gauges of a page on a DashSurface <p>
+   Call on the UI thread, before the page is attached to the window.
+   @param page  Page layout (containing the gauges)
+   @return      The surface
+   */
+  public static DashSurface attach(View page)
+    {
+    Context context = page.getContext();
+    ViewGroup parent = (ViewGroup)page.getParent();
+    int index = parent.indexOfChild(page);
+    ViewGroup.LayoutParams params = page.getLayoutParams();
+    parent.removeViewAt(index);
+
+    // Put the page and the surface in a frame, in place of the page: 
+    FrameLayout frame = new FrameLayout(context);
+    frame.setId(page.getId());
+    page.setId(View.NO_ID);
+    frame.addView( page, new FrameLayout.LayoutParams(FrameLayout.LayoutParams.MATCH_PARENT, FrameLayout.LayoutParams.MATCH_PARENT) );
+    DashSurface surface = new DashSurface(context);
+    frame.addView( surface, new FrameLayout.LayoutParams(FrameLayout.LayoutParams.MATCH_PARENT, FrameLayout.LayoutParams.MATCH_PARENT) );
+    parent.addView(frame, index, params);
+
+    // Find the gauges, and hand them over to the surface: 
+    ArrayList<RenderedGauge> found = new ArrayList<RenderedGauge>();
+    findGauges(page, found);
+    surface.gauges = found.toArray(new RenderedGauge[found.size()]);
+    surface.gaugeChannels = new int[surface.gauges.length];
+    for (int n=0; n<surface.gauges.length; n++)
+      {
+      surface.gauges[n].setSurface(surface);
+      surface.gaugeChannels[n] = surface.gauges[n].getUpdateChannel();
+      }
+    return surface;
+    }
+
+
+  private static void findGauges(View view, ArrayList<RenderedGauge> found)
+    {
+    if (view instanceof RenderedGauge) found.add((RenderedGauge)view);
+    else if (view instanceof ViewGroup)
+      {
+      ViewGroup group = (ViewGroup)view;
+      for (int n=0; n<group.getChildCount(); n++) findGauges(group.getChildAt(n), found);
+      }
+    }
+
+
+
+  /**
+   Set the maximum frame rate
+   @param maxRate  Maximum frames per second (0 = 60).
+   */
+  public void setMaxRate(float maxRate)
+    {
+    if (maxRate <= 0f) maxRate = 60f;
+    frameInterval = (long)(1e9f / maxRate);
+    }
+
+
+
+
+  /**************** Surface and Layout Events (UI thread): **************************/
+
+  @Override
+  protected void onAttachedToWindow()
+    {
+    super.onAttachedToWindow();
+    getViewTreeObserver().addOnGlobalLayoutListener(this);
+    }
+
+  @Override
+  protected void onDetachedFromWindow()
+    {
+    getViewTreeObserver().removeGlobalOnLayoutListener(this);
+    super.onDetachedFromWindow();
+    }
+
+
+  // The page has been laid out: work out where each gauge is on the surface. 
+  public void onGlobalLayout()
+    {
+    getLocationInWindow(surfaceLocation);
+    for (int n=0; n<gauges.length; n++)
+      {
+      gauges[n].getLocationInWindow(gaugeLocation);
+      gauges[n].setSurfacePosition(gaugeLocation[0] - surfaceLocation[0], gaugeLocation[1] - surfaceLocation[1]);
+      }
+    isFullRedraw = true;      // (Gauges may have moved: clear their old positions.)
+    }
+
+
+  public void surfaceCreated(SurfaceHolder thisHolder)
+    {
+    isRenderStop = false;
+    isFullRedraw = true;
+    renderThread = new Thread(renderTask, "DashSurface Render");
+    renderThread.start();
+    }
+
+
+  public void surfaceChanged(SurfaceHolder thisHolder, int format, int width, int height)
+    {
+    surfaceWidth = width;
+    surfaceHeight = height;
+    isFullRedraw = true;
+    }
+
+
+  // The surface is going: the render thread must stop drawing on it before we return. 
+  public void surfaceDestroyed(SurfaceHolder thisHolder)
+    {
+    isRenderStop = true;
+    LockSupport.unpark(renderThread);
+    boolean isWaiting = true;
+    while (isWaiting)
+      {
+      try
+        {
+        renderThread.join();
+        isWaiting = false;
+        }
+      catch (InterruptedException e)
+        {  }     // Try again.
+      }
+    renderThread = null;
+    }
+
+
+
+
+  /**********************************************************************************************************************
+   *************** Render Thread: ***************************************************************************************
+   * Draws a frame every frameInterval, until the surface is destroyed. If a frame is late (the thread didn't get 
+   * the CPU in time), the next one is timed from now rather than trying to catch up. 
+   **********************************************************************************************************************/
+  private Runnable renderTask = new Runnable() 
+    {
+    public void run()
+      {
+      Process.setThreadPriority(Process.THREAD_PRIORITY_DISPLAY);
+      lastSequence = -1;
+      lastPublishCount = -1;
+      long nextFrameTime = System.nanoTime();
+      while (!isRenderStop)
+        {
+        long now = System.nanoTime();
+        if (now < nextFrameTime)
+          {
+          LockSupport.parkNanos(nextFrameTime - now);
+          continue;
+          }
+        long late = now - nextFrameTime;
+        if (late > statLateMax) statLateMax = late;
+        long interval = frameInterval;
+        if (late > interval) 
+          {
+          statSkipped += (int)(late / interval);
+          nextFrameTime = now;
+          }
+        nextFrameTime += interval;
+        drawFrame(now);
+        }
+      }
+    };
+
+
+
+  // Move the gauges to the latest values, and redraw the parts of the surface which have changed: 
+  private void drawFrame(long frameTime)
+    {
+    long startTime = System.nanoTime();
+
+    // Latest values. Only read if there are new data (so that a gauge which has 
+    // been reset stays reset until new data arrive, as it does on the UI thread): 
+    long sequence = sampleRing.getSequence();
+    long publishCount = dashBus.getPublishCount();
+    boolean isNewSample = (sequence != lastSequence);
+    boolean isNewPublish = (publishCount != lastPublishCount);
+    lastSequence = sequence;
+    lastPublishCount = publishCount;
+
+    dirty.setEmpty();
+    if (isFullRedraw)
+      {
+      isFullRedraw = false;
+      dirty.set(0, 0, surfaceWidth, surfaceHeight);
+      }
+    for (int n=0; n<gauges.length; n++)
+      {
+      int channel = gaugeChannels[n];
+      float value = Float.NaN;       // (NaN: no new value)
+      if ((channel >= 0) && (channel < DashBus.VEHICLE_CHANNELS))
+        {  if (isNewSample) value = sampleRing.getLatestValue(channel, dashBus.getFloat(channel));  }
+      else if ((channel != DashBus.NO_CHANNEL) && isNewPublish) value = dashBus.getFloat(channel);
+      gauges[n].surfaceFrame(frameTime, value, dirty);
+      }
+    if (dirty.isEmpty()) return;      // Nothing has changed.
+
+    // Draw. The surface may ask for a bigger area than we asked for, so clear it all then 
+    // draw every gauge in it: 
+    Canvas canvas = holder.lockCanvas(dirty);
+    if (canvas == null) return;       // No surface (yet).
+    try
+      {
+      canvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
+      for (int n=0; n<gauges.length; n++) gauges[n].drawOnSurface(canvas, dirty);
+      }
+    finally
+      {  holder.unlockCanvasAndPost(canvas);  }
+
+    long drawTime = System.nanoTime() - startTime;
+    statFrames++;
+    statDrawTotal += drawTime;
+    if (drawTime > statDrawMax) statDrawMax = drawTime;
+    if (statFrames >= REPORT_FRAMES) reportStats();
+    }
+
+
+
+  // Log the render stats for the last REPORT_FRAMES frames drawn (render thread): 
+  private void reportStats()
+    {
+    if (UIActivity.DEBUG_STATS)
+      Log.i(UIActivity.APP_TAG, " DashSurface -> Frames: " + statFrames 
+          + "; Frame time avg: " + (statDrawTotal / statFrames / 1000) + " uS, max: " + (statDrawMax / 1000) 
+          + " uS; Start late max: " + (statLateMax / 1000) + " uS; Frames skipped: " + statSkipped );
+    statFrames = 0;
+    statDrawTotal = 0;
+    statDrawMax = 0;
+    statLateMax = 0;
+    statSkipped = 0;
+    }
+
+
+  }  // [class DashSurface]
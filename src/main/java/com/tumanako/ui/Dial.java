@@ -28,6 +28,7 @@ import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
 import android.graphics.Path;
+import android.graphics.Rect;
 import android.graphics.Typeface;
 import android.graphics.drawable.ShapeDrawable;
 import android.graphics.drawable.shapes.PathShape;
@@ -61,6 +62,32 @@ public class Dial extends RenderedGauge
 
   private Paint needlePaint;
   
+  private static final int NEEDLE_MARGIN = 2;     // Pixels around the needle to redraw (for anti-aliasing)
+  private final Rect needleBounds = new Rect();   // Area covered by the needle (screen coordinates, inc. margin)
+  private final Rect dirtyRect = new Rect();      // Area to redraw when the needle moves
+  
+  // Needle shape: The points of the needle outline, as an angle either side of the needle
+  // (radians) and distance from the origin (as a fraction of needleLength):
+  //                                                      0       1       2    3      4      5     6
+  private static final float[] NEEDLE_POINT_ANGLES  = { -2.8f, -1.57f, -0.04f, 0f, 0.04f, 1.57f, 2.8f };
+  private static final float[] NEEDLE_POINT_LENGTHS = {  0.1f,  0.05f,  0.93f, 1f, 0.93f, 0.05f, 0.1f };
+  private static final int NEEDLE_POINTS = NEEDLE_POINT_ANGLES.length;
+  // ...and the same points for a needle pointing straight up, in screen units relative to the
+  // origin (set in calcDial), so makeNeedle only has to rotate them:
+  private final float[] needlePointAlong  = new float[NEEDLE_POINTS];   // Distance along the needle
+  private final float[] needlePointAcross = new float[NEEDLE_POINTS];   // Distance to the right of the needle
+
+  // Sine table for makeNeedle, which is called for every frame while the needle is moving.
+  // Linear interpolation between SINE_STEPS steps per turn is accurate to about 5e-6,
+  // i.e. well under a pixel at the end of the longest needle:
+  private static final int SINE_STEPS = 1024;
+  private static final float SINE_INDEX_SCALE = (float)SINE_STEPS / (2f * (float)Math.PI);
+  private static final float[] SINE_TABLE = new float[SINE_STEPS + 1];
+  static
+    {
+    for (int n = 0; n <= SINE_STEPS; n++) SINE_TABLE[n] = (float)Math.sin( (double)n * 2.0 * Math.PI / (double)SINE_STEPS );
+    }
+
     
   // ********** Constructor: ***************************
   public Dial(Context context, AttributeSet atttibutes)
@@ -110,7 +137,14 @@ public class Dial extends RenderedGauge
       scaleAngle = scaleAngle + scaleAngleStep;
       }
     needleLength = needleLength * 0.9f;
-    invalidate();    
+    // Needle shape at this size:
+    for (int n=0; n<NEEDLE_POINTS; n++)
+      {
+      needlePointAlong[n]  = NEEDLE_POINT_LENGTHS[n] * needleLength * FloatMath.cos(NEEDLE_POINT_ANGLES[n]);
+      needlePointAcross[n] = NEEDLE_POINT_LENGTHS[n] * needleLength * FloatMath.sin(NEEDLE_POINT_ANGLES[n]);
+      }
+    valueChanged();      // Make the needle at the new size.
+    invalidateGauge();    
     }
 
   
@@ -136,18 +170,17 @@ public class Dial extends RenderedGauge
   
   
   
-  /***** Set the value displayed on the dial: *******************
-   * @param value Value to set the needle to
+  /***** The value displayed on the dial has changed: *******************
+   * Move the needle, and redraw just the area it has moved across. 
    */
   @Override
-  public void setValue(float value)
+  protected void valueChanged()
     {
-    super.setValue(value);
     needleAngle = minAngle + (((gaugeValue - scaleMin) / deltaScale) * deltaAngle);
 
     makeNeedle();
     
-    invalidate();
+    invalidateGauge(dirtyRect);
     }
   
 
@@ -188,6 +221,23 @@ public class Dial extends RenderedGauge
     return originY - (thisLength * FloatMath.cos(thisAngle)); 
     }
   
+
+
+
+  /******* Sine and cosine from SINE_TABLE: *********
+   * @param thisAngle Angle in radians (any angle).
+   */
+  private static float tableSin(float thisAngle)
+    {
+    float index = thisAngle * SINE_INDEX_SCALE;
+    float floor = (float)Math.floor(index);
+    int n = ((int)floor) & (SINE_STEPS - 1);      // SINE_STEPS is a power of 2.
+    return SINE_TABLE[n] + ((SINE_TABLE[n + 1] - SINE_TABLE[n]) * (index - floor));
+    }
+
+  private static float tableCos(float thisAngle)
+    {  return tableSin(thisAngle + ((float)Math.PI / 2f));  }
+
   
   
   
@@ -196,7 +246,7 @@ public class Dial extends RenderedGauge
   private void makeNeedle()
     {
     // Make a line to represent the needle:
-    needlePath.reset();
+    needlePath.rewind();
     float x;
     float y; 
 
@@ -208,22 +258,29 @@ public class Dial extends RenderedGauge
 ************************/
     
     // **** Prettier Needle: ****
-    /*                                    0                    1                    2             3                   4                   5                  6   */
-    float[] angles  = {              -2.8f,              -1.57f,             -0.04f,           0f,             0.04f,              1.57f,                 2.8f,  }; 
-    float[] lengths = {  0.1f*needleLength,  0.05f*needleLength,  0.93f*needleLength, needleLength, 0.93f*needleLength, 0.05f*needleLength, 0.1f*needleLength  };
+    // Rotate the needle shape (see calcDial) to the needle angle:
+    float sin = tableSin(needleAngle);
+    float cos = tableCos(needleAngle);
 
-    
-    x = needleX(needleAngle+angles[0],lengths[0]);  //
-    y = needleY(needleAngle+angles[0],lengths[0]);  //
+    x = originX + (needlePointAlong[0] * sin) + (needlePointAcross[0] * cos);
+    y = originY - (needlePointAlong[0] * cos) + (needlePointAcross[0] * sin);
     needlePath.moveTo(x, y);            // ...Start point!   
-    
-    for (int n=1; n<7; n++)
+    float minX = x, maxX = x, minY = y, maxY = y;
+
+    for (int n=1; n<NEEDLE_POINTS; n++)
       {
-      x = needleX(needleAngle+angles[n],lengths[n]);  //
-      y = needleY(needleAngle+angles[n],lengths[n]);  //
+      x = originX + (needlePointAlong[n] * sin) + (needlePointAcross[n] * cos);
+      y = originY - (needlePointAlong[n] * cos) + (needlePointAcross[n] * sin);
       needlePath.lineTo(x, y);            // ...Next point in sequence!   
+      if (x < minX) minX = x;  else if (x > maxX) maxX = x;
+      if (y < minY) minY = y;  else if (y > maxY) maxY = y;
       }
     
+    // The area to redraw is where the needle was, plus where it is now: 
+    dirtyRect.set(needleBounds);
+    needleBounds.set( (int)minX - NEEDLE_MARGIN,     (int)minY - NEEDLE_MARGIN, 
+                      (int)maxX + 1 + NEEDLE_MARGIN, (int)maxY + 1 + NEEDLE_MARGIN );
+    dirtyRect.union(needleBounds);
     }
 
   
@@ -245,10 +302,11 @@ public class Dial extends RenderedGauge
 
   
   
-  @Override 
-  protected void onDraw(Canvas canvas)
+  // The scale ticks are part of the static layer (see RenderedGauge): 
+  @Override
+  protected void drawStatic(Canvas canvas)
     {
-    super.onDraw(canvas);
+    super.drawStatic(canvas);
    
     // *** Draw the scale 'ticks': ***
     // Draw the scale text (if required):
@@ -261,7 +319,14 @@ public class Dial extends RenderedGauge
         canvas.drawCircle( tickX[n], tickY[n], tickSize, tickPaint);
         }
       }  
-    
+    }
+  
+  
+  
+  @Override 
+  protected void drawGauge(Canvas canvas)
+    {
+    super.drawGauge(canvas);
    
     // *** Draw the needle: ****
     needlePaint.setColor(0xA0F00000);
@@ -0,0 +1,310 @@
+package com.tumanako.ui;
+
+/************************************************************************************
+Tumanako - Electric Vehicle and Motor control software
+
+Copyright (C) 2014 Jeremy Cole-Baker <jeremy@rhtech.co.nz>
+
+This file is part of Tumanako Dashboard.
+
+Tumanako is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published
+by the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Tumanako is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with Tumanako.  If not, see <http://www.gnu.org/licenses/>.
+
+*************************************************************************************/
+
+import android.os.Build;
+import android.os.Handler;
+import android.util.Log;
+import android.view.Choreographer;
+
+
+
+/*************************************************************************************
+ * 
+ * Frame Scheduler: 
+ * 
+ * Applies widget updates once per display frame. 
+ *
+ * DashBus values are delivered as soon as they are published, which may be many times 
+ * per frame (e.g. vehicle frames arriving faster than the display refresh). Rather than 
+ * redrawing for each one, a widget keeps the latest value and calls schedule(this). When 
+ * the next frame comes round, the scheduler calls frameUpdate() once on each widget 
+ * which asked, and the widget applies its latest value (and invalidates) just once. 
+ *
+ * Frames are timed by the Choreographer (display vsync) on Android 4.1 and later, and 
+ * by a Handler timer on older versions. Updates are applied at most maxRate times per 
+ * second (see setMaxRate and PREF_MAX_FRAME_RATE): vsync frames which come too soon 
+ * after the last update are passed over. 
+ *
+ * There is one scheduler, on the UI thread (see getInstance). All the methods must be 
+ * called on the UI thread (as with the DashBus, anything which publishes values for 
+ * widgets does so on the UI thread). 
+ *
+ * Counts kept for performance monitoring (see reportStats): 
+ *   Requested - calls to schedule(). 
+ *   Coalesced - calls to schedule() for a widget which was already waiting: the value 
+ *               it was waiting to show was replaced before being shown. 
+ *   Dropped   - waiting updates which were cancelled (e.g. widget taken off screen). 
+ *   Applied   - calls to frameUpdate(). 
+ *   Frames    - frames in which updates were applied. 
+ *   Late      - of those, frames which ran more than a vsync period after the vsync 
+ *               (the UI thread was busy). 
+ * 
+ * @author Jeremy Cole-Baker / Riverhead Technology
+ *
+ ************************************************************************************/
+public class FrameScheduler
+  {
+
+  /** App preference: maximum number of widget updates per second (float; 0 = every vsync). */
+  public static final String PREF_MAX_FRAME_RATE = "maxFrameRate";
+  public static final float DEFAULT_MAX_RATE = 30f;
+
+  private static final long VSYNC_PERIOD = 16666667L;  // nS. Nominal (60 Hz); used for the timer on older versions, and to spot late frames.
+  private static final int INITIAL_LISTENERS = 32;     // Initial size of the waiting lists. They grow if needed.
+
+  private static FrameScheduler instance = null;
+
+  // Widgets waiting for the next frame. Two lists, swapped each frame, so that 
+  // widgets can schedule again from frameUpdate (e.g. to animate): 
+  private IFrameListener[] waiting = new IFrameListener[INITIAL_LISTENERS];
+  private IFrameListener[] running = new IFrameListener[INITIAL_LISTENERS];
+  private int waitingCount = 0;
+
+  private final VsyncSource vsyncSource;               // Choreographer frames, or null on older versions.
+  private final Handler frameHandler = new Handler();  // Frame timer on older versions.
+  private boolean isFramePosted = false;               // Is a frame callback due?
+  private long minInterval = 0;                        // nS between updates (from the maximum rate).
+  private long lastFrameTime = 0;                      // Time of the last frame in which updates were applied (nS).
+
+  // Counts (see reportStats): 
+  private long requestedCount = 0;
+  private long coalescedCount = 0;
+  private long droppedCount   = 0;
+  private long appliedCount   = 0;
+  private long frameCount     = 0;
+  private long lateCount      = 0;
+  private long lastRequested, lastCoalesced, lastDropped, lastApplied, lastFrames, lastLate;
+
+
+
+  /**
+   Get the Frame Scheduler <p>
+   Must be called on the UI thread (the first call creates it there).
+   @return The FrameScheduler instance
+   */
+  public static FrameScheduler getInstance()
+    {
+    if (instance == null) instance = new FrameScheduler();
+    return instance;
+    }
+
+
+  private FrameScheduler()
+    {
+    if (Build.VERSION.SDK_INT >= 16) vsyncSource = new VsyncSource(this);
+    else                             vsyncSource = null;
+    setMaxRate(DEFAULT_MAX_RATE);
+    }
+
+
+
+  /**
+   Set the maximum update rate
+   @param maxRate  Maximum number of frames per second in which updates are applied. 0 = every vsync.
+   */
+  public void setMaxRate(float maxRate)
+    {
+    if (maxRate > 0f) minInterval = (long)(1e9f / maxRate);
+    else              minInterval = 0;
+    }
+
+
+
+  /**
+   Ask for frameUpdate() to be called in the next frame <p>
+   Asking again before the frame has no extra effect (the update is coalesced).
+   @param listener  Widget to update
+   */
+  public void schedule(IFrameListener listener)
+    {
+    requestedCount++;
+    int n;
+    for (n=0; n<waitingCount; n++)
+      {
+      if (waiting[n] == listener)
+        {
+        coalescedCount++;
+        return;
+        }
+      }
+    if (waitingCount == waiting.length)
+      {
+      IFrameListener[] newList = new IFrameListener[waiting.length * 2];
+      System.arraycopy(waiting, 0, newList, 0, waitingCount);
+      waiting = newList;
+      }
+    waiting[waitingCount] = listener;
+    waitingCount++;
+    postFrame();
+    }
+
+
+
+  /**
+   Cancel a waiting update (e.g. when a widget is taken off the screen or reset) 
+   @param listener  Widget which should no longer be updated
+   */
+  public void cancel(IFrameListener listener)
+    {
+    int n;
+    for (n=0; n<waitingCount; n++)
+      {
+      if (waiting[n] == listener)
+        {
+        System.arraycopy(waiting, n + 1, waiting, n, waitingCount - n - 1);
+        waitingCount--;
+        waiting[waitingCount] = null;
+        droppedCount++;
+        return;
+        }
+      }
+    }
+
+
+
+  // Make sure there's a frame callback to come: 
+  private void postFrame()
+    {
+    if (isFramePosted) return;
+    isFramePosted = true;
+    if (vsyncSource != null) vsyncSource.post();
+    else
+      {
+      // No vsync: wait until the next update is due (at least one nominal vsync period): 
+      long wait = (lastFrameTime + Math.max(minInterval, VSYNC_PERIOD)) - System.nanoTime();
+      frameHandler.postDelayed(frameTask, Math.max(0L, wait / 1000000L));
+      }
+    }
+
+
+
+  // A frame has come round: apply the waiting updates (unless it's too soon since the last lot). 
+  private void doFrame(long frameTimeNanos, boolean isVsync)
+    {
+    isFramePosted = false;
+    if (waitingCount == 0) return;
+    if ( isVsync && ((frameTimeNanos - lastFrameTime) < (minInterval - (VSYNC_PERIOD / 2))) )
+      {
+      // Too soon for the maximum rate. Wait for another vsync: 
+      postFrame();
+      return;
+      }
+    if ( isVsync && ((System.nanoTime() - frameTimeNanos) > VSYNC_PERIOD) ) lateCount++;
+    lastFrameTime = frameTimeNanos;
+    frameCount++;
+    // Swap the lists, then update the widgets that were waiting: 
+    IFrameListener[] theseListeners = waiting;
+    int count = waitingCount;
+    waiting = running;
+    running = theseListeners;
+    waitingCount = 0;
+    int n;
+    for (n=0; n<count; n++)
+      {
+      IFrameListener listener = theseListeners[n];
+      theseListeners[n] = null;
+      listener.frameUpdate(frameTimeNanos);
+      }
+    appliedCount += count;
+    }
+
+
+
+  // Frame timer for older versions (no Choreographer): 
+  private final Runnable frameTask = new Runnable() 
+    {
+    public void run()  
+      {  doFrame(System.nanoTime(), false);  }
+    };
+
+
+
+  // Frames from the Choreographer. This is only loaded (by the constructor) on Android 4.1 
+  // and later, which have the Choreographer: 
+  private static class VsyncSource implements Choreographer.FrameCallback
+    {
+    private final FrameScheduler scheduler;
+    private final Choreographer choreographer = Choreographer.getInstance();
+
+    VsyncSource(FrameScheduler thisScheduler)
+      {  scheduler = thisScheduler;  }
+
+    void post()
+      {  choreographer.postFrameCallback(this);  }
+
+    public void doFrame(long frameTimeNanos)
+      {  scheduler.doFrame(frameTimeNanos, true);  }
+    }
+
+
+
+  /** @return Number of calls to schedule(). */
+  public long getRequestedCount()
+    {  return requestedCount;  }
+
+  /** @return Number of updates replaced by a newer one before they were applied. */
+  public long getCoalescedCount()
+    {  return coalescedCount;  }
+
+  /** @return Number of waiting updates cancelled. */
+  public long getDroppedCount()
+    {  return droppedCount;  }
+
+  /** @return Number of frameUpdate() calls. */
+  public long getAppliedCount()
+    {  return appliedCount;  }
+
+  /** @return Number of frames in which updates were applied. */
+  public long getFrameCount()
+    {  return frameCount;  }
+
+  /** @return Number of those frames which ran more than a vsync period late. */
+  public long getLateCount()
+    {  return lateCount;  }
+
+
+
+  /**
+   Log the counts since the last report (if anything has happened). Only called
+   by UIActivity if its DEBUG_STATS flag is set.
+   @param seconds  Time since the last report (s), to show the rates.
+   */
+  public void reportStats(float seconds)
+    {
+    long frames = frameCount - lastFrames;
+    if ((requestedCount != lastRequested) && (seconds > 0f))
+      Log.i( UIActivity.APP_TAG, " FrameScheduler -> Requested: " + (requestedCount - lastRequested)
+          + "; Coalesced: " + (coalescedCount - lastCoalesced) + "; Dropped: " + (droppedCount - lastDropped)
+          + "; Applied: " + (appliedCount - lastApplied) + "; Frames: " + frames + " (" + (int)((float)frames / seconds)
+          + "/s); Late: " + (lateCount - lastLate) );
+    lastRequested = requestedCount;
+    lastCoalesced = coalescedCount;
+    lastDropped   = droppedCount;
+    lastApplied   = appliedCount;
+    lastFrames    = frameCount;
+    lastLate      = lateCount;
+    }
+
+
+  }  // [class FrameScheduler]
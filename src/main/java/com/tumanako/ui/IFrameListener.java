@@ -0,0 +1,44 @@
+package com.tumanako.ui;
+
+/************************************************************************************
+Tumanako - Electric Vehicle and Motor control software
+
+Copyright (C) 2014 Jeremy Cole-Baker <jeremy@rhtech.co.nz>
+
+This file is part of Tumanako Dashboard.
+
+Tumanako is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published
+by the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Tumanako is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with Tumanako.  If not, see <http://www.gnu.org/licenses/>.
+
+*************************************************************************************/
+
+
+
+/*************************************************************************************
+ * 
+ * Frame Listener: 
+ * 
+ * Implemented by widgets which apply their updates through the FrameScheduler. 
+ * 
+ * @author Jeremy Cole-Baker / Riverhead Technology
+ *
+ ************************************************************************************/
+public interface IFrameListener
+  {
+
+  public abstract void frameUpdate(long frameTimeNanos);
+    // Called once in the next display frame after FrameScheduler.schedule(this), however many 
+    // times schedule was called. Apply the latest value here (and invalidate). frameTimeNanos 
+    // is the time of the frame (System.nanoTime() time base).
+
+  }
@@ -22,15 +22,19 @@ along with Tumanako.  If not, see <http://www.gnu.org/licenses/>.
 
 *************************************************************************************/
 
+import com.tumanako.dash.DashBus;
 import com.tumanako.dash.DashMessages;
+import com.tumanako.dash.IDashBusListener;
 import com.tumanako.dash.IDashMessages;
 
 import android.content.Context;
 import android.content.res.TypedArray;
+import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
 import android.graphics.Path;
+import android.graphics.Rect;
 import android.graphics.Typeface;
 import android.graphics.drawable.ShapeDrawable;
 import android.graphics.drawable.shapes.PathShape;
@@ -48,6 +52,12 @@ import android.view.WindowManager;
  * This is the basis for the rendered dial and rendered bar controls,  
  * which have a lot in common!
  *
+ * The parts of the gauge which don't change with the value (scale labels, 
+ * ticks and the gauge label; see drawStatic) are drawn once per layout into 
+ * a bitmap, which is then copied to the screen on each draw. Derived classes 
+ * draw the moving parts (needle or bar) over it, and override valueChanged 
+ * to invalidate only the part of the view that the new value has changed. 
+ *
  * Uses custom attributes, which are set in the Layout XML to 
  * control the appearance of the control. The following are recognised: 
 
@@ -62,6 +72,8 @@ import android.view.WindowManager;
  *  label_y          - float: y position of guage label (as a fraction of view height)
  *
  *  gauge_default_value - Default value to set guage to then UI is reset 
+ *  response_time    - float: Time (s) for the gauge to catch up with a sudden change in value. 0 = jump straight to each new value. See Note.
+ *  max_slew         - float: Fastest movement of the needle / bar, in full scales per second. 0 = no limit. 
  *   
  * These attributes apply only to 'Dial' guages derived from this class: 
  *  minimum_angle    - integer: Needle angle for lowest scale value, in DEGREES; 0 = vertical up; -90 = horizontal to left, etc.  
@@ -88,6 +100,23 @@ import android.view.WindowManager;
  *  the first colour is applied to the first division, second to the second, etc. If there are too few colours, 
  *  the last colour is applied to all remaining steps.      
  * 
+ * Movement:
+ *  New values arrive at whatever rate the vehicle sends them (often only a few per second), 
+ *  so rather than jumping to each one, the needle or bar moves towards the latest value once 
+ *  per display frame (see frameUpdate), like a critically damped spring: from rest, it gets 
+ *  within 1% of a sudden change in response_time seconds without overshooting. max_slew limits the 
+ *  speed as well, if set. Drawing is done per frame while the gauge is moving, however fast 
+ *  or slowly the values arrive.   
+ * 
+ * Surface Render Mode:
+ *  Normally the gauge is drawn by the UI thread like any other view. If it is put on a 
+ *  DashSurface (see setSurface), it is still measured and laid out as usual (so the layout 
+ *  attributes and background work the same), but the DashSurface render thread moves it 
+ *  and draws it instead (see surfaceFrame and drawOnSurface), using values read straight 
+ *  from the vehicle data. The gauge's drawing state is then shared by two threads, so 
+ *  everything which changes it is synchronized on the gauge (layout, setValue, and the 
+ *  render thread's calls). 
+ * 
  * Note that there must also be a values\attrs.xml file which defines the custom 
  * attributes.  It should look like this: 
  *
@@ -130,11 +159,14 @@ import android.view.WindowManager;
  *
  */
 
-public class RenderedGauge extends View implements IDashMessages
+public class RenderedGauge extends View implements IDashMessages, IDashBusListener, IFrameListener
   {
   
   private String updateAction;
   private DashMessages dashMessages;
+  private final DashBus dashBus;
+  private final int updateChannel;      // DashBus channel ID for updateAction.
+  private final FrameScheduler frameScheduler;
   
   protected int drawingWidth = 0;
   protected int drawingHeight = 0;
@@ -161,6 +193,8 @@ public class RenderedGauge extends View implements IDashMessages
   protected boolean showGaugeLabel = true;
 
   protected float defaultValue = 0f;
+  protected float responseTime = DEFAULT_RESPONSE_TIME;
+  protected float maxSlew = 0f;
   
   // Internal constants to remember the gauge attributes (Dial Specific):  
   protected float minAngle = 0f; 
@@ -188,6 +222,9 @@ public class RenderedGauge extends View implements IDashMessages
   
   // Runtime Data Values: 
   protected float gaugeValue = 0f;   // The value we are currently representing
+  private float targetValue = 0f;    // Latest value from the DashBus, which the gauge is moving towards.
+  private float gaugeSpeed = 0f;     // Rate of change of gaugeValue (scale units per second). 
+  private long lastStepTime = 0L;    // Frame time of the last movement step (nS), or 0 if not moving.
   
   // Paint for scale text: 
   protected Paint scalePaint = new Paint();
@@ -198,9 +235,24 @@ public class RenderedGauge extends View implements IDashMessages
  
   protected static final int DEFAULT_BAR_COLOUR = 0xFF00C000;
   protected static final int DEFAULT_TICK_COLOUR = 0xA0F00000;
+
+  private static final float DEFAULT_RESPONSE_TIME = 0.25f;     // s
+  private static final float SPRING_SETTLE = 6.64f;     // (1 + wt)e^-wt = 1% when wt = 6.64: spring frequency w is this / responseTime.
+  private static final float SETTLE_ERROR = 0.0005f;    // Stop moving when within this fraction of the scale of the target.
+  private static final float FIRST_STEP = 1f / 60f;     // Time step (s) for the first frame of a movement (nominal vsync). 
   
   private final ScaledFont fontScale;
 
+  private Bitmap staticLayer;            // Cached drawing of the static parts of the gauge (see drawStatic).
+  private Canvas staticCanvas;           // Canvas for drawing into staticLayer.
+  private boolean staticValid = false;   // Does staticLayer match the current layout?
+
+  // Surface render mode (see DashSurface): 
+  private DashSurface surface = null;             // Surface which draws this gauge, or null to draw as a normal view.
+  private final Rect surfaceDirty = new Rect();   // Area to redraw on the surface (gauge coordinates).
+  private int surfaceLeft = 0;                    // Position of the gauge on the surface. 
+  private int surfaceTop = 0;                     // 
+
   
   
   // ********** Constructor: ***************************
@@ -239,9 +291,12 @@ public class RenderedGauge extends View implements IDashMessages
     guageLablelPaint.setTypeface(Typeface.DEFAULT_BOLD);
     guageLablelPaint.setAntiAlias(true);
 
-    // Set up a DashMessages class to recieve intents:
-    String [] messageFilters = { updateAction, UIActivity.UI_RESET };
+    // Set up a DashMessages class to recieve intents (only used for UI_RESET; values arrive via the DashBus):
+    String [] messageFilters = { UIActivity.UI_RESET };
     dashMessages = new DashMessages( context, this, messageFilters );
+    dashBus = DashBus.getInstance();
+    updateChannel = dashBus.channel(updateAction);
+    frameScheduler = FrameScheduler.getInstance();
  
     }
   
@@ -272,6 +327,8 @@ public class RenderedGauge extends View implements IDashMessages
     fOriginX         = a.getFloat(R.styleable.RenderedGauge_origin_x , 0.5f);
     fOriginY         = a.getFloat(R.styleable.RenderedGauge_origin_y , 0.5f);
     defaultValue     = a.getFloat(R.styleable.RenderedGauge_gauge_default_value, scaleMin);
+    responseTime     = a.getFloat(R.styleable.RenderedGauge_response_time, DEFAULT_RESPONSE_TIME);
+    maxSlew          = a.getFloat(R.styleable.RenderedGauge_max_slew, 0f);
     
     // Gauge label and position:     
     fLabelX = a.getFloat(R.styleable.RenderedGauge_label_x , 0.5f);
@@ -417,29 +474,82 @@ public class RenderedGauge extends View implements IDashMessages
     deltaScale = (float)scaleMax - (float)scaleMin; // Scale range.
     if (deltaScale == 0f) deltaScale = 1f;          // Oops. ??
     
-    setValue(scaleMin);
+    // Go straight to the latest value (clamped to the new scale), stopping any movement in progress. 
+    // Nothing else would move it there if no new value arrives: 
+    gaugeSpeed = 0f;
+    lastStepTime = 0L;
+    showValue(targetValue);
     
     // ------- Set a good font size for labels, based on screen resolution. ------------
     guageLablelPaint.setTextSize(fontScale.getFontScale() * 14.0f );
        
-    invalidate();
+    staticValid = false;    // Static parts need to be drawn again at the new size.
+    invalidateGauge();
     }
 
   
   
   
   /***** Set the value displayed on the guage: *******************
+   * The needle or bar goes straight to the new value (values from 
+   * the DashBus are moved to gradually; see frameUpdate). 
    * @param value Value to set the needle to
    */
   public void setValue(float value)
     {
+    // Stop any movement in progress: 
+    frameScheduler.cancel(this);
+    synchronized (this)
+      {
+      targetValue = value;
+      gaugeSpeed = 0f;
+      lastStepTime = 0L;
+      showValue(value);
+      }
+    }
+
+
+  // **** Show a value (clamped to the scale range): ****
+  private void showValue(float value)
+    {
+    // Clamp the new value to make sure it's within the scale range: 
+    if (value > scaleMax) value = scaleMax;
+    if (value < scaleMin) value = scaleMin;
+    if (value == gaugeValue) return;     // No change: nothing to redraw.
     // Set the new value: 
     gaugeValue = value;
-    // Clamp the new value to make sure it's within the scale range: 
-    if (gaugeValue > scaleMax) gaugeValue = scaleMax;
-    if (gaugeValue < scaleMin) gaugeValue = scaleMin;
-    // Invalidate the view so that it will be redrawn: 
-    invalidate();
+    valueChanged();
+    }
+  
+  
+  /***** The value has changed: *******************
+   * Derived classes override this to update whatever represents the
+   * value (needle, bar...) and invalidate just the part of the view
+   * which has changed. By default, the whole view is redrawn.  
+   */
+  protected void valueChanged()
+    {  invalidateGauge();  }
+
+
+
+  /***** Redraw part of the gauge: *******************
+   * Derived classes use these instead of invalidate(), so that the 
+   * gauge is redrawn on the surface in surface render mode (where the 
+   * render thread may be the caller). 
+   */
+  protected void invalidateGauge(int left, int top, int right, int bottom)
+    {
+    if (surface != null) surfaceDirty.union(left, top, right, bottom);
+    else                 invalidate(left, top, right, bottom);
+    }
+
+  protected void invalidateGauge(Rect dirty)
+    {  invalidateGauge(dirty.left, dirty.top, dirty.right, dirty.bottom);  }
+
+  protected void invalidateGauge()
+    {
+    if (surface != null) surfaceDirty.set(0, 0, drawingWidth, drawingHeight);
+    else                 invalidate();
     }
   
   
@@ -452,7 +562,9 @@ public class RenderedGauge extends View implements IDashMessages
   
   /***** Reset the guage to its default positon: ****/
   public void reset()
-    {  setValue(defaultValue);  }
+    {
+    setValue(defaultValue);          // (Also cancels any value which arrived before the reset.)
+    }
   
   
   
@@ -494,6 +606,17 @@ public class RenderedGauge extends View implements IDashMessages
 
   
   
+  // Layout changes the drawing state, so it mustn't happen while the render thread 
+  // is drawing the gauge (surface render mode): 
+  @Override
+  public void layout(int left, int top, int right, int bottom)
+    {
+    synchronized (this)
+      {  super.layout(left, top, right, bottom);  }
+    }
+
+
+
   @Override
   protected void onLayout (boolean changed, int left, int top, int right, int bottom)
     {
@@ -511,25 +634,90 @@ public class RenderedGauge extends View implements IDashMessages
   
   
   
-  @Override 
-  protected void onDraw(Canvas canvas)
+  /***** Draw the static parts of the gauge: *******************
+   * Draws everything which doesn't change with the value. This is called 
+   * once per layout to draw into the cached bitmap (not on every draw), 
+   * so anything drawn here must only depend on the layout. 
+   * 
+   * Override this in derived classes to add more static parts (e.g. scale 
+   * ticks), calling super.drawStatic() first. 
+   * 
+   * @param canvas Canvas to draw on
+   */
+  protected void drawStatic(Canvas canvas)
     {
-    super.onDraw(canvas);
-    
     // Draw the gauge label (if required): 
     if (showGaugeLabel) canvas.drawText( gaugeLabel, labelX, labelY, guageLablelPaint);
-      //  --DEBUG!-- canvas.drawText( String.format("%.1f", gaugeValue), labelX, labelY, guageLablelPaint);  
 
     // Draw the scale text (if required):
     if (showScale)
       {  for (int n=0; n<numberDivisions; n++)  canvas.drawText(scaleLabels[n], slabelX[n], slabelY[n], scalePaint);  }  
+    }
+
+  
+  
+  // **** Draw the static parts into the cached bitmap (once per layout): ****
+  private void renderStatic()
+    {
+    if ( (staticLayer == null) || (staticLayer.getWidth() != drawingWidth) || (staticLayer.getHeight() != drawingHeight) )
+      {
+      releaseStatic();
+      try
+        {
+        staticLayer = Bitmap.createBitmap(drawingWidth, drawingHeight, Bitmap.Config.ARGB_8888);
+        staticCanvas = new Canvas(staticLayer);
+        }
+      catch (OutOfMemoryError e)
+        {
+        // Couldn't get a bitmap: onDraw will draw the static parts directly instead.
+        Log.w( UIActivity.APP_TAG, "  RenderedGauge -> No memory for static layer: " + e.toString() );
+        releaseStatic();
+        return;
+        }
+      }
+    else staticLayer.eraseColor(Color.TRANSPARENT);
+    drawStatic(staticCanvas);
+    staticValid = true;
+    }
+  
+  
+  private void releaseStatic()
+    {
+    if (staticLayer != null) staticLayer.recycle();
+    staticLayer = null;
+    staticCanvas = null;
+    staticValid = false;
+    }
+  
+  
+  
+  @Override 
+  protected void onDraw(Canvas canvas)
+    {
+    super.onDraw(canvas);
+    if (surface == null) drawGauge(canvas);      // (Otherwise, the DashSurface draws the gauge.)
+    }
+
 
-    // Override this in derived classes to draw more widgets...
-    //
-    // Note: Derived classes must also call this method with 'super.onDraw()' to make sure
-    // the View onDraw is called and that drawing width and height are calculated
-    // during the first draw (see above).
+
+  /***** Draw the gauge: *******************
+   * Called by onDraw, or by the render thread in surface render mode. 
+   * 
+   * Override this in derived classes to draw the moving parts (needle, bar...) 
+   * 
+   * Note: Derived classes must also call this method with 'super.drawGauge()' to make sure
+   * the static parts are drawn.
+   * 
+   * @param canvas Canvas to draw on
+   */
+  protected void drawGauge(Canvas canvas)
+    {
+    if ( (drawingWidth <= 0) || (drawingHeight <= 0) ) return;     // Not laid out yet.
     
+    // Draw the static parts of the gauge, from the cached bitmap if we have one: 
+    if (!staticValid) renderStatic();
+    if (staticValid) canvas.drawBitmap(staticLayer, 0f, 0f, null);
+    else             drawStatic(canvas);
     }
 
 
@@ -539,6 +727,27 @@ public class RenderedGauge extends View implements IDashMessages
 
 
 
+  // Subscribe to our update channel while we are on screen, so that the (app wide) DashBus 
+  // doesn't keep hold of gauges which are no longer displayed: 
+  @Override
+  protected void onAttachedToWindow()
+    {
+    super.onAttachedToWindow();
+    if (surface == null) dashBus.subscribe(updateChannel, this);     // (On a surface, the render thread reads the values.)
+    }
+
+  @Override
+  protected void onDetachedFromWindow()
+    {
+    dashBus.unsubscribe(updateChannel, this);
+    frameScheduler.cancel(this);
+    synchronized (this)
+      {  releaseStatic();  }     // Don't keep the bitmap for a gauge which is no longer displayed (drawn again if reattached).
+    super.onDetachedFromWindow();
+    }
+
+
+
   public void messageReceived(String action, Integer intData, Float floatData, String stringData, Bundle bundleData)
     {
     if (action.equals(UIActivity.UI_RESET))
@@ -546,12 +755,146 @@ public class RenderedGauge extends View implements IDashMessages
       // RESET intent has been received: 
       reset();
       }
-    else
+    }
+
+
+  // UPDATE: Move the gauge to the value published on our channel (from the next frame; see FrameScheduler):
+  public void floatReceived(int channel, float value)
+    {
+    targetValue = value;
+    frameScheduler.schedule(this);
+    }
+
+  public void intReceived(int channel, int value)
+    {
+    targetValue = (float)value;
+    frameScheduler.schedule(this);
+    }
+
+
+
+  /***** Move one frame's worth towards the target value: *******************
+   * The gauge value and speed follow a critically damped spring pulled 
+   * towards targetValue. Each step uses the exact solution for the time 
+   * since the last frame, so the movement is the same (and stable) 
+   * whatever the frame rate. Asks for another frame until it settles.  
+   ***************************************************************/
+  public void frameUpdate(long frameTimeNanos)
+    {
+    if (moveToTarget(frameTimeNanos)) frameScheduler.schedule(this);
+    }
+
+
+
+  /***** One step of the movement (see frameUpdate): ******
+   * @return true if the gauge is still moving (another step is needed). 
+   */
+  private boolean moveToTarget(long frameTimeNanos)
+    {
+    float target = targetValue;
+    if (target > scaleMax) target = scaleMax;
+    if (target < scaleMin) target = scaleMin;
+    if (responseTime <= 0f)
+      {
+      showValue(target);
+      return false;
+      }
+
+    float seconds = (lastStepTime == 0L) ? FIRST_STEP : (float)(frameTimeNanos - lastStepTime) / 1e9f;
+    float w = SPRING_SETTLE / responseTime;
+    float offset = gaugeValue - target;
+    float k = (gaugeSpeed + (w * offset)) * seconds;
+    float decay = (float)Math.exp(-w * seconds);
+    float newOffset = (offset + k) * decay;
+    float newSpeed = (gaugeSpeed - (w * k)) * decay;
+    if ( (maxSlew > 0f) && (seconds > 0f) )
+      {
+      float maxSpeed = maxSlew * deltaScale;
+      if (Math.abs(newOffset - offset) > (maxSpeed * seconds))
+        {
+        newSpeed = (newOffset > offset) ? maxSpeed : -maxSpeed;
+        newOffset = offset + (newSpeed * seconds);
+        }
+      }
+
+    float settle = SETTLE_ERROR * deltaScale;
+    if ( (Math.abs(newOffset) <= settle) && (Math.abs(newSpeed) <= (settle * w)) )
       {
-      // UPDATE intent: Set guage value to the float contained in the floatData parameter:
-      if (null != floatData) setValue(floatData);
+      // Close enough: finish the movement. 
+      gaugeSpeed = 0f;
+      lastStepTime = 0L;
+      showValue(target);
+      return false;
       }
+    gaugeSpeed = newSpeed;
+    lastStepTime = frameTimeNanos;
+    showValue(target + newOffset);
+    return true;
+    }
+
+
+
+  /**************** Surface Render Mode (see DashSurface): **************************/
+
+  /**
+   Put the gauge on a DashSurface (before it is attached to the window) <p>
+   The DashSurface then moves and draws the gauge on its render thread. The view 
+   itself only draws its background. 
+   */
+  void setSurface(DashSurface thisSurface)
+    {  surface = thisSurface;  }
+
+
+  /** @return DashBus channel ID of the gauge's update_action. */
+  int getUpdateChannel()
+    {  return updateChannel;  }
 
+
+  /** Set the position of the gauge on the surface (UI thread, after layout). */
+  synchronized void setSurfacePosition(int left, int top)
+    {
+    surfaceLeft = left;
+    surfaceTop = top;
+    surfaceDirty.set(0, 0, drawingWidth, drawingHeight);
+    }
+
+
+  /**
+   Move the gauge towards the latest value for one surface frame (render thread) 
+   @param frameTimeNanos  Frame time (System.nanoTime() time base)
+   @param value           Latest value on the gauge's channel (NaN if there isn't a new one)
+   @param dirty           The area of the gauge to redraw is added to this (surface coordinates).
+   */
+  synchronized void surfaceFrame(long frameTimeNanos, float value, Rect dirty)
+    {
+    if (Float.isNaN(value)) value = targetValue;
+    if ( (value != targetValue) || (lastStepTime != 0L) )
+      {
+      targetValue = value;
+      moveToTarget(frameTimeNanos);
+      }
+    if (!surfaceDirty.isEmpty())
+      {
+      surfaceDirty.offset(surfaceLeft, surfaceTop);
+      dirty.union(surfaceDirty);
+      surfaceDirty.setEmpty();
+      }
+    }
+
+
+  /**
+   Draw the gauge on the surface, if it is in the area being redrawn (render thread) 
+   @param canvas  Surface canvas (already clipped to dirty)
+   @param dirty   Area being redrawn (surface coordinates)
+   */
+  synchronized void drawOnSurface(Canvas canvas, Rect dirty)
+    {
+    if (!dirty.intersects(surfaceLeft, surfaceTop, surfaceLeft + drawingWidth, surfaceTop + drawingHeight)) return;
+    canvas.save();
+    canvas.translate(surfaceLeft, surfaceTop);
+    canvas.clipRect(0, 0, drawingWidth, drawingHeight);
+    drawGauge(canvas);
+    canvas.restore();
     }
 
   
@@ -22,14 +22,15 @@ along with Tumanako.  If not, see <http://www.gnu.org/licenses/>.
 
 *************************************************************************************/
 
+import com.tumanako.dash.DashBus;
+import com.tumanako.dash.HistoryStore;
 import com.tumanako.dash.RingBuffer;
+import com.tumanako.dash.SampleRing;
 import android.content.Context;
 import android.graphics.Canvas;
 import android.graphics.Paint;
 import android.graphics.Path;
-import android.graphics.drawable.ShapeDrawable;
-import android.graphics.drawable.shapes.PathShape;
-import android.graphics.drawable.shapes.RectShape;
+import android.os.SystemClock;
 import android.util.AttributeSet;
 import android.view.View;
 
@@ -56,6 +57,28 @@ import android.view.View;
  *    private ScrollChart demoChart;
  *    demoChart = (ScrollChart) findViewById(R.id.demoScrollChart);
  *    demoChart.AddPoint( 10.5, 12.5 );
+ *
+ * By default the chart shows the last NUMBER_POINTS values added. To show a
+ * longer time span instead (e.g. a whole race), use something like:
+ *
+ *    demoChart.setTimeSpan( 30 * 60 * 1000 );   // Last 30 minutes
+ *
+ * The chart then draws the mean values from a multi-resolution HistoryStore,
+ * so the cost of drawing doesn't depend on the time span.
+ *
+ * Alternatively, the chart can show a vehicle data channel directly from the
+ * DashBus sample ring (no need to call AddPoint):
+ *
+ *    demoChart.setSource( DashBus.DATA_MOTOR_RPM );
+ *
+ * The chart then reads the latest NUMBER_POINTS samples each time it is drawn,
+ * and redraws itself every SOURCE_REFRESH mS.
+ *
+ * Drawing allocates nothing: the paints and paths are made once and reused.
+ * The screen coordinates of the points are kept between frames. When values
+ * are added with AddPoint, the points are scrolled along by one and only the
+ * new point is converted, and the paths are only rebuilt when the points
+ * have changed.
  *    
  * @author Jeremy Cole-Baker / Riverhead Technology
  *
@@ -66,26 +89,34 @@ import android.view.View;
 public class ScrollChart extends View
   {
 
-  private ShapeDrawable chartBorder;
-  private ShapeDrawable chartLine;
-  private ShapeDrawable chartFill;
-  private ShapeDrawable chartAvgLine;
+  private final Paint paintChartFill = new Paint(Paint.ANTI_ALIAS_FLAG);
+  private final Paint paintChartLine = new Paint(Paint.ANTI_ALIAS_FLAG);
+  private final Paint paintAvgLine   = new Paint(Paint.ANTI_ALIAS_FLAG);
+  private final Paint paintBorder    = new Paint(Paint.ANTI_ALIAS_FLAG);
+  
+  private final Path chartLinePath = new Path();
+  private final Path chartFillPath = new Path();
 
   private int drawingWidth = 0;
   private int drawingHeight = 0;
-  private int drawingTop = 0;
-  private int drawingLeft = 0;
   
   private float dataAverage = 0;
   
   private static final int MARGIN = 0;
   private static final int NUMBER_POINTS = 60;
   private static final float MAX_SCALE = 20;
+  private static final int SOURCE_REFRESH = 100;       // mS between redraws when showing a sample ring channel.
   
   private RingBuffer dataBuffer = new RingBuffer(NUMBER_POINTS+1, 1, false);
+  private HistoryStore dataHistory = new HistoryStore();
+  private long timeSpan = 0;              // mS of history to show; 0 = show the last NUMBER_POINTS values.
+  private int sourceChannel = DashBus.NO_CHANNEL;                       // Vehicle channel to read from the sample ring, if any.
+  private final SampleRing sampleRing = DashBus.getInstance().getSampleRing();
   
   private float[] xCoord = new float[NUMBER_POINTS];
-  private float[] yCoord = new float[NUMBER_POINTS];  
+  private float[] yCoord = new float[NUMBER_POINTS];      // Screen coordinates of the points, oldest first.
+  private boolean pointsValid = false;    // Does yCoord hold the data buffer? (Kept up to date by AddPoint once it does.) 
+  private boolean pathsValid = false;     // Do the paths match yCoord? 
   
   // ********** Constructor: ***************************
   public ScrollChart(Context context, AttributeSet atttibutes)
@@ -93,6 +124,19 @@ public class ScrollChart extends View
     super(context, atttibutes);
     // Set up the data buffer (initially filled with 1):
     dataBuffer.PreFill(new float[] {10f});
+    // Paints for the chart (these don't change): 
+    paintChartFill.setStyle(Paint.Style.FILL_AND_STROKE);
+    paintChartFill.setStrokeWidth(1);
+    paintChartFill.setColor(0xFF2CA6F0);
+    paintChartLine.setStyle(Paint.Style.STROKE);
+    paintChartLine.setStrokeWidth(6);
+    paintChartLine.setColor(0xFFF0F0F0);
+    paintAvgLine.setStyle(Paint.Style.STROKE);
+    paintAvgLine.setStrokeWidth(8);
+    paintAvgLine.setColor(0xA0FF0000);
+    paintBorder.setStyle(Paint.Style.STROKE);
+    paintBorder.setStrokeWidth(5);
+    paintBorder.setColor(0xFFF0F0F0);
     }
   
   
@@ -106,7 +150,16 @@ public class ScrollChart extends View
     // of points on the chart. 
     // The dataAverage is also converted to a chart fraction, and stored. 
     dataAverage = 1f - (thisAverage/MAX_SCALE);
-    dataBuffer.AddPoint(new float[] {  (1f - (thisValue/MAX_SCALE))  } );
+    float chartValue = 1f - (thisValue/MAX_SCALE);
+    dataBuffer.AddPoint( chartValue );
+    dataHistory.addSample( chartValue, SystemClock.elapsedRealtime() );
+    if (pointsValid)
+      {
+      // Scroll the points along by one, and work out where the new one goes: 
+      System.arraycopy(yCoord, 1, yCoord, 0, NUMBER_POINTS-1);
+      yCoord[NUMBER_POINTS-1] = chartY(chartValue);
+      }
+    pathsValid = false;
     invalidate();  // Signal the OS that we need to be redrawn!
     }
   
@@ -119,50 +172,85 @@ public class ScrollChart extends View
   
   
   
-  private Path MakeChartFill()
+  // ***** Show a vehicle channel from the DashBus sample ring (DashBus.NO_CHANNEL = use AddPoint). *****
+  public void setSource(int thisChannel)
     {
-    // Convert the data in the data buffer to coordinates for the chart:
-    int n;
-    int lastPointIndex = NUMBER_POINTS - 1;
-    for (n=0; n<NUMBER_POINTS; n++)
-         yCoord[n] = (float)drawingTop + ( (Float)dataBuffer.GetPoint(lastPointIndex-n)[0] * (float)drawingHeight );
-    // Generate a filled path object to represent the path: 
-    Path thisPath = new Path();  // Create a blank path.
-    thisPath.setFillType(Path.FillType.EVEN_ODD);
-    thisPath.moveTo(xCoord[0], yCoord[0]);                            // ...First point!
-    for (n=1; n<NUMBER_POINTS; n++)  thisPath.lineTo(xCoord[n], yCoord[n]);      //    Loop through points and add each. 
-    thisPath.lineTo((float)drawingWidth, (float)drawingHeight);       //  ]
-    thisPath.lineTo(0, (float)drawingHeight);                         //  ]  Finish the filled shape.
-    thisPath.lineTo(xCoord[0], yCoord[0]);                            //  ]
-    return thisPath;
+    sourceChannel = thisChannel;
+    pointsValid = false;
+    invalidate();
     }
-
-
-  private Path MakeChartLine()
+  
+  
+  
+  // ***** Set the time span shown by the chart (mS). 0 = show the last NUMBER_POINTS values. *****
+  public void setTimeSpan(long thisTimeSpan)
     {
-    // NOTE: Must call MakeChartFill (Above) FIRST to set up yCoord array!!
+    timeSpan = thisTimeSpan;
+    pointsValid = false;
+    invalidate();
+    }
+  
+  
+  
+  // ***** Convert a chart fraction (0 = top, 1 = bottom) to a screen Y coordinate. *****
+  private float chartY(float chartValue)
+    {
+    return (float)MARGIN + ( chartValue * (float)drawingHeight );
+    }
+  
+  
+  
+  private void readPoints()
+    {
+    // Get the points to draw into yCoord, as screen coordinates: 
+    // (The buffer is pre-filled, so there are always NUMBER_POINTS values, oldest first.) 
     int n;
-    // Generate a path object to represent the line for the chart: 
-    Path thisPath = new Path();  // Create a blank path.
-    thisPath.setFillType(Path.FillType.EVEN_ODD);
-    thisPath.moveTo(xCoord[0], yCoord[0]);                                       // ...First point!
-    for (n=1; n<NUMBER_POINTS; n++)  thisPath.lineTo(xCoord[n], yCoord[n]);      //    Loop through points and add each. 
-    return thisPath;
+    if (sourceChannel != DashBus.NO_CHANNEL)
+      {
+      // Read the latest samples straight from the sample ring, and convert to chart fractions. 
+      // If there aren't enough samples yet, they are right-aligned and the rest drawn at the bottom: 
+      int count = sampleRing.getLatest(sourceChannel, yCoord, 0, NUMBER_POINTS);
+      int missing = NUMBER_POINTS - count;
+      for (n=NUMBER_POINTS-1; n>=missing; n--)  yCoord[n] = 1f - (yCoord[n-missing]/MAX_SCALE);
+      for (n=0; n<missing; n++)  yCoord[n] = 1f;
+      pointsValid = false;
+      }
+    else if (timeSpan > 0)
+      {
+      // Long time span: get the mean values from the history store instead. 
+      // Points with no history yet (at the old end) are drawn at the bottom.
+      dataHistory.getHistory(NUMBER_POINTS, timeSpan, null, null, yCoord);
+      for (n=0; n<NUMBER_POINTS; n++)  if (Float.isNaN(yCoord[n])) yCoord[n] = 1f;
+      pointsValid = false;
+      }
+    else if (!pointsValid)
+      {
+      // Points from the data buffer. After this, AddPoint keeps them up to date: 
+      dataBuffer.GetRange(0, yCoord, 0, NUMBER_POINTS);
+      pointsValid = true;
+      }
+    else return;    // Already up to date.
+    for (n=0; n<NUMBER_POINTS; n++)  yCoord[n] = chartY(yCoord[n]);
+    pathsValid = false;
     }
   
   
   
-  private Path MakeAvgLine()
+  private void makePaths()
     {
-    // Draws an 'Average' line across the chart:
-    float xStart = (float)drawingLeft;
-    float xEnd = xStart + (float)drawingWidth; 
-    float y = (float)drawingTop + ( dataAverage * (float)drawingHeight ); 
-    Path thisPath = new Path();  // Create a blank path.
-    thisPath.setFillType(Path.FillType.EVEN_ODD);
-    thisPath.moveTo(xStart, y);             // ...First point!
-    thisPath.lineTo(xEnd,   y);             // ...Second point!                
-    return thisPath;
+    // Rebuild the chart line and the filled area under it from the points: 
+    // (rewind keeps the memory used by the paths, so this doesn't allocate once they've grown.)
+    int n;
+    chartLinePath.rewind();
+    chartLinePath.setFillType(Path.FillType.EVEN_ODD);
+    chartLinePath.moveTo(xCoord[0], yCoord[0]);                                       // ...First point!
+    for (n=1; n<NUMBER_POINTS; n++)  chartLinePath.lineTo(xCoord[n], yCoord[n]);      //    Loop through points and add each. 
+    chartFillPath.rewind();
+    chartFillPath.set(chartLinePath);                                                 //  ]
+    chartFillPath.lineTo((float)drawingWidth, (float)drawingHeight);                  //  ]  Finish the filled shape.
+    chartFillPath.lineTo((float)MARGIN, (float)drawingHeight);                        //  ]
+    chartFillPath.close();                                                            //  ]
+    pathsValid = true;
     }
   
   
@@ -204,6 +292,20 @@ public class ScrollChart extends View
 
 
   
+  // ********************** onSizeChanged: ************************************
+  // Work out the chart dimensions and the X coordinates of the points (these only change with the size): 
+  @Override
+  protected void onSizeChanged(int w, int h, int oldw, int oldh)
+    {
+    super.onSizeChanged(w, h, oldw, oldh);
+    drawingWidth = w - MARGIN - MARGIN;
+    drawingHeight = h - MARGIN - MARGIN;
+    // (Drawing coordinates are relative to the view, so the chart starts at MARGIN.) 
+    for (int n=0; n<NUMBER_POINTS; n++)  xCoord[n] = (float)MARGIN + ( ((float)n/(NUMBER_POINTS-1)) * (float)drawingWidth);
+    pointsValid = false;
+    pathsValid = false;
+    }
+  
   
   
   
@@ -211,62 +313,20 @@ public class ScrollChart extends View
   protected void onDraw(Canvas canvas)
     {
     super.onDraw(canvas);
-    Paint paintBorder;
-   
-    // Determine the chart dimensions, if we haven't already done so: 
-    if (drawingWidth == 0)
-      {
-      // **** Get actual layout parameters: ****
-      drawingWidth = this.getWidth() - MARGIN - MARGIN;
-      drawingHeight = this.getHeight() - MARGIN - MARGIN;
-      drawingTop = this.getTop();
-      drawingLeft = this.getLeft();
-      // **** Set up chart border: **** 
-      chartBorder = new ShapeDrawable(new RectShape());
-      paintBorder = chartBorder.getPaint();
-      paintBorder.setStyle(Paint.Style.STROKE);
-      paintBorder.setStrokeWidth(5);
-      paintBorder.setColor(0xFFF0F0F0);
-      chartBorder.setBounds(MARGIN,MARGIN,drawingWidth,drawingHeight);
-      // *** Compute X coordinates for the chart points (these don't change): *** 
-      for (int n=0; n<NUMBER_POINTS; n++)  xCoord[n] = (float)drawingLeft + ( ((float)n/(NUMBER_POINTS-1)) * (float)drawingWidth);
-      }
-
-    // *** Set up the chart: ****
-    Path chartFillPath = MakeChartFill();
-    Path chartLinePath = MakeChartLine();    
-    Path chartAvgPath = MakeAvgLine();
-
-    Paint paintChartFill;
-    Paint paintChartLine;
-    Paint paintAvgLine;
+    if (drawingWidth == 0) return;     // Not laid out yet.
 
-    chartFill = new ShapeDrawable(new PathShape(chartFillPath,(float)drawingWidth,(float)drawingHeight) );
-    chartFill.setBounds(MARGIN,MARGIN,drawingWidth,drawingHeight);
-    paintChartFill = chartFill.getPaint();
-    paintChartFill.setStyle(Paint.Style.FILL_AND_STROKE);
-    paintChartFill.setStrokeWidth(1);
-    paintChartFill.setColor(0xFF2CA6F0);
-    
-    chartLine = new ShapeDrawable(new PathShape(chartLinePath,(float)drawingWidth,(float)drawingHeight) );
-    chartLine.setBounds(MARGIN,MARGIN,drawingWidth,drawingHeight);
-    paintChartLine = chartLine.getPaint();
-    paintChartLine.setStyle(Paint.Style.STROKE);
-    paintChartLine.setStrokeWidth(6);
-    paintChartLine.setColor(0xFFF0F0F0);
-
-    chartAvgLine = new ShapeDrawable(new PathShape(chartAvgPath,(float)drawingWidth,(float)drawingHeight) );
-    chartAvgLine.setBounds(MARGIN,MARGIN,drawingWidth,drawingHeight);
-    paintAvgLine = chartAvgLine.getPaint();
-    paintAvgLine.setStyle(Paint.Style.STROKE);
-    paintAvgLine.setStrokeWidth(8);
-    paintAvgLine.setColor(0xA0FF0000);
+    // *** Update the chart (only what's changed since the last frame): ****
+    readPoints();
+    if (!pathsValid) makePaths();
+    float avgY = chartY(dataAverage);
 
-    chartFill.draw(canvas);
-    chartLine.draw(canvas);
-    chartAvgLine.draw(canvas);
-    chartBorder.draw(canvas);
+    canvas.drawPath(chartFillPath, paintChartFill);
+    canvas.drawPath(chartLinePath, paintChartLine);
+    canvas.drawLine((float)MARGIN, avgY, (float)(MARGIN + drawingWidth), avgY, paintAvgLine);
+    canvas.drawRect((float)MARGIN, (float)MARGIN, (float)drawingWidth, (float)drawingHeight, paintBorder);
     
+    // Reading from the sample ring? Draw again soon to pick up new samples: 
+    if (sourceChannel != DashBus.NO_CHANNEL) postInvalidateDelayed(SOURCE_REFRESH);
     //     invalidate();
     }
   
@@ -27,6 +27,7 @@ along with Tumanako.  If not, see <http://www.gnu.org/licenses/>. <p>
 
 import java.util.Set;
 
+import com.tumanako.sensors.SensorFusion;
 import com.tumanako.sensors.VehicleData;
 
 import android.os.Bundle;
@@ -37,6 +38,7 @@ import android.view.View;
 import android.widget.AdapterView;
 import android.widget.AdapterView.OnItemClickListener;
 import android.widget.ArrayAdapter;
+import android.widget.EditText;
 import android.widget.ListView;
 
 
@@ -63,6 +65,14 @@ public class SettingsActivity extends UIActivity implements OnItemClickListener
     // Turn off auto-reset for this page: 
     autoReset = false; 
 
+    // Drive ratio and wheel size (for the wheel speed; see SensorFusion): 
+    SharedPreferences settings = getSharedPreferences(UIActivity.PREFS_NAME, 0);
+    // (Float.toString, not String.format, so the decimal point can be read back in any locale.) 
+    ((EditText)findViewById(R.id.editTextDriveRatio)).setText( 
+        Float.toString(settings.getFloat(SensorFusion.PREF_DRIVE_RATIO, SensorFusion.DEFAULT_DRIVE_RATIO)) );
+    ((EditText)findViewById(R.id.editTextWheelCircumference)).setText( 
+        Float.toString(settings.getFloat(SensorFusion.PREF_WHEEL_CIRCUMFERENCE, SensorFusion.DEFAULT_WHEEL_CIRCUMFERENCE)) );
+
     // Get a reference to the Bluetooth Devices listview: 
     deviceList = (ListView) findViewById(R.id.listBluetoothDevices);
     
@@ -131,6 +141,38 @@ public class SettingsActivity extends UIActivity implements OnItemClickListener
 
   
   
+  /**
+   UI Pause Event - Called when the activity goes into the background. 
+   Saves the drive ratio and wheel size (if they are sensible numbers), and 
+   passes them to the sensor fusion. 
+   */
+  @Override
+  protected void onPause() 
+    {
+    super.onPause();
+    SharedPreferences settings = getSharedPreferences(UIActivity.PREFS_NAME, 0);
+    SharedPreferences.Editor editor = settings.edit();
+    float driveRatio         = readNumber(R.id.editTextDriveRatio);
+    float wheelCircumference = readNumber(R.id.editTextWheelCircumference);
+    if (driveRatio > 0f)         editor.putFloat(SensorFusion.PREF_DRIVE_RATIO, driveRatio);
+    if (wheelCircumference > 0f) editor.putFloat(SensorFusion.PREF_WHEEL_CIRCUMFERENCE, wheelCircumference);
+    editor.commit();        // Commit the edits!
+    SensorFusion.getInstance().configure(this);
+    }
+  
+  
+  // Get the number in a text field, or 0 if it isn't one: 
+  private float readNumber(int fieldID)
+    {
+    try
+      {  return Float.parseFloat( ((EditText)findViewById(fieldID)).getText().toString() );  }
+    catch (Exception e)
+      {  return 0f;  }
+    }
+  
+  
+  
+  
   /**** UI Timer Handling Runnable: *******************
    * This runnable creates a timer to update the UI.
    * Note that this is a low priority UI update for 
@@ -22,7 +22,9 @@ along with Tumanako.  If not, see <http://www.gnu.org/licenses/>.
 
 *************************************************************************************/
 
+import com.tumanako.dash.DashBus;
 import com.tumanako.dash.DashMessages;
+import com.tumanako.dash.IDashBusListener;
 import com.tumanako.dash.IDashMessages;
 
 import android.content.Context;
@@ -103,10 +105,14 @@ import android.widget.ImageView;
 
 
 
-public class StatusLamp extends ImageView implements IDashMessages
+public class StatusLamp extends ImageView implements IDashMessages, IDashBusListener, IFrameListener
   {
   private String updateAction;
   private DashMessages dashMessages;
+  private final DashBus dashBus;
+  private final int updateChannel;      // DashBus channel ID for updateAction.
+  private final FrameScheduler frameScheduler;
+  private boolean pendingState = false; // Latest state from the DashBus, to show in the next frame.
 
   private boolean lampState = false;  // true = Lamp On; false = Lamp Off. 
 
@@ -137,9 +143,12 @@ public class StatusLamp extends ImageView implements IDashMessages
     // This method also loads the 'On' and 'Off' bitmaps for the lamp.  
     getCustomAttributes(attrs);
 
-    // Set up a DashMessages class to recieve intents:
-    String [] messageFilters = { updateAction, UIActivity.UI_RESET };
+    // Set up a DashMessages class to recieve intents (only used for UI_RESET; values arrive via the DashBus):
+    String [] messageFilters = { UIActivity.UI_RESET };
     dashMessages = new DashMessages( context, this, messageFilters );
+    dashBus = DashBus.getInstance();
+    updateChannel = dashBus.channel(updateAction);
+    frameScheduler = FrameScheduler.getInstance();
     
     // Set Lamp State:
     if (lampState) turnOn();
@@ -210,6 +219,7 @@ public class StatusLamp extends ImageView implements IDashMessages
   /****** Reset to default state: ***********/
   public void reset()
     {
+    frameScheduler.cancel(this);     // Don't show a value which arrived before the reset.
     if (defaultState) turnOn();
     else              turnOff();
     }
@@ -224,6 +234,24 @@ public class StatusLamp extends ImageView implements IDashMessages
 
 
 
+  // Only subscribe to the DashBus while we are on screen: 
+  @Override
+  protected void onAttachedToWindow()
+    {
+    super.onAttachedToWindow();
+    dashBus.subscribe(updateChannel, this);
+    }
+
+  @Override
+  protected void onDetachedFromWindow()
+    {
+    dashBus.unsubscribe(updateChannel, this);
+    frameScheduler.cancel(this);
+    super.onDetachedFromWindow();
+    }
+
+
+
   public void messageReceived(String action, Integer intData, Float floatData, String stringData, Bundle bundleData)
     {
     if (action.equals(UIActivity.UI_RESET))
@@ -231,15 +259,27 @@ public class StatusLamp extends ImageView implements IDashMessages
       // RESET intent has been received: 
       reset();
       }
-    else
-      {
-      // UPDATE intent: Set guage value to the float contained in the floatData parameter:
-      if (null != floatData)
-        {
-        if (floatData == 1f) turnOn();
-        else                 turnOff();
-        }
-      }
+    }
+
+
+  // UPDATE: Turn the lamp on if the value published on our channel is 1 (in the next frame; see FrameScheduler):
+  public void floatReceived(int channel, float value)
+    {
+    pendingState = (value == 1f);
+    frameScheduler.schedule(this);
+    }
+
+  public void intReceived(int channel, int value)
+    {
+    pendingState = (value == 1);
+    frameScheduler.schedule(this);
+    }
+
+  public void frameUpdate(long frameTimeNanos)
+    {
+    if (pendingState == lampState) return;     // No change (setting the bitmap again would lay out the view again).
+    if (pendingState) turnOn();
+    else              turnOff();
     }
   
   
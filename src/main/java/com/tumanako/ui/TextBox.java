@@ -27,7 +27,10 @@ along with Tumanako.  If not, see <http://www.gnu.org/licenses/>. <p>
 *************************************************************************************/
 
 
+import com.tumanako.dash.DashBus;
+import com.tumanako.dash.DashFormat;
 import com.tumanako.dash.DashMessages;
+import com.tumanako.dash.IDashBusListener;
 import com.tumanako.dash.IDashMessages;
 
 import android.content.Context;
@@ -67,12 +70,22 @@ import android.widget.TextView;
   <ul>
    <li>textbox_text           - Initial text for the text box
    <li>textbox_default_text   - Text to display when 'reset()' method is called. If omitted, "" is used. 
+   <li>textbox_format         - Format for numbers published on the DashBus (see below), e.g. "%.0f" or 
+                                "mm:ss.s". If omitted, "%.1f" is used for floats and "%d" for integers.  
    <li>update_action          - Action string which this text box should respond to for updates. 
                                 If an intent is received with this action, it should contain a string
                                 value with the new contents for the text box (i.e. stringData should not 
                                 be null). See DashMessages class for details.    
   </ul> <p>                  
 
+ Numbers published on the DashBus channel with the same name as update_action 
+ are shown too (the text box subscribes while it is on screen). <p>
+ 
+ Numbers are formatted with a DashFormat (compiled once) into a reused char[], 
+ and shown with TextView.setText(char[], ...), so an update doesn't allocate. 
+ If the text hasn't changed, the TextView isn't touched at all. Format strings 
+ which DashFormat doesn't support fall back to String.format. <p>
+
    It should look like this: <p> 
 
   <pre>
@@ -86,6 +99,7 @@ import android.widget.TextView;
         <declare-styleable name="TextBox">
            <attr name="textbox_text"           format="string" />
            <attr name="textbox_default_text"   format="string" />
+           <attr name="textbox_format"         format="string" />
         </declare-styleable>  
         
     </resources>  
@@ -115,15 +129,42 @@ import android.widget.TextView;
 
 
 
-public class TextBox extends LinearLayout implements IDashMessages
+public class TextBox extends LinearLayout implements IDashMessages, IDashBusListener, IFrameListener
   {
  
+  private static final DashFormat DEFAULT_FLOAT_FORMAT = DashFormat.compile("%.1f");
+  private static final DashFormat DEFAULT_INT_FORMAT   = DashFormat.compile("%d");
+  
   private String defaultText;
   private String updateAction;
+  private DashFormat floatFormat = DEFAULT_FLOAT_FORMAT;    // Formats for DashBus values (textbox_format)
+  private DashFormat intFormat   = DEFAULT_INT_FORMAT;
 
   private final TextView itemView;
   
   private DashMessages dashMessages; 
+  private final DashBus dashBus;
+  private final int updateChannel;      // DashBus channel ID for updateAction.
+  private final FrameScheduler frameScheduler;
+  private float   pendingFloat = 0f;    // } Latest number from the DashBus, to show in the next frame.
+  private int     pendingInt = 0;       // }
+  private boolean isPendingInt = false; // } 
+  
+  // Text shown (the TextView keeps a reference to shownText, so it's only changed just before setText): 
+  private char[] shownText = new char[32];
+  private int shownLength = 0;
+  private boolean isTextShown = false;  // false if the text was set some other way (reset, setText(String))
+  private char[] newText = new char[32];
+  private float lastValue = 0f;         // Last DashBus value shown
+  private boolean isValueShown = false;
+  
+  // Last format string received in an intent, compiled (or null if DashFormat doesn't support it): 
+  private String messagePattern = null;
+  private DashFormat messageFormat = null;
+  
+  // Counters for all text boxes (UI thread only; only counted if UIActivity.DEBUG_STATS is set):
+  private static long updateCount = 0;
+  private static long skipCount = 0;
   
   
   
@@ -159,6 +200,11 @@ public class TextBox extends LinearLayout implements IDashMessages
     String [] messageFilters = { updateAction, UIActivity.UI_RESET };
     dashMessages = new DashMessages( context, this, messageFilters );
     
+    // ...and find our DashBus channel (numbers):
+    dashBus = DashBus.getInstance();
+    updateChannel = dashBus.channel(updateAction);
+    frameScheduler = FrameScheduler.getInstance();
+    
     }
 
   
@@ -172,7 +218,11 @@ public class TextBox extends LinearLayout implements IDashMessages
     @param text  Text to display.
   ****************************************/
   public void setText(String text)
-    {  itemView.setText(text);  }
+    {  
+    isTextShown = false;
+    isValueShown = false;
+    itemView.setText(text);  
+    }
   
   
   
@@ -193,12 +243,23 @@ public class TextBox extends LinearLayout implements IDashMessages
   ***************************************/
   public void reset()
     {  
-    if (defaultText != null) itemView.setText(defaultText);
-    else                     itemView.setText("");
+    frameScheduler.cancel(this);     // Don't show a number which arrived before the reset.
+    if (defaultText != null) setText(defaultText);
+    else                     setText("");
     }
 
   
   
+  /** @return Number of times the text of any text box has been changed from a number or message. */
+  public static long getUpdateCount()
+    {  return updateCount;  }
+  
+  /** @return Number of numbers or messages which didn't change the text, so were skipped. */
+  public static long getSkipCount()
+    {  return skipCount;  }
+
+  
+  
   
   
   
@@ -217,10 +278,22 @@ public class TextBox extends LinearLayout implements IDashMessages
   private void getCustomAttributes(AttributeSet attrs)
     { 
     String text;
+    String format;
     TypedArray a = getContext().obtainStyledAttributes( attrs, R.styleable.TextBox);
     text         = a.getString(R.styleable.TextBox_textbox_text);
     defaultText  = a.getString(R.styleable.TextBox_textbox_default_text);
+    format       = a.getString(R.styleable.TextBox_textbox_format);
     a.recycle();    // Recycle the TypedArray.
+    
+    if (format != null)
+      {
+      DashFormat thisFormat = DashFormat.compile(format);
+      if (thisFormat != null)
+        {
+        floatFormat = thisFormat;
+        intFormat   = thisFormat;
+        }
+      }
 
     a = getContext().obtainStyledAttributes( attrs, R.styleable.App);
     updateAction = a.getString(R.styleable.App_update_action);
@@ -244,6 +317,120 @@ public class TextBox extends LinearLayout implements IDashMessages
 
 
 
+  /**
+   Show text from a char[] (e.g. a formatted number), unless it's the text already shown.  
+   @param text    Text (copied, so the array can be reused)
+   @param length  Number of chars
+   */
+  private void showText(char[] text, int length)
+    {
+    if (isTextShown && (length == shownLength))
+      {
+      int n = 0;
+      while ( (n < length) && (text[n] == shownText[n]) ) n++;
+      if (n == length)
+        {
+        if (UIActivity.DEBUG_STATS) skipCount++;
+        return;
+        }
+      }
+    if (shownText.length < length) shownText = new char[length];
+    System.arraycopy(text, 0, shownText, 0, length);
+    shownLength = length;
+    isTextShown = true;
+    itemView.setText(shownText, 0, length);
+    if (UIActivity.DEBUG_STATS) updateCount++;
+    }
+  
+  
+  /** Make sure newText can hold at least 'length' chars. */
+  private void newTextSize(int length)
+    {  if (newText.length < length) newText = new char[length];  }
+  
+  
+  /** @return Compiled format for a format string received in an intent (null if not supported). */
+  private DashFormat getMessageFormat(String pattern)
+    {
+    if (!pattern.equals(messagePattern))
+      {
+      messagePattern = pattern;
+      messageFormat = DashFormat.compile(pattern);
+      }
+    return messageFormat;
+    }
+  
+  
+  
+  // Only subscribe to the DashBus while we are on screen: 
+  @Override
+  protected void onAttachedToWindow()
+    {
+    super.onAttachedToWindow();
+    dashBus.subscribe(updateChannel, this);
+    }
+
+  @Override
+  protected void onDetachedFromWindow()
+    {
+    dashBus.unsubscribe(updateChannel, this);
+    frameScheduler.cancel(this);
+    super.onDetachedFromWindow();
+    }
+  
+  
+  
+  // UPDATE: Show the number published on our channel (in the next frame; see FrameScheduler):
+  public void floatReceived(int channel, float value)
+    {
+    pendingFloat = value;
+    isPendingInt = false;
+    frameScheduler.schedule(this);
+    }
+
+  public void intReceived(int channel, int value)
+    {
+    pendingInt = value;
+    isPendingInt = true;
+    frameScheduler.schedule(this);
+    }
+
+  public void frameUpdate(long frameTimeNanos)
+    {
+    if (isPendingInt) showInt(pendingInt);
+    else              showFloat(pendingFloat);
+    }
+  
+  
+  
+  // Show a number (if it has changed):
+  private void showFloat(float value)
+    {
+    if (isValueShown && isTextShown && (value == lastValue))
+      {
+      if (UIActivity.DEBUG_STATS) skipCount++;
+      return;
+      }
+    newTextSize(floatFormat.getMaxLength());
+    showText( newText, floatFormat.format(value, newText, 0) );
+    lastValue = value;
+    isValueShown = true;
+    }
+
+  private void showInt(int value)
+    {
+    if (isValueShown && isTextShown && ((float)value == lastValue))
+      {
+      if (UIActivity.DEBUG_STATS) skipCount++;
+      return;
+      }
+    newTextSize(intFormat.getMaxLength());
+    showText( newText, intFormat.format(value, newText, 0) );
+    lastValue = (float)value;
+    isValueShown = true;
+    }
+  
+  
+  
   public void messageReceived(String action, Integer intData, Float floatData, String stringData, Bundle bundleData)
     {
     if (action.equals(UIActivity.UI_RESET))
@@ -253,30 +440,39 @@ public class TextBox extends LinearLayout implements IDashMessages
       }
     else
       {
-      // UPDATE intent: Set our text to the text contained in the stringData parameter:
-      String format;
-        
+      // UPDATE intent: Set our text to the text contained in the stringData parameter.
       // Test whether integer data or float data have been supplied. If they have, 
       // generate a formatted string from the numeric data (using stringData as the 
       // format string if it exists): 
-      if (null != intData) 
+      if ( (null != intData) || (null != floatData) )
         {
-        if (null != stringData) format = stringData;
-        else                    format = "%d";
-        itemView.setText( String.format(format, intData) );
-        return;
-        }
-      
-      if (null != floatData) 
-        {
-        if (null != stringData) format = stringData;
-        else                    format = "%.1f";
-        itemView.setText( String.format(format, floatData) );
+        String pattern;
+        if (null != stringData)      pattern = stringData;
+        else if (null != intData)    pattern = "%d";
+        else                         pattern = "%.1f";
+        DashFormat format = getMessageFormat(pattern);
+        if (format == null)
+          {
+          // Not a format we can compile. Use String.format:
+          if (null != intData) setText( String.format(pattern, intData) );
+          else                 setText( String.format(pattern, floatData) );
+          return;
+          }
+        newTextSize(format.getMaxLength());
+        if (null != intData) showText( newText, format.format(intData.intValue(), newText, 0) );
+        else                 showText( newText, format.format(floatData.floatValue(), newText, 0) );
+        isValueShown = false;
         return;
         }
 
       // No int or float data. Try string data:
-      if (null != stringData) itemView.setText(stringData);
+      if (null != stringData) 
+        {
+        newTextSize(stringData.length());
+        stringData.getChars(0, stringData.length(), newText, 0);
+        showText(newText, stringData.length());
+        isValueShown = false;
+        }
 
       }
     }
@@ -29,6 +29,8 @@ along with Tumanako.  If not, see <http://www.gnu.org/licenses/>. <p>
 
 import com.tumanako.sensors.LapData;
 import com.tumanako.sensors.NmeaProcessor;
+import com.tumanako.sensors.TrackDatabase;
+import com.tumanako.sensors.TrackRecord;
 import com.tumanako.ui.TextBox;
 
 import android.os.Bundle;
@@ -45,16 +47,19 @@ public class TrackSettingsActivity extends UIActivity
   {
   private double  gpsLat    = 0.0;
   private double  gpsLon    = 0.0;
+  private float   gpsSpeed  = 0.0f;
+  private float   gpsTrack  = 0.0f;
   private boolean gpsHasFix      = false;
   private boolean startFinishSet = false;
   private float   startBoxRadius = LapData.START_FINISH_BOX_RADIUS;
+  private String  trackName      = "";
  
   
   @Override
   public void onCreate(Bundle savedInstanceState) 
     {
     // Add our extra intent filters... (must be called before super.onCreate)
-    final String intentFilters[] = { NmeaProcessor.GPS_POSITION, "CLICK_SETSTARTFINISH", "CLICK_RESETLAPDATA" };
+    final String intentFilters[] = { NmeaProcessor.GPS_POSITION, "CLICK_SETSTARTFINISH", "CLICK_ADDSECTOR", "CLICK_RESETLAPDATA" };
     setExtraIntentFilters(intentFilters);
     
     super.onCreate(savedInstanceState);
@@ -69,6 +74,7 @@ public class TrackSettingsActivity extends UIActivity
     gpsLon = settings.getFloat("startFinishLon", 0.0f);
     startFinishSet = settings.getBoolean("startFinishSet", false);
     startBoxRadius = settings.getFloat("startBoxRadius", LapData.START_FINISH_BOX_RADIUS);
+    trackName = settings.getString("trackName", "");
 
     if (startFinishSet)
       {
@@ -77,6 +83,7 @@ public class TrackSettingsActivity extends UIActivity
       }
     
     ((EditText)findViewById(R.id.editTextStartBoxRadius)).setText( String.format( "%1.0f", startBoxRadius) );
+    ((EditText)findViewById(R.id.editTextTrackName)).setText(trackName);
     
     
     }
@@ -102,8 +109,14 @@ public class TrackSettingsActivity extends UIActivity
         SharedPreferences.Editor editor = settings.edit();
         editor.putFloat("startFinishLat", (float)gpsLat);
         editor.putFloat("startFinishLon", (float)gpsLon);
+        // Direction of travel through the gate. If we're stopped, LapData will take it from the track next time we pass: 
+        editor.putFloat("startFinishTrack", (gpsSpeed >= LapData.MIN_GATE_SPEED) ? gpsTrack : -1f);
         editor.putBoolean("startFinishSet", true );
+        editor.putInt("sectorCount", 0);       // New start / finish: old sectors don't apply.
         editor.commit();        // Commit the edits!
+        // A new start / finish is a new track, unless a name has just been typed in for it: 
+        EditText nameField = (EditText)findViewById(R.id.editTextTrackName); 
+        if (nameField.getText().toString().trim().equals(trackName)) nameField.setText("");
         startFinishSet = true;
         finish();
         }
@@ -114,6 +127,32 @@ public class TrackSettingsActivity extends UIActivity
         }
       }  // [if (action.equals("CLICK_SETSTARTFINISH"))]
     
+    if (action.equals("CLICK_ADDSECTOR")) 
+      {
+      // Add a sector gate at the current location. The direction of the gate is taken 
+      // from the GPS track, so we need to be moving:
+      if (!startFinishSet)
+        {
+        dashMessages.sendData( UIActivity.UI_TOAST_MESSAGE, null, null, "Set Start/Finish before adding sectors!", null );
+        }
+      else if (gpsHasFix && (gpsSpeed >= LapData.MIN_GATE_SPEED))
+        {
+        SharedPreferences settings = getSharedPreferences(UIActivity.PREFS_NAME, 0);
+        int sectorCount = settings.getInt("sectorCount", 0);
+        SharedPreferences.Editor editor = settings.edit();
+        editor.putFloat( String.format("sectorLat%d", sectorCount),   (float)gpsLat );
+        editor.putFloat( String.format("sectorLon%d", sectorCount),   (float)gpsLon );
+        editor.putFloat( String.format("sectorTrack%d", sectorCount), gpsTrack );
+        editor.putInt("sectorCount", sectorCount + 1);
+        editor.commit();        // Commit the edits!
+        dashMessages.sendData( UIActivity.UI_TOAST_MESSAGE, null, null, String.format("Sector %d Added", sectorCount + 1), null );
+        }
+      else
+        {
+        dashMessages.sendData( UIActivity.UI_TOAST_MESSAGE, null, null, "Can't add Sector: Need GPS and must be moving!", null );
+        }
+      }  // [if (action.equals("CLICK_ADDSECTOR"))]
+    
     if (action.equals("CLICK_RESETLAPDATA")) 
       {
       // Reset the lap data: Actually, we don't do anything in this case. Intent should be handled by LapData class.  
@@ -130,11 +169,14 @@ public class TrackSettingsActivity extends UIActivity
         {
         gpsLat    = bundleData.getDouble  ( "LAT",    0.0   );
         gpsLon    = bundleData.getDouble  ( "LON",    0.0   );
+        gpsSpeed  = bundleData.getFloat   ( "SPEED",  0.0f  );
+        gpsTrack  = bundleData.getFloat   ( "TRACKT", 0.0f  );
         }
       else
         {
         gpsLat    = 0.0;
         gpsLon    = 0.0;
+        gpsSpeed  = 0.0f;
         }
       }
     }
@@ -166,11 +208,22 @@ public class TrackSettingsActivity extends UIActivity
       startBoxRadius = LapData.START_FINISH_BOX_RADIUS;
       }
     
-    // Save the start box radius setting:  
+    // Track name. If none has been given, name it after its location:
+    trackName = ((EditText)findViewById(R.id.editTextTrackName)).getText().toString().trim();
     SharedPreferences settings = getSharedPreferences(UIActivity.PREFS_NAME, 0);
+    if ( (trackName.length() == 0) && settings.getBoolean("startFinishSet", false) ) 
+      trackName = String.format( "%1.4f, %1.4f", settings.getFloat("startFinishLat", 0.0f), settings.getFloat("startFinishLon", 0.0f) );
+    
+    // Save the start box radius setting and track name:  
     SharedPreferences.Editor editor = settings.edit();
     editor.putFloat("startBoxRadius", startBoxRadius);
+    editor.putString("trackName", trackName);
     editor.commit();        // Commit the edits!
+    
+    // Save the track in the track database, so it's loaded automatically next time we're here 
+    // (replaces the track with the same name or start / finish; nothing is written if it hasn't changed): 
+    TrackRecord currentTrack = new TrackRecord();
+    if (LapData.readTrack(settings, currentTrack)) TrackDatabase.getInstance(getFilesDir()).add(currentTrack);
 
     // Send an intent message to tell the rest of the app that the start / finish location has changed.   
     dashMessages.sendData(LapData.START_FINISH_SET, null, null, null, null);        
@@ -27,7 +27,9 @@ package com.tumanako.ui;
 
 
 import android.app.Activity;
+import android.content.SharedPreferences;
 import android.os.Bundle;
+import android.os.Debug;
 import android.os.Handler;
 import android.util.Log;
 import android.widget.Toast;
@@ -63,6 +65,15 @@ public class UIActivity extends Activity implements IDashMessages
     private final int UPDATE_INTERVAL = 1000;           // Internal update timer tick every 1 second (1000 ms). 
     private final int UI_STALE_TIME = 3;                // Declare the UI to be 'stale' after this many ticks without update.
     
+    // --DEBUG!-- Set DEBUG_STATS to log performance counts: allocations on the UI thread, text box 
+    // updates and FrameScheduler counts every STATS_REPORT_TICKS ticks of the update timer (see 
+    // statsReport()), and the DashSurface and LapData worker stats. Leave it off for release builds. 
+    public static final boolean DEBUG_STATS = false;
+    private static final int STATS_REPORT_TICKS = 10;
+    private int  statsReportCounter = 0;
+    private long lastTextUpdates = 0;
+    private long lastTextSkips = 0;
+    
     
     /** Intent actions: These action strings are recognised by UI Activities. */
     public static final String UI_TOAST_MESSAGE = "UI_TOAST";    // Display a brief popup message
@@ -70,6 +81,7 @@ public class UIActivity extends Activity implements IDashMessages
     public static final String UI_PONG          = "UI_PONG";     // UI Pong - response to ping
     public static final String UI_UPDATED       = "UI_UPDATED";  // The UI has been updated. If we don't receive one of these for 3 seconds, the UI should be reset 
     public static final String UI_RESET         = "UI_RESET";    // Reset the UI (sent to widgets to reset them)
+    public static final String UI_RESUMED       = "UI_RESUMED";  // A UI activity has resumed: data which are only sent when they change should be sent again
     public static final String UI_NOTHING       = "UI_NOTHING";  // Do nothing
 
     
@@ -177,7 +189,17 @@ public class UIActivity extends Activity implements IDashMessages
       {
       super.onResume();
       updateStart();
+      // Maximum widget update rate (see FrameScheduler): 
+      SharedPreferences settings = getSharedPreferences(PREFS_NAME, 0);
+      FrameScheduler.getInstance().setMaxRate( settings.getFloat(FrameScheduler.PREF_MAX_FRAME_RATE, FrameScheduler.DEFAULT_MAX_RATE) );
       dashMessages.resume();
+      dashMessages.sendData(UI_RESUMED, null, null, null, null);
+      if (DEBUG_STATS)
+        {
+        Debug.resetThreadAllocCount();
+        Debug.resetThreadAllocSize();
+        Debug.startAllocCounting();
+        }
       // --DEBUG!--
       Log.i(APP_TAG,"UIActivity -> onResume()");
       }
@@ -221,6 +243,7 @@ public class UIActivity extends Activity implements IDashMessages
       super.onPause();
       dashMessages.suspend();
       updateStop();
+      if (DEBUG_STATS) Debug.stopAllocCounting();
       }
 
     
@@ -331,11 +354,36 @@ public class UIActivity extends Activity implements IDashMessages
               dashMessages.sendData(UI_RESET, null, null, null, null);
               }
             }  // [if (autoReset)]
+          
+          if (DEBUG_STATS) statsReport();
             
           // Restart the update timer: 
           updateStart();
           } 
         };      
+      /**********************************************************************************************
+       * Stats Report (--DEBUG!--; only if DEBUG_STATS is set): 
+       * Every STATS_REPORT_TICKS ticks, logs the number of objects (and bytes) allocated on the UI 
+       * thread, how many text box updates were shown or skipped (unchanged) and the FrameScheduler
+       * counts, then starts again.
+       **********************************************************************************************/
+      private void statsReport()
+        {
+        statsReportCounter++;
+        if (statsReportCounter < STATS_REPORT_TICKS) return;
+        statsReportCounter = 0;
+        int allocCount = Debug.getThreadAllocCount();
+        int allocSize  = Debug.getThreadAllocSize();
+        long textUpdates = TextBox.getUpdateCount();
+        long textSkips   = TextBox.getSkipCount();
+        Log.i(APP_TAG, "UIActivity -> UI thread allocations: " + allocCount + " (" + allocSize + " bytes) in " + STATS_REPORT_TICKS 
+                     + " ticks; Text box updates: " + (textUpdates - lastTextUpdates) + ", skipped: " + (textSkips - lastTextSkips) );
+        lastTextUpdates = textUpdates;
+        lastTextSkips = textSkips;
+        Debug.resetThreadAllocCount();
+        Debug.resetThreadAllocSize();
+        FrameScheduler.getInstance().reportStats( (float)(STATS_REPORT_TICKS * UPDATE_INTERVAL) / 1000f );
+        }
       /**********************************************************************************************
        * Start and Stop update timer:  
        **********************************************************************************************/
@@ -0,0 +1,260 @@
+package com.tumanako.dash;
+
+/**
+Tumanako - Electric Vehicle and Motor control software <p>
+
+Copyright (C) 2014 Jeremy Cole-Baker <jeremy@rhtech.co.nz> <p>
+
+This file is part of Tumanako Dashboard. <p>
+
+Tumanako is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published
+by the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version. <p>
+
+Tumanako is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details. <p>
+
+You should have received a copy of the GNU Lesser General Public License
+along with Tumanako.  If not, see <http://www.gnu.org/licenses/>. <p>
+
+@author Jeremy Cole-Baker / Riverhead Technology
+
+*/
+
+
+
+import java.util.Random;
+
+import com.tumanako.test.Check;
+
+
+
+/**
+ RollingStats Test <p>
+
+ Checks the window maths of RollingStats: <p>
+ <ul>
+  <li>A small window worked by hand: eviction of the oldest sample, and the
+      min / max queues as old extremes drop out.
+  <li>Long random runs (several kinds of data, several window sizes, many
+      times round the ring), checking mean, variance, min, max and the
+      last sample after every add against a brute force calculation over
+      the same window.
+  <li>Precision with a large offset (the shift and the periodic resync).
+  <li>NaN samples, the EWMA, percentiles and clear().
+ </ul>
+
+ Run as described in Check. <p>
+
+ @author Jeremy Cole-Baker / Riverhead Technology
+
+*/
+public class RollingStatsTest
+  {
+
+  private static final Random random = new Random(9009);
+
+
+
+  public static void main(String[] args)
+    {
+    empty();
+    byHand();
+    bruteForce();
+    largeOffset();
+    ewmaAndNaN();
+    percentiles();
+    Check.done();
+    }
+
+
+
+  private static void empty()
+    {
+    Check.heading("Empty:");
+    RollingStats stats = new RollingStats(10, 0.1f, 0f, 100f, 10);
+    Check.equal(0, stats.getLength(), "length");
+    Check.isTrue(Float.isNaN(stats.getMean()), "mean is NaN");
+    Check.isTrue(Float.isNaN(stats.getMin()) && Float.isNaN(stats.getMax()), "min and max are NaN");
+    Check.isTrue(Float.isNaN(stats.getLast()), "last is NaN");
+    Check.isTrue(Float.isNaN(stats.getPercentile(0.5f)), "median is NaN");
+    Check.near(0.0, stats.getVariance(), 0.0, "variance");
+    stats.add(7f);
+    Check.near(7.0, stats.getMean(), 0.0, "one sample: mean");
+    Check.near(0.0, stats.getVariance(), 0.0, "one sample: variance");
+    }
+
+
+
+  private static void byHand()
+    {
+    Check.heading("Window of 3, by hand:");
+    RollingStats stats = new RollingStats(3, 0.5f);
+    float[] samples  = { 5f, 1f, 9f, 2f, 3f, 4f, 4f, 10f };
+    float[] means    = { 5f, 3f, 5f, 4f, 14f / 3f, 3f, 11f / 3f, 6f };
+    float[] mins     = { 5f, 1f, 1f, 1f, 2f, 2f, 3f, 4f };
+    float[] maxes    = { 5f, 5f, 9f, 9f, 9f, 4f, 4f, 10f };
+    for (int n = 0; n < samples.length; n++)
+      {
+      stats.add(samples[n]);
+      String what = "after " + samples[n] + " (sample " + (n + 1) + ")";
+      Check.equal(Math.min(n + 1, 3), stats.getLength(), what + ": length");
+      Check.near(means[n], stats.getMean(), 1e-6, what + ": mean");
+      Check.near(mins[n],  stats.getMin(),  0.0,  what + ": min");
+      Check.near(maxes[n], stats.getMax(),  0.0,  what + ": max");
+      Check.near(samples[n], stats.getLast(), 0.0, what + ": last");
+      }
+    // Window is now 4, 4, 10: variance ((-2)^2 + (-2)^2 + 4^2) / 2 = 12
+    Check.near(12.0, stats.getVariance(), 1e-5, "variance of 4, 4, 10");
+    Check.equal(samples.length, stats.getSampleCount(), "sample count");
+    }
+
+
+
+  private static void bruteForce()
+    {
+    int[] windows = { 1, 2, 7, 64, 500 };
+    for (int w = 0; w < windows.length; w++)
+      {
+      int window = windows[w];
+      Check.heading("Random data, window of " + window + " (compared with brute force after every sample):");
+      for (int kind = 0; kind < 4; kind++)
+        {
+        RollingStats stats = new RollingStats(window, 0.1f);
+        float[] history = new float[20000];
+        int samples = (window * 20) + 1000;
+        double walk = 0.0;
+        int meanFailures = 0, varianceFailures = 0, minMaxFailures = 0, lastFailures = 0;
+        double worstMean = 0.0, worstVariance = 0.0;
+        for (int n = 0; n < samples; n++)
+          {
+          float value;
+          switch (kind)
+            {
+            case 0:   value = random.nextFloat() * 100f;                      break;   // Uniform
+            case 1:   walk += random.nextGaussian();  value = (float)walk;     break;   // Random walk (trends up and down)
+            case 2:   value = (random.nextInt(50) == 0) ? 1000f : 1f;          break;   // Rare spikes
+            default:  value = (float)(random.nextInt(5) - 2);                  break;   // Repeated values (ties in the queues)
+            }
+          history[n] = value;
+          stats.add(value);
+
+          // Brute force over the same window:
+          int first = Math.max(0, n + 1 - window);
+          int length = n + 1 - first;
+          double sum = 0.0;
+          float min = Float.POSITIVE_INFINITY, max = Float.NEGATIVE_INFINITY;
+          for (int i = first; i <= n; i++)
+            {
+            sum += history[i];
+            min = Math.min(min, history[i]);
+            max = Math.max(max, history[i]);
+            }
+          double mean = sum / length;
+          double squares = 0.0;
+          for (int i = first; i <= n; i++) squares += (history[i] - mean) * (history[i] - mean);
+          double variance = (length > 1) ? (squares / (length - 1)) : 0.0;
+
+          double scale = Math.max(1.0, Math.max(Math.abs(min), Math.abs(max)));
+          double meanError = Math.abs(stats.getMean() - mean) / scale;
+          double varianceError = Math.abs(stats.getVariance() - variance) / (scale * scale);
+          worstMean = Math.max(worstMean, meanError);
+          worstVariance = Math.max(worstVariance, varianceError);
+          if (meanError > 1e-5) meanFailures++;
+          if (varianceError > 1e-5) varianceFailures++;
+          if ((stats.getMin() != min) || (stats.getMax() != max)) minMaxFailures++;
+          if (stats.getLast() != value) lastFailures++;
+          }
+        String name = new String[] { "uniform", "random walk", "spikes", "repeated values" }[kind];
+        Check.equal(Math.min(window, samples), stats.getLength(), name + ": length");
+        Check.equal(0, meanFailures, name + ": samples with the wrong mean");
+        Check.equal(0, varianceFailures, name + ": samples with the wrong variance");
+        Check.equal(0, minMaxFailures, name + ": samples with the wrong min or max");
+        Check.equal(0, lastFailures, name + ": samples with the wrong last value");
+        System.out.println( String.format("  %-16s %6d samples; worst error (relative to the range): mean %.1e, variance %.1e",
+            name + ":", samples, worstMean, worstVariance) );
+        }
+      }
+    }
+
+
+
+  private static void largeOffset()
+    {
+    Check.heading("Large offset (10000 + noise of 0.01, 1M samples, window of 100):");
+    RollingStats stats = new RollingStats(100, 0.1f);
+    float[] window = new float[100];
+    for (int n = 0; n < 1000000; n++)
+      {
+      float value = 10000f + (float)(random.nextGaussian() * 0.01);
+      window[n % 100] = value;
+      stats.add(value);
+      }
+    double sum = 0.0;
+    for (int n = 0; n < 100; n++) sum += window[n];
+    double mean = sum / 100;
+    double squares = 0.0;
+    for (int n = 0; n < 100; n++) squares += (window[n] - mean) * (window[n] - mean);
+    double stdDev = Math.sqrt(squares / 99);
+    Check.near(mean, stats.getMean(), 1e-3, "mean");
+    Check.near(stdDev, stats.getStdDev(), stdDev * 0.01, "standard deviation (within 1%)");
+    System.out.println( String.format("  std dev %.6f (brute force %.6f)", stats.getStdDev(), stdDev) );
+    }
+
+
+
+  private static void ewmaAndNaN()
+    {
+    Check.heading("EWMA, NaN and clear():");
+    RollingStats stats = new RollingStats(4, 0.25f);
+    Check.isTrue(Float.isNaN(stats.getEwma()), "EWMA is NaN with no samples");
+    stats.add(8f);
+    Check.near(8.0, stats.getEwma(), 0.0, "EWMA starts at the first sample");
+    stats.add(Float.NaN);
+    Check.equal(1, stats.getLength(), "NaN isn't added");
+    Check.equal(1, stats.getSampleCount(), "NaN isn't counted");
+    Check.near(8.0, stats.getMean(), 0.0, "NaN doesn't change the mean");
+    stats.add(4f);
+    Check.near(7.0, stats.getEwma(), 1e-6, "EWMA: 8 + 0.25 (4 - 8)");
+    for (int n = 0; n < 10; n++) stats.add(100f);
+    Check.near(100.0, stats.getMean(), 0.0, "window of 4 is all 100 now");
+    Check.near(100.0 - (93.0 * Math.pow(0.75, 10)), stats.getEwma(), 1e-3, "EWMA after ten samples of 100 (doesn't depend on the window)");
+    stats.clear();
+    Check.equal(0, stats.getLength(), "clear(): length");
+    Check.equal(0, stats.getSampleCount(), "clear(): sample count");
+    Check.isTrue(Float.isNaN(stats.getEwma()) && Float.isNaN(stats.getMin()), "clear(): EWMA and min are NaN");
+    stats.add(-3f);
+    Check.near(-3.0, stats.getMean(), 0.0, "after clear(): mean");
+    Check.near(-3.0, stats.getMax(), 0.0, "after clear(): max");
+    }
+
+
+
+  private static void percentiles()
+    {
+    Check.heading("Percentiles (0 - 100 in 100 bins, window of 1000):");
+    RollingStats stats = new RollingStats(1000, 0.1f, 0f, 100f, 100);
+    for (int n = 0; n < 5000; n++) stats.add(random.nextFloat() * 100f);
+    Check.near(50.0, stats.getPercentile(0.5f),  2.5, "median of uniform 0 - 100");
+    Check.near(95.0, stats.getPercentile(0.95f), 2.5, "95th percentile");
+    Check.isTrue(stats.getPercentile(0f) >= stats.getMin(), "0th percentile isn't below the min");
+    Check.isTrue(stats.getPercentile(1f) <= stats.getMax(), "100th percentile isn't above the max");
+    // Old samples drop out of the histogram: fill the window with 70 - 80:
+    for (int n = 0; n < 1000; n++) stats.add(70f + (random.nextFloat() * 10f));
+    Check.near(75.0, stats.getPercentile(0.5f), 1.5, "median after the window has moved on to 70 - 80");
+    Check.isTrue(stats.getPercentile(0.01f) >= 70f, "1st percentile isn't below the window's min");
+    // Out of range values go in the end bins, but percentiles stay within min and max:
+    RollingStats outside = new RollingStats(10, 0.1f, 0f, 100f, 100);
+    for (int n = 0; n < 10; n++) outside.add(500f + n);
+    float median = outside.getPercentile(0.5f);
+    Check.isTrue((median >= 500f) && (median <= 509f), "median of values above the range is within min and max (" + median + ")");
+    RollingStats none = new RollingStats(10, 0.1f);
+    none.add(1f);
+    Check.isTrue(Float.isNaN(none.getPercentile(0.5f)), "no histogram: percentile is NaN");
+    }
+
+
+  }  // [class RollingStatsTest]
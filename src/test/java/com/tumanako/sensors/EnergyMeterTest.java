@@ -0,0 +1,247 @@
+package com.tumanako.sensors;
+
+/************************************************************************************
+Tumanako - Electric Vehicle and Motor control software
+
+Copyright (C) 2014 Jeremy Cole-Baker <jeremy@rhtech.co.nz>
+
+This file is part of Tumanako Dashboard.
+
+Tumanako is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published
+by the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Tumanako is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with Tumanako.  If not, see <http://www.gnu.org/licenses/>.
+
+*************************************************************************************/
+
+
+import java.util.Locale;
+
+import com.tumanako.test.Check;
+
+
+
+/****************************************************************
+ *  Energy Meter Test:
+ *  -------------------------------
+ *
+ *  Checks EnergyMeter with a simulated "kWh remaining" reading in
+ *  0.1 kWh steps, sampled at 10 Hz:
+ *
+ *   - Steady use, and use at changing power (including stops and
+ *     regen): the estimate must stay within one step of the real
+ *     energy used, and within half a step at steady power.
+ *
+ *   - Lap energies (the difference between two estimates) against
+ *     the real energy used in each lap.
+ *
+ *   - Garbled readings: single bad readings, missing readings (NaN),
+ *     and a drop which lasts (a counter reset), which mustn't be
+ *     counted. Also a big rise (charging), and reset().
+ *
+ *  Run as described in Check.
+ *
+ * @author Jeremy Cole-Baker / Riverhead Technology
+ *
+ ***************************************************************/
+public class EnergyMeterTest
+  {
+
+  private static final float  RESOLUTION = 0.1f;                 // kWh (TDV1)
+  private static final double START_KWH = 21.4999;               // Real kWh remaining at the start (just below a step, so the first change is one step used)
+  private static final long   SAMPLE_NS = 100000000L;            // 10 Hz
+
+
+
+  public static void main(String[] args)
+    {
+    steadyUse();
+    changingPower();
+    lapEnergies();
+    garbledReadings();
+    resets();
+    Check.done();
+    }
+
+
+
+  /******** Steady use: ********/
+  private static void steadyUse()
+    {
+    Check.heading("Steady use (10 minutes):");
+    double[] powers = { 5.0, 20.0, 60.0 };                       // kW
+    for (int p = 0; p < powers.length; p++)
+      {
+      Simulation sim = new Simulation();
+      for (int n = 0; n < 6000; n++) sim.step(powers[p]);
+      String name = String.format(Locale.US, "%.0f kW", powers[p]);
+      Check.near(0.0, sim.maxError, RESOLUTION, name + ": max error (kWh)");
+      Check.near(0.0, sim.maxSteadyError, RESOLUTION / 2f, name + ": max error after the first two steps (kWh)");
+      Check.near(powers[p], sim.meter.getPower(), powers[p] * 0.02, name + ": power (kW)");
+      System.out.println( String.format(Locale.US, "  %5.1f kW: used %.3f kWh (real %.3f); max error %.4f kWh, %.4f after the first two steps",
+          powers[p], sim.meter.getUsed(), sim.realUsed, sim.maxError, sim.maxSteadyError) );
+      }
+    }
+
+
+
+  /******** Changing power: ********/
+  private static void changingPower()
+    {
+    Check.heading("Changing power:");
+    // Accelerate, cruise, stop for a minute, regen, and away again (kW for 30 s each):
+    double[] powers = { 40.0, 15.0, 0.0, 0.0, -10.0, 30.0, 30.0, 5.0 };
+    Simulation sim = new Simulation();
+    for (int p = 0; p < powers.length; p++)
+      for (int n = 0; n < 300; n++) sim.step(powers[p]);
+    Check.near(0.0, sim.maxError, RESOLUTION, "max error (kWh)");
+    System.out.println( String.format(Locale.US, "  used %.3f kWh (real %.3f); max error %.4f kWh",
+        sim.meter.getUsed(), sim.realUsed, sim.maxError) );
+
+    // While stopped, the estimate mustn't run on past the next step:
+    sim = new Simulation();
+    for (int n = 0; n < 600; n++) sim.step(30.0);
+    float atStop = sim.meter.getUsed();
+    for (int n = 0; n < 3000; n++) sim.step(0.0);
+    Check.isTrue(sim.meter.getUsed() >= atStop, "stopped: the estimate doesn't go backwards");
+    Check.near(sim.realUsed, sim.meter.getUsed(), RESOLUTION, "stopped for 5 minutes: error (kWh)");
+    }
+
+
+
+  /******** Lap energies: ********/
+  private static void lapEnergies()
+    {
+    Check.heading("Lap energies (90 s laps, power varying through the lap):");
+    Simulation sim = new Simulation();
+    double maxError = 0.0;
+    for (int lap = 0; lap < 20; lap++)
+      {
+      float startUsed = sim.meter.getUsed();
+      double startReal = sim.realUsed;
+      for (int n = 0; n < 900; n++)
+        sim.step( 25.0 + (20.0 * Math.sin(2.0 * Math.PI * n / 900.0)) );
+      double lapError = (sim.meter.getUsed() - startUsed) - (sim.realUsed - startReal);
+      if (lap > 0) maxError = Math.max(maxError, Math.abs(lapError));
+      }
+    Check.near(0.0, maxError, RESOLUTION, "max lap energy error (kWh)");
+    System.out.println( String.format(Locale.US, "  max lap energy error %.4f kWh (lap energy about %.3f kWh)",
+        maxError, sim.realUsed / 20.0) );
+    }
+
+
+
+  /******** Garbled readings: ********/
+  private static void garbledReadings()
+    {
+    Check.heading("Garbled readings:");
+    EnergyMeter meter = new EnergyMeter(RESOLUTION);
+    long time = 0L;
+    // Steps down, with a single bad reading (0) and a missing one:
+    float[] readings = { 21.4f, 21.4f, 21.3f, 0f, 21.3f, 21.2f, Float.NaN, 21.2f, 21.1f };
+    for (int n = 0; n < readings.length; n++)
+      {
+      meter.update(readings[n], time);
+      time += SAMPLE_NS;
+      }
+    Check.near(0.3, meter.getUsed(), 0.001, "single bad reading and NaN ignored: used");
+
+    // Bad readings for fewer than GLITCH_SAMPLES samples are all ignored:
+    for (int n = 0; n < 4; n++)
+      {
+      meter.update(0f, time);
+      time += SAMPLE_NS;
+      }
+    meter.update(21.0f, time);
+    time += SAMPLE_NS;
+    Check.near(0.4, meter.getUsed(), 0.001, "four bad readings ignored: used");
+
+    // A drop which lasts is a reset: the drop isn't counted, but steps from the new reading are:
+    for (int n = 0; n < 6; n++)
+      {
+      meter.update(5.0f, time);
+      time += SAMPLE_NS;
+      }
+    Check.near(0.4, meter.getUsed(), 0.001, "lasting drop not counted: used");
+    meter.update(4.9f, time);
+    time += SAMPLE_NS;
+    Check.near(0.5, meter.getUsed(), 0.001, "step after the drop counted: used");
+
+    // Missing readings don't change anything:
+    float before = meter.getUsed();
+    for (int n = 0; n < 10; n++)
+      {
+      Check.near(before, meter.update(Float.NaN, time), 0.0, "NaN reading: used");
+      time += SAMPLE_NS;
+      }
+    }
+
+
+
+  /******** Charging and reset(): ********/
+  private static void resets()
+    {
+    Check.heading("Charging and reset():");
+    EnergyMeter meter = new EnergyMeter(RESOLUTION);
+    long time = 0L;
+    float[] readings = { 10.0f, 9.9f, 9.8f, 25.0f, 25.0f, 24.9f };
+    for (int n = 0; n < readings.length; n++)
+      {
+      meter.update(readings[n], time);
+      time += SAMPLE_NS;
+      }
+    Check.near(0.3, meter.getUsed(), 0.001, "big rise (charging) not counted: used");
+
+    // Regen (a small rise) is counted, as negative energy used:
+    meter.update(25.0f, time);
+    time += SAMPLE_NS;
+    Check.near(0.2, meter.getUsed(), 0.001, "regen: used");
+
+    meter.reset();
+    Check.near(0.0, meter.getUsed(), 0.0, "after reset: used");
+    Check.near(0.0, meter.getPower(), 0.0, "after reset: power");
+    Check.near(0.0, meter.update(18.0f, time), 0.0, "first sample after reset: used");
+    time += SAMPLE_NS;
+    Check.near(0.1, meter.update(17.9f, time), 0.001, "step after reset: used");
+    }
+
+
+
+  /******** Simulated pack (real kWh remaining, and the reading sent by the vehicle): ********/
+  private static class Simulation
+    {
+    final EnergyMeter meter = new EnergyMeter(RESOLUTION);
+    double remaining = START_KWH;
+    double realUsed = 0.0;
+    long   time = 0L;
+    int    steps = 0;             // Step changes in the reading so far
+    float  lastReading = Float.NaN;
+    double maxError = 0.0;        // Largest error in the estimate
+    double maxSteadyError = 0.0;  // ...after the first two step changes (once the rate is known)
+
+    // Move on one sample at the given power (kW):
+    void step(double power)
+      {
+      remaining -= power * (SAMPLE_NS / 1e9) / 3600.0;
+      realUsed = START_KWH - remaining;
+      time += SAMPLE_NS;
+      float reading = (float)(Math.floor(remaining / RESOLUTION) * RESOLUTION);
+      if (!Float.isNaN(lastReading) && (reading != lastReading)) steps++;
+      lastReading = reading;
+      float used = meter.update(reading, time);
+      double error = Math.abs(used - realUsed);
+      maxError = Math.max(maxError, error);
+      if (steps >= 2) maxSteadyError = Math.max(maxSteadyError, error);
+      }
+    }
+
+
+  }  // [class EnergyMeterTest]
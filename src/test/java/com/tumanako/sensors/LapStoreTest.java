@@ -0,0 +1,396 @@
+package com.tumanako.sensors;
+
+/************************************************************************************
+Tumanako - Electric Vehicle and Motor control software
+
+Copyright (C) 2014 Jeremy Cole-Baker <jeremy@rhtech.co.nz>
+
+This file is part of Tumanako Dashboard.
+
+Tumanako is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published
+by the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Tumanako is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with Tumanako.  If not, see <http://www.gnu.org/licenses/>.
+
+*************************************************************************************/
+
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import com.tumanako.test.Check;
+
+
+
+/****************************************************************
+ *  Lap Store Test:
+ *  -------------------------------
+ *
+ *  Checks LapStore with files in a temporary directory:
+ *
+ *   - The file format: header, fixed size records, and the laps
+ *     read back (summaries, and full records with get()) when the
+ *     store is opened again.
+ *
+ *   - Sessions: lap numbers, newSession(), a long gap between laps,
+ *     and carrying on with the last session when opened again.
+ *
+ *   - Recovery: a file of an unknown format is put aside (.old) and
+ *     a new one started, and a partly written record at the end is
+ *     dropped so new records line up.
+ *
+ *   - The running totals and session table: every mean / total over
+ *     a range, best laps and session boundaries against sums worked
+ *     out the slow way, for 1000 laps (also after opening again).
+ *
+ *  The writer thread is waited for by watching the file length.
+ *
+ *  Run as described in Check.
+ *
+ * @author Jeremy Cole-Baker / Riverhead Technology
+ *
+ ***************************************************************/
+public class LapStoreTest
+  {
+
+  private static final int  HEADER_SIZE = 12;                    // LapStore.HEADER_SIZE
+  private static final int  FILE_MAGIC = 0x4C415053;             // LapStore.FILE_MAGIC ("LAPS")
+  private static final long HOUR = 60L * 60L * 1000L;            // mS
+
+  private static final Random random = new Random(4321);
+
+  private static File directory;
+
+
+
+  public static void main(String[] args) throws IOException
+    {
+    directory = File.createTempFile("LapStoreTest", "");
+    directory.delete();
+    directory.mkdir();
+    try
+      {
+      fileFormat();
+      sessions();
+      unknownFile();
+      partRecord();
+      runningTotals();
+      }
+    finally
+      {
+      File[] files = directory.listFiles();
+      if (files != null) for (int i = 0; i < files.length; i++) files[i].delete();
+      directory.delete();
+      }
+    Check.done();
+    }
+
+
+
+  /******** File format: ********/
+  private static void fileFormat() throws IOException
+    {
+    Check.heading("File format:");
+    File file = new File(directory, "format.dat");
+    LapStore store = new LapStore(file);
+    Check.equal(0, store.getCount(), "new store: laps");
+    Check.isTrue(store.getOpenError() == null, "new store: no error");
+    long now = System.currentTimeMillis();
+    for (int n = 0; n < 3; n++) store.add(lap(now + (n * 60000L), 60f + n, 0.5f + (n * 0.01f), n + 1));
+    waitForLaps(file, 3);
+
+    Check.equal(HEADER_SIZE + (3L * LapRecord.RECORD_SIZE), file.length(), "file length (bytes)");
+    DataInputStream in = new DataInputStream(new FileInputStream(file));
+    try
+      {
+      Check.equal(FILE_MAGIC, in.readInt(), "magic number");
+      Check.equal(1, in.readInt(), "version");
+      Check.equal(LapRecord.RECORD_SIZE, in.readInt(), "record size");
+      LapRecord record = new LapRecord();
+      for (int n = 0; n < 3; n++)
+        {
+        record.read(in);
+        Check.equal(n + 1, record.lapNumber, "record " + n + ": lap number");
+        Check.near(60f + n, record.lapTime, 0.0, "record " + n + ": lap time");
+        Check.equal(n + 1, record.sectorCount, "record " + n + ": sectors");
+        }
+      }
+    finally
+      {  in.close();  }
+
+    // Open it again: the laps are read back, and the full records come from the file:
+    LapStore again = new LapStore(file);
+    Check.isTrue(again.getOpenError() == null, "opened again: no error");
+    Check.equal(3, again.getCount(), "opened again: laps");
+    LapRecord original = new LapRecord();
+    LapRecord fromFile = new LapRecord();
+    for (int n = 0; n < 3; n++)
+      {
+      Check.isTrue(store.get(n, original), "lap " + n + ": get() from memory");
+      Check.isTrue(again.get(n, fromFile), "lap " + n + ": get() from the file");
+      Check.isTrue(sameRecord(original, fromFile), "lap " + n + ": same record from the file");
+      Check.near(original.lapTime, again.getLapTime(n), 0.0, "lap " + n + ": lap time");
+      Check.near(original.kwh, again.getLapKWH(n), 0.0, "lap " + n + ": energy");
+      Check.equal(original.lapNumber, again.getLapNumber(n), "lap " + n + ": lap number");
+      Check.equal(original.session, again.getLapSession(n), "lap " + n + ": session");
+      }
+    Check.isTrue(!again.get(3, fromFile), "get() past the last lap fails");
+    Check.isTrue(!again.get(-1, fromFile), "get() before the first lap fails");
+
+    // A lap added now is read from memory (and written after the others):
+    again.add(lap(now + 180000L, 59f, 0.6f, 2));
+    Check.isTrue(again.get(3, fromFile) && (fromFile.lapTime == 59f), "lap added after opening: get()");
+    waitForLaps(file, 4);
+    Check.equal(4, new LapStore(file).getCount(), "opened a third time: laps");
+    }
+
+
+
+  /******** Sessions: ********/
+  private static void sessions()
+    {
+    Check.heading("Sessions:");
+    File file = new File(directory, "sessions.dat");
+    long now = System.currentTimeMillis();
+    LapStore store = new LapStore(file);
+    int first = store.getSession();
+    Check.equal(1, store.add(lap(now - (5 * HOUR), 70f, 0.5f, 0)), "first lap: lap number");
+    Check.equal(2, store.add(lap(now - (5 * HOUR) + 70000L, 69f, 0.5f, 0)), "second lap: lap number");
+    Check.equal(first, store.getSession(), "same session");
+
+    // A long gap starts a new session:
+    Check.equal(1, store.add(lap(now - (2 * HOUR), 68f, 0.5f, 0)), "after 3 hours: lap number");
+    Check.equal(first + 1, store.getSession(), "after 3 hours: new session");
+    Check.equal(2, store.getSessionFirst(), "after 3 hours: first lap of the session");
+
+    // ...as does newSession():
+    store.newSession();
+    Check.equal(0, store.getSessionLaps(), "newSession(): laps in the session");
+    Check.equal(-1, store.getSessionBest(), "newSession(): no best lap yet");
+    Check.equal(1, store.add(lap(now - 60000L, 71f, 0.5f, 0)), "newSession(): lap number");
+    Check.equal(2, store.add(lap(now, 72f, 0.5f, 0)), "newSession(): next lap number");
+    Check.equal(3, store.getSessionCount(), "sessions with laps");
+    Check.equal(3, store.getSessionBest(), "best lap of the session");
+    Check.equal(2, store.getSessionBest(1), "best lap of the second session");
+    Check.equal(2, store.getBestLap(), "best lap of all");
+    waitForLaps(file, 5);
+
+    // Opened again straight away: carry on with the last session.
+    LapStore again = new LapStore(file);
+    Check.equal(store.getSession(), again.getSession(), "opened again: session");
+    Check.equal(3, again.getSessionFirst(), "opened again: first lap of the session");
+    Check.equal(3, again.add(lap(now + 60000L, 70f, 0.5f, 0)), "opened again: lap number");
+    waitForLaps(file, 6);
+
+    // Opened again when the last lap was long ago: a new session.
+    File oldFile = new File(directory, "old-sessions.dat");
+    LapStore old = new LapStore(oldFile);
+    old.add(lap(now - (3 * HOUR), 70f, 0.5f, 0));
+    waitForLaps(oldFile, 1);
+    LapStore oldAgain = new LapStore(oldFile);
+    Check.equal(old.getSession() + 1, oldAgain.getSession(), "opened 3 hours after the last lap: new session");
+    Check.equal(1, oldAgain.add(lap(now, 70f, 0.5f, 0)), "opened 3 hours after the last lap: lap number");
+    waitForLaps(oldFile, 2);
+    }
+
+
+
+  /******** Unknown file: ********/
+  private static void unknownFile() throws IOException
+    {
+    Check.heading("Unknown file:");
+    File file = new File(directory, "unknown.dat");
+    DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+    out.writeInt(0x12345678);
+    out.writeInt(1);
+    out.writeInt(LapRecord.RECORD_SIZE);
+    for (int n = 0; n < 500; n++) out.writeByte(n);
+    out.close();
+
+    LapStore store = new LapStore(file);
+    Check.equal(0, store.getCount(), "laps");
+    Check.isTrue(store.getOpenError() != null, "error reported");
+    Check.isTrue(!file.exists(), "file put aside");
+    Check.equal(HEADER_SIZE + 500, new File(directory, "unknown.dat.old").length(), "old file kept (bytes)");
+
+    store.add(lap(System.currentTimeMillis(), 65f, 0.5f, 0));
+    waitForLaps(file, 1);
+    LapStore again = new LapStore(file);
+    Check.isTrue(again.getOpenError() == null, "new file: no error");
+    Check.equal(1, again.getCount(), "new file: laps");
+
+    // A wrong record size (e.g. from a later version) is unknown too:
+    File other = new File(directory, "other-size.dat");
+    out = new DataOutputStream(new FileOutputStream(other));
+    out.writeInt(FILE_MAGIC);
+    out.writeInt(1);
+    out.writeInt(LapRecord.RECORD_SIZE + 4);
+    out.close();
+    Check.isTrue(new LapStore(other).getOpenError() != null, "wrong record size: error reported");
+    Check.isTrue(!other.exists(), "wrong record size: file put aside");
+    }
+
+
+
+  /******** Partly written record: ********/
+  private static void partRecord() throws IOException
+    {
+    Check.heading("Partly written record:");
+    File file = new File(directory, "part.dat");
+    LapStore store = new LapStore(file);
+    long now = System.currentTimeMillis();
+    for (int n = 0; n < 3; n++) store.add(lap(now + n, 60f + n, 0.5f, 0));
+    waitForLaps(file, 3);
+    FileOutputStream out = new FileOutputStream(file, true);
+    out.write(new byte[LapRecord.RECORD_SIZE / 2]);              // Power lost half way through a record
+    out.close();
+
+    LapStore again = new LapStore(file);
+    Check.equal(3, again.getCount(), "laps");
+    Check.equal(HEADER_SIZE + (3L * LapRecord.RECORD_SIZE), file.length(), "file cut back to whole records (bytes)");
+    again.add(lap(now + 3, 63f, 0.5f, 0));
+    waitForLaps(file, 4);
+    LapStore third = new LapStore(file);
+    LapRecord record = new LapRecord();
+    Check.equal(4, third.getCount(), "after adding a lap: laps");
+    Check.isTrue(third.get(3, record) && (record.lapTime == 63f) && (record.lapNumber == 4), "after adding a lap: the new record lines up");
+    }
+
+
+
+  /******** Running totals: ********/
+  private static void runningTotals()
+    {
+    Check.heading("Running totals (1000 laps, sessions of 1 - 60 laps):");
+    File file = new File(directory, "totals.dat");
+    LapStore store = new LapStore(file);
+    long now = System.currentTimeMillis() - (1000L * 60000L);
+    for (int n = 0; n < 1000; n++)
+      {
+      if (random.nextInt(30) == 0) store.newSession();
+      store.add(lap(now + (n * 60000L), 55f + (random.nextFloat() * 20f), 0.3f + (random.nextFloat() * 0.4f), 0));
+      }
+    int failures = compareTotals(store);
+    Check.equal(0, failures, "queries different from the slow way");
+    waitForLaps(file, 1000);
+    Check.equal(0, compareTotals(new LapStore(file)), "opened again: queries different from the slow way");
+    }
+
+
+  // Check every query against sums worked out the slow way; returns the number of differences.
+  private static int compareTotals(LapStore store)
+    {
+    int failures = 0;
+    int count = store.getCount();
+    for (int n = 0; n < 2000; n++)
+      {
+      int first = random.nextInt(count + 20) - 10;
+      int end = first + random.nextInt(200);
+      double time = 0.0;
+      double kwh = 0.0;
+      int laps = 0;
+      for (int i = Math.max(0, first); i < Math.min(count, end); i++)
+        {
+        time += store.getLapTime(i);
+        kwh += store.getLapKWH(i);
+        laps++;
+        }
+      double meanTime = (laps > 0) ? time / laps : 0.0;
+      double meanKWH = (laps > 0) ? kwh / laps : 0.0;
+      if (!Check.near(meanTime, store.getMeanTime(first, end), 0.001, "mean time " + first + " - " + end)) failures++;
+      if (!Check.near(meanKWH, store.getMeanKWH(first, end), 0.00001, "mean kWh " + first + " - " + end)) failures++;
+      if (!Check.near(kwh, store.getTotalKWH(first, end), 0.001, "total kWh " + first + " - " + end)) failures++;
+      }
+
+    // Sessions and best laps:
+    int best = 0;
+    int session = 0;
+    for (int i = 0; i < count; i++)
+      {
+      if (store.getLapTime(i) < store.getLapTime(best)) best = i;
+      if ( (i > 0) && (store.getLapSession(i) != store.getLapSession(i - 1)) ) session++;
+      if (!Check.equal(store.getSessionId(session), store.getLapSession(i), "lap " + i + ": session")) failures++;
+      int sessionFirst = store.getSessionFirst(session);
+      if (!Check.equal(i - sessionFirst + 1, store.getLapNumber(i), "lap " + i + ": lap number")) failures++;
+      }
+    if (!Check.equal(best, store.getBestLap(), "best lap")) failures++;
+    if (!Check.equal(session + 1, store.getSessionCount(), "sessions")) failures++;
+    for (int s = 0; s < store.getSessionCount(); s++)
+      {
+      int sessionBest = store.getSessionFirst(s);
+      for (int i = store.getSessionFirst(s); i < store.getSessionEnd(s); i++)
+        if (store.getLapTime(i) < store.getLapTime(sessionBest)) sessionBest = i;
+      if (!Check.equal(sessionBest, store.getSessionBest(s), "session " + s + ": best lap")) failures++;
+      }
+
+    // The last few laps of the current session:
+    for (int n = 1; n <= 12; n++)
+      {
+      int from = Math.max(store.getSessionFirst(), count - n);
+      double time = 0.0;
+      for (int i = from; i < count; i++) time += store.getLapTime(i);
+      double expected = (count > from) ? time / (count - from) : 0.0;
+      if (!Check.near(expected, store.getRecentMeanTime(n), 0.001, "mean of the last " + n + " laps")) failures++;
+      }
+    return failures;
+    }
+
+
+
+  /******** Helpers: ********/
+
+  // A lap record with some sectors and min / max values:
+  private static LapRecord lap(long endTime, float lapTime, float kwh, int sectors)
+    {
+    LapRecord record = new LapRecord();
+    record.endTime = endTime;
+    record.lapTime = lapTime;
+    record.kwh = kwh;
+    record.sectorCount = sectors;
+    for (int i = 0; i < sectors; i++) record.sectors[i] = lapTime * (i + 1) / (sectors + 1);
+    record.updateChannel(LapRecord.CHANNEL_SPEED, 50f + lapTime);
+    record.updateChannel(LapRecord.CHANNEL_SPEED, 150f - lapTime);
+    record.updateChannel(LapRecord.CHANNEL_MOTOR_TEMP, 40f);
+    return record;
+    }
+
+
+  private static boolean sameRecord(LapRecord a, LapRecord b)
+    {
+    if ( (a.session != b.session) || (a.lapNumber != b.lapNumber) || (a.endTime != b.endTime)
+      || (a.lapTime != b.lapTime) || (a.kwh != b.kwh) || (a.sectorCount != b.sectorCount) ) return false;
+    for (int i = 0; i < LapRecord.MAX_SECTORS; i++)
+      if (a.sectors[i] != b.sectors[i]) return false;
+    for (int i = 0; i < LapRecord.CHANNELS; i++)
+      if ( (Float.compare(a.min[i], b.min[i]) != 0) || (Float.compare(a.max[i], b.max[i]) != 0) ) return false;
+    return true;
+    }
+
+
+  // Wait for the writer thread to write the given number of laps (up to 10 s):
+  private static void waitForLaps(File file, int laps)
+    {
+    long length = HEADER_SIZE + ((long)laps * LapRecord.RECORD_SIZE);
+    long giveUp = System.currentTimeMillis() + 10000L;
+    while ( (file.length() < length) && (System.currentTimeMillis() < giveUp) )
+      {
+      try { Thread.sleep(5); } catch (InterruptedException e) {  }
+      }
+    Check.equal(length, file.length(), file.getName() + ": " + laps + " laps written (bytes)");
+    }
+
+
+  }  // [class LapStoreTest]
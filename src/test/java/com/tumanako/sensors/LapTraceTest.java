@@ -0,0 +1,351 @@
+package com.tumanako.sensors;
+
+/************************************************************************************
+Tumanako - Electric Vehicle and Motor control software
+
+Copyright (C) 2014 Jeremy Cole-Baker <jeremy@rhtech.co.nz>
+
+This file is part of Tumanako Dashboard.
+
+Tumanako is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published
+by the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Tumanako is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with Tumanako.  If not, see <http://www.gnu.org/licenses/>.
+
+*************************************************************************************/
+
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Locale;
+
+import com.tumanako.test.Check;
+
+
+
+/****************************************************************
+ *  Lap Trace Test:
+ *  -------------------------------
+ *
+ *  Checks LapTrace with a figure eight track (which crosses itself
+ *  at the start / finish and half way round):
+ *
+ *   - A reference lap at 20 m/s, then a faster lap 2 m to one side
+ *     matched against it fix by fix: the matched distance, time and
+ *     energy must follow the lap (the cursor mustn't jump to the
+ *     other side of the crossover), without whole trace searches.
+ *
+ *   - Losing the track: a jump ahead (GPS dropout) is picked up
+ *     again straight away; while off the track, the whole trace is
+ *     only searched every RESCAN_INTERVAL calls, and the track is
+ *     found again when we come back to it.
+ *
+ *   - The MAX_POINTS limit, points closer than MIN_SPACING, copy(),
+ *     and save() / load() (including bad and truncated files).
+ *
+ *  Run as described in Check.
+ *
+ * @author Jeremy Cole-Baker / Riverhead Technology
+ *
+ ***************************************************************/
+public class LapTraceTest
+  {
+
+  private static final double ORIGIN_LAT = -36.85;
+  private static final double ORIGIN_LON = 174.76;
+  private static final double METRES_PER_DEGREE = 111120.0;
+  private static final double METRES_PER_DEGREE_LON = Math.cos(Math.toRadians(ORIGIN_LAT)) * METRES_PER_DEGREE;
+
+  private static final double REFERENCE_SPEED = 20.0;            // m/s
+  private static final double KWH_PER_METRE = 0.0002;
+  private static final double FIX_INTERVAL = 0.1;                // s (10 Hz)
+
+  private static final int MAX_POINTS = 32768;                   // LapTrace.MAX_POINTS
+  private static final int RESCAN_INTERVAL = 25;                 // LapTrace.RESCAN_INTERVAL
+
+  private static final Track track = new Track(300.0);
+
+
+
+  public static void main(String[] args)
+    {
+    System.out.println( String.format(Locale.US, "Track: figure eight, %.0f m", track.length) );
+    LapTrace reference = referenceLap();
+    followLap(reference);
+    lostTrack(reference);
+    maxPoints();
+    copyAndSave(reference);
+    Check.done();
+    }
+
+
+
+  /******** Record the reference lap: ********/
+  private static LapTrace referenceLap()
+    {
+    LapTrace trace = new LapTrace();
+    trace.clear(ORIGIN_LAT, ORIGIN_LON);
+    double seconds = 0.0;
+    double distance = 0.0;
+    while (distance < track.length)
+      {
+      double[] position = track.position(distance, 0.0);
+      trace.add(lat(position[1]), lon(position[0]), (float)seconds, (float)(distance * KWH_PER_METRE));
+      seconds += FIX_INTERVAL;
+      distance = seconds * REFERENCE_SPEED;
+      }
+    trace.setLapTime((float)(track.length / REFERENCE_SPEED));
+    return trace;
+    }
+
+
+
+  /******** Match a lap against the reference: ********/
+  private static void followLap(LapTrace reference)
+    {
+    Check.heading("Following a lap (22 m/s, 2 m to the side):");
+    reference.resetCursor();
+    int rescans = reference.getRescanCount();
+    double maxDistanceError = 0.0;
+    double maxTimeError = 0.0;
+    double maxEnergyError = 0.0;
+    int misses = 0;
+    int fixes = 0;
+    for (double seconds = 0.05; (seconds * 22.0) < track.length; seconds += FIX_INTERVAL)
+      {
+      double distance = seconds * 22.0;
+      double[] position = track.position(distance, 2.0);
+      fixes++;
+      if (!reference.match(lat(position[1]), lon(position[0])))
+        {
+        misses++;
+        continue;
+        }
+      maxDistanceError = Math.max(maxDistanceError, Math.abs(reference.getMatchDistance() - distance));
+      maxTimeError     = Math.max(maxTimeError,     Math.abs(reference.getMatchTime() - (distance / REFERENCE_SPEED)));
+      maxEnergyError   = Math.max(maxEnergyError,   Math.abs(reference.getMatchEnergy() - (distance * KWH_PER_METRE)));
+      }
+    Check.equal(0, misses, "fixes not matched");
+    Check.equal(0, reference.getRescanCount() - rescans, "whole trace searches");
+    Check.near(0.0, maxDistanceError, 2.0, "max distance error (m)");
+    Check.near(0.0, maxTimeError, 0.1, "max time error (s)");
+    Check.near(0.0, maxEnergyError, 2.0 * KWH_PER_METRE, "max energy error (kWh)");
+    System.out.println( String.format(Locale.US, "  %d fixes; max error %.2f m, %.3f s, %.5f kWh",
+        fixes, maxDistanceError, maxTimeError, maxEnergyError) );
+    }
+
+
+
+  /******** Losing the track: ********/
+  private static void lostTrack(LapTrace reference)
+    {
+    Check.heading("Losing the track:");
+    reference.resetCursor();
+    Check.isTrue(matchAt(reference, 100.0), "matched at 100 m");
+
+    // Jump ahead, well past SEARCH_AHEAD segments (e.g. a GPS dropout): one whole trace search finds it.
+    int rescans = reference.getRescanCount();
+    Check.isTrue(matchAt(reference, 700.0), "matched after a jump to 700 m");
+    Check.near(700.0, reference.getMatchDistance(), 0.5, "distance after the jump (m)");
+    Check.equal(1, reference.getRescanCount() - rescans, "whole trace searches for the jump");
+    Check.isTrue(matchAt(reference, 702.0), "matched at 702 m");
+    Check.equal(1, reference.getRescanCount() - rescans, "whole trace searches after the jump");
+
+    // Off the track (e.g. in the pits, 1 km away): one search, then one every RESCAN_INTERVAL calls.
+    rescans = reference.getRescanCount();
+    int matches = 0;
+    for (int n = 0; n < 100; n++)
+      if (reference.match(lat(1000.0), lon(1000.0))) matches++;
+    Check.equal(0, matches, "off the track: matches");
+    Check.equal(4, reference.getRescanCount() - rescans, "off the track: whole trace searches in 100 calls");
+
+    // Back on the track, somewhere else: found again within RESCAN_INTERVAL calls, at the right place.
+    int calls = 0;
+    while ( (calls <= RESCAN_INTERVAL) && !matchAt(reference, 1200.0) ) calls++;
+    Check.isTrue(calls <= RESCAN_INTERVAL, "back on the track: found within RESCAN_INTERVAL calls (took " + (calls + 1) + ")");
+    Check.near(1200.0, reference.getMatchDistance(), 0.5, "back on the track: distance (m)");
+
+    // ...and the cursor follows from there:
+    rescans = reference.getRescanCount();
+    for (double distance = 1200.0; distance < 1400.0; distance += 2.0)
+      {
+      matchAt(reference, distance);
+      Check.near(distance, reference.getMatchDistance(), 0.5, "following on at " + (int)distance + " m: distance (m)");
+      }
+    Check.equal(0, reference.getRescanCount() - rescans, "following on: whole trace searches");
+
+    // Not enough points to match: 
+    LapTrace empty = new LapTrace();
+    empty.clear(ORIGIN_LAT, ORIGIN_LON);
+    Check.isTrue(!empty.match(ORIGIN_LAT, ORIGIN_LON), "empty trace: no match");
+    empty.add(ORIGIN_LAT, ORIGIN_LON, 0f, 0f);
+    Check.isTrue(!empty.match(ORIGIN_LAT, ORIGIN_LON), "one point: no match");
+    }
+
+
+  private static boolean matchAt(LapTrace trace, double distance)
+    {
+    double[] position = track.position(distance, 0.0);
+    return trace.match(lat(position[1]), lon(position[0]));
+    }
+
+
+
+  /******** Size limit, and points close together: ********/
+  private static void maxPoints()
+    {
+    Check.heading("Size limit:");
+    LapTrace trace = new LapTrace();
+    trace.clear(ORIGIN_LAT, ORIGIN_LON);
+    for (int n = 0; n < 100000; n++)
+      trace.add(lat(n), ORIGIN_LON, n * 0.05f, 0f);                                // 1 m apart, due north
+    Check.equal(MAX_POINTS, trace.getCount(), "points after 100000 adds");
+    Check.near(MAX_POINTS - 1, trace.getLength(), 1.0, "length (m)");
+    Check.isTrue(trace.match(lat(MAX_POINTS - 1.5), ORIGIN_LON), "matched near the last point");
+    Check.near(MAX_POINTS - 1.5, trace.getMatchDistance(), 1.0, "distance near the last point (m)");
+
+    Check.heading("Points closer than MIN_SPACING:");
+    trace.clear(ORIGIN_LAT, ORIGIN_LON);
+    trace.add(lat(0.0),  ORIGIN_LON, 0f, 0f);
+    trace.add(lat(10.0), ORIGIN_LON, 1f, 0.01f);
+    for (int n = 0; n < 50; n++)
+      trace.add(lat(10.0 + (n * 0.001)), ORIGIN_LON, 1f + n, 0.01f + (n * 0.001f));  // Stopped (GPS drift)
+    Check.equal(2, trace.getCount(), "points");
+    Check.isTrue(trace.match(lat(10.0), ORIGIN_LON), "matched at the stop");
+    Check.near(50.0, trace.getMatchTime(), 0.001, "time at the stop (s): the latest");
+    Check.near(0.059, trace.getMatchEnergy(), 0.0001, "energy at the stop (kWh): the latest");
+    }
+
+
+
+  /******** Copy / save / load: ********/
+  private static void copyAndSave(LapTrace reference)
+    {
+    Check.heading("Copy, save and load:");
+    LapTrace copy = new LapTrace();
+    copy.copy(reference);
+    Check.isTrue(sameTrace(reference, copy), "copy is the same as the original");
+
+    byte[] data = null;
+    try
+      {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      reference.save(new DataOutputStream(bytes));
+      data = bytes.toByteArray();
+      }
+    catch (IOException e)
+      {  Check.isTrue(false, "save: " + e);  }
+    Check.equal(28 + (20L * reference.getCount()), data.length, "file size (bytes)");
+
+    LapTrace loaded = new LapTrace();
+    Check.isTrue(load(loaded, data, data.length) == null, "load");
+    Check.isTrue(sameTrace(reference, loaded), "loaded trace is the same as the original");
+
+    Check.isTrue("Bad lap trace".equals(load(new LapTrace(), data, data.length - 1)), "file shorter than its point count: rejected");
+    byte[] truncated = new byte[data.length / 2];
+    System.arraycopy(data, 0, truncated, 0, truncated.length);
+    Check.isTrue(load(new LapTrace(), truncated, data.length) != null, "data ends early: IOException");
+    byte[] garbled = data.clone();
+    garbled[0] = 'X';
+    Check.isTrue("Not a lap trace".equals(load(new LapTrace(), garbled, garbled.length)), "wrong magic number: rejected");
+    byte[] badCount = data.clone();
+    badCount[24] = (byte)0x80;                                                     // Negative point count
+    Check.isTrue("Bad lap trace".equals(load(new LapTrace(), badCount, badCount.length)), "negative point count: rejected");
+    }
+
+
+  // Load a trace from bytes: returns null, or the IOException message.
+  private static String load(LapTrace trace, byte[] data, long length)
+    {
+    try
+      {
+      trace.load(new DataInputStream(new ByteArrayInputStream(data)), length);
+      return null;
+      }
+    catch (IOException e)
+      {  return String.valueOf(e.getMessage());  }
+    }
+
+
+  // Do two traces give the same matches along the track?
+  private static boolean sameTrace(LapTrace a, LapTrace b)
+    {
+    if ( (a.getCount() != b.getCount()) || (a.getLapTime() != b.getLapTime()) || (a.getLength() != b.getLength())
+      || (a.getOriginLat() != b.getOriginLat()) || (a.getOriginLon() != b.getOriginLon()) ) return false;
+    a.resetCursor();
+    b.resetCursor();
+    for (double distance = 1.0; distance < track.length; distance += 7.0)
+      {
+      double[] position = track.position(distance, 1.0);
+      boolean aMatch = a.match(lat(position[1]), lon(position[0]));
+      boolean bMatch = b.match(lat(position[1]), lon(position[0]));
+      if ( (aMatch != bMatch) || (a.getMatchTime() != b.getMatchTime())
+        || (a.getMatchDistance() != b.getMatchDistance()) || (a.getMatchEnergy() != b.getMatchEnergy()) ) return false;
+      }
+    return true;
+    }
+
+
+
+  private static double lat(double north)
+    {  return ORIGIN_LAT + (north / METRES_PER_DEGREE);  }
+
+  private static double lon(double east)
+    {  return ORIGIN_LON + (east / METRES_PER_DEGREE_LON);  }
+
+
+
+  /******** Figure eight track (a lemniscate), by distance along it: ********/
+  private static class Track
+    {
+    private static final int STEPS = 100000;
+    final double[] east  = new double[STEPS + 1];
+    final double[] north = new double[STEPS + 1];
+    final double[] along = new double[STEPS + 1];              // Distance from the start (m)
+    final double length;
+
+    Track(double size)
+      {
+      for (int n = 0; n <= STEPS; n++)
+        {
+        double angle = 2.0 * Math.PI * n / STEPS;
+        east[n]  = size * Math.sin(angle) * Math.cos(angle);
+        north[n] = size * Math.sin(angle);
+        if (n > 0) along[n] = along[n - 1] + Math.hypot(east[n] - east[n - 1], north[n] - north[n - 1]);
+        }
+      length = along[STEPS];
+      }
+
+    // Position (east, north) at a distance along the track, and offset to the right (m):
+    double[] position(double distance, double offset)
+      {
+      int low = 0;
+      int high = STEPS;
+      while ((high - low) > 1)
+        {
+        int middle = (low + high) / 2;
+        if (along[middle] <= distance) low = middle;
+        else                           high = middle;
+        }
+      double fraction = (distance - along[low]) / (along[high] - along[low]);
+      double dEast  = east[high]  - east[low];
+      double dNorth = north[high] - north[low];
+      double step = Math.hypot(dEast, dNorth);
+      return new double[] { east[low]  + (dEast  * fraction) + (offset * dNorth / step),
+                            north[low] + (dNorth * fraction) - (offset * dEast  / step) };
+      }
+    }
+
+
+  }  // [class LapTraceTest]
@@ -0,0 +1,237 @@
+package com.tumanako.sensors;
+
+/************************************************************************************
+Tumanako - Electric Vehicle and Motor control software
+
+Copyright (C) 2014 Jeremy Cole-Baker <jeremy@rhtech.co.nz>
+
+This file is part of Tumanako Dashboard.
+
+Tumanako is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published
+by the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Tumanako is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with Tumanako.  If not, see <http://www.gnu.org/licenses/>.
+
+*************************************************************************************/
+
+
+import java.util.ArrayList;
+import java.util.Locale;
+
+import com.tumanako.test.Check;
+
+
+
+/****************************************************************
+ *  NMEA Decoder Test:
+ *  -------------------------------
+ *
+ *  Feeds generated 25 Hz NMEA sentence sets to NmeaDecoder, and
+ *  checks that exactly one fix comes out per epoch, with the epoch's
+ *  time and position:
+ *
+ *   - For GN, GL and GA talkers, and several sentence orders (RMC
+ *     first, GGA first, no GGA, GGA and VTG only), across midnight.
+ *     The fix time must keep counting up past midnight.
+ *
+ *   - With the time going backwards (e.g. the receiver resetting),
+ *     where the fixes must carry on with the new time.
+ *
+ *  Then times the decoder over 20 minutes of full sentence sets (RMC,
+ *  GGA, VTG, 2x GSA, 3x GSV at 25 Hz).
+ *
+ *  Run as described in Check.
+ *
+ * @author Jeremy Cole-Baker / Riverhead Technology
+ *
+ ***************************************************************/
+public class NmeaDecoderTest
+  {
+
+  private static final int  EPOCH_MILLIS = 40;                   // 25 Hz
+  private static final long MIDNIGHT     = 86400000L;
+
+  // Sentence orders: 
+  private static final String[] FULL_SET  = { "RMC", "GGA", "VTG", "GSA", "GSA", "GSV" };    // (GSV: one each for GP, GL, GA)
+  private static final String[] GGA_FIRST = { "GGA", "GSA", "GSV", "RMC", "VTG" };
+  private static final String[] NO_GGA    = { "RMC", "VTG", "GSA" };
+  private static final String[] GGA_VTG   = { "GGA", "VTG" };
+
+
+
+  public static void main(String[] args)
+    {
+    Check.heading("One fix per epoch, across midnight:");
+    String[] talkers = { "GN", "GL", "GA" };
+    String[][] orders = { FULL_SET, GGA_FIRST, NO_GGA, GGA_VTG };
+    String[] orderNames = { "full set", "GGA first", "no GGA", "GGA + VTG" };
+    for (int t = 0; t < talkers.length; t++)
+      for (int o = 0; o < orders.length; o++)
+        {
+        String name = talkers[t] + ", " + orderNames[o];
+        TestDecoder decoder = new TestDecoder();
+        long start = MIDNIGHT - 30000;
+        int epochs = 1500;                                   // 23:59:30 to 00:00:30
+        for (int n = 0; n < epochs; n++) feedEpoch(decoder, start + (n * EPOCH_MILLIS), talkers[t], orders[o]);
+        checkDecoder(name, decoder, epochs);
+        Check.equal(start + ((epochs - 1) * EPOCH_MILLIS), decoder.getTimeMillis(), name + ": last fix time");
+        System.out.println("  " + name + ": " + decoder.fixes + " fixes");
+        }
+
+    Check.heading("Time going backwards:");
+    TestDecoder decoder = new TestDecoder();
+    long time = 10 * 3600000L;                               // 10:00:00 for 10 s...
+    for (int n = 0; n < 250; n++) feedEpoch(decoder, time + (n * EPOCH_MILLIS), "GN", FULL_SET);
+    time -= 10000;                                           // ...then back to 09:59:50 for 10 s
+    for (int n = 0; n < 250; n++) feedEpoch(decoder, time + (n * EPOCH_MILLIS), "GN", FULL_SET);
+    checkDecoder("backwards", decoder, 500);
+    Check.equal(time + (249 * EPOCH_MILLIS), decoder.getTimeMillis(), "backwards: last fix time");
+    System.out.println("  " + decoder.fixes + " fixes");
+
+    throughput();
+    Check.done();
+    }
+
+
+
+  private static void checkDecoder(String name, TestDecoder decoder, int epochs)
+    {
+    Check.equal(epochs, decoder.fixes, name + ": fixes");
+    Check.equal(epochs, decoder.getUpdateCount(), name + ": update count");
+    Check.equal(0, decoder.wrongTime, name + ": fixes with the wrong time");
+    Check.equal(0, decoder.wrongPosition, name + ": fixes with the wrong position");
+    Check.equal(0, decoder.getSentencesRejected(), name + ": sentences rejected");
+    }
+
+
+
+  // Decode 20 minutes of 25 Hz full sentence sets (across midnight), a few times: 
+  private static void throughput()
+    {
+    Check.heading("Throughput (25 Hz, full sentence sets):");
+    int epochs = 20 * 60 * 25;
+    long start = MIDNIGHT - 600000;
+    ArrayList<String> sentences = new ArrayList<String>();
+    long[] epochTime = new long[epochs];
+    double[] epochLat = new double[epochs];
+    int[] epochEnd = new int[epochs];               // Index of the first sentence in the next epoch.
+    for (int n = 0; n < epochs; n++)
+      {
+      epochTime[n] = start + (n * EPOCH_MILLIS);
+      epochLat[n] = addEpoch(sentences, epochTime[n], "GN", FULL_SET);
+      epochEnd[n] = sentences.size();
+      }
+    String[] log = sentences.toArray(new String[sentences.size()]);
+
+    long bestTime = Long.MAX_VALUE;
+    for (int round = 0; round < 5; round++)
+      {
+      TestDecoder decoder = new TestDecoder();
+      long startTime = System.nanoTime();
+      int s = 0;
+      for (int n = 0; n < epochs; n++)
+        {
+        decoder.expectEpoch(epochTime[n], epochLat[n]);
+        for (; s < epochEnd[n]; s++) decoder.decode(log[s]);
+        }
+      long thisTime = System.nanoTime() - startTime;
+      if (thisTime < bestTime) bestTime = thisTime;
+      checkDecoder("throughput round " + round, decoder, epochs);
+      }
+    System.out.println( String.format(Locale.US, "  %d sentences (%d epochs): %.0f sentences/s, %.0f epochs/s",
+        log.length, epochs, log.length * 1e9 / bestTime, epochs * 1e9 / bestTime) );
+    }
+
+
+
+
+  /******** The decoder, checking each fix: ********/
+  private static class TestDecoder extends NmeaDecoder
+    {
+    int fixes = 0;
+    int wrongTime = 0;
+    int wrongPosition = 0;
+    private long expectedTime;
+    private double expectedLat;
+
+    void expectEpoch(long time, double lat)
+      {
+      expectedTime = time;
+      expectedLat = lat;
+      }
+
+    protected void onFix()
+      {
+      fixes++;
+      if (getTimeMillis() != expectedTime) wrongTime++;
+      if (Math.abs(getLat() - expectedLat) > 1e-6) wrongPosition++;
+      }
+
+    protected long clockMillis()
+      {  return expectedTime;  }
+    }
+
+
+
+  private static void feedEpoch(TestDecoder decoder, long time, String talker, String[] order)
+    {
+    ArrayList<String> sentences = new ArrayList<String>();
+    decoder.expectEpoch(time, addEpoch(sentences, time, talker, order));
+    for (int n = 0; n < sentences.size(); n++) decoder.decode(sentences.get(n));
+    }
+
+
+
+  /******** Sentence generator: ********
+   * Adds the sentences for one epoch, for a car going round a circle
+   * near Auckland at 100 kph. Returns the latitude. 
+   */
+  private static double addEpoch(ArrayList<String> sentences, long time, String talker, String[] order)
+    {
+    double angle = (time % 90000) * (2.0 * Math.PI / 90000.0);
+    double lat = -36.85 + (0.002 * Math.sin(angle));
+    double lon = 174.76 + (0.003 * Math.cos(angle));
+    double track = Math.toDegrees(angle);
+    long timeOfDay = time % MIDNIGHT;
+    String utc = String.format(Locale.US, "%02d%02d%02d.%02d",
+        timeOfDay / 3600000, (timeOfDay / 60000) % 60, (timeOfDay / 1000) % 60, (timeOfDay / 10) % 100);
+    String position = String.format(Locale.US, "%02d%08.5f,S,%03d%08.5f,E",
+        (int)(-lat), (-lat - (int)(-lat)) * 60.0, (int)lon, (lon - (int)lon) * 60.0);
+    for (int n = 0; n < order.length; n++)
+      {
+      if (order[n].equals("RMC"))
+        sentences.add(withChecksum( String.format(Locale.US, "$%sRMC,%s,A,%s,%.3f,%.1f,181026,,,A", talker, utc, position, 100.0 / 1.852, track) ));
+      else if (order[n].equals("GGA"))
+        sentences.add(withChecksum( String.format(Locale.US, "$%sGGA,%s,%s,1,14,0.7,32.5,M,26.8,M,,", talker, utc, position) ));
+      else if (order[n].equals("VTG"))
+        sentences.add(withChecksum( String.format(Locale.US, "$%sVTG,%.1f,T,,M,%.3f,N,%.1f,K,A", talker, track, 100.0 / 1.852, 100.0) ));
+      else if (order[n].equals("GSA"))
+        sentences.add(withChecksum( "$" + talker + "GSA,A,3,02,05,12,13,15,18,20,25,29,,,,1.3,0.7,1.1" ));
+      else if (order[n].equals("GSV"))
+        {
+        sentences.add(withChecksum( "$GPGSV,3,1,11,02,67,109,45,05,41,255,43,12,22,312,38,13,15,055,36" ));
+        sentences.add(withChecksum( "$GLGSV,2,1,07,65,45,041,40,66,71,312,42,72,18,158,35,81,33,236,39" ));
+        sentences.add(withChecksum( "$GAGSV,2,1,06,02,52,087,44,07,38,201,41,19,24,322,37,30,61,145,43" ));
+        }
+      }
+    return lat;
+    }
+
+
+  private static String withChecksum(String body)
+    {
+    int checksum = 0;
+    for (int n = 1; n < body.length(); n++) checksum ^= body.charAt(n);
+    return body + String.format("*%02X", checksum);
+    }
+
+
+  }  // [class NmeaDecoderTest]
@@ -0,0 +1,419 @@
+package com.tumanako.sensors;
+
+/************************************************************************************
+Tumanako - Electric Vehicle and Motor control software
+
+Copyright (C) 2014 Jeremy Cole-Baker <jeremy@rhtech.co.nz>
+
+This file is part of Tumanako Dashboard.
+
+Tumanako is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published
+by the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Tumanako is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with Tumanako.  If not, see <http://www.gnu.org/licenses/>.
+
+*************************************************************************************/
+
+
+import java.util.Locale;
+import java.util.Random;
+
+import com.tumanako.test.Check;
+
+
+
+/****************************************************************
+ *  Timing Gate Test:
+ *  -------------------------------
+ *
+ *  Checks TimingGate.findCrossing, and the gate rules in LapGates,
+ *  with simulated GPS fixes at 1, 5, 10 and 25 Hz:
+ *
+ *   - Straight runs through a gate, at constant speed and braking,
+ *     with exact fixes: the interpolated crossing time must be within
+ *     1 mS. Also at an angle, the wrong way, and outside the gate.
+ *
+ *   - The same with 1 m of position noise and 0.5 m/s of speed noise,
+ *     over many runs: every run must give exactly one start / finish
+ *     (the noise can cross the line more than once, which the dead
+ *     time rule must reject), with a small timing error.
+ *
+ *   - Laps of a circular track with two sectors, exact and noisy:
+ *     the number of laps, lap times and split times.
+ *
+ *   - The dead time rule and sector order rules directly.
+ *
+ *  Run as described in Check.
+ *
+ * @author Jeremy Cole-Baker / Riverhead Technology
+ *
+ ***************************************************************/
+public class TimingGateTest
+  {
+
+  private static final int[] RATES = { 1, 5, 10, 25 };           // Hz
+
+  // Gate position (metres are converted to degrees as TimingGate does):
+  private static final double ORIGIN_LAT = -36.85;
+  private static final double ORIGIN_LON = 174.76;
+  private static final double METRES_PER_DEGREE = 111120.0;
+  private static final double METRES_PER_DEGREE_LON = Math.cos(Math.toRadians(ORIGIN_LAT)) * METRES_PER_DEGREE;
+
+  private static final long  BASE_TIME = 36000000L;              // GPS time (mS) of t = 0 (10:00 am)
+  private static final float HALF_WIDTH = 8f;                    // Gate half width (m; LapData.START_FINISH_BOX_RADIUS)
+
+  private static final Random random = new Random(12345);
+
+
+
+  public static void main(String[] args)
+    {
+    straightRuns();
+    noisyRuns();
+    laps();
+    deadTime();
+    sectorOrder();
+    Check.done();
+    }
+
+
+
+  /******** Straight runs, exact fixes: ********/
+  private static void straightRuns()
+    {
+    Check.heading("Straight runs (exact fixes):");
+    for (int r = 0; r < RATES.length; r++)
+      {
+      int rate = RATES[r];
+      double constantError = 0.0;
+      double brakingError = 0.0;
+      double brakingNoSpeedError = 0.0;
+      for (int phase = 0; phase < 1000 / rate; phase += Math.max(1, 100 / rate))
+        {
+        for (int angle = 0; angle < 360; angle += 45)
+          {
+          Run run = new Run(angle, -200.0, 30.0, 0.0, 0.0, rate, phase, 0.0, 0.0);   // 30 m/s (108 kph)
+          Check.equal(1, run.crossings(true), rate + " Hz, constant speed, track " + angle + ": crossings");
+          constantError = Math.max(constantError, Math.abs(run.firstError));
+          }
+        Run braking = new Run(30, -100.0, 40.0, -6.0, 0.0, rate, phase, 0.0, 0.0);       // 40 to 20 m/s at the gate
+        Check.equal(1, braking.crossings(true), rate + " Hz, braking: crossings");
+        brakingError = Math.max(brakingError, Math.abs(braking.firstError));
+        braking.crossings(false);
+        brakingNoSpeedError = Math.max(brakingNoSpeedError, Math.abs(braking.firstError));
+
+        Run wrongWay = new Run(180, -200.0, 30.0, 0.0, 0.0, rate, phase, 0.0, 0.0);      // Through the gate from the far side
+        wrongWay.gate = new TimingGate(ORIGIN_LAT, ORIGIN_LON, 0f, HALF_WIDTH);
+        Check.equal(0, wrongWay.crossings(true), rate + " Hz, wrong way: crossings");
+        Run outside = new Run(0, -200.0, 30.0, 0.0, 9.0, rate, phase, 0.0, 0.0);        // 9 m to the side
+        Check.equal(0, outside.crossings(true), rate + " Hz, outside the gate: crossings");
+        }
+      Check.near(0.0, constantError, 1.0, rate + " Hz, constant speed: max error (mS)");
+      Check.near(0.0, brakingError, 1.0, rate + " Hz, braking: max error (mS)");
+      System.out.println( String.format(Locale.US, "  %2d Hz: max error %.3f mS (constant speed), %.3f mS (braking); braking without speeds %.1f mS",
+          rate, constantError, brakingError, brakingNoSpeedError) );
+      }
+    }
+
+
+
+  /******** Straight runs, noisy fixes: ********/
+  private static void noisyRuns()
+    {
+    Check.heading("Straight runs (1 m position noise, 0.5 m/s speed noise; 500 runs):");
+    for (int r = 0; r < RATES.length; r++)
+      {
+      int rate = RATES[r];
+      int runs = 500;
+      int wrongCount = 0;
+      int extraCrossings = 0;
+      double sumSquares = 0.0;
+      double maxError = 0.0;
+      for (int n = 0; n < runs; n++)
+        {
+        Run run = new Run(random.nextInt(360), -200.0, 30.0, 0.0, 0.0, rate, random.nextInt(1000 / rate), 1.0, 0.5);
+        int crossings = run.crossings(true);
+        int laps = run.lapStarts();
+        if (laps != 1) wrongCount++;
+        extraCrossings += crossings - laps;
+        sumSquares += run.firstError * run.firstError;
+        maxError = Math.max(maxError, Math.abs(run.firstError));
+        }
+      double rms = Math.sqrt(sumSquares / runs);
+      Check.equal(0, wrongCount, rate + " Hz: runs without exactly one start / finish");
+      Check.near(0.0, rms, 50.0, rate + " Hz: RMS error (mS)");
+      Check.near(0.0, maxError, 200.0, rate + " Hz: max error (mS)");
+      System.out.println( String.format(Locale.US, "  %2d Hz: RMS error %.1f mS, max %.1f mS; %d extra crossings rejected by the dead time",
+          rate, rms, maxError, extraCrossings) );
+      }
+    }
+
+
+
+  /******** Laps of a circular track: ********/
+  private static void laps()
+    {
+    Check.heading("Laps (150 m radius, 25 m/s, sectors at 1/3 and 2/3):");
+    for (int noise = 0; noise <= 1; noise++)
+      for (int r = 0; r < RATES.length; r++)
+        {
+        int rate = RATES[r];
+        String name = rate + " Hz" + ((noise > 0) ? ", noisy" : "");
+        Circuit circuit = new Circuit(rate, noise * 1.0, noise * 0.5);
+        Check.equal(Circuit.LAPS, circuit.laps, name + ": laps");
+        double tolerance = (noise > 0) ? 150.0 : 10.0;
+        Check.near(0.0, circuit.maxLapError, tolerance, name + ": max lap time error (mS)");
+        Check.near(0.0, circuit.maxSplitError, tolerance, name + ": max split time error (mS)");
+        Check.equal(Circuit.LAPS * 2, circuit.splits, name + ": splits");
+        System.out.println( String.format(Locale.US, "  %-12s %d laps, %d splits; max error %.2f mS (lap), %.2f mS (split)",
+            name + ":", circuit.laps, circuit.splits, circuit.maxLapError, circuit.maxSplitError) );
+        }
+    }
+
+
+
+  /******** Dead time: ********/
+  private static void deadTime()
+    {
+    Check.heading("Dead time:");
+    LapGates gates = new LapGates();
+    gates.setStartGate(new TimingGate(ORIGIN_LAT, ORIGIN_LON, 0f, HALF_WIDTH));    // Heading north
+    // First crossing (no lap yet) counts:
+    double crossing = gates.findStartFinish(lat(-5), ORIGIN_LON, BASE_TIME, -1f, lat(5), ORIGIN_LON, BASE_TIME + 1000, -1f, false, 0.0);
+    Check.near(BASE_TIME + 500, crossing, 0.001, "first crossing");
+    // A jump back behind the line and over it again, 2 s later, doesn't:
+    double again = gates.findStartFinish(lat(-1), ORIGIN_LON, BASE_TIME + 2000, -1f, lat(3), ORIGIN_LON, BASE_TIME + 3000, -1f, true, crossing);
+    Check.isTrue(Double.isNaN(again), "crossing 2.25 s after the start is ignored");
+    // ...nor does one just inside the dead time (9.9 s):
+    again = gates.findStartFinish(lat(-1), ORIGIN_LON, BASE_TIME + 10300, -1f, lat(1), ORIGIN_LON, BASE_TIME + 10500, -1f, true, crossing);
+    Check.isTrue(Double.isNaN(again), "crossing 9.9 s after the start is ignored");
+    // Just after it (10.1 s) counts:
+    again = gates.findStartFinish(lat(-1), ORIGIN_LON, BASE_TIME + 10500, -1f, lat(1), ORIGIN_LON, BASE_TIME + 10700, -1f, true, crossing);
+    Check.near(BASE_TIME + 10600, again, 0.001, "crossing 10.1 s after the start");
+    // No start gate: nothing:
+    gates.setStartGate(null);
+    Check.isTrue(!gates.hasStartGate(), "no start gate");
+    again = gates.findStartFinish(lat(-5), ORIGIN_LON, BASE_TIME, -1f, lat(5), ORIGIN_LON, BASE_TIME + 1000, -1f, false, 0.0);
+    Check.isTrue(Double.isNaN(again), "no start gate: no crossing");
+    }
+
+
+
+  /******** Sector order: ********/
+  private static void sectorOrder()
+    {
+    Check.heading("Sector order:");
+    LapGates gates = new LapGates();
+    TimingGate[] sectors = new TimingGate[3];
+    for (int i = 0; i < sectors.length; i++) sectors[i] = new TimingGate(lat(100 * (i + 1)), ORIGIN_LON, 0f, HALF_WIDTH);
+    gates.setStartGate(new TimingGate(ORIGIN_LAT, ORIGIN_LON, 0f, HALF_WIDTH));
+    gates.setSectorGates(sectors);
+    Check.equal(3, gates.getSectorCount(), "sector count");
+    // Not looked for until a lap starts:
+    Check.equal(-1, gates.findSector(lat(90), ORIGIN_LON, BASE_TIME, -1f, lat(110), ORIGIN_LON, BASE_TIME + 1000, -1f), "sector before the lap starts");
+    gates.restartSectors();
+    Check.equal(0, gates.findSector(lat(90), ORIGIN_LON, BASE_TIME, -1f, lat(110), ORIGIN_LON, BASE_TIME + 1000, -1f), "sector 1");
+    Check.near(BASE_TIME + 500, gates.getSectorCrossing(), 0.001, "sector 1 time");
+    // Only found once per lap:
+    Check.equal(-1, gates.findSector(lat(90), ORIGIN_LON, BASE_TIME + 2000, -1f, lat(110), ORIGIN_LON, BASE_TIME + 3000, -1f), "sector 1 again");
+    // Sector 2 missed (passed outside it): sector 3 is still found:
+    Check.equal(-1, gates.findSector(lat(190), ORIGIN_LON + (20 / METRES_PER_DEGREE_LON), BASE_TIME + 4000, -1f, 
+                                     lat(210), ORIGIN_LON + (20 / METRES_PER_DEGREE_LON), BASE_TIME + 5000, -1f), "sector 2 missed");
+    Check.equal(2, gates.findSector(lat(290), ORIGIN_LON, BASE_TIME + 6000, -1f, lat(310), ORIGIN_LON, BASE_TIME + 7000, -1f), "sector 3");
+    // Stopped (e.g. lap data reset): not looked for until the next lap:
+    gates.restartSectors();
+    gates.skipSectors();
+    Check.equal(-1, gates.findSector(lat(90), ORIGIN_LON, BASE_TIME, -1f, lat(110), ORIGIN_LON, BASE_TIME + 1000, -1f), "sector after skipSectors");
+    }
+
+
+
+
+  /******** A straight run through a gate at the origin: ********/
+  private static class Run
+    {
+    TimingGate gate;
+    final double[] lats, lons;
+    final long[] times;
+    final float[] speeds;
+    final double crossingTime;          // True crossing time (mS)
+    double firstError;                  // Error of the first crossing found by crossings() (mS)
+    private final double[] found = new double[8];
+    private int foundCount = 0;
+
+    /**
+     @param track     Direction of travel (degrees), and of the gate
+     @param start     Starting distance along the track from the gate (m; negative = before it)
+     @param speed     Starting speed (m/s)
+     @param accel     Acceleration (m/s^2)
+     @param offset    Distance to the right of the gate centre (m)
+     @param rate      Fix rate (Hz)
+     @param phase     Time of the first fix (mS)
+     @param posNoise  Position noise (m, standard deviation, in each direction)
+     @param speedNoise  Speed noise (m/s, standard deviation)
+     */
+    Run(int track, double start, double speed, double accel, double offset, int rate, int phase, double posNoise, double speedNoise)
+      {
+      gate = new TimingGate(ORIGIN_LAT, ORIGIN_LON, track, HALF_WIDTH);
+      double dirEast = Math.sin(Math.toRadians(track));
+      double dirNorth = Math.cos(Math.toRadians(track));
+      // Time to reach the gate: start + speed t + accel t^2 / 2 = 0:
+      double t = (accel == 0.0) ? (-start / speed) : ((-speed + Math.sqrt((speed * speed) - (2.0 * accel * start))) / accel);
+      crossingTime = BASE_TIME + (t * 1000.0);
+      int interval = 1000 / rate;
+      int count = (int)(((t * 1000.0) + 3000) / interval);    // Fixes to 3 s past the gate
+      lats = new double[count];
+      lons = new double[count];
+      times = new long[count];
+      speeds = new float[count];
+      for (int n = 0; n < count; n++)
+        {
+        double seconds = (phase + (n * interval)) / 1000.0;
+        double along = start + (speed * seconds) + (0.5 * accel * seconds * seconds);
+        double across = offset;
+        double east  = (along * dirEast) + (across * dirNorth) + (random.nextGaussian() * posNoise);
+        double north = (along * dirNorth) - (across * dirEast) + (random.nextGaussian() * posNoise);
+        lats[n] = ORIGIN_LAT + (north / METRES_PER_DEGREE);
+        lons[n] = ORIGIN_LON + (east / METRES_PER_DEGREE_LON);
+        times[n] = BASE_TIME + phase + (n * interval);
+        speeds[n] = (float)(speed + (accel * seconds) + (random.nextGaussian() * speedNoise));
+        }
+      }
+
+    /** Look for crossings between each pair of fixes (with or without the speeds). @return Number found */
+    int crossings(boolean useSpeeds)
+      {
+      foundCount = 0;
+      for (int n = 1; n < times.length; n++)
+        {
+        double crossing = gate.findCrossing(lats[n-1], lons[n-1], times[n-1], useSpeeds ? speeds[n-1] : -1f, 
+                                            lats[n],   lons[n],   times[n],   useSpeeds ? speeds[n]   : -1f);
+        if (!Double.isNaN(crossing) && (foundCount < found.length)) found[foundCount++] = crossing;
+        }
+      firstError = (foundCount > 0) ? (found[0] - crossingTime) : Double.NaN;
+      return foundCount;
+      }
+
+    /** Pass the fixes through LapGates, as LapData does. @return Number of start / finish crossings accepted */
+    int lapStarts()
+      {
+      LapGates gates = new LapGates();
+      gates.setStartGate(gate);
+      boolean isLapStarted = false;
+      double lapStartTime = 0.0;
+      int starts = 0;
+      for (int n = 1; n < times.length; n++)
+        {
+        double crossing = gates.findStartFinish(lats[n-1], lons[n-1], times[n-1], speeds[n-1], lats[n], lons[n], times[n], speeds[n], isLapStarted, lapStartTime);
+        if (!Double.isNaN(crossing))
+          {
+          isLapStarted = true;
+          lapStartTime = crossing;
+          starts++;
+          }
+        }
+      return starts;
+      }
+    }
+
+
+
+  /******** Laps of a circular track, timed as LapData does: ********/
+  private static class Circuit
+    {
+    static final int LAPS = 5;
+    static final double RADIUS = 150.0;       // m
+    static final double SPEED = 25.0;         // m/s
+    int laps = 0;
+    int splits = 0;
+    double maxLapError = 0.0;
+    double maxSplitError = 0.0;
+
+    Circuit(int rate, double posNoise, double speedNoise)
+      {
+      // The car goes anticlockwise round the circle; angle 0 is east of the centre (heading north).
+      // Start / finish at angle 0, sectors at 120 and 240 degrees:
+      LapGates gates = new LapGates();
+      gates.setStartGate(gate(0.0));
+      gates.setSectorGates(new TimingGate[] { gate(120.0), gate(240.0) });
+      double lapTime = 2.0 * Math.PI * RADIUS / SPEED;
+      double startAngle = -30.0;
+      int interval = 1000 / rate;
+      int count = (int)((((LAPS + 0.2) * lapTime) + (lapTime * 30.0 / 360.0)) * rate);
+
+      boolean isLapStarted = false;
+      double lapStartTime = 0.0;
+      double lastLat = 0.0, lastLon = 0.0;
+      long lastTime = 0;
+      float lastSpeed = 0f;
+      for (int n = 0; n < count; n++)
+        {
+        long time = BASE_TIME + 7 + (n * interval);
+        double seconds = (time - BASE_TIME) / 1000.0;
+        double angle = Math.toRadians(startAngle) + (SPEED * seconds / RADIUS);
+        double east  = (RADIUS * Math.cos(angle)) + (random.nextGaussian() * posNoise);
+        double north = (RADIUS * Math.sin(angle)) + (random.nextGaussian() * posNoise);
+        double lat = ORIGIN_LAT + (north / METRES_PER_DEGREE);
+        double lon = ORIGIN_LON + (east / METRES_PER_DEGREE_LON);
+        float speed = (float)(SPEED + (random.nextGaussian() * speedNoise));
+        if (n > 0)
+          {
+          int sector = gates.findSector(lastLat, lastLon, lastTime, lastSpeed, lat, lon, time, speed);
+          if (sector >= 0)
+            {
+            splits++;
+            double expected = lapTime * (sector + 1) / 3.0 * 1000.0;
+            maxSplitError = Math.max(maxSplitError, Math.abs((gates.getSectorCrossing() - lapStartTime) - expected));
+            }
+          double crossing = gates.findStartFinish(lastLat, lastLon, lastTime, lastSpeed, lat, lon, time, speed, isLapStarted, lapStartTime);
+          if (!Double.isNaN(crossing))
+            {
+            if (isLapStarted)
+              {
+              laps++;
+              maxLapError = Math.max(maxLapError, Math.abs((crossing - lapStartTime) - (lapTime * 1000.0)));
+              }
+            else
+              {
+              // First crossing: 30 degrees round from the start angle:
+              Check.near(BASE_TIME + (lapTime * 30.0 / 360.0 * 1000.0), crossing, (posNoise > 0.0) ? 100.0 : 10.0, rate + " Hz: first crossing");
+              }
+            isLapStarted = true;
+            lapStartTime = crossing;
+            gates.restartSectors();
+            }
+          }
+        lastLat = lat;
+        lastLon = lon;
+        lastTime = time;
+        lastSpeed = speed;
+        }
+      }
+
+    // Gate across the track at the given angle round the circle:
+    private static TimingGate gate(double angle)
+      {
+      double radians = Math.toRadians(angle);
+      double lat = ORIGIN_LAT + (RADIUS * Math.sin(radians) / METRES_PER_DEGREE);
+      double lon = ORIGIN_LON + (RADIUS * Math.cos(radians) / METRES_PER_DEGREE_LON);
+      float track = (float)((360.0 - angle) % 360.0);     // Heading at that point (anticlockwise)
+      return new TimingGate(lat, lon, track, HALF_WIDTH);
+      }
+    }
+
+
+
+  // Latitude the given distance (m) north of the origin: 
+  private static double lat(double metres)
+    {  return ORIGIN_LAT + (metres / METRES_PER_DEGREE);  }
+
+
+  }  // [class TimingGateTest]
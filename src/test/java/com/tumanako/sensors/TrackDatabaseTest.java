@@ -0,0 +1,356 @@
+package com.tumanako.sensors;
+
+/************************************************************************************
+Tumanako - Electric Vehicle and Motor control software
+
+Copyright (C) 2014 Jeremy Cole-Baker <jeremy@rhtech.co.nz>
+
+This file is part of Tumanako Dashboard.
+
+Tumanako is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published
+by the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Tumanako is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details.
+
+You should have received a copy of the GNU Lesser General Public License
+along with Tumanako.  If not, see <http://www.gnu.org/licenses/>.
+
+*************************************************************************************/
+
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Random;
+
+import com.tumanako.test.Check;
+
+
+
+/****************************************************************
+ *  Track Database Test:
+ *  -------------------------------
+ *
+ *  Checks TrackDatabase with files in a temporary directory:
+ *
+ *   - The paged index: 20000 tracks (clustered, so many cells have
+ *     several tracks, and spread round the world, so there are many
+ *     index pages). findNearest() for random positions against a
+ *     search of every track, and the file size.
+ *
+ *   - Longitudes either side of 180 degrees, and near the poles.
+ *
+ *   - add(): new tracks, tracks replaced (same name, or the start /
+ *     finish in the same place), a track which is already there, and
+ *     the temporary file being renamed over the old one.
+ *
+ *   - Recovery: a file which is too short, or of an unknown format,
+ *     is put aside (.old) and a new one started.
+ *
+ *  The writer thread is waited for by watching the track count.
+ *
+ *  Run as described in Check.
+ *
+ * @author Jeremy Cole-Baker / Riverhead Technology
+ *
+ ***************************************************************/
+public class TrackDatabaseTest
+  {
+
+  private static final int    HEADER_SIZE = 24;                  // TrackDatabase.HEADER_SIZE
+  private static final int    INDEX_ENTRY_SIZE = 16;             // TrackDatabase.INDEX_ENTRY_SIZE
+  private static final int    PAGE_CELLS = 128;                  // TrackDatabase.PAGE_CELLS
+  private static final double CELL_SIZE = 0.1;                   // TrackDatabase.CELL_SIZE (degrees)
+  private static final double METRES_PER_DEGREE = 111120.0;
+  private static final double RADIUS = TrackDatabase.DETECT_RADIUS;
+
+  private static final Random random = new Random(2468);
+
+  private static File directory;
+
+
+
+  public static void main(String[] args) throws IOException
+    {
+    directory = File.createTempFile("TrackDatabaseTest", "");
+    directory.delete();
+    directory.mkdir();
+    try
+      {
+      pagedIndex();
+      longitudeWrap();
+      adding();
+      recovery();
+      }
+    finally
+      {
+      File[] files = directory.listFiles();
+      if (files != null) for (int i = 0; i < files.length; i++) files[i].delete();
+      directory.delete();
+      }
+    Check.done();
+    }
+
+
+
+  /******** Paged index: ********/
+  private static void pagedIndex() throws IOException
+    {
+    Check.heading("Paged index (20000 tracks):");
+    ArrayList<TrackRecord> tracks = new ArrayList<TrackRecord>();
+    for (int cluster = 0; cluster < 2000; cluster++)
+      {
+      double lat = -60.0 + (random.nextDouble() * 130.0);
+      double lon = -180.0 + (random.nextDouble() * 360.0);
+      for (int n = 0; n < 10; n++)
+        tracks.add(track("Track " + tracks.size(), lat + (random.nextGaussian() * 0.05), lon + (random.nextGaussian() * 0.05)));
+      }
+    File file = new File(directory, "paged.dat");
+    TrackDatabase.write(file, tracks);
+    TrackDatabase database = new TrackDatabase(file);
+    Check.isTrue(database.takeError() == null, "opened: no error");
+    Check.equal(tracks.size(), database.getCount(), "tracks");
+
+    // Work out the number of cells, and so the file size:
+    ArrayList<Long> keys = new ArrayList<Long>();
+    for (int i = 0; i < tracks.size(); i++)
+      {
+      Long key = Long.valueOf( ((long)Math.floor(tracks.get(i).startLat / CELL_SIZE) << 32) + (long)Math.floor(tracks.get(i).startLon / CELL_SIZE) );
+      if (!keys.contains(key)) keys.add(key);
+      }
+    int cells = keys.size();
+    int pages = (cells + PAGE_CELLS - 1) / PAGE_CELLS;
+    Check.isTrue(pages > 50, "index pages: " + pages);
+    Check.equal(HEADER_SIZE + (pages * 8L) + ((long)cells * INDEX_ENTRY_SIZE) + ((long)tracks.size() * TrackRecord.RECORD_SIZE),
+                file.length(), "file size (bytes)");
+
+    // Random positions, mostly near tracks:
+    int differences = 0;
+    int found = 0;
+    TrackRecord result = new TrackRecord();
+    for (int n = 0; n < 5000; n++)
+      {
+      double lat, lon;
+      if (n % 5 == 0)
+        {
+        lat = -80.0 + (random.nextDouble() * 160.0);
+        lon = -180.0 + (random.nextDouble() * 360.0);
+        }
+      else
+        {
+        TrackRecord near = tracks.get(random.nextInt(tracks.size()));
+        lat = near.startLat + (random.nextGaussian() * 0.03);
+        lon = near.startLon + (random.nextGaussian() * 0.03);
+        }
+      if (!sameAsSearch(database, tracks, lat, lon, RADIUS, result)) differences++;
+      if (result.name.length() > 0) found++;
+      }
+    Check.equal(0, differences, "findNearest() different from a search of every track");
+    Check.isTrue(found > 3000, "positions with a track nearby: " + found);
+    System.out.println( "  " + cells + " cells, " + pages + " pages; " + found + " of 5000 positions had a track nearby" );
+
+    // A small radius only finds a track very close:
+    TrackRecord target = tracks.get(1234);
+    Check.near(0.0, database.findNearest(target.startLat, target.startLon, 1.0, result), 0.001, "radius 1 m, at a start / finish: distance");
+    Check.isTrue(result.sameAs(target), "radius 1 m, at a start / finish: the track");
+    Check.isTrue(result.name.equals("Track 1234"), "radius 1 m: name read back");
+    }
+
+
+
+  /******** Longitude wrap, and the poles: ********/
+  private static void longitudeWrap() throws IOException
+    {
+    Check.heading("Longitude wrap and poles:");
+    ArrayList<TrackRecord> tracks = new ArrayList<TrackRecord>();
+    tracks.add(track("East",  -17.0,  179.98));
+    tracks.add(track("West",  -16.5, -179.99));
+    tracks.add(track("Date line", -17.5, 180.0));
+    tracks.add(track("North", 89.99, 10.0));
+    File file = new File(directory, "wrap.dat");
+    TrackDatabase.write(file, tracks);
+    TrackDatabase database = new TrackDatabase(file);
+    TrackRecord result = new TrackRecord();
+    double metresPerDegreeLon = Math.cos(Math.toRadians(-17.0)) * METRES_PER_DEGREE;
+
+    double distance = database.findNearest(-17.0, -179.99, RADIUS, result);
+    Check.isTrue(result.name.equals("East"), "west of 180, nearest track east of it: found (got '" + result.name + "')");
+    Check.near(0.03 * metresPerDegreeLon, distance, 1.0, "west of 180: distance the short way round (m)");
+    distance = database.findNearest(-16.5, 179.995, RADIUS, result);
+    Check.isTrue(result.name.equals("West"), "east of 180, nearest track west of it: found (got '" + result.name + "')");
+    database.findNearest(-17.5, -179.999, RADIUS, result);
+    Check.isTrue(result.name.equals("Date line"), "track at exactly 180: found from -179.999 (got '" + result.name + "')");
+    database.findNearest(-17.5, 179.999, RADIUS, result);
+    Check.isTrue(result.name.equals("Date line"), "track at exactly 180: found from 179.999 (got '" + result.name + "')");
+    int differences = 0;
+    for (int n = 0; n < 200; n++)
+      {
+      double lat = -18.0 + (random.nextDouble() * 2.0);
+      double lon = 179.8 + (random.nextDouble() * 0.4);
+      if (lon >= 180.0) lon -= 360.0;
+      if (!sameAsSearch(database, tracks, lat, lon, RADIUS * 4, result)) differences++;
+      }
+    Check.equal(0, differences, "near 180: findNearest() different from a search of every track");
+
+    // Near the pole, the radius covers every longitude (including the cell on the far side):
+    distance = database.findNearest(89.99, -170.0, RADIUS, result);
+    Check.isTrue(result.name.equals("North"), "near the north pole: found (got '" + result.name + "')");
+    Check.isTrue(distance < 6000.0, "near the north pole: distance " + distance);
+    }
+
+
+
+  /******** Adding tracks: ********/
+  private static void adding() throws IOException
+    {
+    Check.heading("Adding tracks:");
+    File file = new File(directory, "adding.dat");
+    TrackDatabase database = new TrackDatabase(file);
+    TrackRecord result = new TrackRecord();
+    Check.equal(0, database.getCount(), "new database: tracks");
+    Check.near(-1.0, database.findNearest(-36.85, 174.76, RADIUS, result), 0.0, "new database: nothing found");
+
+    TrackRecord hampton = track("Hampton Downs", -37.3573, 175.0776);
+    hampton.sectorCount = 2;
+    hampton.sectorLat[0] = -37.36;
+    hampton.sectorLon[0] = 175.08;
+    hampton.sectorTrack[0] = 90f;
+    hampton.sectorLat[1] = -37.355;
+    hampton.sectorLon[1] = 175.075;
+    hampton.sectorTrack[1] = 270f;
+    database.add(hampton);
+    database.add(track("Pukekohe", -37.2146, 174.9180));
+    database.add(track("A very long track name, which is too long to keep", -36.9, 174.8));
+    waitForCount(database, 3);
+    Check.isTrue(!new File(file.getPath() + ".new").exists(), "temporary file renamed");
+    database.findNearest(-37.3573, 175.0776, RADIUS, result);
+    Check.isTrue(result.sameAs(hampton), "track read back with its sectors");
+    database.findNearest(-36.9, 174.8, RADIUS, result);
+    Check.equal(TrackRecord.NAME_LENGTH, result.name.length(), "long name cut short");
+
+    // The same track again: nothing changes.
+    database.add(hampton);
+    database.add(track("Marker 1", 10.0, 10.0));
+    waitForCount(database, 4);
+    database.findNearest(-37.3573, 175.0776, RADIUS, result);
+    Check.isTrue(result.sameAs(hampton), "added again: unchanged");
+
+    // Same name, moved: replaced.
+    database.add(track("Pukekohe", -37.2150, 174.9190));
+    database.add(track("Marker 2", 11.0, 11.0));
+    waitForCount(database, 5);
+    Check.near(0.0, database.findNearest(-37.2150, 174.9190, RADIUS, result), 0.001, "same name: moved");
+    Check.isTrue(result.name.equals("Pukekohe"), "same name: name");
+
+    // Different name, start / finish 10 m away: replaced.
+    database.add(track("Hampton Downs National", -37.3573 + (10.0 / METRES_PER_DEGREE), 175.0776));
+    database.add(track("Marker 3", 12.0, 12.0));
+    waitForCount(database, 6);
+    database.findNearest(-37.3573, 175.0776, RADIUS, result);
+    Check.isTrue(result.name.equals("Hampton Downs National"), "same place: replaced (got '" + result.name + "')");
+
+    // Opened again: all there.
+    TrackDatabase again = new TrackDatabase(file);
+    Check.equal(6, again.getCount(), "opened again: tracks");
+    Check.isTrue(again.takeError() == null, "opened again: no error");
+    }
+
+
+
+  /******** Recovery: ********/
+  private static void recovery() throws IOException
+    {
+    Check.heading("Recovery:");
+    ArrayList<TrackRecord> tracks = new ArrayList<TrackRecord>();
+    for (int n = 0; n < 10; n++) tracks.add(track("Track " + n, -36.0 - n, 174.0));
+    File file = new File(directory, "short.dat");
+    TrackDatabase.write(file, tracks);
+    RandomAccessFile cut = new RandomAccessFile(file, "rw");
+    cut.setLength(file.length() - 10);
+    cut.close();
+
+    TrackDatabase database = new TrackDatabase(file);
+    Check.equal(0, database.getCount(), "file too short: tracks");
+    Check.isTrue(database.takeError() != null, "file too short: error reported");
+    Check.isTrue(database.takeError() == null, "error only reported once");
+    Check.isTrue(!file.exists() && new File(file.getPath() + ".old").exists(), "file too short: put aside");
+    database.add(track("New", -36.0, 174.0));
+    waitForCount(database, 1);
+    Check.equal(1, new TrackDatabase(file).getCount(), "file too short: new file");
+
+    File unknown = new File(directory, "unknown.dat");
+    DataOutputStream out = new DataOutputStream(new FileOutputStream(unknown));
+    out.writeInt(0x12345678);
+    for (int n = 0; n < 100; n++) out.writeInt(n);
+    out.close();
+    database = new TrackDatabase(unknown);
+    Check.equal(0, database.getCount(), "unknown format: tracks");
+    Check.isTrue(database.takeError() != null, "unknown format: error reported");
+    Check.isTrue(!unknown.exists() && new File(unknown.getPath() + ".old").exists(), "unknown format: put aside");
+    }
+
+
+
+  /******** Helpers: ********/
+
+  private static TrackRecord track(String name, double lat, double lon)
+    {
+    TrackRecord record = new TrackRecord();
+    record.name = name;
+    record.startLat = lat;
+    record.startLon = lon;
+    record.startTrack = 90f;
+    return record;
+    }
+
+
+  // Does findNearest() give the same track and distance as a search of every track? (result is cleared if nothing was found)
+  private static boolean sameAsSearch(TrackDatabase database, ArrayList<TrackRecord> tracks, double lat, double lon, double radius, TrackRecord result)
+    {
+    double metresPerDegreeLon = Math.cos(Math.toRadians(lat)) * METRES_PER_DEGREE;
+    double bestDistance = radius;
+    TrackRecord best = null;
+    for (int i = 0; i < tracks.size(); i++)
+      {
+      TrackRecord track = tracks.get(i);
+      double dLon = track.startLon - lon;
+      if (dLon > 180.0)  dLon -= 360.0;
+      if (dLon < -180.0) dLon += 360.0;
+      double metresNorth = (track.startLat - lat) * METRES_PER_DEGREE;
+      double metresEast  = dLon * metresPerDegreeLon;
+      double distance = Math.sqrt( (metresNorth * metresNorth) + (metresEast * metresEast) );
+      if (distance < bestDistance)
+        {
+        bestDistance = distance;
+        best = track;
+        }
+      }
+    result.name = "";
+    double distance = database.findNearest(lat, lon, radius, result);
+    if (best == null) return (distance < 0.0);
+    // (Two tracks can be the same distance away; either will do.)
+    return (Math.abs(distance - bestDistance) < 0.001);
+    }
+
+
+  // Wait for the writer thread to get the database to the given number of tracks (up to 10 s):
+  private static void waitForCount(TrackDatabase database, int count)
+    {
+    long giveUp = System.currentTimeMillis() + 10000L;
+    while ( (database.getCount() < count) && (System.currentTimeMillis() < giveUp) )
+      {
+      try { Thread.sleep(5); } catch (InterruptedException e) {  }
+      }
+    Check.equal(count, database.getCount(), "tracks after adding");
+    }
+
+
+  }  // [class TrackDatabaseTest]
@@ -0,0 +1,103 @@
+package com.tumanako.test;
+
+/**
+Tumanako - Electric Vehicle and Motor control software <p>
+
+Copyright (C) 2014 Jeremy Cole-Baker <jeremy@rhtech.co.nz> <p>
+
+This file is part of Tumanako Dashboard. <p>
+
+Tumanako is free software: you can redistribute it and/or modify
+it under the terms of the GNU Lesser General Public License as published
+by the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version. <p>
+
+Tumanako is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Lesser General Public License for more details. <p>
+
+You should have received a copy of the GNU Lesser General Public License
+along with Tumanako.  If not, see <http://www.gnu.org/licenses/>. <p>
+
+@author Jeremy Cole-Baker / Riverhead Technology
+
+*/
+
+
+
+/**
+ Test Checks <p>
+
+ A very small test harness for the plain Java parts of the dashboard (the
+ decoders, timing gates and so on), which can run on a desktop JVM without
+ the Android libraries. Nothing here is part of the app. <p>
+
+ Each test is a main class in the same package as the class it tests, under
+ src/test/java, built and run like the benchmarks (see Bench): <p>
+
+ <pre>
+   javac -d /tmp/test -sourcepath src/main/java:src/test/java src/test/java/com/tumanako/sensors/NmeaDecoderTest.java
+   java -cp /tmp/test com.tumanako.sensors.NmeaDecoderTest
+ </pre>
+
+ Failed checks are printed, and counted; done() prints a summary and exits
+ with status 1 if anything failed, so a script can run the tests. <p>
+
+ @author Jeremy Cole-Baker / Riverhead Technology
+
+*/
+public final class Check
+  {
+
+  private static int checks = 0;
+  private static int failures = 0;
+
+
+
+  private Check()
+    {  }
+
+
+
+  /** Check that something is true. */
+  public static boolean isTrue(boolean condition, String what)
+    {
+    checks++;
+    if (condition) return true;
+    failures++;
+    System.out.println("  FAILED: " + what);
+    return false;
+    }
+
+
+  /** Check a whole number. */
+  public static boolean equal(long expected, long actual, String what)
+    {  return isTrue( (expected == actual), what + ": expected " + expected + ", got " + actual );  }
+
+
+  /** Check a number to within a tolerance. */
+  public static boolean near(double expected, double actual, double tolerance, String what)
+    {  return isTrue( (Math.abs(expected - actual) <= tolerance), what + ": expected " + expected + " (+/- " + tolerance + "), got " + actual );  }
+
+
+
+  /** Print a heading. */
+  public static void heading(String text)
+    {
+    System.out.println();
+    System.out.println(text);
+    }
+
+
+
+  /** Print the results, and exit with status 1 if any checks failed. */
+  public static void done()
+    {
+    System.out.println();
+    System.out.println( checks + " checks, " + failures + " failed" );
+    if (failures > 0) System.exit(1);
+    }
+
+
+  }  // [class Check]